@@ -0,0 +1,119 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.qdup.cmd.Cmd;
+import io.hyperfoil.tools.qdup.cmd.SpyContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time for a shuffled burst of Coordinator waitFor and signal calls from many threads to finish, the way scripts on
+ * different hosts meet at signals. pairs gives each waiter its own signal with a count of 1, shared has every waiter
+ * wait on one signal that counts down from the number of waiters so all of them contend on the same latch and queue.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CoordinatorBenchmark {
+
+    @Param({"10000"})
+    public int waiters;
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    private ExecutorService executor;
+    private Cmd[] commands;
+    private SpyContext context;
+    private AtomicInteger woken;
+    private Coordinator coordinator;
+    private List<Callable<Object>> pairs;
+    private List<Callable<Object>> shared;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        executor = Executors.newFixedThreadPool(threads);
+        commands = new Cmd[waiters];
+        for(int i = 0; i < waiters; i++){
+            commands[i] = Cmd.sh("echo " + i);
+        }
+        woken = new AtomicInteger();
+        context = new SpyContext() {
+            @Override
+            public void next(String output){
+                woken.incrementAndGet();
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    @Setup(Level.Invocation)
+    public void signals(){
+        coordinator = new Coordinator();
+        coordinator.setSignal("shared", waiters);
+        pairs = new ArrayList<>();
+        shared = new ArrayList<>();
+        for(int i = 0; i < waiters; i++){
+            String name = "signal-" + i;
+            Cmd command = commands[i];
+            coordinator.setSignal(name, 1);
+            pairs.add(() -> { coordinator.waitFor(name, command, context, "input"); return null; });
+            pairs.add(() -> { coordinator.signal(name); return null; });
+            shared.add(() -> { coordinator.waitFor("shared", command, context, "input"); return null; });
+            shared.add(() -> { coordinator.signal("shared"); return null; });
+        }
+        Random random = new Random(waiters);
+        Collections.shuffle(pairs, random);
+        Collections.shuffle(shared, random);
+        woken.set(0);
+    }
+
+    private int invokeAll(List<Callable<Object>> tasks) throws Exception {
+        for(Future<Object> future : executor.invokeAll(tasks)){
+            future.get();
+        }
+        if(woken.get() != waiters){
+            throw new IllegalStateException("expected " + waiters + " waiters to wake but " + woken.get() + " did");
+        }
+        return woken.get();
+    }
+
+    @Benchmark
+    public int pairs() throws Exception {
+        return invokeAll(pairs);
+    }
+
+    @Benchmark
+    public int shared() throws Exception {
+        return invokeAll(shared);
+    }
+}
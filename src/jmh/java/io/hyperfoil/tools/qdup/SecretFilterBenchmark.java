@@ -0,0 +1,113 @@
+package io.hyperfoil.tools.qdup;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of SecretFilter on MiB sized command output compared to the loop of String.replace for each secret it
+ * used before. The output has a secret every 50 lines. The stream benchmark writes the output in 4096 byte chunks;
+ * the replace loop filters each chunk on its own so it misses a secret split across two chunks but does the same work.
+ * Each operation filters one MiB so ops/s is MiB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SecretFilterBenchmark {
+
+    private static final int MIB = 1024 * 1024;
+    private static final int WRITE_SIZE = 4096;
+
+    @Param({"automaton", "replace"})
+    public String filter;
+
+    @Param({"64", "256"})
+    public int secrets;
+
+    private String output;
+    private byte[] outputBytes;
+    private List<String> secretList;
+    private SecretFilter secretFilter;
+    private SecretFilter.FilterStream stream;
+    private long written;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        Random random = new Random(secrets);
+        secretList = new ArrayList<>();
+        secretFilter = new SecretFilter();
+        for(int i = 0; i < secrets; i++){
+            StringBuilder secret = new StringBuilder();
+            for(int c = 0; c < 16; c++){
+                secret.append((char) ('a' + random.nextInt(26)));
+            }
+            secretList.add(secret.toString());
+            secretFilter.addSecret(secret.toString());
+        }
+        StringBuilder block = new StringBuilder();
+        int line = 0;
+        while(block.length() < MIB){
+            if(line % 50 == 49){
+                block.append("export TOKEN=").append(secretList.get(line % secrets)).append("\n");
+            }else{
+                block.append("2024-01-01 12:00:00,000 INFO  [org.example.Service] (executor-thread-").append(line % 16).append(") handled request ").append(line).append(" in 3 ms\n");
+            }
+            line++;
+        }
+        output = block.substring(0, MIB);
+        outputBytes = output.getBytes(StandardCharsets.UTF_8);
+        stream = secretFilter.stream("bench");
+        stream.addStream("count", new OutputStream() {
+            @Override
+            public void write(int b){written++;}
+            @Override
+            public void write(byte[] b, int off, int len){written += len;}
+        });
+    }
+
+    private String replace(String input){
+        String rtrn = input;
+        for(String secret : secretList){
+            rtrn = rtrn.replace(secret, SecretFilter.REPLACEMENT);
+        }
+        return rtrn;
+    }
+
+    @Benchmark
+    public String string(){
+        return "automaton".equals(filter) ? secretFilter.filter(output) : replace(output);
+    }
+
+    @Benchmark
+    public long stream() throws IOException {
+        for(int off = 0; off < outputBytes.length; off += WRITE_SIZE){
+            int len = Math.min(WRITE_SIZE, outputBytes.length - off);
+            if("automaton".equals(filter)){
+                stream.write(outputBytes, off, len);
+            }else{
+                written += replace(new String(outputBytes, off, len, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return written;
+    }
+}
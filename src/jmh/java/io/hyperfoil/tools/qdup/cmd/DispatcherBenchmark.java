@@ -0,0 +1,83 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time for a burst of commands that block on their shell (modelled as a sleep) to finish on the default command pool
+ * compared to a thread per task executor. Run on java 21 to compare virtual threads, older JVMs fall back to platform
+ * threads for the thread per task executor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatcherBenchmark {
+
+    @Param({"pool", "threadPerTask"})
+    public String executorType;
+
+    @Param({"1000"})
+    public int tasks;
+
+    @Param({"5"})
+    public int blockMs;
+
+    //JarMain default --commandPool
+    @Param({"24"})
+    public int commandThreads;
+
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        if("pool".equals(executorType)){
+            AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(commandThreads / 2, commandThreads, 30, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), (runnable) -> new Thread(runnable, "bench-command-" + count.getAndIncrement()));
+        }else{
+            executor = Dispatcher.newVirtualThreadExecutor("bench-command-", Dispatcher.DEFAULT_MAX_VIRTUAL_THREADS, Dispatcher.DefaultUncaughtExceptionHandler);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void blockedCommands() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(tasks);
+        for(int i = 0; i < tasks; i++){
+            executor.execute(() -> {
+                try {
+                    Thread.sleep(blockMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+}
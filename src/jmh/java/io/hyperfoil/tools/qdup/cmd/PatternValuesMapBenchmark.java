@@ -0,0 +1,102 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to resolve a variable through a chain of commands that each add a with: entry, the way a command at the end
+ * of a deep script sees them. top is on the root command, deepest is on the last command, fromState is only in the
+ * State and missing is nowhere so it walks every level. With stateWrites each lookup follows a State.set so the
+ * cached simple key lookups are invalidated every time, which is closer to the cost before the cache.
+ * populate resolves all of them in a command string the way Cmd.populateStateVariables does for sh.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PatternValuesMapBenchmark {
+
+    @Param({"4", "32"})
+    public int depth;
+
+    @Param({"false", "true"})
+    public boolean stateWrites;
+
+    private io.hyperfoil.tools.qdup.State state;
+    private Cmd cmd;
+    private Cmd.Ref ref;
+    private PatternValuesMap map;
+    private String deepest;
+    private String command;
+    private long writes = 0;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        state = new io.hyperfoil.tools.qdup.State(io.hyperfoil.tools.qdup.State.RUN_PREFIX);
+        state.set("fromState", "state");
+        Cmd root = Cmd.sh("root");
+        root.with("top", "first");
+        ref = new Cmd.Ref(root);
+        cmd = root;
+        for(int i = 0; i < depth; i++){
+            Cmd child = Cmd.sh("level" + i);
+            child.with("level" + i, i);
+            cmd.then(child);
+            ref = ref.add(child);
+            cmd = child;
+        }
+        map = new PatternValuesMap(cmd, state, null, ref);
+        deepest = "level" + (depth - 1);
+        command = "echo ${{top}} ${{" + deepest + "}} ${{fromState}} ${{missing:default}}";
+    }
+
+    private void write(){
+        if(stateWrites){
+            state.set("writes", writes++);
+        }
+    }
+
+    @Benchmark
+    public Object top(){
+        write();
+        return map.get("top");
+    }
+
+    @Benchmark
+    public Object deepest(){
+        write();
+        return map.get(deepest);
+    }
+
+    @Benchmark
+    public Object fromState(){
+        write();
+        return map.get("fromState");
+    }
+
+    @Benchmark
+    public Object missing(){
+        write();
+        return map.get("missing");
+    }
+
+    @Benchmark
+    public String populate(){
+        write();
+        return Cmd.populateStateVariables(command, cmd, state, null, ref);
+    }
+}
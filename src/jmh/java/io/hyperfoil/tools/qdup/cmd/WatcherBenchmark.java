@@ -0,0 +1,182 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import io.hyperfoil.tools.qdup.Run;
+import io.hyperfoil.tools.qdup.cmd.impl.Regex;
+import io.hyperfoil.tools.qdup.config.RunConfigBuilder;
+import io.hyperfoil.tools.qdup.config.yaml.Parser;
+import io.hyperfoil.tools.yaup.time.SystemTimer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lines per second through the watchers of one watched command. A producer thread stands in for the session reader
+ * and the benchmark thread runs the watchers the way ScriptContext does. lineBuffer is the current LineBuffer with
+ * one context per watcher for the command and a producer that waits while the buffer has it paused. queue is the
+ * LinkedBlockingQueue, end of output sentinel and new SyncContext per watcher per line that ScriptContext used before.
+ * Each operation is one line so ops/s is lines/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WatcherBenchmark {
+
+    private static final int LINES = 100_000;
+    private static final int BATCH_SIZE = 64;
+    private static final String CLOSE_QUEUE = "CLOSE_LINE_QUEUE";
+
+    @Param({"lineBuffer", "queue"})
+    public String handoff;
+
+    @Param({"1", "3"})
+    public int watchers;
+
+    private String[] lines;
+    private Cmd command;
+    private List<Cmd> watcherCmds;
+    private io.hyperfoil.tools.qdup.State state;
+    private SystemTimer timer;
+    private Dispatcher dispatcher;
+    private Run run;
+    private ScriptContext scriptContext;
+    private ExecutorService producer;
+    private LineBuffer lineBuffer;
+    private final Object gate = new Object();
+    private volatile boolean paused;
+    private BlockingQueue<String> queue;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        lines = new String[LINES];
+        for(int i = 0; i < LINES; i++){
+            lines[i] = i % 1000 == 999
+                ? "ERROR request " + i + " failed with status 503"
+                : "INFO request " + i + " completed with status 200 in " + (i % 17) + " ms";
+        }
+        command = Cmd.sh("tail -f server.log");
+        for(int i = 0; i < watchers; i++){
+            command.watch(new Regex("ERROR request (?<request" + i + ">\\d+) failed"));
+        }
+        watcherCmds = command.getWatchers();
+        state = new io.hyperfoil.tools.qdup.State("");
+        timer = new SystemTimer("bench");
+        dispatcher = new Dispatcher();
+        run = new Run(Files.createTempDirectory("qdup-bench").toString(), new RunConfigBuilder().buildConfig(Parser.getInstance()), dispatcher);
+        scriptContext = new ScriptContext(null, state, run, timer, command, false);
+        producer = Executors.newSingleThreadExecutor();
+        lineBuffer = new LineBuffer(LineBuffer.DEFAULT_CAPACITY, this::pause, this::resume);
+        queue = new LinkedBlockingQueue<>();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        producer.shutdown();
+        producer.awaitTermination(30, TimeUnit.SECONDS);
+        dispatcher.shutdown();
+    }
+
+    private void pause(){
+        synchronized (gate){
+            paused = true;
+        }
+    }
+    private void resume(){
+        synchronized (gate){
+            paused = false;
+            gate.notifyAll();
+        }
+    }
+    //the session stops reading while paused instead of spinning
+    private void awaitResume() throws InterruptedException {
+        if(paused){
+            synchronized (gate){
+                while(paused){
+                    gate.wait();
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int watch() throws Exception {
+        return "lineBuffer".equals(handoff) ? watchLineBuffer() : watchQueue();
+    }
+
+    private int watchLineBuffer() throws Exception {
+        lineBuffer.clear();
+        Future<?> produced = producer.submit(() -> {
+            for(String line : lines){
+                awaitResume();
+                lineBuffer.add(line);
+            }
+            lineBuffer.close();
+            return null;
+        });
+        SyncContext[] contexts = new SyncContext[watcherCmds.size()];
+        for(int i = 0; i < contexts.length; i++){
+            contexts[i] = new SyncContext(null, state, run, timer, command, scriptContext);
+        }
+        String[] batch = new String[BATCH_SIZE];
+        int watched = 0;
+        int count;
+        while((count = lineBuffer.drain(batch)) >= 0){
+            for(int b = 0; b < count; b++){
+                String line = batch[b];
+                batch[b] = null;
+                for(int i = 0; i < contexts.length; i++){
+                    contexts[i].forceCurrentCmd(watcherCmds.get(i));
+                    watcherCmds.get(i).doRun(line, contexts[i]);
+                }
+                watched++;
+            }
+        }
+        produced.get();
+        return watched;
+    }
+
+    private int watchQueue() throws Exception {
+        Future<?> produced = producer.submit(() -> {
+            for(String line : lines){
+                queue.add(line);
+            }
+            queue.add(CLOSE_QUEUE);
+        });
+        int watched = 0;
+        String line;
+        while(!CLOSE_QUEUE.equals(line = queue.take())){
+            for(Cmd watcher : watcherCmds){
+                SyncContext context = new SyncContext(null, state, run, timer, command, scriptContext);
+                context.forceCurrentCmd(watcher);
+                watcher.doRun(line, context);
+            }
+            watched++;
+        }
+        produced.get();
+        return watched;
+    }
+}
@@ -0,0 +1,64 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of EscapeFilteredStream on coloured build output (maven and gradle console output with coloured log levels,
+ * bold task names and progress lines redrawn with erase line). Each operation writes one MiB so ops/s is MiB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EscapeFilteredStreamBenchmark {
+
+    private static final int MIB = 1024 * 1024;
+    private static final int WRITE_SIZE = 4096;
+
+    private byte[] output;
+    private EscapeFilteredStream stream;
+    private long written;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        String trace =
+            "\u001b[1;34mINFO\u001b[m] \u001b[1m--- \u001b[0;32mmaven-compiler-plugin:3.8.1:compile\u001b[m \u001b[1m(default-compile)\u001b[m @ \u001b[36mqDup\u001b[0;1m ---\u001b[m\r\n"+
+            "[\u001b[1;34mINFO\u001b[m] Compiling 190 source files to /home/user/qDup/target/classes\r\n"+
+            "[\u001b[1;33mWARNING\u001b[m] /home/user/qDup/src/main/java/Foo.java uses unchecked or unsafe operations.\r\n"+
+            "\u001b[2K\u001b[1A\u001b[2K\u001b[1m<\u001b[0;32;1m=========\u001b[0;39;1m----> 75% EXECUTING [12s]\u001b[m\u001b[35D\u001b[1B\r\n"+
+            "\u001b]0;user@host:~/qDup\u0007plain output line without any escape sequences at all, just text\r\n";
+        output = trace.repeat(MIB / trace.length() + 1).substring(0, MIB).getBytes(StandardCharsets.UTF_8);
+        stream = new EscapeFilteredStream("bench");
+        stream.addStream("count", new OutputStream() {
+            @Override
+            public void write(int b){written++;}
+            @Override
+            public void write(byte[] b, int off, int len){written += len;}
+        });
+    }
+
+    @Benchmark
+    public long coloredBuildOutput() throws IOException {
+        for(int off = 0; off < output.length; off += WRITE_SIZE){
+            stream.write(output, off, Math.min(WRITE_SIZE, output.length - off));
+        }
+        return written;
+    }
+}
@@ -0,0 +1,267 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of SuffixStream and FilteredStream matching with the PatternAutomaton compared to the loop over every
+ * pattern they used before. The loops are copied below from the old streams without the parts that do not match.
+ * The output has an occasional prompt or filter among lines that do not match so most of the time goes to ruling
+ * patterns out. Each operation writes one MiB so ops/s is MiB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PatternAutomatonBenchmark {
+
+    private static final int MIB = 1024 * 1024;
+    private static final int WRITE_SIZE = 4096;
+
+    @Param({"automaton", "loop"})
+    public String matcher;
+
+    //inline prompt: entries or filters in a session
+    @Param({"4", "16", "64"})
+    public int patterns;
+
+    private byte[] output;
+    private OutputStream suffixStream;
+    private OutputStream filteredStream;
+    private long written;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        Map<String,byte[]> toMatch = new LinkedHashMap<>();
+        for(int i = 0; i < patterns; i++){
+            String pattern = "Password for user" + i + ": ";
+            toMatch.put(pattern, pattern.getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder block = new StringBuilder();
+        int line = 0;
+        while(block.length() < MIB){
+            if(line % 100 == 99){
+                block.append("Password for user").append(line % patterns).append(": \r\n");
+            }else{
+                block.append("[INFO] Downloaded from central: https://repo.maven.apache.org/maven2/org/example/artifact-").append(line).append(".jar (12 kB at 345 kB/s)\r\n");
+            }
+            line++;
+        }
+        output = block.substring(0, MIB).getBytes(StandardCharsets.UTF_8);
+        OutputStream count = new OutputStream() {
+            @Override
+            public void write(int b){written++;}
+            @Override
+            public void write(byte[] b, int off, int len){written += len;}
+        };
+        if("automaton".equals(matcher)){
+            SuffixStream suffix = new SuffixStream("bench", null);
+            FilteredStream filtered = new FilteredStream("bench");
+            toMatch.keySet().forEach(pattern -> {
+                suffix.addSuffix(pattern, pattern, "");
+                filtered.addFilter(pattern, pattern, "");
+            });
+            suffix.addStream("count", count);
+            filtered.addStream("count", count);
+            suffixStream = suffix;
+            filteredStream = filtered;
+        }else{
+            suffixStream = new LoopSuffixStream(toMatch, count);
+            filteredStream = new LoopFilteredStream(toMatch, count);
+        }
+    }
+
+    @Benchmark
+    public long suffix() throws IOException {
+        for(int off = 0; off < output.length; off += WRITE_SIZE){
+            suffixStream.write(output, off, Math.min(WRITE_SIZE, output.length - off));
+        }
+        return written;
+    }
+
+    @Benchmark
+    public long filter() throws IOException {
+        for(int off = 0; off < output.length; off += WRITE_SIZE){
+            filteredStream.write(output, off, Math.min(WRITE_SIZE, output.length - off));
+        }
+        return written;
+    }
+
+    /**
+     * SuffixStream before the automaton: check every suffix against the end of the buffer after each write
+     */
+    private static class LoopSuffixStream extends OutputStream {
+        private final Map<String,byte[]> suffixes;
+        private final OutputStream out;
+        private byte[] buffered = new byte[20 * 1024];
+        private int writeIndex = 0;
+
+        private LoopSuffixStream(Map<String,byte[]> suffixes, OutputStream out){
+            this.suffixes = suffixes;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int trailingSuffixLength = Integer.MIN_VALUE;
+            if(writeIndex + len > buffered.length){
+                byte[] newBuffer = new byte[writeIndex + len];
+                System.arraycopy(buffered, 0, newBuffer, 0, writeIndex);
+                buffered = newBuffer;
+            }
+            System.arraycopy(b, off, buffered, writeIndex, len);
+            writeIndex += len;
+            boolean found = false;
+            for(String name : suffixes.keySet()){
+                byte[] toFind = suffixes.get(name);
+                int suffMatch = suffixLength(buffered, toFind, writeIndex);
+                if(suffMatch == toFind.length){
+                    if(!found || trailingSuffixLength < suffMatch){
+                        found = true;
+                        trailingSuffixLength = suffMatch;
+                    }
+                }else if(!found && suffMatch > trailingSuffixLength){
+                    trailingSuffixLength = suffMatch;
+                }
+            }
+            if(found){
+                out.write(buffered, 0, writeIndex - trailingSuffixLength);
+                writeIndex = 0;
+            }else if(trailingSuffixLength > Integer.MIN_VALUE){
+                out.write(buffered, 0, writeIndex - trailingSuffixLength);
+                System.arraycopy(buffered, writeIndex - trailingSuffixLength, buffered, 0, trailingSuffixLength);
+                writeIndex = trailingSuffixLength;
+            }
+        }
+
+        private static int suffixLength(byte[] b, byte[] toFind, int endIndex){
+            boolean matching = false;
+            int rtrn = 0;
+            for(int shift = Math.max(0, toFind.length - endIndex); shift < toFind.length && !matching; shift++){
+                matching = true;
+                int matchLength = toFind.length - shift;
+                for(rtrn = 0; rtrn < matchLength && matching; rtrn++){
+                    matching = b[endIndex - matchLength + rtrn] == toFind[rtrn];
+                    if(!matching){
+                        rtrn = -1;
+                    }
+                }
+            }
+            return rtrn;
+        }
+    }
+
+    /**
+     * FilteredStream before the automaton: check every filter at every index of the buffer
+     */
+    private static class LoopFilteredStream extends OutputStream {
+        private final Map<String,byte[]> filters;
+        private final OutputStream out;
+        private byte[] buffered = new byte[20 * 1024];
+        private int writeIndex = 0;
+
+        private LoopFilteredStream(Map<String,byte[]> filters, OutputStream out){
+            this.filters = filters;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int flushIndex = 0;
+            int trailingPrefixIndex = Integer.MAX_VALUE;
+            if(writeIndex + len > buffered.length){
+                byte[] newBuffer = new byte[writeIndex + len];
+                System.arraycopy(buffered, 0, newBuffer, 0, writeIndex);
+                buffered = newBuffer;
+            }
+            System.arraycopy(b, off, buffered, writeIndex, len);
+            writeIndex += len;
+            for(int currentIndex = 0; currentIndex < writeIndex; currentIndex++){
+                boolean filtered;
+                do{
+                    filtered = false;
+                    int dropLength = 0;
+                    for(byte[] filter : filters.values()){
+                        int prefixLength = prefixLength(buffered, filter, currentIndex, writeIndex - currentIndex);
+                        if(prefixLength == filter.length){
+                            if(filter.length > dropLength){
+                                dropLength = filter.length;
+                                filtered = true;
+                            }
+                        }else if(prefixLength > 0 && trailingPrefixIndex > currentIndex){
+                            trailingPrefixIndex = currentIndex;
+                        }
+                    }
+                    if(filtered){
+                        if(flushIndex < currentIndex){
+                            out.write(buffered, flushIndex, currentIndex - flushIndex);
+                        }
+                        currentIndex += dropLength;
+                        flushIndex = currentIndex;
+                        trailingPrefixIndex = Integer.MAX_VALUE;
+                    }
+                }while(filtered && currentIndex < writeIndex);
+            }
+            if(trailingPrefixIndex < Integer.MAX_VALUE){
+                if(trailingPrefixIndex > flushIndex){
+                    out.write(buffered, flushIndex, trailingPrefixIndex - flushIndex);
+                }
+                flushIndex = trailingPrefixIndex;
+            }else{
+                if(flushIndex < writeIndex){
+                    out.write(buffered, flushIndex, writeIndex - flushIndex);
+                }
+                flushIndex = writeIndex;
+            }
+            if(flushIndex > 0){
+                System.arraycopy(buffered, flushIndex, buffered, 0, writeIndex - flushIndex);
+                writeIndex = writeIndex - flushIndex;
+            }
+        }
+
+        private static int prefixLength(byte[] b, byte[] prefix, int off, int len){
+            boolean matching = true;
+            int rtrn;
+            for(rtrn = 0; rtrn < prefix.length && matching; rtrn++){
+                matching = rtrn < len && prefix[rtrn] == b[rtrn + off];
+                if(!matching){
+                    if(rtrn < len){
+                        rtrn = -1;
+                    }else{
+                        rtrn--;
+                    }
+                }
+            }
+            return rtrn;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the output of one session through the fused SessionStreams compared to the chain of
+ * EscapeFilteredStream, SuffixStream, FilteredStream and LineEmittingStream it replaced.
+ * Each operation writes one MiB of colored command output followed by the prompt, so ops/s is MiB/s per session.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionStreamsBenchmark {
+
+    private static final String PROMPT = "<_#%@_qdup_@%#_> ";
+    private static final String EXIT_CODE_PREFIX = "<_#%@_qdup_ec=";
+    private static final String NONCE_PREFIX = "<_#%@_qdup_n=";
+    private static final int MIB = 1024 * 1024;
+
+    @Param({"fused", "chain"})
+    public String pipeline;
+
+    //the ssh channel writes up to the remote window packet size
+    @Param({"4096", "32768"})
+    public int writeSize;
+
+    private byte[] output;
+    private byte[] prompt;
+    private OutputStream input;
+    private Runnable reset;
+    private long lines;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        StringBuilder block = new StringBuilder();
+        while(block.length() < MIB){
+            block.append("0123456789 abcdefghijklmnopqrstuvwxyz \u001b[0;32mcolor\u001b[0m ABCDEFGHIJKLMNOPQRSTUVWXYZ\r\n");
+        }
+        output = block.substring(0, MIB).getBytes(StandardCharsets.UTF_8);
+        prompt = (EXIT_CODE_PREFIX + "0" + NONCE_PREFIX + "1" + PROMPT).getBytes(StandardCharsets.UTF_8);
+        if("fused".equals(pipeline)){
+            SessionStreams sessionStreams = new SessionStreams("bench", null);
+            sessionStreams.addPrompt("PROMPT", PROMPT, "");
+            sessionStreams.setExitCodePrefix(EXIT_CODE_PREFIX);
+            sessionStreams.setNoncePrefix(NONCE_PREFIX);
+            sessionStreams.setCommand("command");
+            sessionStreams.addLineConsumer((line) -> lines++);
+            input = sessionStreams;
+            reset = sessionStreams::reset;
+        }else{
+            EscapeFilteredStream escapeFilteredStream = new EscapeFilteredStream("bench");
+            SuffixStream suffixStream = new SuffixStream("bench-suffix", null);
+            SuffixStream promptStream = new SuffixStream("bench-prompt", null);
+            FilteredStream filteredStream = new FilteredStream("bench");
+            LineEmittingStream lineEmittingStream = new LineEmittingStream("bench");
+            SpillingOutputStream shStream = new SpillingOutputStream();
+            escapeFilteredStream.addStream("semaphore", suffixStream);
+            suffixStream.addStream("filtered", filteredStream);
+            suffixStream.addStream("prompt-callback", promptStream);
+            filteredStream.addStream("lines", lineEmittingStream);
+            filteredStream.addStream("sh", shStream);
+            filteredStream.addFilter("^C", new byte[]{0, 0, 0, 3});
+            filteredStream.addFilter("echo-^C", "^C");
+            filteredStream.addFilter("^D", new byte[]{0, 0, 0, 4});
+            filteredStream.addFilter("echo-^D", "^D");
+            filteredStream.addFilter("^P", new byte[]{0, 0, 0, 16});
+            filteredStream.addFilter("^T", new byte[]{0, 0, 0, 20});
+            filteredStream.addFilter("^X", new byte[]{0, 0, 0, 24});
+            filteredStream.addFilter("^@", new byte[]{0, 0, 0});
+            filteredStream.addFilter("command", "command", "");
+            suffixStream.addSuffix("PROMPT", PROMPT, "");
+            suffixStream.setExitCodePrefix(EXIT_CODE_PREFIX);
+            suffixStream.setNoncePrefix(NONCE_PREFIX);
+            lineEmittingStream.addConsumer((line) -> lines++);
+            input = escapeFilteredStream;
+            reset = () -> {
+                lineEmittingStream.reset();
+                shStream.reset();
+            };
+        }
+    }
+
+    @Benchmark
+    public long command() throws IOException {
+        for(int off = 0; off < output.length; off += writeSize){
+            input.write(output, off, Math.min(writeSize, output.length - off));
+        }
+        input.write(prompt, 0, prompt.length);
+        reset.run();
+        return lines;
+    }
+}
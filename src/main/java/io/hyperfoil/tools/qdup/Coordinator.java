@@ -9,7 +9,8 @@ import io.hyperfoil.tools.yaup.json.Json;
 import java.lang.invoke.MethodHandles;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
@@ -19,6 +20,9 @@ import java.util.function.Supplier;
  * Primarily used for the CountDownLatches that coordinate signal / waitFor commands
  * Also has counters that can increase / decrease depending on needs
  *
+ * All the tables are concurrent maps and waiters are queued without a lock. A waiter is queued before it re-checks
+ * the latch and the signal that reaches zero drains the queue after it updates the latch so a waiter cannot miss the
+ * signal and is only woken once.
  */
 public class Coordinator {
 
@@ -63,21 +67,22 @@ public class Coordinator {
 
     private Map<String,AtomicInteger> signalLatches;
     private Map<String,Long> latchTimes;
-    private Map<String,List<Waiter>> waitFors;
+    private Map<String,Queue<Waiter>> waitFors;
 
     private Map<String,AtomicInteger> counters;
 
+    private volatile StateJournal journal;
+
     public Coordinator(){
-        signalLatches = new HashMap<>();
-        latchTimes = new LinkedHashMap<>();
-        counters = new HashMap<>();
-        observers = new LinkedList<>();
+        signalLatches = new ConcurrentHashMap<>();
+        latchTimes = Collections.synchronizedMap(new LinkedHashMap<>());
+        counters = new ConcurrentHashMap<>();
+        observers = new CopyOnWriteArrayList<>();
         waitFors = new ConcurrentHashMap<>();
     }
 
-    public List<Waiter> ensureWaitFor(String name){
-        waitFors.putIfAbsent(name,Collections.synchronizedList(new LinkedList<>()));
-        return waitFors.get(name);
+    public Queue<Waiter> ensureWaitFor(String name){
+        return waitFors.computeIfAbsent(name,(key)->new ConcurrentLinkedQueue<>());
     }
 
     public Map<String,Integer> getLatches(){
@@ -85,7 +90,11 @@ public class Coordinator {
         signalLatches.forEach((k, v)->rtrn.put(k,v.intValue()));
         return rtrn;
     }
-    public Map<String,Long> getLatchTimes(){return Collections.unmodifiableMap(latchTimes);}
+    public Map<String,Long> getLatchTimes(){
+        synchronized (latchTimes){
+            return Collections.unmodifiableMap(new LinkedHashMap<>(latchTimes));
+        }
+    }
     public Map<String,Integer> getCounters(){
         Map<String,Integer> rtrn = new LinkedHashMap<>();
         counters.forEach((key,value)->{
@@ -94,6 +103,11 @@ public class Coordinator {
         return rtrn;
     }
 
+    public void setJournal(StateJournal journal){
+        this.journal = journal;
+    }
+    public StateJournal getJournal(){return journal;}
+
     public void addObserver(Consumer<String> observer){
         observers.add(observer);
     }
@@ -103,10 +117,10 @@ public class Coordinator {
 
     public Json getWaitJson(){
         Json rtrn = new Json(false);
-        waitFors.keySet().forEach(key->{
+        waitFors.forEach((key,waiters)->{
             Json entry = new Json();
             rtrn.set(key,entry);
-            waitFors.get(key).forEach(waiter->{
+            waiters.forEach(waiter->{
                 Cmd head = waiter.getCommand().getHead();
                 Host host = waiter.getContext().getHost();
                 entry.add(head.toString()+"-"+head.getUid()+"@"+host.getShortHostName());
@@ -115,124 +129,146 @@ public class Coordinator {
         return rtrn;
     }
 
+    private int journalCounter(String name, int value){
+        StateJournal journal = this.journal;
+        if(journal != null){
+            journal.counter(name,value);
+        }
+        return value;
+    }
     public void setCounter(String name, int value){
         counters.put(name,new AtomicInteger(value));
+        journalCounter(name,value);
     }
     public int increase(String name){
-        if(!counters.containsKey(name)){
-            counters.put(name,new AtomicInteger(0));
-        }
-        return counters.get(name).incrementAndGet();
+        return journalCounter(name,counters.computeIfAbsent(name,(key)->new AtomicInteger(0)).incrementAndGet());
     }
     public int decrease(String name, int initialValue){
-        if(!counters.containsKey(name)){
-            counters.put(name,new AtomicInteger(initialValue));
-        }
-        return counters.get(name).decrementAndGet();
+        return journalCounter(name,counters.computeIfAbsent(name,(key)->new AtomicInteger(initialValue)).decrementAndGet());
     }
     public int getCounter(String name){
-        if(!counters.containsKey(name)){
-            counters.put(name,new AtomicInteger(0));
-        }
-        return counters.get(name).get();
-
+        return counters.computeIfAbsent(name,(key)->new AtomicInteger(0)).get();
     }
     public void setSignal(String name, int count){
         setSignal(name,count,false);
     }
     public void setSignal(String name, int count,boolean force){
-        if(signalLatches.containsKey(name) && signalLatches.get(name).get()>0 && !force){
-            logger.warn("duplicate setSignal for {}, using previous VALUE {} not new VALUE {}",name, signalLatches.get(name).get(),count);
-            return;
+        AtomicInteger latch = signalLatches.compute(name,(key,previous)->{
+            if(previous != null && previous.get() > 0 && !force){
+                logger.warn("duplicate setSignal for {}, using previous VALUE {} not new VALUE {}",name, previous.get(),count);
+                return previous;
+            }
+            return new AtomicInteger(count);
+        });
+        StateJournal journal = this.journal;
+        if(journal != null){
+            journal.signal(name,latch.get(),-1);
         }
-        AtomicInteger latch = new AtomicInteger(count);
-        signalLatches.put(name,latch);
-        checkWatchers(name);
+        checkWatchers(name,latch);
     }
     public boolean hasSignal(String name){
         return signalLatches.containsKey(name);
     }
     public int getSignalCount(String name){
-        if(!signalLatches.containsKey(name)){
+        AtomicInteger latch = signalLatches.get(name);
+        if(latch == null){
             logger.error("signal {} missing latch, defaulting to 0",name);
             return 0;
         }
-        return signalLatches.get(name).get();
+        return latch.get();
     }
     public int getWaitCount(String name){
-        if(!waitFors.containsKey(name)){
-            return 0;
-        }
-        return waitFors.get(name).size();
+        Queue<Waiter> waiters = waitFors.get(name);
+        return waiters == null ? 0 : waiters.size();
     }
 
     public void clearWaiters(){
         waitFors.clear();
     }
-    private void checkWatchers(String name){
+
+    /**
+     * Wake every queued waiter if the signal is missing or reached zero.
+     * Waiters are removed with poll so a waiter that is woken by both signal and waitFor only runs once.
+     */
+    private void checkWatchers(String name,AtomicInteger latch){
         //TODO this should not signal missing once we correctly find singals inside for-each
-        if( !signalLatches.containsKey(name) || signalLatches.get(name).get()<=0  ) {//signal for a missing latch
-            if(signalLatches.containsKey(name) && signalLatches.get(name).get() < 0){
-                logger.error("Latch {} went below zero to {}",name, signalLatches.get(name).get());
+        int count = latch == null ? 0 : latch.get();
+        if( count <= 0 ) {//signal for a missing latch
+            if(count < 0){
+                logger.error("Latch {} went below zero to {}",name, count);
             }
             if(!observers.isEmpty()){
                 for(Consumer<String> observer : observers){
                     observer.accept(name);
                 }
             }
-            List<Waiter> waiters = ensureWaitFor(name);
-            for(Waiter waiter: waiters){
+            wakeWaiters(name);
+        }
+    }
+    private void wakeWaiters(String name){
+        Queue<Waiter> waiters = waitFors.get(name);
+        if(waiters != null){
+            Waiter waiter;
+            while((waiter = waiters.poll()) != null){
                 waiter.next();
             }
-            waiters.clear();
         }
     }
     public void signal(String name){
-
-        if(!signalLatches.containsKey(name)){
+        AtomicInteger latch = signalLatches.get(name);
+        if(latch == null){
             logger.warn("signal {} missing latch, ignoring",name);
             //return;
-        }else if( signalLatches.get(name).get() > 0 ){
-            signalLatches.get(name).decrementAndGet();
-            if(signalLatches.get(name).get()==0){
-                latchTimes.put(name,System.currentTimeMillis());
+        }else{
+            int previous = latch.getAndUpdate((count)->count > 0 ? count - 1 : count);
+            long time = -1;
+            if( previous == 1 ){
+                //only the signal that reaches zero records the time
+                time = System.currentTimeMillis();
+                latchTimes.put(name,time);
+            }
+            StateJournal journal = this.journal;
+            if(journal != null){
+                journal.signal(name,previous > 0 ? previous - 1 : previous,time);
             }
         }
 
-        checkWatchers(name);
+        checkWatchers(name,latch);
     }
     public void waitFor(String name, Cmd command, Context context, String input){
         Waiter waiter = new Waiter(command,context,input);
         waitFor(name,waiter);
     }
     private void waitFor(String name,Waiter waiter){
-        if(!signalLatches.containsKey(name)){
+        AtomicInteger latch = signalLatches.get(name);
+        if(latch == null){
             logger.error("waitFor {} missing latch, using default latch WITH count=0",name);
             waiter.next();
         }else {
-            //TODO this is a race condition, need a check after adding to the list as well. Refactor out of signal to use same check code
-            if(signalLatches.get(name).get() <=0){
-                logger.debug("waitFor {} count = {}, invoking next",name, signalLatches.get(name).get());
+            if(latch.get() <=0){
+                logger.debug("waitFor {} count = {}, invoking next",name, latch.get());
                 waiter.next();
             }else {
-                logger.debug("waitFor {} count = {}, queueing",name, signalLatches.get(name).get());
+                logger.debug("waitFor {} count = {}, queueing",name, latch.get());
                 ensureWaitFor(name).add(waiter);
+                //the last signal could arrive between the check and the add, check again now that the waiter is visible
+                if(signalLatches.getOrDefault(name,latch).get() <= 0){
+                    wakeWaiters(name);
+                }
             }
         }
     }
     public void removeWaiter(String name,Cmd command){
-        waitFors.getOrDefault(name,new ArrayList<>()).removeIf((w)->w.hashCode() == command.hashCode());
+        Queue<Waiter> waiters = waitFors.get(name);
+        if(waiters != null){
+            waiters.removeIf((w)->w.hashCode() == command.hashCode());
+        }
     }
     public void waitFor(String name,Cmd command,Context context,Supplier<String> input){
 
         Waiter waiter = new Waiter(command,context,input);
         waitFor(name,waiter);
     }
-    public void waitFor(String name,Cmd command,Context context,String input, long timeout, TimeUnit unit){
-        //TODO use scheduled task to implement timeout
-        Waiter waiter = new Waiter(command,context,input);
-        waitFor(name,waiter);
-    }
 
 
 }
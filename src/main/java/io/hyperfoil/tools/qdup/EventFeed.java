@@ -0,0 +1,273 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Collects the run events that JsonServer pushes to the observer address and turns them into one batch per flush.
+ * The output of a command is coalesced into a single cmd.output event per context with the last maxTail characters
+ * so a noisy command cannot flood the feed. At most maxEvents and maxOutputs output events are kept between flushes and
+ * the rest are dropped and counted in the next batch. Secrets are replaced in the strings of each event before the output
+ * is cut to the tail and before the batch is turned into json text. The tail of a context is kept across flushes until the
+ * command changes so a secret that is split between two batches is still replaced.
+ * Subscribers that cannot keep up are tracked by id so the next batch they receive has the number of batches they missed.
+ */
+public class EventFeed {
+
+    public static final int DEFAULT_MAX_EVENTS = 1_000;
+    public static final int DEFAULT_MAX_OUTPUTS = 1_000;
+    public static final int DEFAULT_MAX_TAIL = 2_048;
+
+    private class Tail extends OutputStream {
+        private final Object cmdUid;
+        //the cmd.output event in the next batch or null if there is none
+        private Json event;
+        private final StringBuilder output = new StringBuilder();
+        //holds output that could be the start of a secret until the rest of it arrives, even across a flush
+        private final SecretFilter.FilterStream filterStream;
+
+        private Tail(Object cmdUid, SecretFilter filter){
+            this.cmdUid = cmdUid;
+            if(filter != null){
+                filterStream = filter.stream("feed-" + cmdUid);
+                filterStream.addStream("tail", this);
+            }else{
+                filterStream = null;
+            }
+        }
+
+        private void append(String text){
+            if(filterStream == null){
+                append(text, 0, text.length());
+            }else{
+                try {
+                    filterStream.write(text.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    //the tail does not throw IOException
+                }
+            }
+        }
+        private void append(CharSequence text, int start, int end){
+            output.append(text, start, end);
+            if(output.length() > maxTail){
+                output.delete(0, output.length() - maxTail);
+            }
+        }
+
+        @Override
+        public void write(int b){
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+        //the filter stream only splits the output between characters
+        @Override
+        public void write(byte[] b, int off, int len){
+            String text = new String(b, off, len, StandardCharsets.UTF_8);
+            append(text, 0, text.length());
+        }
+    }
+
+    private final int maxEvents;
+    private final int maxOutputs;
+    private final int maxTail;
+    private final Supplier<SecretFilter> secrets;
+    private final List<Json> events = new ArrayList<>();
+    private final Map<Object,Tail> tails = new HashMap<>();
+    private final Map<String,AtomicLong> subscribers = new ConcurrentHashMap<>();
+    private int outputs = 0;//tails with an event in the next batch
+    private long dropped = 0;
+    private long totalDropped = 0;
+    private long sequence = 0;
+
+    public EventFeed(){
+        this(DEFAULT_MAX_EVENTS, DEFAULT_MAX_OUTPUTS, DEFAULT_MAX_TAIL, () -> null);
+    }
+    public EventFeed(int maxEvents, int maxTail){
+        this(maxEvents, maxEvents, maxTail, () -> null);
+    }
+    /**
+     * @param maxEvents the events other than output kept between flushes
+     * @param maxOutputs the output events kept between flushes, one per context
+     * @param maxTail the characters of output kept for each context
+     * @param secrets the secrets to remove from the events, can supply null if there is nothing to filter
+     */
+    public EventFeed(int maxEvents, int maxOutputs, int maxTail, Supplier<SecretFilter> secrets){
+        this.maxEvents = maxEvents;
+        this.maxOutputs = maxOutputs;
+        this.maxTail = maxTail;
+        this.secrets = secrets;
+    }
+
+    public int getMaxTail(){return maxTail;}
+    public synchronized long getSequence(){return sequence;}
+    public synchronized long getDropped(){return totalDropped;}
+    public synchronized int size(){return events.size();}
+
+    public static Json event(String type){
+        Json rtrn = new Json(false);
+        rtrn.set("type", type);
+        rtrn.set("timestamp", System.currentTimeMillis());
+        return rtrn;
+    }
+
+    /**
+     * @return the secrets replaced in text
+     */
+    public String filter(String text){
+        SecretFilter filter = secrets.get();
+        return filter == null || text == null ? text : filter.filter(text);
+    }
+
+    /**
+     * @return the last maxTail characters of output after the secrets are replaced
+     */
+    public String tail(String output){
+        if(output == null){
+            return "";
+        }
+        output = filter(output);
+        return output.length() > maxTail ? output.substring(output.length() - maxTail) : output;
+    }
+
+    /**
+     * Add the event to the next batch or count it as dropped if the batch is full
+     * @return true if the event was added
+     */
+    public synchronized boolean add(Json event){
+        //the output events have their own limit
+        if(events.size() - outputs >= maxEvents){
+            drop();
+            return false;
+        }
+        events.add(event);
+        return true;
+    }
+
+    private void drop(){
+        dropped++;
+        totalDropped++;
+    }
+
+    /**
+     * Append output to the tail of the context. The context only has one cmd.output event per batch.
+     */
+    public synchronized void output(Object contextUid, Object cmdUid, String output){
+        if(output == null || output.isEmpty()){
+            return;
+        }
+        Tail tail = tails.get(contextUid);
+        if(tail == null || !tail.cmdUid.equals(cmdUid)){
+            if(tail != null){
+                removeEvent(tail);
+            }
+            tail = new Tail(cmdUid, secrets.get());
+            tails.put(contextUid, tail);
+        }
+        if(tail.event == null){
+            if(outputs >= maxOutputs){
+                drop();
+            }else{
+                tail.event = event("cmd.output");
+                tail.event.set("contextUid", contextUid);
+                tail.event.set("cmdUid", cmdUid);
+                events.add(tail.event);
+                outputs++;
+            }
+        }
+        //still filter dropped output so the filter stream sees every byte
+        tail.append(output);
+    }
+
+    //Json.equals compares the content so remove by identity
+    private void removeEvent(Tail tail){
+        if(tail.event != null){
+            Json event = tail.event;
+            events.removeIf((e) -> e == event);
+            tail.event = null;
+            outputs--;
+        }
+    }
+
+    /**
+     * Remove the pending output of the context, e.g. when the command stops and its event has the output
+     */
+    public synchronized void clearOutput(Object contextUid){
+        Tail tail = tails.remove(contextUid);
+        if(tail != null){
+            removeEvent(tail);
+        }
+    }
+
+    /**
+     * @return the events since the last flush as a batch or null if there are none
+     */
+    public synchronized Json flush(){
+        if(events.isEmpty() && dropped == 0){
+            return null;
+        }
+        for(Json event : events){
+            List<Object> keys = new ArrayList<>(event.keys());
+            for(Object key : keys){
+                Object value = event.get(key);
+                if(value instanceof String){
+                    event.set(key, filter((String) value));
+                }
+            }
+        }
+        //the tails are already filtered, keep them and their filter streams for the next batch
+        for(Tail tail : tails.values()){
+            if(tail.event != null){
+                tail.event.set("output", tail.output.toString());
+                tail.event = null;
+            }
+            tail.output.setLength(0);
+        }
+        outputs = 0;
+        Json list = new Json();
+        events.forEach(list::add);
+        Json rtrn = new Json(false);
+        rtrn.set("type", "batch");
+        rtrn.set("seq", ++sequence);
+        rtrn.set("dropped", dropped);
+        rtrn.set("events", list);
+        events.clear();
+        dropped = 0;
+        return rtrn;
+    }
+
+    public void subscribe(String id){
+        subscribers.putIfAbsent(id, new AtomicLong());
+    }
+    public void unsubscribe(String id){
+        subscribers.remove(id);
+    }
+    public int getSubscriberCount(){
+        return subscribers.size();
+    }
+
+    /**
+     * Count a batch that was not sent to the subscriber
+     * @return the batches the subscriber missed since the last one it received
+     */
+    public long drop(String id){
+        return subscribers.computeIfAbsent(id, (k) -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Called when a batch is sent to the subscriber
+     * @return the batches the subscriber missed before this one
+     */
+    public long delivered(String id){
+        AtomicLong missed = subscribers.get(id);
+        return missed == null ? 0 : missed.getAndSet(0);
+    }
+}
@@ -24,6 +24,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -48,10 +50,14 @@ public class JarMain {
     private List<String> yamlPaths;
     private int scheduledThreads;
     private int commandThreads;
+    private int nioWorkers;
+    private boolean virtualThreads;
+    private int maxVirtualThreads;
     private boolean test;
     private List<String> breakpoints;
     private boolean colorTerminal;
     private int jsonPort;
+    private String recoverPath;
 
 
     private boolean exitCode = false;
@@ -78,6 +84,22 @@ public class JarMain {
         return commandThreads;
     }
 
+    public int getNioWorkers() {
+        return nioWorkers;
+    }
+
+    public boolean hasNioWorkers() {
+        return nioWorkers > 0;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getMaxVirtualThreads() {
+        return maxVirtualThreads;
+    }
+
     public String getKnownHosts() {
         return knownHosts;
     }
@@ -122,6 +144,14 @@ public class JarMain {
         return jsonPort;
     }
 
+    public String getRecoverPath() {
+        return recoverPath;
+    }
+
+    public boolean isRecover() {
+        return recoverPath != null;
+    }
+
     public String getVersion() {
         return version;
     }
@@ -213,6 +243,24 @@ public class JarMain {
                         .build()
         );
 
+        options.addOption(
+                Option.builder("N")
+                        .longOpt("nioWorkers")
+                        .hasArg()
+                        .argName("count")
+                        .type(Integer.TYPE)
+                        .desc("number of NIO worker threads shared by all ssh sessions [cpus+1]")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder("VT")
+                        .longOpt("virtualThreads")
+                        .hasArg(false)
+                        .desc("run each command on a new virtual thread (java 21+) instead of the command pool, commandPool limits how many run at the same time")
+                        .build()
+        );
+
         options.addOption(
                 Option.builder("S")
                         .argName("KEY=VALUE")
@@ -292,6 +340,16 @@ public class JarMain {
                         .build()
         );
 
+        options.addOption(
+                Option.builder()
+                        .longOpt("recover")
+                        .argName("path")
+                        .hasArg()
+                        .desc("rebuild run.json from the state journal in the output path of a run that did not finish")
+                        .type(String.class)
+                        .build()
+        );
+
         //exit code checking
         options.addOption(
                 Option.builder("x")
@@ -348,6 +406,10 @@ public class JarMain {
         timeout = Integer.parseInt(commandLine.getOptionValue("timeout", "" + RunConfigBuilder.DEFAULT_SSH_TIMEOUT));
         commandThreads = Integer.parseInt(commandLine.getOptionValue("commandPool", "24"));
         scheduledThreads = Integer.parseInt(commandLine.getOptionValue("scheduledPool", "24"));
+        nioWorkers = Integer.parseInt(commandLine.getOptionValue("nioWorkers", "-1"));
+        virtualThreads = commandLine.hasOption("virtualThreads");
+        //commandPool limits the concurrent commands on virtual threads only if it is set
+        maxVirtualThreads = commandLine.hasOption("commandPool") ? commandThreads : Dispatcher.DEFAULT_MAX_VIRTUAL_THREADS;
         yamlPaths = commandLine.getArgList();
         stateProps = commandLine.getOptionProperties("S");
         removeStateProperties = commandLine.getOptionProperties("SX");
@@ -357,6 +419,7 @@ public class JarMain {
         colorTerminal = commandLine.hasOption("colorTerminal");
         jsonPort = Integer.parseInt(commandLine.getOptionValue("jsonport", "" + JsonServer.DEFAULT_PORT));
         exitCode = commandLine.hasOption("exitCode");
+        recoverPath = commandLine.getOptionValue("recover");
 
         outputPath = null;
         DateTimeFormatter dt = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
@@ -388,7 +451,7 @@ public class JarMain {
         version = properties.getProperty("version", "unkonown");
         hash = properties.getProperty("hash", "unkonown");
 
-        if (yamlPaths.isEmpty()) {
+        if (yamlPaths.isEmpty() && !isRecover()) {
             logger.error("Missing required yaml file(s)");
             formatter.printHelp(cmdLineSyntax, options);
             System.exit(1);
@@ -396,9 +459,35 @@ public class JarMain {
         }
     }
 
+    /**
+     * Write run.json from the state journal in path
+     * @return the process exit code
+     */
+    private static int recover(String path) {
+        Path directory = Paths.get(path);
+        if (!StateJournal.exists(directory)) {
+            logger.error("Error: cannot find a state journal in " + path);
+            return 1;
+        }
+        try {
+            StateJournal.Recovered recovered = StateJournal.load(directory);
+            recovered.writeRunJson(directory.resolve("run.json"));
+            System.out.printf("Recovered %d state changes to %s%n", recovered.getRecords(), directory.resolve("run.json"));
+            return 0;
+        } catch (IOException | RuntimeException e) {
+            logger.error("Error: failed to recover " + path, e);
+            return 1;
+        }
+    }
+
     public static void main(String[] args) {
         JarMain jarMain = new JarMain(args);
 
+        if (jarMain.isRecover()) {
+            System.exit(recover(jarMain.getRecoverPath()));
+            return;
+        }
+
         Parser yamlParser = Parser.getInstance();
         yamlParser.setAbortOnExitCode(jarMain.checkExitCode());
         RunConfigBuilder runConfigBuilder = new RunConfigBuilder();
@@ -498,7 +587,9 @@ public class JarMain {
             rtrn.setUncaughtExceptionHandler(uncaughtExceptionHandler);
             return rtrn;
         };
-        ThreadPoolExecutor executor = new ThreadPoolExecutor(jarMain.getCommandThreads() / 2, jarMain.getCommandThreads(), 30, TimeUnit.MINUTES, workQueue, factory);
+        ExecutorService executor = jarMain.isVirtualThreads() ?
+                Dispatcher.newVirtualThreadExecutor("qdup-command-", jarMain.getMaxVirtualThreads(), uncaughtExceptionHandler) :
+                new ThreadPoolExecutor(jarMain.getCommandThreads() / 2, jarMain.getCommandThreads(), 30, TimeUnit.MINUTES, workQueue, factory);
 
         ScheduledThreadPoolExecutor scheduled = new ScheduledThreadPoolExecutor(jarMain.getScheduledThreads(), runnable -> new Thread(runnable, "qdup-scheduled-" + scheduledCounter.getAndIncrement()));
 
@@ -536,6 +627,9 @@ public class JarMain {
         }
 
         config.getSettings().set("check-exit-code",jarMain.checkExitCode());
+        if (jarMain.hasNioWorkers()) {
+            config.getSettings().set(RunConfig.SSH_NIO_WORKERS_KEY, jarMain.getNioWorkers());
+        }
 
         final Run run = new Run(jarMain.getOutputPath(), config, dispatcher);
 
@@ -6,8 +6,11 @@ import io.hyperfoil.tools.qdup.cmd.ContextObserver;
 import io.hyperfoil.tools.qdup.cmd.Dispatcher;
 import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.bridge.BridgeEventType;
 import io.vertx.ext.bridge.PermittedOptions;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.sockjs.BridgeOptions;
 import io.vertx.ext.web.handler.sockjs.SockJSHandler;
@@ -20,12 +23,15 @@ import java.lang.invoke.MethodHandles;
 import java.net.DatagramSocket;
 import java.net.ServerSocket;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public class JsonServer implements RunObserver, ContextObserver {
 
     final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
 
     public static int DEFAULT_PORT = 31337;
+    public static long DEFAULT_FLUSH_MS = 250;
+    public static int DEFAULT_SUBSCRIBER_QUEUE = 64 * 1024;
 
     private final int port;
     private Run run;
@@ -33,6 +39,10 @@ public class JsonServer implements RunObserver, ContextObserver {
     private HttpServer server;
     private Dispatcher dispatcher;
     private Coordinator coordinator;
+    private final JsonSnapshots snapshots;
+    private final EventFeed feed;
+    private final Consumer<String> signalObserver;
+    private long flushTimer = -1;
 
     public JsonServer(Run run){
         this(run,DEFAULT_PORT);
@@ -40,8 +50,81 @@ public class JsonServer implements RunObserver, ContextObserver {
     public JsonServer(Run run, int port){
         this.port = port;
         this.vertx = Vertx.vertx();
+        this.snapshots = new JsonSnapshots(this::filter, JsonSnapshots.DEFAULT_MAX_AGE_MS);
+        snapshots.add("state", () -> this.run.getConfig().getState().toJson(), 0);
+        snapshots.add("active", () -> dispatcher.getActiveJson());
+        snapshots.add("waiter", () -> coordinator.getWaitJson());
+        snapshots.add("signal", this::getSignalJson);
+        this.feed = new EventFeed(EventFeed.DEFAULT_MAX_EVENTS, EventFeed.DEFAULT_MAX_OUTPUTS, EventFeed.DEFAULT_MAX_TAIL,
+            () -> this.run == null ? null : this.run.getConfig().getState().getSecretFilter());
+        this.signalObserver = (name)->{
+            if(server!=null){
+                Json event = EventFeed.event("signal.reached");
+                event.set("signal",name);
+                feed.add(event);
+            }
+        };
         setRun(run);
     }
+
+    public JsonSnapshots getSnapshots(){return snapshots;}
+    public EventFeed getFeed(){return feed;}
+
+    /**
+     * Publish the events since the last flush as one batch to the observer address
+     */
+    private void flush(){
+        Json batch = feed.flush();
+        if(batch!=null){
+            //the feed already replaced the secrets in each event
+            vertx.eventBus().publish("observer",batch.toString());
+        }
+    }
+
+    private Json getSignalJson(){
+        Json json = new Json();
+        Map<String,Integer> latches = coordinator.getLatches();
+        Map<String,Long> latchTimes = coordinator.getLatchTimes();
+        latches.forEach((key,value)->{
+            Json entry = new Json();
+            entry.set("name",key);
+            entry.set("count",value);
+            if(latchTimes.containsKey(key)){
+                entry.set("timestamp",latchTimes.get(key));
+            }
+            json.add(entry);
+        });
+        return json;
+    }
+
+    /**
+     * Respond with the cached snapshot, building it on a worker thread if it is too old, or 304 if it matches If-None-Match
+     */
+    private void snapshot(RoutingContext rc, String name){
+        JsonSnapshots.Snapshot fresh = snapshots.getIfFresh(name);
+        if(fresh != null){
+            respond(rc, fresh);
+        }else{
+            vertx.<JsonSnapshots.Snapshot>executeBlocking(promise -> promise.complete(snapshots.get(name)), false, result -> {
+                if(result.succeeded()){
+                    respond(rc, result.result());
+                }else{
+                    logger.error("failed to create "+name+" snapshot",result.cause());
+                    rc.response().setStatusCode(500).end("failed to create "+name+" snapshot");
+                }
+            });
+        }
+    }
+    private void respond(RoutingContext rc, JsonSnapshots.Snapshot snapshot){
+        rc.response()
+            .putHeader("ETag", snapshot.getETag())
+            .putHeader("Cache-Control", "no-cache");
+        if(snapshot.matches(rc.request().getHeader("If-None-Match"))){
+            rc.response().setStatusCode(304).end();
+        }else{
+            rc.response().end(snapshot.getBody());
+        }
+    }
     public void setRun(Run run){
         if(run!=null) {
             this.run = run;
@@ -49,6 +132,7 @@ public class JsonServer implements RunObserver, ContextObserver {
             this.coordinator = run.getCoordinator();
             this.run.addRunObserver(this);
             this.dispatcher.addContextObserver(this);
+            this.coordinator.addObserver(signalObserver);
         }
     }
 
@@ -63,42 +147,45 @@ public class JsonServer implements RunObserver, ContextObserver {
     @Override
     public void preStart(Context context, Cmd command){
         if(server!=null && command!=null){
-            Json event = new Json();
-            event.set("type","cmd.start");
+            Json event = EventFeed.event("cmd.start");
             event.set("cmdUid",command.getUid());
-            event.set("cmd",filter(command.toString()));
+            event.set("cmd",command.toString());
             event.set("contextUid",context.hashCode());
-            vertx.eventBus().publish("observer",event.toString());
+            feed.add(event);
+        }
+    }
+    @Override
+    public void onUpdate(Context context, Cmd command, String output){
+        if(server!=null && command!=null){
+            feed.output(context.hashCode(),command.getUid(),output);
         }
     }
     @Override
     public void preStop(Context context,Cmd command,String output){
         if(server!=null && command!=null){
-            Json event = new Json();
-            event.set("type","cmd.stop");
+            feed.clearOutput(context.hashCode());
+            Json event = EventFeed.event("cmd.stop");
             event.set("cmdUid",command.getUid());
-            event.set("cmd",filter(command.toString()));
+            event.set("cmd",command.toString());
             event.set("contextUid",context.hashCode());
-            event.set("output",filter(output));
-            vertx.eventBus().publish("observer",event.toString());
+            event.set("output",feed.tail(output));
+            feed.add(event);
         }
     }
     @Override
     public void preStage(Stage stage){
         if(server!=null){
-            Json event = new Json();
-            event.set("type","stage.start");
+            Json event = EventFeed.event("stage.start");
             event.set("stage",stage.toString());
-            vertx.eventBus().publish("observer",event.toString());
+            feed.add(event);
         }
     }
     @Override
     public void postStage(Stage stage){
         if(server!=null){
-            Json event = new Json();
-            event.set("type","stage.stop");
+            Json event = EventFeed.event("stage.stop");
             event.set("stage",stage.toString());
-            vertx.eventBus().publish("observer",event.toString());
+            feed.add(event);
         }
     }
 
@@ -137,11 +224,11 @@ public class JsonServer implements RunObserver, ContextObserver {
             rtrn.set("GET /waiter","get the current waiters");
             rtrn.set("GET /counter","get the current counter counts");
             rtrn.set("GET /pendingDownloads","get the list of pending downloads");
+            rtrn.set("GET /metrics","command latency histograms in the prometheus text format");
+            rtrn.set("GET /delta/:name?since=version","changes to the state, active, waiter or signal snapshot since the version in its ETag");
             rc.response().end(rtrn.toString(2));
         });
-        router.route("/state").produces("application/json").handler(rc->{
-           rc.response().end(filter(run.getConfig().getState().toJson().toString()));
-        });
+        router.route("/state").produces("application/json").handler(rc->snapshot(rc,"state"));
         router.route("/stage").produces("application/json").handler(rc->{
             Json rtrn = new Json();
             if(this.run!=null){
@@ -149,10 +236,7 @@ public class JsonServer implements RunObserver, ContextObserver {
             }
             rc.response().end(rtrn.toString(2));
         });
-        router.route("/active").produces("application/json").handler(rc->{
-            String response = dispatcher.getActiveJson().toString(2);
-            rc.response().end(filter(response));
-        });
+        router.route("/active").produces("application/json").handler(rc->snapshot(rc,"active"));
         router.get("/session").handler(rc->{
            try {
               if (dispatcher != null) {
@@ -216,22 +300,7 @@ public class JsonServer implements RunObserver, ContextObserver {
            }
         });
 
-        router.route("/signal").produces("application/json").handler(rc->{
-            Json json = new Json();
-            Map<String,Integer> latches = coordinator.getLatches();
-            Map<String,Long> latchTimes = coordinator.getLatchTimes();
-            latches.forEach((key,value)->{
-                Json entry = new Json();
-                entry.set("name",key);
-                entry.set("count",value);
-                if(latchTimes.containsKey(key)){
-                    entry.set("timestamp",latchTimes.get(key));
-                }
-                json.add(entry);
-            });
-            String response = json.toString(2);
-            rc.response().end(response);
-        });
+        router.route("/signal").produces("application/json").handler(rc->snapshot(rc,"signal"));
         router.route("/signal/:name").produces("application/json").handler(rc->{
            String name = rc.request().getParam("name");
            if(name != null && !name.trim().isEmpty()){
@@ -254,9 +323,25 @@ public class JsonServer implements RunObserver, ContextObserver {
            String response = run != null ? run.getProfiles().toString() : "{}";
            rc.response().end(filter(response));
         });
-        router.route("/waiter").produces("application/json").handler(rc->{
-            String response = coordinator.getWaitJson().toString(2);
-            rc.response().end(response);
+        router.route("/waiter").produces("application/json").handler(rc->snapshot(rc,"waiter"));
+        router.get("/delta/:name").produces("application/json").handler(rc->{
+            String name = rc.request().getParam("name");
+            String since = rc.request().getParam("since");
+            if(!snapshots.has(name)){
+                rc.response().setStatusCode(404).end("no snapshot named "+name);
+            }else if(since == null || !since.matches("\\d{1,18}")){
+                rc.response().setStatusCode(400).end("since must be the version of a previous snapshot");
+            }else{
+                long version = Long.parseLong(since);
+                vertx.<Json>executeBlocking(promise -> promise.complete(snapshots.delta(name,version)), false, result -> {
+                    if(result.succeeded()){
+                        rc.response().end(filter(result.result().toString(2)));
+                    }else{
+                        logger.error("failed to create "+name+" delta",result.cause());
+                        rc.response().setStatusCode(500).end("failed to create "+name+" delta");
+                    }
+                });
+            }
         });
         router.route("/counter").produces("application/json").handler(rc->{
             Json json = new Json();
@@ -269,6 +354,17 @@ public class JsonServer implements RunObserver, ContextObserver {
             String response = json.toString(2);
             rc.response().end(response);
         });
+        router.get("/metrics").handler(rc->{
+            //every histogram is walked for the percentiles so render on a worker thread like the snapshots
+            vertx.<String>executeBlocking(promise -> promise.complete(filter(run.getMetrics().toPrometheus())), false, result -> {
+                if(result.succeeded()){
+                    rc.response().putHeader("Content-Type",Metrics.CONTENT_TYPE).end(result.result());
+                }else{
+                    logger.error("failed to render metrics",result.cause());
+                    rc.response().setStatusCode(500).end("failed to render metrics");
+                }
+            });
+        });
         BridgeOptions options = new BridgeOptions()
             .addInboundPermitted(new PermittedOptions().setAddress("NOTHING"))
             .addOutboundPermitted(new PermittedOptions().setAddress("observer"))
@@ -276,6 +372,27 @@ public class JsonServer implements RunObserver, ContextObserver {
 
         SockJSHandler sockJSHandler = SockJSHandler.create(vertx);
         sockJSHandler.bridge(options,bridgeEvent->{
+            String id = bridgeEvent.socket().writeHandlerID();
+            if(BridgeEventType.SOCKET_CREATED.equals(bridgeEvent.type())){
+                bridgeEvent.socket().setWriteQueueMaxSize(DEFAULT_SUBSCRIBER_QUEUE);
+                feed.subscribe(id);
+            }else if(BridgeEventType.SOCKET_CLOSED.equals(bridgeEvent.type())){
+                feed.unsubscribe(id);
+            }else if(BridgeEventType.RECEIVE.equals(bridgeEvent.type())){
+                //drop the batch instead of queueing more for a subscriber that cannot keep up
+                if(bridgeEvent.socket().writeQueueFull()){
+                    long missed = feed.drop(id);
+                    logger.debug("dropped batch for slow subscriber {}, {} missed",id,missed);
+                    bridgeEvent.complete(false);
+                    return;
+                }
+                long missed = feed.delivered(id);
+                if(missed > 0){
+                    JsonObject message = bridgeEvent.getRawMessage();
+                    message.put("headers",new JsonObject().put("missed",Long.toString(missed)));
+                    bridgeEvent.setRawMessage(message);
+                }
+            }
             bridgeEvent.complete(true);
         });
         router.route("/observe").handler(sockJSHandler);
@@ -284,9 +401,18 @@ public class JsonServer implements RunObserver, ContextObserver {
         logger.info("listening on port {}",foundPort);
 
         server.requestHandler(router::accept).listen(foundPort/*, InetAddress.getLocalHost().getHostName()*/);
+        flushTimer = vertx.setPeriodic(DEFAULT_FLUSH_MS, (id)->flush());
     }
 
     public void stop(){
+        if(flushTimer >= 0){
+            vertx.cancelTimer(flushTimer);
+            flushTimer = -1;
+            flush();
+        }
+        if(coordinator!=null){
+            coordinator.removeObserver(signalObserver);
+        }
         if(server!=null){
             server.close();
         }
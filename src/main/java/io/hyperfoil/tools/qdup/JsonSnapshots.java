@@ -0,0 +1,250 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Versioned snapshots of the json that JsonServer returns for state, active commands, waiters and signals.
+ * A snapshot is rebuilt at most once per maxAge no matter how many clients poll for it and the version only changes
+ * when the content changes so the version is also the ETag. The last HISTORY snapshots are kept to create deltas.
+ * Building a snapshot can take a while with many contexts so get should not be called from the event loop.
+ */
+public class JsonSnapshots {
+
+    public static final long DEFAULT_MAX_AGE_MS = 1_000;
+    public static final int HISTORY = 16;
+
+    public static class Snapshot {
+        private final String name;
+        private final long version;
+        private final long timestamp;
+        private final Json json;
+        private final String body;
+
+        private Snapshot(String name, long version, long timestamp, Json json, String body){
+            this.name = name;
+            this.version = version;
+            this.timestamp = timestamp;
+            this.json = json;
+            this.body = body;
+        }
+
+        public String getName(){return name;}
+        public long getVersion(){return version;}
+        public long getTimestamp(){return timestamp;}
+        public Json getJson(){return json;}
+
+        /**
+         * @return the filtered json text for the response
+         */
+        public String getBody(){return body;}
+        public String getETag(){return "\"" + name + "-" + version + "\"";}
+
+        /**
+         * @param ifNoneMatch the If-None-Match header, either * or a list of ETags
+         */
+        public boolean matches(String ifNoneMatch){
+            if(ifNoneMatch == null || ifNoneMatch.isEmpty()){
+                return false;
+            }
+            String etag = getETag();
+            for(String entry : ifNoneMatch.split(",")){
+                entry = entry.trim();
+                if(entry.startsWith("W/")){
+                    entry = entry.substring(2);
+                }
+                if("*".equals(entry) || etag.equals(entry)){
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private class Entry {
+        private final String name;
+        private final Supplier<Json> supplier;
+        private final int indent;
+        private final LinkedList<Snapshot> history = new LinkedList<>();
+        private volatile Snapshot current;
+
+        private Entry(String name, Supplier<Json> supplier, int indent){
+            this.name = name;
+            this.supplier = supplier;
+            this.indent = indent;
+        }
+
+        private boolean isFresh(Snapshot snapshot, long now){
+            return snapshot != null && now - snapshot.getTimestamp() < maxAgeMs;
+        }
+
+        private Snapshot get(){
+            Snapshot rtrn = current;
+            if(isFresh(rtrn, System.currentTimeMillis())){
+                return rtrn;
+            }
+            //only one thread builds the snapshot, the others wait for it
+            synchronized (this){
+                rtrn = current;
+                long now = System.currentTimeMillis();
+                if(isFresh(rtrn, now)){
+                    return rtrn;
+                }
+                Json json = supplier.get();
+                if(json == null){
+                    json = new Json(false);
+                }
+                //the supplier can return json that is still changing (e.g. nested state) so keep a filtered copy for deltas
+                json = filter(json.clone());
+                String body = indent > 0 ? json.toString(indent) : json.toString();
+                if(rtrn != null && rtrn.getBody().equals(body)){
+                    //same content, keep the version so clients keep their ETag
+                    rtrn = new Snapshot(name, rtrn.getVersion(), now, rtrn.getJson(), body);
+                    history.set(history.size() - 1, rtrn);
+                }else{
+                    rtrn = new Snapshot(name, rtrn == null ? 1 : rtrn.getVersion() + 1, now, json, body);
+                    history.add(rtrn);
+                    if(history.size() > HISTORY){
+                        history.removeFirst();
+                    }
+                }
+                current = rtrn;
+                return rtrn;
+            }
+        }
+
+        private synchronized Snapshot find(long version){
+            for(Snapshot snapshot : history){
+                if(snapshot.getVersion() == version){
+                    return snapshot;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Map<String,Entry> entries = new ConcurrentHashMap<>();
+    private final Function<String,String> filter;
+    private final long maxAgeMs;
+
+    public JsonSnapshots(){
+        this(Function.identity(), DEFAULT_MAX_AGE_MS);
+    }
+
+    /**
+     * @param filter applied to each string in the json of each snapshot (e.g. to remove secrets)
+     * @param maxAgeMs how long a snapshot is used before it is rebuilt
+     */
+    public JsonSnapshots(Function<String,String> filter, long maxAgeMs){
+        this.filter = filter;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    public long getMaxAgeMs(){return maxAgeMs;}
+
+    public void add(String name, Supplier<Json> supplier){
+        add(name, supplier, 2);
+    }
+    /**
+     * @param indent the indent for the json text or 0 for a single line
+     */
+    public void add(String name, Supplier<Json> supplier, int indent){
+        entries.put(name, new Entry(name, supplier, indent));
+    }
+    public boolean has(String name){
+        return entries.containsKey(name);
+    }
+    public Set<String> getNames(){
+        return entries.keySet();
+    }
+
+    /**
+     * Get the current snapshot, building it if the last one is older than maxAge.
+     * @return the snapshot or null if name was not added
+     */
+    public Snapshot get(String name){
+        Entry entry = entries.get(name);
+        return entry == null ? null : entry.get();
+    }
+
+    /**
+     * @return the current snapshot if it does not need to be rebuilt, otherwise null
+     */
+    public Snapshot getIfFresh(String name){
+        Entry entry = entries.get(name);
+        if(entry == null){
+            return null;
+        }
+        Snapshot rtrn = entry.current;
+        return entry.isFresh(rtrn, System.currentTimeMillis()) ? rtrn : null;
+    }
+
+    /**
+     * Get the changes from version since to the current snapshot.
+     * The top level keys (or indexes for an array) that were added or changed are in set and the ones that are gone are in removed.
+     * The whole snapshot is in json with full=true if since is no longer in the history.
+     * @return the delta or null if name was not added
+     */
+    public Json delta(String name, long since){
+        Entry entry = entries.get(name);
+        if(entry == null){
+            return null;
+        }
+        Snapshot current = entry.get();
+        Snapshot previous = entry.find(since);
+        Json rtrn = new Json(false);
+        rtrn.set("name", name);
+        rtrn.set("since", since);
+        rtrn.set("version", current.getVersion());
+        if(previous == null){
+            rtrn.set("full", true);
+            rtrn.set("json", current.getJson());
+        }else{
+            rtrn.set("full", false);
+            Json set = new Json(false);
+            Json removed = new Json();
+            Json from = previous.getJson();
+            Json to = current.getJson();
+            if(previous != current){
+                to.forEach((key, value) -> {
+                    if(!from.has(key) || !Objects.equals(from.get(key), value)){
+                        set.set(key.toString(), value);
+                    }
+                });
+                from.forEach((key, value) -> {
+                    if(!to.has(key)){
+                        removed.add(key.toString());
+                    }
+                });
+            }
+            rtrn.set("set", set);
+            rtrn.set("removed", removed);
+        }
+        return rtrn;
+    }
+
+    /**
+     * Apply the filter to each string in the json before it is escaped into the json text
+     */
+    private Json filter(Json json){
+        List<Object> keys = new ArrayList<>(json.keys());
+        for(Object key : keys){
+            Object value = json.get(key);
+            if(value instanceof String){
+                json.set(key, filter.apply((String) value));
+            }else if(value instanceof Json){
+                filter((Json) value);
+            }
+        }
+        return json;
+    }
+}
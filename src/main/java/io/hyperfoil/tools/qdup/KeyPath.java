@@ -0,0 +1,87 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A state or with key that is parsed once and cached.
+ * A simple key (e.g. <code>FOO</code> or <code>host-name</code>) can only match a top level entry so it is resolved
+ * with a map lookup instead of a JSONPath search. Other keys (e.g. <code>foo.bar</code> or <code>$.foo[0]</code>)
+ * fall back to Json.find with the JSONPath built once for the key.
+ */
+public final class KeyPath {
+
+    public static final int MAX_CACHE_SIZE = 4 * 1024;
+
+    private static final Map<String,KeyPath> cache = new ConcurrentHashMap<>();
+
+    public static KeyPath get(String key){
+        KeyPath rtrn = cache.get(key);
+        if(rtrn == null){
+            if(cache.size() >= MAX_CACHE_SIZE){
+                cache.clear();
+            }
+            rtrn = new KeyPath(key);
+            cache.put(key, rtrn);
+        }
+        return rtrn;
+    }
+
+    /**
+     * @return true if the key can only reference a top level entry
+     */
+    public static boolean isSimple(String key){
+        if(key == null || key.isEmpty() || Character.isDigit(key.charAt(0))){
+            return false;
+        }
+        for(int i=0; i<key.length(); i++){
+            char c = key.charAt(i);
+            if(!Character.isLetterOrDigit(c) && c != '_' && c != '-'){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final String key;
+    private final String jsonPath;
+    private final boolean simple;
+    private final boolean index;
+
+    private KeyPath(String key){
+        this.key = key;
+        this.jsonPath = key.startsWith("$") ? key : "$." + key;
+        this.simple = isSimple(key);
+        this.index = key.matches("\\d+");
+    }
+
+    /**
+     * Json.has converts a key of digits to an array index and checks the key with a new regex each time.
+     * Other keys are checked against the key set directly.
+     */
+    private boolean contains(Json json){
+        return index ? json.has(key) : !json.isEmpty() && json.keySet().contains(key);
+    }
+
+    public String getKey(){return key;}
+    public boolean isSimple(){return simple;}
+
+    /**
+     * Same as <code>json.has(key) || Json.find(json,"$."+key) != null</code>
+     */
+    public boolean has(Json json){
+        return contains(json) || (!simple && Json.find(json, jsonPath) != null);
+    }
+
+    /**
+     * Same as <code>json.has(key) ? json.get(key) : Json.find(json,"$."+key)</code>
+     */
+    public Object find(Json json){
+        if(contains(json)){
+            return json.get(key);
+        }
+        return simple ? null : Json.find(json, jsonPath);
+    }
+}
@@ -0,0 +1,163 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size log-linear histogram of nanosecond latencies in the style of HdrHistogram.
+ * Each power of two range is split into 2^SUB_BUCKET_BITS buckets so the recorded values are within 1/64 (1.6%) of
+ * the actual value. Values above 2^MAX_BITS ns (about 19 hours) are counted in the last bucket but min, max and sum
+ * are exact. The buckets of each power of two range are allocated when the first value in that range is recorded so a
+ * histogram only pays for the ranges its latencies actually fall in, typically a handful of the 41 ranges.
+ * Recording does not lock, only allocates the first time a range is used and is safe from any thread.
+ */
+public class LatencyHistogram {
+
+    public static final int SUB_BUCKET_BITS = 6;
+    public static final int MAX_BITS = 46;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int RANGE_COUNT = MAX_BITS - SUB_BUCKET_BITS + 1;
+    private static final int BUCKET_COUNT = RANGE_COUNT * SUB_BUCKET_COUNT;
+    private static final long MAX_TRACKABLE = (1L << MAX_BITS) - 1;
+
+    static int index(long value){
+        if(value < SUB_BUCKET_COUNT){
+            return (int)Math.max(0, value);
+        }
+        if(value > MAX_TRACKABLE){
+            return BUCKET_COUNT - 1;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int)(value >>> shift);
+    }
+    static long lowerBound(int index){
+        if(index < 2 * SUB_BUCKET_COUNT){
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        return (long)(index - (shift << SUB_BUCKET_BITS)) << shift;
+    }
+    static long upperBound(int index){
+        return index + 1 < BUCKET_COUNT ? lowerBound(index + 1) - 1 : MAX_TRACKABLE;
+    }
+
+    //the SUB_BUCKET_COUNT buckets of each range, null until a value is recorded in the range
+    private final AtomicReferenceArray<AtomicLongArray> ranges = new AtomicReferenceArray<>(RANGE_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long nanos){
+        if(nanos < 0){
+            nanos = 0;
+        }
+        int index = index(nanos);
+        int rangeIndex = index >>> SUB_BUCKET_BITS;
+        AtomicLongArray range = ranges.get(rangeIndex);
+        if(range == null){
+            //another thread can allocate the same range first, use the one that won
+            ranges.compareAndSet(rangeIndex, null, new AtomicLongArray(SUB_BUCKET_COUNT));
+            range = ranges.get(rangeIndex);
+        }
+        range.incrementAndGet(index & (SUB_BUCKET_COUNT - 1));
+        count.increment();
+        sum.add(nanos);
+        long current;
+        while(nanos > (current = max.get()) && !max.compareAndSet(current, nanos)){}
+        while(nanos < (current = min.get()) && !min.compareAndSet(current, nanos)){}
+    }
+
+    /**
+     * record the time since startNanos from System.nanoTime()
+     */
+    public void recordSince(long startNanos){
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount(){return count.sum();}
+    public long getSum(){return sum.sum();}
+    public long getMin(){
+        long rtrn = min.get();
+        return rtrn == Long.MAX_VALUE ? 0 : rtrn;
+    }
+    public long getMax(){return max.get();}
+    public double getMean(){
+        long total = getCount();
+        return total == 0 ? 0 : (double) getSum() / total;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the highest value in the bucket that contains the percentile, limited to the recorded min and max
+     */
+    public long getValueAtPercentile(double percentile){
+        return getValuesAtPercentiles(percentile)[0];
+    }
+
+    /**
+     * @return the values for each percentile from a single pass over the buckets
+     */
+    public long[] getValuesAtPercentiles(double...percentiles){
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for(int r = 0; r < RANGE_COUNT; r++){
+            AtomicLongArray range = ranges.get(r);
+            if(range != null){
+                int start = r << SUB_BUCKET_BITS;
+                for(int i = 0; i < SUB_BUCKET_COUNT; i++){
+                    snapshot[start + i] = range.get(i);
+                    total += snapshot[start + i];
+                }
+            }
+        }
+        long[] rtrn = new long[percentiles.length];
+        for(int i = 0; i < percentiles.length; i++){
+            rtrn[i] = valueAtPercentile(snapshot, total, percentiles[i]);
+        }
+        return rtrn;
+    }
+
+    private long valueAtPercentile(long[] snapshot, long total, double percentile){
+        if(total == 0){
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * total));
+        long seen = 0;
+        for(int i = 0; i < snapshot.length; i++){
+            seen += snapshot[i];
+            if(seen >= target){
+                return Math.max(getMin(), Math.min(getMax(), upperBound(i)));
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return count, sum and percentiles in milliseconds
+     */
+    public Json toJson(){
+        Json rtrn = new Json(false);
+        long[] values = getValuesAtPercentiles(50, 90, 99, 99.9);
+        rtrn.set("count", getCount());
+        rtrn.set("sum", millis(getSum()));
+        rtrn.set("min", millis(getMin()));
+        rtrn.set("mean", millis(getMean()));
+        rtrn.set("p50", millis(values[0]));
+        rtrn.set("p90", millis(values[1]));
+        rtrn.set("p99", millis(values[2]));
+        rtrn.set("p999", millis(values[3]));
+        rtrn.set("max", millis(getMax()));
+        return rtrn;
+    }
+
+    private static double millis(double nanos){
+        return Math.round(nanos / TimeUnit.MILLISECONDS.toNanos(1) * 1000) / 1000.0;
+    }
+}
@@ -8,8 +8,13 @@ import io.hyperfoil.tools.qdup.config.RunConfig;
 
 import java.io.*;
 import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -23,6 +28,50 @@ public class Local {
 
    private static final String SSH_PATH = "/usr/bin/ssh";
 
+   //from rsync --stats, e.g. "Total transferred file size: 1,234 bytes"
+   private static final Pattern TRANSFERRED_PATTERN = Pattern.compile("Total transferred file size: (?<bytes>[\\d,.]+)");
+   //from an rsync error about one file, e.g. rsync: [sender] link_stat "/tmp/missing" failed: No such file or directory (2)
+   private static final Pattern FAILED_PATH_PATTERN = Pattern.compile("^rsync: (?:\\[\\w+\\] )?[^\"]*\"(?<path>[^\"]+)\"");
+   //rsync exit codes when some of the files were transferred
+   private static final int PARTIAL_TRANSFER = 23;
+   private static final int VANISHED_SOURCE = 24;
+
+   /**
+    * The bytes and failed paths from downloading a list of paths
+    */
+   public static class DownloadResult {
+      private final int paths;
+      private final long bytes;
+      private final List<String> failed;
+
+      private DownloadResult(int paths, long bytes, List<String> failed){
+         this.paths = paths;
+         this.bytes = bytes;
+         this.failed = Collections.unmodifiableList(failed);
+      }
+
+      public int getPaths(){return paths;}
+      public long getBytes(){return bytes;}
+      public List<String> getFailed(){return failed;}
+   }
+
+   /**
+    * The exit code, transferred bytes and paths in error messages from one rsync
+    */
+   private static class RsyncResult {
+      private final int exitCode;
+      private final long bytes;
+      private final List<String> errorPaths;
+
+      private RsyncResult(int exitCode, long bytes, List<String> errorPaths){
+         this.exitCode = exitCode;
+         this.bytes = bytes;
+         this.errorPaths = errorPaths;
+      }
+
+      private boolean isPartial(){return exitCode == PARTIAL_TRANSFER || exitCode == VANISHED_SOURCE;}
+   }
+
    final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
 
@@ -121,14 +170,116 @@ public class Local {
       }
    }
 
-   public void download(String path, String destination, Host host) {
+   /**
+    * Download path from host to destination
+    * @return the number of bytes transferred or -1 if rsync failed
+    */
+   public long download(String path, String destination, Host host) {
 
       if (path == null || path.isEmpty() || destination == null || destination.isEmpty()) {
-
+         return 0;
       } else {
          logger.info("Local.download({}:{},{})", host, path, destination);
-         rsyncFetch(host, path, destination);
+         RsyncResult result = rsyncFetch(host, path, destination);
+         return result.exitCode == 0 ? result.bytes : -1;
+      }
+   }
+
+   /**
+    * Download all the paths from host to the destination directory.
+    * Plain absolute paths are downloaded with one rsync --files-from invocation, anything that rsync would need to
+    * expand (globs, /./, trailing /) is downloaded with its own rsync.
+    * A batch that only partially transferred keeps its bytes and only the paths in the rsync errors count as failed.
+    * @return the bytes transferred and the paths that failed
+    */
+   public DownloadResult download(List<String> paths, String destination, Host host) {
+      List<String> batch = new LinkedList<>();
+      List<String> failed = new ArrayList<>();
+      long bytes = 0;
+      for(String path : paths){
+         if(paths.size() > 1 && canBatch(path)){
+            batch.add(path);
+         }else{
+            long downloaded = download(path, destination, host);
+            if(downloaded < 0){
+               failed.add(path);
+            }else{
+               bytes += downloaded;
+            }
+         }
+      }
+      if(batch.size() == 1){
+         long downloaded = download(batch.get(0), destination, host);
+         if(downloaded < 0){
+            failed.add(batch.get(0));
+         }else{
+            bytes += downloaded;
+         }
+      }else if(!batch.isEmpty()){
+         logger.info("Local.download({}:{},{})", host, batch, destination);
+         RsyncResult result = rsyncFetchAll(host, batch, destination);
+         if(result.exitCode == 0){
+            bytes += result.bytes;
+         }else if(result.isPartial()){
+            bytes += result.bytes;
+            List<String> batchFailed = failedPaths(batch, result.errorPaths);
+            if(batchFailed.isEmpty()){
+               logger.warn("rsync exit code {} did not name the failed paths, counting all {} paths as failed", result.exitCode, batch.size());
+               batchFailed = batch;
+            }
+            failed.addAll(batchFailed);
+         }else{
+            failed.addAll(batch);
+         }
+      }
+      return new DownloadResult(paths.size(), bytes, failed);
+   }
+
+   /**
+    * @return the paths that are or contain one of the errorPaths
+    */
+   public static List<String> failedPaths(List<String> paths, List<String> errorPaths){
+      List<String> rtrn = new ArrayList<>();
+      for(String path : paths){
+         for(String errorPath : errorPaths){
+            if(errorPath.equals(path) || errorPath.startsWith(path + "/")){
+               rtrn.add(path);
+               break;
+            }
+         }
+      }
+      return rtrn;
+   }
+
+   /**
+    * @return the quoted path from an rsync error about one file or null if the line is not one
+    */
+   public static String parseFailedPath(String line){
+      Matcher matcher = FAILED_PATH_PATTERN.matcher(line);
+      return matcher.find() ? matcher.group("path") : null;
+   }
+
+   /**
+    * @return true if path can be listed in an rsync --files-from file and keep the same meaning
+    */
+   public static boolean canBatch(String path){
+      return path != null && path.startsWith("/") && !path.endsWith("/") && !path.contains("/./") &&
+         path.chars().noneMatch(c -> c == '*' || c == '?' || c == '[' || c == '{' || c == '\n' || c == '\r');
+   }
+
+   /**
+    * @return the total transferred file size from rsync --stats output or -1 if the output does not include it
+    */
+   public static long parseTransferredBytes(String line){
+      Matcher matcher = TRANSFERRED_PATTERN.matcher(line);
+      if(matcher.find()){
+         try {
+            return Long.parseLong(matcher.group("bytes").replaceAll("[,.]", ""));
+         } catch (NumberFormatException e) {
+            return -1;
+         }
       }
+      return -1;
    }
 
    private String prepSshString(int port) {
@@ -206,7 +357,7 @@ public class Local {
       }
 
    }
-   private void rsyncFetch(Host host, String path, String dest) {
+   private void prepDestination(String dest, String path){
       File destinationFile = new File(dest);
       if (!destinationFile.exists()) {
          if (destinationFile.isDirectory()) {
@@ -217,9 +368,8 @@ public class Local {
             destinationFile.getParentFile().mkdirs();
          }
       }
-
-      ProcessBuilder builder = new ProcessBuilder();
-      String sshOpt = prepSshString(host.getPort());
+   }
+   private List<String> rsyncFetchCommand(Host host){
       List<String> cmd = new LinkedList<>();
       if(host.hasPassword()){
          cmd.add("sshpass");
@@ -230,41 +380,96 @@ public class Local {
       cmd.add("--archive");
       cmd.add("--verbose");
       cmd.add("--compress");
+      cmd.add("--stats");
+      return cmd;
+   }
+   private RsyncResult rsyncFetch(Host host, String path, String dest) {
+      prepDestination(dest, path);
+
+      List<String> cmd = rsyncFetchCommand(host);
       if(path.contains("/./")){
          cmd.add("--relative");
       }
       //TODO only add --rsh sshOpt if needed?
       cmd.add("--rsh");
-      cmd.add(sshOpt);
+      cmd.add(prepSshString(host.getPort()));
       cmd.add(host.getUserName() + "@" + host.getHostName() + ":" + path);
       cmd.add(dest);
+      return rsync(cmd, "rsyncFetch");
+   }
+   private RsyncResult rsyncFetchAll(Host host, List<String> paths, String dest) {
+      //dest is a directory when there is more than one path
+      File destinationFile = new File(dest);
+      if(!destinationFile.exists()){
+         destinationFile.mkdirs();
+      }
+      File filesFrom = null;
+      try {
+         filesFrom = File.createTempFile("qdup-files-from", ".txt");
+         filesFrom.deleteOnExit();
+         Files.write(filesFrom.toPath(), paths);
+
+         List<String> cmd = rsyncFetchCommand(host);
+         //--files-from does not recurse into directories unless asked and would otherwise keep the full source path
+         cmd.add("--recursive");
+         cmd.add("--no-relative");
+         cmd.add("--files-from=" + filesFrom.getPath());
+         cmd.add("--rsh");
+         cmd.add(prepSshString(host.getPort()));
+         cmd.add(host.getUserName() + "@" + host.getHostName() + ":/");
+         cmd.add(dest);
+         return rsync(cmd, "rsyncFetchAll");
+      } catch (IOException e) {
+         logger.error("failed to create rsync --files-from for {}", paths, e);
+         return new RsyncResult(-1, 0, Collections.emptyList());
+      } finally {
+         if(filesFrom != null){
+            filesFrom.delete();
+         }
+      }
+   }
+   /**
+    * Run the rsync command and read the transferred file size from the --stats output and the paths from the error messages
+    */
+   private RsyncResult rsync(List<String> cmd, String name){
+      ProcessBuilder builder = new ProcessBuilder();
       builder.command(cmd);
+      //one stream so a long list of errors cannot fill the error pipe while the output is read
+      builder.redirectErrorStream(true);
       logger.debug("Running rsync command : " + cmd.stream().collect(Collectors.joining(" ")));
+      long bytes = 0;
+      List<String> errorPaths = new ArrayList<>();
       try {
          Process p = builder.start();
 
          final InputStream inputStream = p.getInputStream();
-         final OutputStream outputStream = p.getOutputStream();
-         final InputStream errorStream = p.getErrorStream();
 
-         int result = p.waitFor();
-         logger.debug("rsyncFetch.result = {}", result);
+         //read the output before waiting so a long file list cannot fill the pipe and block rsync
          String line = null;
-         BufferedReader reader = null;
-         reader = new BufferedReader(new InputStreamReader(errorStream));
-         while ((line = reader.readLine()) != null) {
-            logger.error("  E: {}", line);
-         }
-         reader = new BufferedReader(new InputStreamReader(inputStream));
+         BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
          while ((line = reader.readLine()) != null) {
-            logger.trace("  I: {}", line);
+            if(line.startsWith("rsync:") || line.startsWith("rsync error:") || line.startsWith("rsync warning:")){
+               logger.error("  E: {}", line);
+               String errorPath = parseFailedPath(line);
+               if(errorPath != null){
+                  errorPaths.add(errorPath);
+               }
+            }else{
+               logger.trace("  I: {}", line);
+               long transferred = parseTransferredBytes(line);
+               if(transferred >= 0){
+                  bytes = transferred;
+               }
+            }
          }
-
+         int result = p.waitFor();
+         logger.debug("{}.result = {}", name, result);
+         return new RsyncResult(result, bytes, errorPaths);
       } catch (IOException e) {
          e.printStackTrace();
       } catch (InterruptedException e) {
          e.printStackTrace();
       }
-
+      return new RsyncResult(-1, 0, errorPaths);
    }
 }
@@ -0,0 +1,178 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.qdup.stream.JsonStreamWriter;
+import io.hyperfoil.tools.yaup.json.Json;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms for the run grouped by command type and host.
+ * The histograms are looked up with nested maps so recording a value does not build a key or a timer name.
+ * Complements Profiles, which keeps the per script timeline of SystemTimers.
+ */
+public class Metrics {
+
+    public static final double[] QUANTILES = new double[]{0.5, 0.9, 0.99, 0.999};
+    private static final double[] PERCENTILES = Arrays.stream(QUANTILES).map(q -> q * 100).toArray();
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String NO_LABEL = "";
+
+    public static class Family {
+        private final String key;
+        private final String name;
+        private final String help;
+        private final String typeLabel;
+        private final ConcurrentHashMap<String,ConcurrentHashMap<String,LatencyHistogram>> byHost = new ConcurrentHashMap<>();
+
+        private Family(String key, String name, String help, String typeLabel){
+            this.key = key;
+            this.name = name;
+            this.help = help;
+            this.typeLabel = typeLabel;
+        }
+
+        public String getKey(){return key;}
+        public String getName(){return name;}
+
+        public LatencyHistogram get(String host){
+            return get(NO_LABEL, host);
+        }
+        public LatencyHistogram get(String type, String host){
+            if(host == null){
+                host = NO_LABEL;
+            }
+            if(type == null){
+                type = NO_LABEL;
+            }
+            ConcurrentHashMap<String,LatencyHistogram> byType = byHost.get(host);
+            if(byType == null){
+                byType = byHost.computeIfAbsent(host, (h) -> new ConcurrentHashMap<>());
+            }
+            LatencyHistogram rtrn = byType.get(type);
+            if(rtrn == null){
+                rtrn = byType.computeIfAbsent(type, (t) -> new LatencyHistogram());
+            }
+            return rtrn;
+        }
+
+        private Map<String,Map<String,LatencyHistogram>> sorted(){
+            Map<String,Map<String,LatencyHistogram>> rtrn = new TreeMap<>();
+            byHost.forEach((host, byType) -> rtrn.put(host, new TreeMap<>(byType)));
+            return rtrn;
+        }
+
+        private void writePrometheus(Writer writer) throws IOException {
+            writer.write("# HELP " + name + " " + help + "\n");
+            writer.write("# TYPE " + name + " summary\n");
+            for(Map.Entry<String,Map<String,LatencyHistogram>> hostEntry : sorted().entrySet()){
+                for(Map.Entry<String,LatencyHistogram> typeEntry : hostEntry.getValue().entrySet()){
+                    StringBuilder labels = new StringBuilder();
+                    if(typeLabel != null){
+                        label(labels, typeLabel, typeEntry.getKey());
+                        labels.append(',');
+                    }
+                    label(labels, "host", hostEntry.getKey());
+                    LatencyHistogram histogram = typeEntry.getValue();
+                    long[] values = histogram.getValuesAtPercentiles(PERCENTILES);
+                    for(int i = 0; i < QUANTILES.length; i++){
+                        writer.write(name + "{" + labels + ",quantile=\"" + QUANTILES[i] + "\"} " + seconds(values[i]) + "\n");
+                    }
+                    writer.write(name + "_sum{" + labels + "} " + seconds(histogram.getSum()) + "\n");
+                    writer.write(name + "_count{" + labels + "} " + histogram.getCount() + "\n");
+                }
+            }
+        }
+
+        private Json toJson(){
+            Json rtrn = new Json(false);
+            sorted().forEach((host, byType) -> {
+                if(typeLabel == null){
+                    LatencyHistogram histogram = byType.get(NO_LABEL);
+                    if(histogram != null){
+                        rtrn.set(host, histogram.toJson());
+                    }
+                }else{
+                    Json hostJson = new Json(false);
+                    byType.forEach((type, histogram) -> hostJson.set(type, histogram.toJson()));
+                    rtrn.set(host, hostJson);
+                }
+            });
+            return rtrn;
+        }
+    }
+
+    private static void label(StringBuilder sb, String name, String value){
+        sb.append(name).append("=\"");
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            switch (c){
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static String seconds(long nanos){
+        return JsonStreamWriter.numberToString((double) nanos / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private final Family command = new Family("command", "qdup_command_duration_seconds", "time from the start of a command until it calls next or skip", "command");
+    private final Family promptWait = new Family("prompt", "qdup_sh_prompt_wait_seconds", "time from sending a sh command until the prompt returns", null);
+    private final Family exitCode = new Family("exitCode", "qdup_sh_exit_code_seconds", "time to read the exit code after a sh command", null);
+    private final Family queueWait = new Family("queue", "qdup_dispatcher_queue_wait_seconds", "time a script waits in the dispatcher queue before its next command runs", null);
+    private final Family watcher = new Family("watcher", "qdup_watcher_duration_seconds", "time a watcher spends on one line of output", "command");
+    private final List<Family> families = Arrays.asList(command, promptWait, exitCode, queueWait, watcher);
+
+    public LatencyHistogram command(String type, String host){return command.get(type, host);}
+    public LatencyHistogram promptWait(String host){return promptWait.get(host);}
+    public LatencyHistogram exitCode(String host){return exitCode.get(host);}
+    public LatencyHistogram queueWait(String host){return queueWait.get(host);}
+    public LatencyHistogram watcher(String type, String host){return watcher.get(type, host);}
+
+    public List<Family> getFamilies(){return families;}
+
+    /**
+     * Write every histogram as a summary in the Prometheus text exposition format
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+        for(Family family : families){
+            family.writePrometheus(writer);
+        }
+    }
+    public String toPrometheus(){
+        StringWriter writer = new StringWriter();
+        try {
+            writePrometheus(writer);
+        } catch (IOException e){
+            //StringWriter does not throw
+        }
+        return writer.toString();
+    }
+
+    public Json getJson(){
+        Json rtrn = new Json(false);
+        for(Family family : families){
+            rtrn.set(family.getKey(), family.toJson());
+        }
+        return rtrn;
+    }
+}
@@ -10,13 +10,17 @@ import ch.qos.logback.core.FileAppender;
 import io.hyperfoil.tools.qdup.cmd.Cmd;
 import io.hyperfoil.tools.qdup.cmd.DispatchObserver;
 import io.hyperfoil.tools.qdup.cmd.Dispatcher;
+import io.hyperfoil.tools.qdup.cmd.JsEngine;
 import io.hyperfoil.tools.qdup.cmd.Script;
 import io.hyperfoil.tools.qdup.cmd.ScriptContext;
+import io.hyperfoil.tools.qdup.cmd.impl.Regex;
 import io.hyperfoil.tools.qdup.cmd.impl.RoleEnv;
 import io.hyperfoil.tools.qdup.cmd.impl.ScriptCmd;
 import io.hyperfoil.tools.qdup.config.Role;
 import io.hyperfoil.tools.qdup.config.RunConfig;
 import io.hyperfoil.tools.qdup.config.RunConfigBuilder;
+import io.hyperfoil.tools.qdup.stream.JsonStreamWriter;
+import io.hyperfoil.tools.qdup.stream.SpillingOutputStream;
 import io.hyperfoil.tools.yaup.AsciiArt;
 import io.hyperfoil.tools.yaup.HashedSets;
 import io.hyperfoil.tools.yaup.StringUtil;
@@ -26,22 +30,36 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -93,6 +111,35 @@ public class Run implements Runnable, DispatchObserver {
         public String getDestination(){return destination;}
     }
 
+    /**
+     * The downloads from one host across all the calls to runPendingDownloads
+     */
+    class DownloadStats {
+        private long bytes = 0;
+        private long durationMs = 0;
+        private int paths = 0;
+        private int failed = 0;
+
+        public synchronized void add(Local.DownloadResult result, long durationMs){
+            this.paths += result.getPaths();
+            this.failed += result.getFailed().size();
+            this.bytes += result.getBytes();
+            this.durationMs += durationMs;
+        }
+        public synchronized Json toJson(){
+            Json rtrn = new Json();
+            rtrn.set("paths",paths);
+            rtrn.set("failed",failed);
+            rtrn.set("bytes",bytes);
+            rtrn.set("durationMs",durationMs);
+            return rtrn;
+        }
+    }
+
+    public static final int DEFAULT_DOWNLOAD_CONCURRENCY = 8;
+    private static final int RUN_JSON_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_DELETES_PER_COMMAND = 100;
+
     private volatile Stage stage = Stage.Pending;
 
     private final List<RunObserver> runObservers;
@@ -104,10 +151,16 @@ public class Run implements Runnable, DispatchObserver {
     private Coordinator coordinator;
     private Dispatcher dispatcher;
     private Profiles profiles;
+    private final Metrics metrics = new Metrics();
     private Local local;
+    private SshConnectionManager connectionManager;
+    private JsEngine jsEngine;
+    private StateJournal journal;
+    private RunLog runLog;
 
     private HashedSets<Host,PendingDownload> pendingDownloads;
     private HashedSets<Host,String> pendingDeletes;
+    private Map<String,DownloadStats> downloadStats;
 
     private CountDownLatch runLatch = new CountDownLatch(1);
     private Logger runLogger;
@@ -134,6 +187,11 @@ public class Run implements Runnable, DispatchObserver {
         this.profiles = new Profiles();
         this.coordinator = new Coordinator();
         this.local = new Local(config);
+        this.connectionManager = new SshConnectionManager(
+            Integer.parseInt(config.getSetting(RunConfig.SSH_NIO_WORKERS_KEY,SshConnectionManager.DEFAULT_NIO_WORKERS).toString()),
+            Integer.parseInt(config.getSetting(RunConfig.SSH_MAX_SESSIONS_KEY,SshConnectionManager.DEFAULT_MAX_SESSIONS).toString())
+        );
+        this.jsEngine = new JsEngine();
 
         LoggerContext lc = (LoggerContext) LoggerFactory.getILoggerFactory();
         PatternLayoutEncoder consoleLayout = new PatternLayoutEncoder();
@@ -166,16 +224,18 @@ public class Run implements Runnable, DispatchObserver {
         }
         runLogger.setLevel(Level.DEBUG);
         runLogger.setAdditive(false); /* set to true if root should log too */
+        runLog = createRunLog();
         coordinator.addObserver((signal_name)->{
-            runLogger.info(
-                    "{}reached {}{}",
-                    config.isColorTerminal()?AsciiArt.ANSI_CYAN:"",
-                    signal_name,
-                    config.isColorTerminal()?AsciiArt.ANSI_RESET:""
+            runLog.info(
+                    null,
+                    null,
+                    (config.isColorTerminal()?AsciiArt.ANSI_CYAN:"")+"reached "+signal_name+(config.isColorTerminal()?AsciiArt.ANSI_RESET:""),
+                    null
             );
         });
         this.pendingDownloads = new HashedSets<>();
         this.pendingDeletes = new HashedSets<>();
+        this.downloadStats = new ConcurrentHashMap<>();
     }
 
     public void addRunObserver(RunObserver observer){this.runObservers.add(observer);}
@@ -251,7 +311,25 @@ public class Run implements Runnable, DispatchObserver {
     public Local getLocal(){return local;}
     public RunConfig getConfig(){return config;}
     public boolean isAborted(){return aborted.get();}
+    private RunLog createRunLog(){
+        int capacity = RunLog.DEFAULT_CAPACITY;
+        RunLog.Overflow overflow = RunLog.Overflow.BLOCK;
+        RunLog.Split split = RunLog.Split.NONE;
+        try {
+            capacity = Integer.parseInt(config.getSetting(RunConfig.LOG_BUFFER_SIZE_KEY,RunLog.DEFAULT_CAPACITY).toString());
+            overflow = RunLog.Overflow.from(config.getSetting(RunConfig.LOG_OVERFLOW_KEY,overflow.name()).toString());
+            split = RunLog.Split.from(config.getSetting(RunConfig.LOG_SPLIT_KEY,split.name()).toString());
+        } catch (IllegalArgumentException e) {
+            logger.warn("invalid run log setting, using capacity={} overflow={} split={}",capacity,overflow,split,e);
+        }
+        return new RunLog(runLogger,outputPath,capacity,overflow,split);
+    }
+
     public Logger getRunLogger(){return runLogger;}
+    /**
+     * @return the pipeline that writes script messages to the run logger from a separate thread
+     */
+    public RunLog getRunLog(){return runLog;}
     public Logger getStateLogger(){return stateLogger;}
 
     public void addPendingDelete(Host host,String path){
@@ -260,9 +338,63 @@ public class Run implements Runnable, DispatchObserver {
     public void addPendingDownload(Host host,String path,String destination){
         pendingDownloads.put(host,new PendingDownload(path,destination));
     }
+    /**
+     * @return the number of hosts to download from (or delete from) at the same time
+     */
+    public int getDownloadConcurrency(){
+        return Integer.parseInt(config.getSetting(RunConfig.DOWNLOAD_CONCURRENCY_KEY,DEFAULT_DOWNLOAD_CONCURRENCY).toString());
+    }
+
+    /**
+     * Call action for each host using up to concurrency workers.
+     * Each worker takes the next host from a shared queue so a slow host does not hold up the others.
+     * The workers have their own threads because this is called from the dispatcher when a stage ends and waiting
+     * for tasks on the dispatcher would deadlock once its threads are all waiting.
+     */
+    private void forEachHost(Collection<Host> hosts, int concurrency, Consumer<Host> action){
+        Queue<Host> queue = new ConcurrentLinkedQueue<>(hosts);
+        Callable<Boolean> worker = ()->{
+            Host host;
+            while((host = queue.poll()) != null){
+                try {
+                    action.accept(host);
+                }catch (Exception e){
+                    logger.error("{} failed for {}",config.getName(),host,e);
+                }
+            }
+            return true;
+        };
+        if(concurrency <= 1 || hosts.size() <= 1){
+            try {
+                worker.call();
+            } catch (Exception e) {
+                logger.error("{} failed",config.getName(),e);
+            }
+            return;
+        }
+        int count = Math.min(concurrency,hosts.size());
+        List<Callable<Boolean>> workers = new LinkedList<>();
+        for(int i=0; i<count; i++){
+            workers.add(worker);
+        }
+        AtomicInteger threadCounter = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(count, runnable -> {
+            Thread rtrn = new Thread(runnable, "qdup-host-" + threadCounter.getAndIncrement());
+            rtrn.setDaemon(true);
+            return rtrn;
+        });
+        try {
+            executor.invokeAll(workers);
+        } catch (InterruptedException e) {
+            logger.warn("{} interrupted waiting for hosts",config.getName());
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
     public void runPendingDeletes(){
         if(!pendingDeletes.isEmpty()){
-            for(Host host : pendingDeletes.keys()){
+            forEachHost(pendingDeletes.keys(),getDownloadConcurrency(),host->{
                 SshSession sshSession = new SshSession(host,
                    config.getKnownHosts(),
                    config.getIdentity(),
@@ -270,14 +402,16 @@ public class Run implements Runnable, DispatchObserver {
                    config.getTimeout(),
                    "",
                    getDispatcher().getScheduler(),
+                   getConnectionManager(),
                    false
                 );
 
-                Set<String> deleteList = pendingDeletes.get(host);
-                for(String delete : deleteList){
-                    sshSession.execSync("rm "+delete);
+                List<String> deleteList = new ArrayList<>(pendingDeletes.get(host));
+                for(int i=0; i<deleteList.size(); i+=MAX_DELETES_PER_COMMAND){
+                    sshSession.execSync("rm "+String.join(" ",deleteList.subList(i,Math.min(deleteList.size(),i+MAX_DELETES_PER_COMMAND))));
                 }
-            }
+                sshSession.close();
+            });
         }
     }
     public void runPendingDownloads(){
@@ -285,22 +419,39 @@ public class Run implements Runnable, DispatchObserver {
         logger.info("{} runPendingDownloads",config.getName());
         if(!pendingDownloads.isEmpty()){
             timestamps.put("downloadStart",System.currentTimeMillis());
-            for(Host host : pendingDownloads.keys()){
-                Set<PendingDownload> downloadList = pendingDownloads.get(host);
-                for(PendingDownload pendingDownload : downloadList){
+            forEachHost(pendingDownloads.keys(),getDownloadConcurrency(),host->{
+                //one rsync per destination instead of one per path
+                Map<String,List<String>> byDestination = new LinkedHashMap<>();
+                for(PendingDownload pendingDownload : pendingDownloads.get(host)){
                     String downloadPath = pendingDownload.getPath();
                     String downloadDestination = pendingDownload.getDestination();
                     if(downloadDestination == null || downloadPath == null){
                         logger.error("NULL in queue-download "+downloadPath+" -> "+downloadDestination);
                     }else {
-                        local.download(pendingDownload.getPath(), pendingDownload.getDestination(), host);
+                        byDestination.computeIfAbsent(downloadDestination,(key)->new ArrayList<>()).add(downloadPath);
                     }
                 }
-            }
+                DownloadStats stats = downloadStats.computeIfAbsent(host.toString(),(key)->new DownloadStats());
+                byDestination.forEach((destination,paths)->{
+                    long start = System.currentTimeMillis();
+                    Local.DownloadResult result = local.download(paths,destination,host);
+                    stats.add(result,System.currentTimeMillis()-start);
+                });
+            });
             timestamps.put("downloadStop",System.currentTimeMillis());
             pendingDownloads.clear();
         }
     }
+    /**
+     * @return the paths, failed paths, bytes and duration of the downloads from each host
+     */
+    public Json getDownloadJson(){
+        Json rtrn = new Json();
+        downloadStats.forEach((host,stats)->{
+            rtrn.set(host,stats.toJson());
+        });
+        return rtrn;
+    }
     public void done(){
         coordinator.clearWaiters();
         dispatcher.stop(false);
@@ -321,39 +472,101 @@ public class Run implements Runnable, DispatchObserver {
         return rtrn;
     }
     public Json getProfiles(){return profiles.getJson();}
-    public void writeRunJson(){
-        try (FileOutputStream out = new FileOutputStream(this.outputPath+File.separator+"run.json")) {
-
-            Json toWrite = new Json();
-
-            toWrite.set("state",this.getConfig().getState().toJson());
-
-            Json latches = new Json();
-            this.getCoordinator().getLatchTimes().forEach((key,value)->{
-                latches.set(key,value);
-            });
-            Json counters = new Json();
-            this.getCoordinator().getCounters().forEach((key,value)->{
-                counters.set(key,value);
-            });
-            Json timestamps = new Json();
-            this.timestamps.forEach((key,value)->{
-                timestamps.set(key,value);
-            });
-
-            toWrite.set("timestamps",timestamps);
-            toWrite.set("latches",latches);
-            toWrite.set("counters",counters);
-            toWrite.set("profiles",getProfiles());
+    public Metrics getMetrics(){return metrics;}
+    /**
+     * @return the compiled pattern cache hits and misses of all the regex commands in the scripts
+     */
+    public Json getRegexCacheJson(){
+        AtomicLong hits = new AtomicLong(0);
+        AtomicLong misses = new AtomicLong(0);
+        for(String scriptName : getConfig().getScriptNames()){
+            Script script = getConfig().getScript(scriptName);
+            if(script != null){
+                script.walk(true,(Cmd cmd)->{
+                    if(cmd instanceof Regex){
+                        hits.addAndGet(((Regex)cmd).getCacheHits());
+                        misses.addAndGet(((Regex)cmd).getCacheMisses());
+                    }
+                    return null;
+                });
+            }
+        }
+        Json rtrn = new Json();
+        rtrn.set("hits",hits.get());
+        rtrn.set("misses",misses.get());
+        return rtrn;
+    }
+    /**
+     * Write run.json one section at a time through the secret filter so the document is never rendered in memory
+     * @return true if run.json was written
+     */
+    public synchronized boolean writeRunJson(){
+        SecretFilter.FilterStream filtered = getConfig().getState().getSecretFilter().stream("run.json");
+        try (JsonStreamWriter json = new JsonStreamWriter(new BufferedWriter(new OutputStreamWriter(filtered, StandardCharsets.UTF_8), RUN_JSON_BUFFER_SIZE))) {
+            filtered.addStream("file",new BufferedOutputStream(Files.newOutputStream(Paths.get(this.outputPath,"run.json")), RUN_JSON_BUFFER_SIZE));
+
+            json.beginObject();
+            json.field("state",this.getConfig().getState().toJson());
+
+            json.beginObject("timestamps");
+            for(Map.Entry<String,Long> entry : new ArrayList<>(this.timestamps.entrySet())){
+                json.field(entry.getKey(),entry.getValue());
+            }
+            json.endObject();
 
-            String filtered = getConfig().getState().getSecretFilter().filter(toWrite.toString(2));
+            json.beginObject("latches");
+            for(Map.Entry<String,Long> entry : this.getCoordinator().getLatchTimes().entrySet()){
+                json.field(entry.getKey(),entry.getValue());
+            }
+            json.endObject();
 
-            out.write(filtered.getBytes());
-            out.flush();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            json.beginObject("counters");
+            for(Map.Entry<String,Integer> entry : this.getCoordinator().getCounters().entrySet()){
+                json.field(entry.getKey(),entry.getValue());
+            }
+            json.endObject();
+
+            json.field("profiles",getProfiles());
+            json.field("metrics",metrics.getJson());
+            json.field("regexCache",getRegexCacheJson());
+            json.field("downloads",getDownloadJson());
+            json.field("log",runLog.toJson());
+            json.endObject();
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Journal state changes to the output path so the state can be recovered if the run does not write run.json
+     */
+    private void openJournal(){
+        if(!Boolean.parseBoolean(config.getSetting(RunConfig.STATE_JOURNAL_KEY,true).toString())){
+            return;
+        }
+        try {
+            journal = new StateJournal(Paths.get(outputPath),config.getState(),coordinator);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("failed to start state journal in {}, continuing without it",outputPath,e);
+        }
+    }
+    /**
+     * Stop the journal and remove it once run.json has the same state
+     */
+    private void closeJournal(boolean runJsonWritten){
+        if(journal == null){
+            return;
+        }
+        try {
+            if(runJsonWritten){
+                journal.delete();
+            }else{
+                journal.close();
+            }
+        } catch (IOException e) {
+            logger.warn("failed to remove state journal from {}",outputPath,e);
         }
     }
     public void abort(Boolean skipCleanUp){
@@ -399,9 +612,11 @@ public class Run implements Runnable, DispatchObserver {
                 timestamps.put("stop",System.currentTimeMillis());
                 return;
             }
+            openJournal();
             boolean coordinatorInitialized = initializeCoordinator();
             if(!coordinatorInitialized){
                 timestamps.put("stop",System.currentTimeMillis());
+                closeJournal(false);
                 return;
             }
             String tree = config.getState().tree();
@@ -425,9 +640,13 @@ public class Run implements Runnable, DispatchObserver {
             }
             //moved to here because abort would avoid the cleanup in postRun()
             //will need to move if runLatch becomes optional
+            runLog.close();
             fileAppender.stop();
             consoleAppender.stop();
-            writeRunJson();
+            connectionManager.close();
+            boolean runJsonWritten = writeRunJson();
+            closeJournal(runJsonWritten);
+            jsEngine.close();
         }
     }
     private boolean connectAll(List<Callable<Boolean>> toCall,int timeout){
@@ -491,8 +710,10 @@ public class Run implements Runnable, DispatchObserver {
                    config.getPassphrase(),
                    config.getTimeout(),
                    "",getDispatcher().getScheduler(),
+                   getConnectionManager(),
                    isTrace(name));
                 session.setName(name);
+                session.setOutputMemoryLimit(getOutputMemoryLimit());
                 if ( session.isReady() ) {
                     //TODO configure session delay
                     //session.setDelay(SuffixStream.NO_DELAY);
@@ -543,8 +764,10 @@ public class Run implements Runnable, DispatchObserver {
                    config.getPassphrase(),
                    config.getTimeout(),
                    "",getDispatcher().getScheduler(),
+                   getConnectionManager(),
                    isTrace(name));
                 session.setName(name);
+                session.setOutputMemoryLimit(getOutputMemoryLimit());
                 if ( session.isReady() ) {
                     //TODO configure session delay
                     //session.setDelay(SuffixStream.NO_DELAY);
@@ -615,8 +838,10 @@ public class Run implements Runnable, DispatchObserver {
                                config.getPassphrase(),
                                config.getTimeout(),
                                "", getDispatcher().getScheduler(),
+                               getConnectionManager(),
                                 isTrace(name));
                        session.setName(name);
+                       session.setOutputMemoryLimit(getOutputMemoryLimit());
                        if ( session.isReady() ) {
                            //TODO configure session delay
                            //session.setDelay(SuffixStream.NO_DELAY);
@@ -685,10 +910,12 @@ public class Run implements Runnable, DispatchObserver {
                                     config.getTimeout(),
                                     setupCommand,
                                     getDispatcher().getScheduler(),
+                                    getConnectionManager(),
                                     isTrace(name)
 
                             );
                             session.setName(name);
+                            session.setOutputMemoryLimit(getOutputMemoryLimit());
                             if (session.isReady()) {
                                 //session.setDelay(SuffixStream.NO_DELAY);
                                 timer.start("context:" + host.toString());
@@ -775,8 +1002,10 @@ public class Run implements Runnable, DispatchObserver {
                                 config.getTimeout(),
                                 setupCommand,
                                 getDispatcher().getScheduler(),
+                                getConnectionManager(),
                                 isTrace(name));
                         session.setName(name);
+                        session.setOutputMemoryLimit(getOutputMemoryLimit());
                         if ( session.isReady() ) {
 
                             //session.setDelay(SuffixStream.NO_DELAY);
@@ -824,6 +1053,19 @@ public class Run implements Runnable, DispatchObserver {
         runLatch.countDown();
     }
     public Dispatcher getDispatcher(){return dispatcher;}
+    public SshConnectionManager getConnectionManager(){return connectionManager;}
+
+    /**
+     * @return the javascript engine shared by the commands in this run
+     */
+    public JsEngine getJsEngine(){return jsEngine;}
+
+    /**
+     * @return the bytes of each command's output to keep in memory before spilling to a temporary file
+     */
+    public long getOutputMemoryLimit(){
+        return Long.parseLong(config.getSetting(RunConfig.OUTPUT_MEMORY_LIMIT_KEY,SpillingOutputStream.DEFAULT_MEMORY_LIMIT).toString());
+    }
     public Coordinator getCoordinator(){return coordinator;}
     public String getOutputPath(){ return outputPath;}
 
@@ -0,0 +1,397 @@
+package io.hyperfoil.tools.qdup;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import io.hyperfoil.tools.yaup.AsciiArt;
+import io.hyperfoil.tools.yaup.json.Json;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves run log messages off the threads that run scripts. Messages are queued in a bounded lock-free ring buffer and a
+ * dedicated writer thread applies the secret filter, formats them and calls the appenders of the run logger.
+ * The writer can also copy each message to a log file for its host or for its script on that host.
+ *
+ * When the ring buffer is full the Overflow policy either waits for space (BLOCK) or drops the message (DROP).
+ * The counters are included in run.json.
+ */
+public class RunLog implements AutoCloseable {
+
+    final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int DEFAULT_CAPACITY = 8 * 1024;
+    public static final String LOG_DIRECTORY = "logs";
+
+    private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_PARK_NS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss,SSS").withZone(ZoneId.systemDefault());
+
+    public enum Overflow {
+        /** wait for the writer to make space */
+        BLOCK,
+        /** drop the message and count it */
+        DROP;
+
+        public static Overflow from(String value){
+            for(Overflow overflow : values()){
+                if(overflow.name().equalsIgnoreCase(value)){
+                    return overflow;
+                }
+            }
+            throw new IllegalArgumentException("unknown log overflow "+value+" expected block or drop");
+        }
+    }
+
+    public enum Split {
+        /** only write run.log */
+        NONE,
+        /** also write logs/host.log */
+        HOST,
+        /** also write logs/host/script.log */
+        SCRIPT;
+
+        public static Split from(String value){
+            for(Split split : values()){
+                if(split.name().equalsIgnoreCase(value)){
+                    return split;
+                }
+            }
+            throw new IllegalArgumentException("unknown log split "+value+" expected none, host or script");
+        }
+    }
+
+    private static class Entry {
+        private final long timestamp;
+        private final Level level;
+        private final String script;
+        private final String host;
+        private final String message;
+        private final SecretFilter filter;
+        private final boolean color;
+
+        private Entry(long timestamp, Level level, String script, String host, String message, SecretFilter filter, boolean color){
+            this.timestamp = timestamp;
+            this.level = level;
+            this.script = script;
+            this.host = host;
+            this.message = message;
+            this.filter = filter;
+            this.color = color;
+        }
+    }
+
+    /**
+     * A bounded multi-producer single-consumer ring. Each slot has a sequence that tells producers when the slot is
+     * free and the consumer when the slot is published, so producers only contend on the tail counter.
+     */
+    private static class Ring {
+        private final Entry[] slots;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong(0);
+        private volatile long head = 0;
+
+        private Ring(int capacity){
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            slots = new Entry[size];
+            sequences = new AtomicLongArray(size);
+            for(int i = 0; i < size; i++){
+                sequences.set(i, i);
+            }
+            mask = size - 1;
+        }
+
+        private int capacity(){return slots.length;}
+
+        private boolean offer(Entry entry){
+            long position = tail.get();
+            while(true){
+                int index = (int)(position & mask);
+                long difference = sequences.get(index) - position;
+                if(difference == 0){
+                    if(tail.compareAndSet(position, position + 1)){
+                        slots[index] = entry;
+                        sequences.lazySet(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                }else if(difference < 0){
+                    return false;
+                }else{
+                    position = tail.get();
+                }
+            }
+        }
+
+        /**
+         * Only called by the writer thread
+         */
+        private Entry poll(){
+            long position = head;
+            int index = (int)(position & mask);
+            if(sequences.get(index) != position + 1){
+                return null;
+            }
+            Entry rtrn = slots[index];
+            slots[index] = null;
+            sequences.lazySet(index, position + slots.length);
+            head = position + 1;
+            return rtrn;
+        }
+
+        private boolean isEmpty(){
+            return tail.get() == head;
+        }
+    }
+
+    private final Logger runLogger;
+    private final Path outputPath;
+    private final Overflow overflow;
+    private final Split split;
+    private final Ring ring;
+    private final Thread writer;
+    private final Map<String,Writer> files = new HashMap<>();//guarded by this
+    private volatile boolean closed = false;
+    private volatile boolean parked = false;
+    private boolean filesClosed = false;
+
+    //producers count each message before they check closed and after it is queued, dropped or written
+    private final AtomicLong claimed = new AtomicLong(0);
+    private final AtomicLong published = new AtomicLong(0);
+
+    private final AtomicLong logged = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong blocked = new AtomicLong(0);
+    private final AtomicLong fileErrors = new AtomicLong(0);
+
+    public RunLog(Logger runLogger, String outputPath, int capacity, Overflow overflow, Split split){
+        this.runLogger = runLogger;
+        this.outputPath = outputPath == null ? null : Paths.get(outputPath);
+        this.overflow = overflow;
+        this.split = this.outputPath == null ? Split.NONE : split;
+        this.ring = new Ring(capacity);
+        this.writer = new Thread(this::write, "qdup-run-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public Overflow getOverflow(){return overflow;}
+    public Split getSplit(){return split;}
+    public long getLogged(){return logged.get();}
+    public long getDropped(){return dropped.get();}
+    public long getBlocked(){return blocked.get();}
+
+    public void info(String script, String host, String message, SecretFilter filter){
+        log(Level.INFO, script, host, message, filter, false);
+    }
+    public void error(String script, String host, String message, SecretFilter filter, boolean color){
+        log(Level.ERROR, script, host, message, filter, color);
+    }
+
+    /**
+     * Queue a message for the writer thread. Messages with a script are written as script@host:message
+     * @param host the host for the per host log file, can be null
+     * @param filter the secrets to remove from the message, can be null
+     */
+    public void log(Level level, String script, String host, String message, SecretFilter filter, boolean color){
+        if(!runLogger.isEnabledFor(level)){
+            return;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), level, script, host, message, filter, color);
+        claimed.incrementAndGet();
+        try {
+            if(closed){
+                //the writer is gone or stops once it has every claimed message, write on this thread so late messages are not lost
+                synchronized (this){
+                    dispatch(entry);
+                    flushFiles();
+                }
+                return;
+            }
+            if(!ring.offer(entry)){
+                if(overflow == Overflow.DROP){
+                    dropped.incrementAndGet();
+                    return;
+                }
+                blocked.incrementAndGet();
+                do {
+                    LockSupport.unpark(writer);
+                    LockSupport.parkNanos(FULL_PARK_NS);
+                } while(!ring.offer(entry));
+            }
+        } finally {
+            published.incrementAndGet();
+        }
+        if(parked){
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * @return true once every producer that saw the log open has queued or dropped its message
+     */
+    private boolean isDrained(){
+        //read published first, claimed is never less than published
+        long done = published.get();
+        return done == claimed.get() && ring.isEmpty();
+    }
+
+    private void write(){
+        while(true){
+            Entry entry = ring.poll();
+            if(entry != null){
+                synchronized (this){
+                    do {
+                        dispatch(entry);
+                    } while((entry = ring.poll()) != null);
+                    flushFiles();
+                }
+            }else if(closed){
+                if(isDrained()){
+                    break;
+                }
+                Thread.yield();//a producer has not published its message yet
+            }else{
+                parked = true;
+                if(ring.isEmpty()){
+                    LockSupport.parkNanos(this, IDLE_PARK_NS);
+                }
+                parked = false;
+            }
+        }
+    }
+
+    private String format(Entry entry){
+        String message = entry.filter == null ? entry.message : entry.filter.filter(entry.message);
+        if(entry.script != null){
+            message = entry.script + "@" + entry.host + ":" + message;
+        }
+        if(entry.color){
+            message = AsciiArt.ANSI_RED + message + AsciiArt.ANSI_RESET;
+        }
+        return message;
+    }
+
+    private void dispatch(Entry entry){
+        String message = format(entry);
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), runLogger, entry.level, message, null, null);
+        event.setTimeStamp(entry.timestamp);
+        try {
+            runLogger.callAppenders(event);
+        } catch (RuntimeException e){
+            logger.warn("failed to write run log message", e);
+        }
+        logged.incrementAndGet();
+        if(split != Split.NONE && entry.host != null && !filesClosed){
+            Writer file = file(entry);
+            if(file != null){
+                try {
+                    file.write(DATE_FORMAT.format(Instant.ofEpochMilli(entry.timestamp)));
+                    file.write(' ');
+                    file.write(message);
+                    file.write('\n');
+                } catch (IOException e){
+                    fileErrors.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private Writer file(Entry entry){
+        String key = split == Split.SCRIPT && entry.script != null ? entry.host + "/" + entry.script : entry.host;
+        if(!files.containsKey(key)){
+            Writer file = null;
+            try {
+                Path path = split == Split.SCRIPT && entry.script != null ?
+                    outputPath.resolve(LOG_DIRECTORY).resolve(fileName(entry.host)).resolve(fileName(entry.script) + ".log") :
+                    outputPath.resolve(LOG_DIRECTORY).resolve(fileName(entry.host) + ".log");
+                Files.createDirectories(path.getParent());
+                file = new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+            } catch (IOException e){
+                logger.warn("failed to open log file for {}", key, e);
+                fileErrors.incrementAndGet();
+            }
+            files.put(key, file);
+        }
+        return files.get(key);
+    }
+    private static String fileName(String name){
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private void flushFiles(){
+        for(Writer file : files.values()){
+            if(file != null){
+                try {
+                    file.flush();
+                } catch (IOException e){
+                    fileErrors.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public Json toJson(){
+        Json rtrn = new Json(false);
+        rtrn.set("overflow", overflow.name().toLowerCase());
+        rtrn.set("split", split.name().toLowerCase());
+        rtrn.set("capacity", ring.capacity());
+        rtrn.set("logged", logged.get());
+        rtrn.set("dropped", dropped.get());
+        rtrn.set("blocked", blocked.get());
+        rtrn.set("fileErrors", fileErrors.get());
+        return rtrn;
+    }
+
+    /**
+     * Write the queued messages and stop the writer thread once every producer that saw the log open has published
+     * its message. Later messages are written on the calling thread.
+     */
+    @Override
+    public void close(){
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this){
+            Entry entry;
+            while((entry = ring.poll()) != null){//only if the writer thread was interrupted
+                dispatch(entry);
+            }
+            filesClosed = true;
+            for(Writer file : files.values()){
+                if(file != null){
+                    try {
+                        file.close();
+                    } catch (IOException e){
+                        fileErrors.incrementAndGet();
+                    }
+                }
+            }
+            files.clear();
+        }
+    }
+}
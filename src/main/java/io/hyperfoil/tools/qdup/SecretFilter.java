@@ -1,10 +1,20 @@
 package io.hyperfoil.tools.qdup;
 
+import io.hyperfoil.tools.qdup.stream.MultiStream;
+import io.hyperfoil.tools.qdup.stream.PatternAutomaton;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 public class SecretFilter {
 
@@ -12,29 +22,218 @@ public class SecretFilter {
 
    public static final String REPLACEMENT = "********";
 
+   private static final byte[] REPLACEMENT_BYTES = REPLACEMENT.getBytes(StandardCharsets.UTF_8);
+
+   /**
+    * Replaces the left most, longest secret in the scanned bytes. The scan state is kept between calls to filter
+    * so a secret can be split across several writes to a FilterStream.
+    */
+   private static class Scan {
+      private PatternAutomaton automaton;
+      private int state = PatternAutomaton.ROOT;
+      private int scanIndex = 0;
+      private int matchStart = -1;
+      private int matchLength = 0;
+      private int matches = 0;
+
+      private Scan(PatternAutomaton automaton){
+         this.automaton = automaton;
+      }
+
+      /**
+       * Write the filtered content of b from 0 to end to out
+       * @param last true if no more content will follow b, otherwise any partial secret at the end of b is not written
+       * @return the index of the first byte in b that was not written to out
+       */
+      private int filter(byte[] b, int end, boolean last, OutputStream out) throws IOException {
+         int flushIndex = 0;
+         int index = scanIndex;
+         while(true){
+            if(index < end){
+               state = automaton.step(state, b[index]);
+               index++;
+               int length = automaton.matchLength(state);
+               if(length > 0){
+                  int start = index - length;
+                  if(matchStart < 0 || start < matchStart || (start == matchStart && length > matchLength)){
+                     matchStart = start;
+                     matchLength = length;
+                  }
+               }
+            }
+            //wait until a longer secret cannot start at or before matchStart
+            if(matchStart >= 0 && (index - automaton.depth(state) > matchStart || (index >= end && last))){
+               out.write(b, flushIndex, matchStart - flushIndex);
+               out.write(REPLACEMENT_BYTES);
+               matches++;
+               flushIndex = matchStart + matchLength;
+               index = flushIndex;
+               state = PatternAutomaton.ROOT;
+               matchStart = -1;
+               matchLength = 0;
+            }else if(index >= end){
+               break;
+            }
+         }
+         int hold = last ? end : end - automaton.depth(state);
+         out.write(b, flushIndex, hold - flushIndex);
+         scanIndex = end - hold;
+         if(matchStart >= 0){
+            matchStart -= hold;
+         }
+         return hold;
+      }
+   }
+
+   /**
+    * A MultiStream that replaces secrets before writing to the other streams.
+    * Content that could be the start of a secret is held until it is ruled out or close is called.
+    */
+   public static class FilterStream extends MultiStream {
+
+      private final SecretFilter filter;
+      private Scan scan;
+      private byte[] buffered = new byte[4*1024];
+      private int writeIndex = 0;
+      private final OutputStream downstream = new OutputStream() {
+         @Override
+         public void write(int b) throws IOException {
+            FilterStream.super.write(new byte[]{(byte)b},0,1);
+         }
+         @Override
+         public void write(byte[] b, int off, int len) throws IOException {
+            if(len > 0) {
+               FilterStream.super.write(b, off, len);
+            }
+         }
+      };
+
+      public FilterStream(String name, SecretFilter filter){
+         super(name);
+         this.filter = filter;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+         write(new byte[]{(byte)b},0,1);
+      }
+      @Override
+      public void write(byte[] b) throws IOException {
+         write(b,0,b.length);
+      }
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         if(writeIndex + len > buffered.length){
+            buffered = Arrays.copyOf(buffered, Math.max(buffered.length * 2, writeIndex + len));
+         }
+         System.arraycopy(b, off, buffered, writeIndex, len);
+         writeIndex += len;
+         filter(false);
+      }
+
+      private void filter(boolean last) throws IOException {
+         PatternAutomaton automaton = filter.getAutomaton();
+         if(scan == null || scan.automaton != automaton){//secrets changed, re-scan what is buffered
+            scan = new Scan(automaton);
+         }
+         int written = scan.filter(buffered, writeIndex, last, downstream);
+         if(written > 0){
+            System.arraycopy(buffered, written, buffered, 0, writeIndex - written);
+            writeIndex -= written;
+         }
+      }
+
+      @Override
+      public void close() throws IOException {
+         filter(true);
+         super.close();
+      }
+   }
+
    private Set<String> secrets;
+   private long version = 0;
+   private volatile PatternAutomaton automaton;
 
    public SecretFilter(){
       this.secrets = new HashSet<>();
    }
 
-   public void addSecret(String secret){
-      secrets.add(secret);
+   public synchronized void addSecret(String secret){
+      if(secrets.add(secret)){
+         version++;
+         automaton = null;
+      }
    }
    public void loadSecrets(SecretFilter filter){
-      secrets.addAll(filter.secrets);
+      //copy the other secrets before locking this filter so two filters loading each other cannot deadlock
+      Set<String> toLoad = filter.getSecrets();
+      synchronized (this){
+         if(secrets.addAll(toLoad)){
+            version++;
+            automaton = null;
+         }
+      }
    }
 
-   //This is an easy way to replace a bunch of strings but what is the performance hit?
-   //TODO https://stackoverflow.com/questions/1326682/java-replacing-multiple-different-substring-in-a-string-at-once-or-in-the-most
-   public String filter(String input){
-      String rtrn = input;
-      for(String secret : secrets){
-         rtrn = rtrn.replace(secret,REPLACEMENT);
+   /**
+    * Get the automaton for the current secrets. The automaton is compiled outside the lock and only published
+    * if no secrets were added while it was compiled.
+    */
+   private PatternAutomaton getAutomaton(){
+      PatternAutomaton rtrn = automaton;
+      if(rtrn != null){
+         return rtrn;
+      }
+      List<String> current;
+      long compiledVersion;
+      synchronized (this){
+         current = new ArrayList<>(secrets);
+         compiledVersion = version;
+      }
+      Map<String,byte[]> patterns = new LinkedHashMap<>();
+      for(String secret : current){
+         if(secret != null){
+            patterns.put(secret, secret.getBytes(StandardCharsets.UTF_8));
+         }
+      }
+      rtrn = PatternAutomaton.compile(patterns);
+      synchronized (this){
+         if(version == compiledVersion){
+            automaton = rtrn;
+         }
       }
       return rtrn;
    }
-   public Set<String> getSecrets(){return Collections.unmodifiableSet(secrets);}
-   public int size(){return secrets.size();}
+
+   /**
+    * Replace every secret in the input with REPLACEMENT in a single pass over the input.
+    * Overlapping secrets are replaced left most first, preferring the longest secret that starts at the same index.
+    */
+   public String filter(String input){
+      PatternAutomaton automaton = getAutomaton();
+      if(input == null || input.isEmpty() || automaton.isEmpty()){
+         return input;
+      }
+      byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+      Scan scan = new Scan(automaton);
+      try {
+         scan.filter(bytes, bytes.length, true, out);
+      } catch (IOException e) {
+         //ByteArrayOutputStream does not throw IOException
+      }
+      return scan.matches == 0 ? input : new String(out.toByteArray(), StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Create a stream that replaces secrets in the content it writes to its streams.
+    * The stream uses the current secrets as they are added to this filter.
+    */
+   public FilterStream stream(String name){
+      return new FilterStream(name, this);
+   }
+
+   public synchronized Set<String> getSecrets(){return Collections.unmodifiableSet(new HashSet<>(secrets));}
+   public synchronized int size(){return secrets.size();}
 
 }
@@ -0,0 +1,295 @@
+package io.hyperfoil.tools.qdup;
+
+import org.apache.sshd.client.ClientFactoryManager;
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.future.ConnectFuture;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.PropertyResolverUtils;
+import org.apache.sshd.common.util.GenericUtils;
+import org.apache.sshd.common.util.io.resource.URLResource;
+import org.apache.sshd.common.util.security.SecurityUtils;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run scoped owner of the SshClient shared by all the SshSessions in a Run.
+ * The client (and its NIO worker threads) is started on the first call to getClient and stopped by close.
+ * Authenticated ClientSessions are pooled per host so each SshSession only needs to open a new shell channel.
+ * A ClientSession is shared by at most maxSessions SshSessions to stay under the sshd MaxSessions limit.
+ */
+public class SshConnectionManager {
+
+    private static final XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int DEFAULT_NIO_WORKERS = Runtime.getRuntime().availableProcessors() + 1;
+    public static final int DEFAULT_MAX_SESSIONS = 10; //sshd_config MaxSessions default
+
+    private static class PooledSession {
+        private final String hostKey;
+        //completes with null if the connection failed
+        private final CompletableFuture<ClientSession> connected = new CompletableFuture<>();
+        private volatile ClientSession clientSession;
+        private int leases = 0;
+
+        private PooledSession(String hostKey){
+            this.hostKey = hostKey;
+        }
+        /**
+         * @return true if the session is open or still connecting
+         */
+        public boolean isOpen(){
+            ClientSession session = clientSession;
+            return session == null ? !connected.isDone() : session.isOpen();
+        }
+    }
+
+    /**
+     * Create and configure a new SshClient. The client is not started.
+     * @param nioWorkers number of NIO worker threads for the client
+     * @return the configured SshClient
+     */
+    public static SshClient createClient(int nioWorkers){
+        SshClient rtrn = SshClient.setUpDefaultClient();
+        PropertyResolverUtils.updateProperty(rtrn, ClientFactoryManager.IDLE_TIMEOUT, Long.MAX_VALUE);
+        PropertyResolverUtils.updateProperty(rtrn, ClientFactoryManager.NIO2_READ_TIMEOUT, Long.MAX_VALUE); //so no InterruptedByTimeoutException
+        PropertyResolverUtils.updateProperty(rtrn, ClientFactoryManager.NIO_WORKERS, Math.max(1, nioWorkers));
+        // StrictHostKeyChecking=no
+        rtrn.setServerKeyVerifier((clientSession, remoteAddress, serverKey) -> true);
+        return rtrn;
+    }
+
+    /**
+     * Connect and authenticate a new ClientSession to the host
+     * @param sshClient the started client used to connect
+     * @param host target host
+     * @param identity path to the private key
+     * @param passphrase passphrase for the private key or null
+     * @param timeout connection timeout in seconds
+     * @return the authenticated ClientSession or null if the connection failed
+     * @throws IOException if the connection or authentication failed
+     * @throws GeneralSecurityException if the identity could not be loaded
+     */
+    public static ClientSession connectSession(SshClient sshClient, Host host, String identity, String passphrase, int timeout) throws IOException, GeneralSecurityException {
+        ConnectFuture future = sshClient.connect(host.getUserName(), host.getHostName(), host.getPort());
+        future.await(10, TimeUnit.SECONDS);
+        if(!future.isConnected()){
+            return null;
+        }
+        future = future.verify(timeout * 2_000);
+        future.await(10, TimeUnit.SECONDS);
+        if(!future.isConnected()){
+            return null;
+        }
+        ClientSession clientSession = future.getSession();
+
+        try {
+            URLResource urlResource = new URLResource(Paths.get(identity).toUri().toURL());
+            try (InputStream inputStream = urlResource.openInputStream()) {
+                clientSession.addPublicKeyIdentity(GenericUtils.head(SecurityUtils.loadKeyPairIdentities(
+                        clientSession,
+                        urlResource,
+                        inputStream,
+                        (session, resourceKey, retryIndex) -> passphrase
+                )));
+            }
+            if (host.hasPassword()) {
+                clientSession.addPasswordIdentity(host.getPassword());
+            }
+            clientSession.auth().verify().await(timeout * 1_000);
+            clientSession.waitFor(EnumSet.of(ClientSession.ClientSessionEvent.AUTHED), 0L);
+        } catch (IOException | GeneralSecurityException e) {
+            clientSession.close(true);
+            throw e;
+        }
+        return clientSession;
+    }
+
+    private final int nioWorkers;
+    private final int maxSessions;
+    private SshClient sshClient;
+    private final Map<String,List<PooledSession>> hostSessions;
+    private final Map<ClientSession,PooledSession> pooledSessions;
+    private final AtomicInteger connectCount;
+
+    public SshConnectionManager(){
+        this(DEFAULT_NIO_WORKERS);
+    }
+    public SshConnectionManager(int nioWorkers){
+        this(nioWorkers, DEFAULT_MAX_SESSIONS);
+    }
+    public SshConnectionManager(int nioWorkers, int maxSessions){
+        this.nioWorkers = nioWorkers > 0 ? nioWorkers : DEFAULT_NIO_WORKERS;
+        this.maxSessions = maxSessions > 0 ? maxSessions : DEFAULT_MAX_SESSIONS;
+        this.hostSessions = new ConcurrentHashMap<>();
+        this.pooledSessions = new ConcurrentHashMap<>();
+        this.connectCount = new AtomicInteger(0);
+    }
+
+    public int getNioWorkers(){return nioWorkers;}
+    public int getMaxSessions(){return maxSessions;}
+
+    /**
+     * @return the number of ssh connections (key exchange + authentication) opened by this manager
+     */
+    public int getConnectCount(){return connectCount.get();}
+
+    public synchronized boolean isStarted(){
+        return sshClient != null && sshClient.isStarted();
+    }
+
+    /**
+     * Get the shared SshClient, starting a new client if one is not already running
+     * @return the started SshClient
+     */
+    public synchronized SshClient getClient(){
+        if(sshClient == null || !sshClient.isStarted()){
+            logger.debug("starting shared ssh client with {} nio workers", nioWorkers);
+            sshClient = createClient(nioWorkers);
+            sshClient.start();
+        }
+        return sshClient;
+    }
+
+    /**
+     * Get an authenticated ClientSession for the host. Re-uses an open ClientSession to the host if one has
+     * fewer than maxSessions leases, otherwise connects a new ClientSession.
+     * The lease is reserved under the host lock but the connection is made outside of it so connections to the same
+     * host run in parallel. Callers that lease a session that is still connecting wait for that connection.
+     * Each call must be matched with a call to releaseSession.
+     * @return the authenticated ClientSession or null if the connection failed
+     */
+    public ClientSession acquireSession(Host host, String identity, String passphrase, int timeout) throws IOException, GeneralSecurityException {
+        String hostKey = host.toString();
+        List<PooledSession> sessions = hostSessions.computeIfAbsent(hostKey, (key) -> new LinkedList<>());
+        PooledSession target = null;
+        boolean connect = false;
+        synchronized (sessions){
+            for(Iterator<PooledSession> iter = sessions.iterator(); iter.hasNext();){
+                PooledSession pooled = iter.next();
+                if(!pooled.isOpen()){
+                    iter.remove();
+                    if(pooled.clientSession != null){
+                        pooledSessions.remove(pooled.clientSession);
+                    }
+                }else if(target == null && pooled.leases < maxSessions){
+                    target = pooled;
+                }
+            }
+            if(target == null){
+                target = new PooledSession(hostKey);
+                sessions.add(target);
+                connect = true;
+            }
+            target.leases++;
+        }
+        if(connect){
+            return connect(sessions, target, host, identity, passphrase, timeout);
+        }
+        try {
+            return target.connected.get();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            synchronized (sessions){
+                target.leases--;
+            }
+            return null;
+        } catch (ExecutionException e){
+            throw new IOException("failed to connect to "+host.getSafeString(), e.getCause());
+        }
+    }
+
+    private ClientSession connect(List<PooledSession> sessions, PooledSession target, Host host, String identity, String passphrase, int timeout) throws IOException, GeneralSecurityException {
+        ClientSession clientSession = null;
+        try {
+            clientSession = connectSession(getClient(), host, identity, passphrase, timeout);
+        } catch (IOException | GeneralSecurityException | RuntimeException e){
+            synchronized (sessions){
+                sessions.remove(target);
+            }
+            target.connected.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (sessions){
+            if(clientSession == null || !sessions.contains(target)){
+                //failed or the manager was closed while connecting
+                sessions.remove(target);
+                if(clientSession != null){
+                    clientSession.close(true);
+                    clientSession = null;
+                }
+            }else{
+                connectCount.incrementAndGet();
+                logger.debug("connected ssh session {} to {}", sessions.size(), host.getSafeString());
+                target.clientSession = clientSession;
+                pooledSessions.put(clientSession, target);
+            }
+        }
+        target.connected.complete(clientSession);
+        return clientSession;
+    }
+
+    /**
+     * Return a ClientSession from acquireSession. The ClientSession stays open for use by subsequent SshSessions
+     * until the manager is closed.
+     */
+    public void releaseSession(ClientSession clientSession){
+        if(clientSession == null){
+            return;
+        }
+        PooledSession pooled = pooledSessions.get(clientSession);
+        if(pooled == null){
+            //no longer tracked, most likely the session was closed and removed by acquireSession
+            return;
+        }
+        List<PooledSession> sessions = hostSessions.get(pooled.hostKey);
+        if(sessions == null){
+            return;
+        }
+        synchronized (sessions){
+            if(pooled.leases > 0){
+                pooled.leases--;
+            }
+            if(!pooled.isOpen()){
+                sessions.remove(pooled);
+                pooledSessions.remove(clientSession);
+            }
+        }
+    }
+
+    public synchronized void close(){
+        hostSessions.values().forEach(sessions -> {
+            synchronized (sessions){
+                sessions.forEach(pooled -> {
+                    if(pooled.clientSession != null && pooled.isOpen()){
+                        pooled.clientSession.close(true);
+                    }
+                });
+                sessions.clear();
+            }
+        });
+        hostSessions.clear();
+        pooledSessions.clear();
+        if(sshClient != null){
+            if(sshClient.isStarted()){
+                sshClient.stop();
+            }
+            sshClient = null;
+        }
+    }
+}
@@ -3,38 +3,34 @@ package io.hyperfoil.tools.qdup;
 
 import io.hyperfoil.tools.qdup.config.RunConfigBuilder;
 import io.hyperfoil.tools.qdup.stream.MultiStream;
+import io.hyperfoil.tools.qdup.stream.OutputSequence;
 import io.hyperfoil.tools.qdup.stream.SessionStreams;
+import io.hyperfoil.tools.qdup.stream.SpillingOutputStream;
 import io.hyperfoil.tools.yaup.AsciiArt;
-import org.apache.sshd.client.ClientFactoryManager;
 import org.apache.sshd.client.SshClient;
 import org.apache.sshd.client.channel.ChannelExec;
 import org.apache.sshd.client.channel.ChannelShell;
 import org.apache.sshd.client.channel.ClientChannelEvent;
-import org.apache.sshd.client.future.ConnectFuture;
 import org.apache.sshd.client.session.ClientSession;
-import org.apache.sshd.common.PropertyResolverUtils;
 import org.apache.sshd.common.channel.Channel;
 import org.apache.sshd.common.channel.ChannelListener;
 import org.apache.sshd.common.channel.PtyMode;
-import org.apache.sshd.common.kex.KexProposalOption;
-import org.apache.sshd.common.session.Session;
-import org.apache.sshd.common.session.SessionListener;
-import org.apache.sshd.common.util.GenericUtils;
-import org.apache.sshd.common.util.io.resource.URLResource;
-import org.apache.sshd.common.util.security.SecurityUtils;
+import org.apache.sshd.common.session.ConnectionService;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
 import java.io.*;
 import java.lang.invoke.MethodHandles;
-import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.StampedLock;
@@ -56,6 +52,7 @@ public class SshSession {
     private final static AtomicReferenceFieldUpdater<SshSession,ShAction> actionUpdater = AtomicReferenceFieldUpdater.newUpdater(SshSession.class, ShAction.class,"currentAction");
     public static final int MAX_RECONNECT_ATTEMPTS = 10;
     public static final int RECONNECT_RETRY_DELAY = 10_000;
+    public static final int MAX_SPILLED_OUTPUTS = 8;
 
     public String getLastCommand() {
         return lastCommand;
@@ -68,6 +65,69 @@ public class SshSession {
     private static final String SH_CALLBACK = "qdup-sh-callback";
     private static final String SH_BLOCK_CALLBACK = "qdup-sh-block-callback";
 
+    /**
+     * A shell channel that can stop the remote from sending more output. The bytes written to out or err are normally
+     * returned to the local window right away, while output is paused they are held back so the remote stops sending
+     * once it used up the window and the ssh IO thread never has to wait for the consumers of the output.
+     */
+    private static class FlowControlShell extends ChannelShell {
+
+        private final Object flowLock = new Object();
+        private boolean paused = false;
+        private long held = 0;
+
+        public FlowControlShell() {
+            super(null, Collections.emptyMap());
+        }
+
+        public void pause() {
+            synchronized (flowLock) {
+                paused = true;
+            }
+        }
+
+        public void resume() throws IOException {
+            long release;
+            synchronized (flowLock) {
+                paused = false;
+                release = held;
+                held = 0;
+            }
+            if (release > 0) {
+                getLocalWindow().consumeAndCheck(release);
+            }
+        }
+
+        @Override
+        protected void doWriteData(byte[] data, int off, long len) throws IOException {
+            write(out, data, off, len);
+        }
+
+        @Override
+        protected void doWriteExtendedData(byte[] data, int off, long len) throws IOException {
+            write(err, data, off, len);
+        }
+
+        //same as AbstractClientChannel without async streams, except for the window while paused
+        private void write(OutputStream stream, byte[] data, int off, long len) throws IOException {
+            if (isClosing()) {
+                return;
+            }
+            if (stream == null) {
+                throw new IllegalStateException("No output stream for channel");
+            }
+            stream.write(data, off, (int) len);
+            stream.flush();
+            synchronized (flowLock) {
+                if (paused) {
+                    held += len;
+                    return;
+                }
+            }
+            getLocalWindow().consumeAndCheck(len);
+        }
+    }
+
     private static class ExecWatcher implements ChannelListener {
 
         Consumer<String> callback;
@@ -180,6 +240,19 @@ public class SshSession {
         }
     }
 
+    /**
+     * Output that exceeded the memory limit. Commands receive the preview and the sequence is released once it is evicted.
+     */
+    private static class SpilledOutput {
+        private final String preview;
+        private final OutputSequence sequence;
+
+        private SpilledOutput(String preview, OutputSequence sequence){
+            this.preview = preview;
+            this.sequence = sequence;
+        }
+    }
+
     private static class ShAction {
         private final String command;
         private final boolean acquireLock;
@@ -215,10 +288,15 @@ public class SshSession {
     private static final XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
 
     public static final String PROMPT = "<_#%@_qdup_@%#_> "; // a string unlikely to appear in the output of any command
+    public static final String EXIT_CODE_PREFIX = "<_#%@_qdup_ec="; // precedes $? in PS1 so the exit code arrives with the PROMPT
+    public static final String NONCE_PREFIX = "<_#%@_qdup_n="; // precedes the command nonce in PS1 so the PROMPT that ends each command is unique
+    public static final String NONCE_VARIABLE = "__qdup_n";
+    public static final String EXIT_CODE_VARIABLE = "__qdup_ec";
 
     private SshClient sshClient;
+    private SshConnectionManager connectionManager;
     private ClientSession clientSession;
-    private ChannelShell channelShell;
+    private FlowControlShell channelShell;
 
     //private Properties sshConfig;
     private PrintStream commandStream;
@@ -244,6 +322,14 @@ public class SshSession {
 
     private String name = "";
     private String lastCommand = "";
+    private volatile String exitCode = "";
+    private final AtomicLong nonce = new AtomicLong();
+    private volatile boolean nonceReady = false;
+    private long outputMemoryLimit = SpillingOutputStream.DEFAULT_MEMORY_LIMIT;
+    private final LinkedList<SpilledOutput> spilledOutputs = new LinkedList<>();
+    private volatile OutputSequence outputSequence;
+    //not synchronized so reading a spilled file does not pin a virtual thread
+    private final ReentrantLock spilledLock = new ReentrantLock();
 
     private volatile Status status = Status.Initializing;
     private volatile ShAction currentAction = null;
@@ -256,8 +342,13 @@ public class SshSession {
     }
 
     public SshSession(Host host, String knownHosts, String identity, String passphrase, int timeout, String setupCommand, ScheduledThreadPoolExecutor executor, boolean trace) {
+        this(host, knownHosts, identity, passphrase, timeout, setupCommand, executor, null, trace);
+    }
+
+    public SshSession(Host host, String knownHosts, String identity, String passphrase, int timeout, String setupCommand, ScheduledThreadPoolExecutor executor, SshConnectionManager connectionManager, boolean trace) {
 
         this.host = host;
+        this.connectionManager = connectionManager;
         this.name = host != null ? host.toString() : "null";
         this.knownHosts = knownHosts;
         this.identity = identity;
@@ -306,7 +397,9 @@ public class SshSession {
         }
     }
     public SshSession openCopy() {
-        return new SshSession(host, knownHosts, identity, passphrase, timeout, setupCommand, executor, trace);
+        SshSession copy = new SshSession(host, knownHosts, identity, passphrase, timeout, setupCommand, executor, connectionManager, trace);
+        copy.setOutputMemoryLimit(outputMemoryLimit);
+        return copy;
     }
 
     public void addLineObserver(String name, Consumer<String> consumer) {
@@ -360,15 +453,60 @@ public class SshSession {
         if(flush){
             sessionStreams.flushBuffer();
         }
+        if(sessionStreams.isOutputSpilled()){
+            OutputSequence sequence = sessionStreams.currentOutputSequence();
+            String preview = getSpilledPreview(sequence);
+            outputSequence = sequence;
+            return preview;
+        }
+        outputSequence = null;
         String streamString = sessionStreams.currentOutput();
 
-        String output = streamString
-                .replaceAll("^[\r\n]+", "")  //replace leading newlines
-                .replaceAll("[\r\n]+$", "") //replace trailing newlines
-                .replaceAll("\r\n", "\n"); //change \r\n to just \n
+        String output = SpillingOutputStream.trimOutput(streamString);
         return output;
     }
 
+    private String getSpilledPreview(OutputSequence sequence){
+        spilledLock.lock();
+        try {
+            for(SpilledOutput spilled : spilledOutputs){
+                if(spilled.sequence == sequence){
+                    return spilled.preview;
+                }
+            }
+            String preview = sequence.tail((int)Math.min(Integer.MAX_VALUE - 8, outputMemoryLimit));
+            logger.info("{} output of {} is {} bytes, keeping the last {} characters in memory", getName(), lastCommand, sequence.getByteSize(), preview.length());
+            spilledOutputs.add(new SpilledOutput(preview, sequence));
+            while(spilledOutputs.size() > MAX_SPILLED_OUTPUTS){
+                spilledOutputs.removeFirst().sequence.release();
+            }
+            return preview;
+        } finally {
+            spilledLock.unlock();
+        }
+    }
+
+    /**
+     * Get the full output of the last getShOutput when it exceeded the memory limit.
+     * The sequence stays readable until it is one of more than MAX_SPILLED_OUTPUTS or the session closes.
+     * @return a file backed sequence or null if the output was kept in memory
+     */
+    public OutputSequence getOutputSequence(){
+        return outputSequence;
+    }
+
+    /**
+     * Set the number of bytes of command output to keep in memory before the output is written to a temporary file.
+     * A limit of 0 or less keeps all output in memory.
+     */
+    public void setOutputMemoryLimit(long outputMemoryLimit){
+        this.outputMemoryLimit = outputMemoryLimit;
+        if(sessionStreams != null){
+            sessionStreams.setOutputMemoryLimit(outputMemoryLimit);
+        }
+    }
+    public long getOutputMemoryLimit(){return outputMemoryLimit;}
+
     public boolean connect(long timeoutMillis, String setupCommand, boolean trace) {
         Status previousStatus = status;
         if (isOpen()) {
@@ -378,10 +516,14 @@ public class SshSession {
         boolean rtrn = false;
         try {
             if(Status.Disconnected.equals(previousStatus)){
-                if(sshClient != null && sshClient.isStarted()){
+                if(!usesSharedClient() && sshClient != null && sshClient.isStarted()){
                     sshClient.stop();
                 }
-                if(clientSession!=null && clientSession.isOpen()){
+                if(usesSharedClient()){
+                    //the connection is shared with other sessions, let the manager decide when to close it
+                    connectionManager.releaseSession(clientSession);
+                    clientSession = null;
+                }else if(clientSession!=null && clientSession.isOpen()){
                     clientSession.close(true);
                     clientSession.waitFor(EnumSet.of(ClientSession.ClientSessionEvent.CLOSED),0L);
                 }
@@ -390,107 +532,18 @@ public class SshSession {
                     channelShell.waitFor(EnumSet.of(ClientChannelEvent.CLOSED),0L);
                 }
             }
-            sshClient = SshClient.setUpDefaultClient();
-//            sshClient.addSessionListener(new SessionListener() {
-//                @Override
-//                public void sessionEstablished(Session session) {
-//                }
-//
-//                @Override
-//                public void sessionCreated(Session session) {
-//                }
-//
-//                @Override
-//                public void sessionDisconnect(Session session, int reason, String msg, String language, boolean initiator) {
-//                }
-//
-//                @Override
-//                public void sessionClosed(Session session) {
-//                }
-//            });
-            PropertyResolverUtils.updateProperty(sshClient, ClientFactoryManager.IDLE_TIMEOUT, Long.MAX_VALUE);
-            PropertyResolverUtils.updateProperty(sshClient, ClientFactoryManager.NIO2_READ_TIMEOUT, Long.MAX_VALUE); //so no InterruptedByTimeoutException
-            PropertyResolverUtils.updateProperty(sshClient, ClientFactoryManager.NIO_WORKERS, 1);
-            // StrictHostKeyChecking=no
-            //        sshConfig = new Properties();
-            //        sshConfig.put("StrictHostKeyChecking", "no");
-            sshClient.setServerKeyVerifier((clientSession1, remoteAddress, serverKey) -> {
-                return true;
-            });
-            sshClient.start();
-
-            ConnectFuture future = sshClient.connect(host.getUserName(), host.getHostName(), host.getPort());
-            future.await(10,TimeUnit.SECONDS);
-            if(!future.isConnected()){
-                return false;
+            if(usesSharedClient()){
+                sshClient = connectionManager.getClient();
+                //re-use an authenticated connection to the host and only open a new shell channel
+                clientSession = connectionManager.acquireSession(host, identity, passphrase, this.timeout);
+            }else{
+                sshClient = SshConnectionManager.createClient(1);
+                sshClient.start();
+                clientSession = SshConnectionManager.connectSession(sshClient, host, identity, passphrase, this.timeout);
             }
-            future = future.verify(this.timeout * 2_000);
-            future.await(10,TimeUnit.SECONDS);
-            if(!future.isConnected()){
+            if(clientSession == null){
                 return false;
             }
-            clientSession = future.getSession();
-            clientSession.addSessionListener(new SessionListener() {
-                @Override
-                public void sessionEstablished(Session session) {
-
-                }
-
-                @Override
-                public void sessionCreated(Session session) {
-
-                }
-
-                @Override
-                public void sessionPeerIdentificationReceived(Session session, String version, List<String> extraLines) {
-
-                }
-
-                @Override
-                public void sessionNegotiationStart(Session session, Map<KexProposalOption, String> clientProposal, Map<KexProposalOption, String> serverProposal) {
-
-                }
-
-                @Override
-                public void sessionNegotiationEnd(Session session, Map<KexProposalOption, String> clientProposal, Map<KexProposalOption, String> serverProposal, Map<KexProposalOption, String> negotiatedOptions, Throwable reason) {
-
-                }
-
-                @Override
-                public void sessionEvent(Session session, Event event) {
-
-                }
-
-                @Override
-                public void sessionException(Session session, Throwable t) {
-                }
-
-                @Override
-                public void sessionDisconnect(Session session, int reason, String msg, String language, boolean initiator) {
-
-                }
-
-                @Override
-                public void sessionClosed(Session session) {
-
-                }
-            });
-
-            URLResource urlResource = new URLResource(Paths.get(identity).toUri().toURL());
-            try (InputStream inputStream = urlResource.openInputStream()) {
-                clientSession.addPublicKeyIdentity(GenericUtils.head(SecurityUtils.loadKeyPairIdentities(
-                        clientSession,
-                        urlResource,
-                        inputStream,
-                        (session, resourceKey, retryIndex) -> passphrase
-                )));
-            }
-            if (host.hasPassword()) {
-                clientSession.addPasswordIdentity(host.getPassword());
-            }
-            //clientSession.auth().verify(this.timeout * 1_000);
-            boolean sessionResponse = clientSession.auth().verify().await(this.timeout * 1_000);
-            clientSession.waitFor(EnumSet.of(ClientSession.ClientSessionEvent.AUTHED), 0L);
 
             //setup all the streams
             //the output of the current sh command
@@ -498,8 +551,12 @@ public class SshSession {
                 sessionStreams.close();
             }
             sessionStreams = new SessionStreams(getName(), executor);
+            sessionStreams.setOutputMemoryLimit(outputMemoryLimit);
             semaphoreCallback = (name) -> {
                 String output = getShOutput(true);
+                exitCode = sessionStreams.getExitCode();
+                //only prefix the next command with a nonce when the shell is at our PS1 (not psql, a nested shell, etc.)
+                nonceReady = sessionStreams.getLastNonce() != null;
                 //TODO use atomic boolean to set expecting response and check for true bfore release?
                 if(permits() == 0) {
                     shellLock.release();
@@ -521,9 +578,13 @@ public class SshSession {
                 }
             };
             sessionStreams.addPrompt(PROMPT, PROMPT, "");
+            sessionStreams.setExitCodePrefix(EXIT_CODE_PREFIX);
+            sessionStreams.setNoncePrefix(NONCE_PREFIX);
+            nonceReady = false;
             sessionStreams.addPromptCallback(this.semaphoreCallback);
 
-            channelShell = clientSession.createShellChannel();
+            channelShell = new FlowControlShell();
+            clientSession.getService(ConnectionService.class).registerChannel(channelShell);
             channelShell.getPtyModes().put(PtyMode.ECHO, 1);//need echo for \n from real SH but adds gargage chars for test :(
             channelShell.setPtyType("vt100"); // channelShell.setPtyType("xterm");
             channelShell.setPtyColumns(10 * 1024);//hack to get around " \r" when line is longer than shell width
@@ -546,7 +607,7 @@ public class SshSession {
                 channelShell.open().verify().isOpened();
             }
             commandStream = new PrintStream(channelShell.getInvertedIn());
-            shConnecting("unset PROMPT_COMMAND; export PS1='" + PROMPT + "'; set +o history; export HISTCONTROL=\"ignoreboth\"");
+            shConnecting("unset PROMPT_COMMAND; export PS1='" + EXIT_CODE_PREFIX + "$?" + NONCE_PREFIX + "${" + NONCE_VARIABLE + "}" + PROMPT + "'; set +o history; export HISTCONTROL=\"ignoreboth\"");
             if (setupCommand != null && !setupCommand.trim().isEmpty()) {
                 shConnecting(setupCommand);
             } else {
@@ -615,6 +676,9 @@ public class SshSession {
             sessionStreams.setTrace(path);
         }
     }
+    public boolean usesSharedClient(){
+        return connectionManager != null;
+    }
     public boolean isOpen() {
         boolean rtrn = channelShell != null && channelShell.isOpen() && clientSession != null && clientSession.isOpen();
 
@@ -624,6 +688,14 @@ public class SshSession {
         return sessionStreams.getDelay() > 0;
     }
 
+    /**
+     * Get the exit code of the last command as reported by the PROMPT.
+     * @return the exit code or an empty string if the last prompt did not include an exit code (e.g. PS1 was changed)
+     */
+    public String getExitCode(){
+        return exitCode;
+    }
+
     public void flushAndResetBuffer(){
         try {
             sessionStreams.flush(); //to remove any motd that may be in the stream
@@ -648,6 +720,27 @@ public class SshSession {
     protected int ctrlInt(char key) {
         return (Character.toUpperCase(key) & 0x1f);
     }
+    /**
+     * Stop reading output from the shell until resumeOutput. The output already sent by the remote still arrives.
+     */
+    public void pauseOutput() {
+        FlowControlShell shell = channelShell;
+        if (shell != null) {
+            shell.pause();
+        }
+    }
+
+    public void resumeOutput() {
+        FlowControlShell shell = channelShell;
+        if (shell != null) {
+            try {
+                shell.resume();
+            } catch (IOException e) {
+                logger.error("failed to resume the output of " + getName(), e);
+            }
+        }
+    }
+
     public void ctrlC() {
         ctrl('C'); //SIGINT
     }
@@ -809,6 +902,16 @@ public class SshSession {
             }
             boolean sendCommand = ensureConnected();
             if (sendCommand) {
+                //each line of a multi-line command ends with a PROMPT so only a single line can use the nonce, the others wait for the delay
+                if (nonceReady && !command.isEmpty() && command.indexOf('\n') < 0 && command.indexOf('\r') < 0) {
+                    //the PROMPT with this nonce can only come from the end of this command so the SuffixStream does not wait for more output
+                    String commandNonce = Long.toString(nonce.incrementAndGet());
+                    //setting the nonce resets $? so keep the exit code of the previous command for this one
+                    command = EXIT_CODE_VARIABLE + "=$?; " + NONCE_VARIABLE + "=" + commandNonce + "; (exit $" + EXIT_CODE_VARIABLE + "); " + command;
+                    sessionStreams.expectNonce(commandNonce);
+                } else {
+                    sessionStreams.expectNonce(null);
+                }
                 if (!command.isEmpty()) {
                     // race between this and FilteredStream.write before we changed FilterStream to copy the keys into a new Set
                     // Are we releasing the lock too soon in the stream chain?
@@ -833,17 +936,15 @@ public class SshSession {
 
         if (Status.Disconnected.equals(status)){
                 //connectingSemaphore.acquire();
+                //the write lock is exclusive, a monitor around reconnect would pin a virtual thread to its carrier
                 long lock = connectingLock.writeLock();
-                synchronized (this) {
-                        try {
-                            if (Status.Disconnected.equals(status)) { //double check status before proceeding with
-                                rtrn = reconnect();
-                            }
-                        } finally {
-                            //connectingSemaphore.release();
-                            connectingLock.unlockWrite(lock);
-                        }
-
+                try {
+                    if (Status.Disconnected.equals(status)) { //double check status before proceeding with
+                        rtrn = reconnect();
+                    }
+                } finally {
+                    //connectingSemaphore.release();
+                    connectingLock.unlockWrite(lock);
                 }
 
         }
@@ -951,10 +1052,23 @@ public class SshSession {
                 statusUpdater.set(this,Status.Closing);
                 sessionStreams.close();
                 channelShell.close();
-                clientSession.close();
-                sshClient.stop();
+                if(usesSharedClient()){
+                    connectionManager.releaseSession(clientSession);
+                    clientSession = null;
+                }else{
+                    clientSession.close();
+                    sshClient.stop();
+                }
             } catch (IOException e) {
             }
         }
+        spilledLock.lock();
+        try {
+            spilledOutputs.forEach(spilled -> spilled.sequence.release());
+            outputSequence = null;
+            spilledOutputs.clear();
+        } finally {
+            spilledLock.unlock();
+        }
     }
 }
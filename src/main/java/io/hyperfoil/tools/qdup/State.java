@@ -6,6 +6,7 @@ import io.hyperfoil.tools.yaup.json.Json;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -23,6 +24,10 @@ import java.util.regex.Pattern;
  *     All KEY's will match the prefix check so no set(KEY,VALUE) operations will modify a parent State.
  *   A State with a null prefix will never match a prefix check so it becomes read only from a child perspective but the parents are still mutable.
  *
+ * Lookups of simple keys (see KeyPath) are cached per State. Each State has a version that changes when one of its
+ * keys changes and a cached lookup is only used while the versions of the State and its parents are unchanged.
+ *
+ * Changes to the root State and its named children are recorded in the StateJournal of the root State, if it has one.
  */
 public class State {
 
@@ -33,12 +38,29 @@ public class State {
     public static final String RUN_PREFIX = "RUN"+CHILD_DELIMINATOR;
     public static final String HOST_PREFIX = "HOST"+CHILD_DELIMINATOR;
 
+    public static final int MAX_CACHED_LOOKUPS = 1024;
+
+    private static class Lookup {
+        private final long stamp;
+        private final Object value;
+
+        private Lookup(long stamp, Object value){
+            this.stamp = stamp;
+            this.value = value;
+        }
+    }
 
     private State parent;
+    private final String name;
     private Json json;
     private Map<String,State> childStates;
     private String prefix;
     private SecretFilter secretFilter;
+    private final AtomicLong version = new AtomicLong(0);
+    private final Map<String,Lookup> getCache = new ConcurrentHashMap<>();
+    private final Map<String,Lookup> hasCache = new ConcurrentHashMap<>();
+    private volatile StateJournal journal;
+    private volatile List<String> journalPath;
 
     public static class CmdState extends State {
         private final Cmd cmd;
@@ -101,14 +123,15 @@ public class State {
     State parent(){return parent;}
 
     public State(String prefix){
-        this(null,new SecretFilter(),prefix);
+        this(null,new SecretFilter(),null,prefix);
     }
     public State(State parent,String prefix){
         //assert  parent != null;
-        this(parent,parent.secretFilter,prefix);
+        this(parent,parent.secretFilter,null,prefix);
     }
-    private State(State parent, SecretFilter filter, String prefix){
+    private State(State parent, SecretFilter filter, String name, String prefix){
         this.parent = parent;
+        this.name = name;
         this.secretFilter = filter;
         this.json = new Json();
         this.childStates = new ConcurrentHashMap<>();
@@ -117,13 +140,108 @@ public class State {
 
     public SecretFilter getSecretFilter(){return secretFilter;}
 
+    public void setJournal(StateJournal journal){
+        rootState().journal = journal;
+    }
+    public StateJournal getJournal(){
+        return rootState().journal;
+    }
+
+    /**
+     * @return the child names from the root State to this State or null if this is not a child added with addChild
+     */
+    private List<String> journalPath(){
+        List<String> rtrn = journalPath;
+        if(rtrn == null){
+            LinkedList<String> path = new LinkedList<>();
+            State target = this;
+            while(target.parent != null){
+                if(target.name == null){
+                    return null;
+                }
+                path.addFirst(target.name);
+                target = target.parent;
+            }
+            rtrn = Collections.unmodifiableList(new ArrayList<>(path));
+            journalPath = rtrn;
+        }
+        return rtrn;
+    }
+    /**
+     * Run the change to set key, with the journal record if this State is journaled
+     */
+    private void journalSet(String key,Object value,Runnable change){
+        StateJournal journal = getJournal();
+        List<String> path = journal == null ? null : journalPath();
+        if(path == null){
+            change.run();
+        }else{
+            journal.set(path,key,value,change);
+        }
+    }
+    private void journalRemove(String key,Runnable change){
+        StateJournal journal = getJournal();
+        List<String> path = journal == null ? null : journalPath();
+        if(path == null){
+            change.run();
+        }else{
+            journal.remove(path,key,change);
+        }
+    }
+    private void setOwn(String key,Object value){
+        journalSet(key,value,()->{
+            //use chain set to break .'s into child objects
+            Json.chainSet(json,key,value);
+            changed();
+        });
+    }
+    private void removeOwn(String key){
+        journalRemove(key,()->{
+            json.remove(key);
+            changed();
+        });
+    }
+
+    /**
+     * @return a number that changes whenever a key changes in this State
+     */
+    public long getVersion(){return version.get();}
+
+    /**
+     * Must be called after the change so a lookup cannot cache the previous value with the new version
+     */
+    private void changed(){
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return the sum of the versions of this State and its parents. The sum increases whenever any of them changes
+     */
+    private long stamp(){
+        long rtrn = 0;
+        State target = this;
+        do {
+            rtrn += target.version.get();
+        } while ( (target = target.parent) != null);
+        return rtrn;
+    }
+
+    private static void cache(Map<String,Lookup> cache, String key, Lookup lookup){
+        if(cache.size() >= MAX_CACHED_LOOKUPS){
+            cache.clear();
+        }
+        cache.put(key,lookup);
+    }
+
     public void merge(State state){
         if(this.prefix == state.prefix){
             state.getKeys().forEach(key->{
                 if(!this.json.has(key)){
-                    this.json.set(key,state.get(key));
+                    Object value = state.get(key);
+                    journalSet(key,value,()->this.json.set(key,value));
                 }
             });
+            changed();
             state.getChildNames().forEach(childName->{
                 State childState = state.getChild(childName);
                 addChild(childName,childState.prefix).merge(childState);
@@ -179,7 +297,7 @@ public class State {
         return addChild(name,prefix);//default to creating a new CHILD
     }
     public State addChild(String name,String prefix){
-        childStates.putIfAbsent(name,new State(this,prefix));
+        childStates.putIfAbsent(name,new State(this,secretFilter,name,prefix));
         return childStates.get(name);
     }
     public void set(String key,Object value){
@@ -194,8 +312,7 @@ public class State {
         do {
             if(target.prefix!=null && key.startsWith(target.prefix)){
                 String newKey = key.substring(target.prefix.length());
-                        //use chain set to break .'s into child objects
-                Json.chainSet(target.json,newKey,value);
+                target.setOwn(newKey,value);
                 return;
             }
         } while( (target=target.parent)!=null );
@@ -210,7 +327,7 @@ public class State {
             }
         }
         //at this point there wasn't a prefix match
-        Json.chainSet(this.json,key,value);
+        setOwn(key,value);
     }
     public void set(Json json){
         for(Object key : json.keys()){
@@ -229,6 +346,19 @@ public class State {
         if(key==null){
             return false;
         }
+        if(!KeyPath.isSimple(key)){
+            return findHas(key);
+        }
+        long stamp = stamp();
+        Lookup cached = hasCache.get(key);
+        if(cached != null && cached.stamp == stamp){
+            return (Boolean)cached.value;
+        }
+        boolean rtrn = findHas(key);
+        cache(hasCache,key,new Lookup(stamp,rtrn));
+        return rtrn;
+    }
+    private boolean findHas(String key){
         boolean rtrn = false;
         State target = this;
         String currentKey = key;//once we remove the prefixes it can match any scope above the current scope
@@ -236,7 +366,7 @@ public class State {
             if(target.prefix!=null && currentKey.startsWith(target.prefix)){
                 currentKey = currentKey.substring(target.prefix.length());
             }
-            rtrn = target.json.has(currentKey) || Json.find(target.json,currentKey.startsWith("$") ? currentKey : "$." + currentKey)!=null;
+            rtrn = KeyPath.get(currentKey).has(target.json);
             target = target.parent;
         }
         return rtrn;
@@ -251,7 +381,7 @@ public class State {
                 currentKey = currentKey.substring(target.prefix.length());
                 if(target.json.has(currentKey)){
                     rtrn = true;
-                    target.json.remove(currentKey);
+                    target.removeOwn(currentKey);
                 }
             }
         }while((target=target.parent)!=null && !rtrn);
@@ -259,12 +389,25 @@ public class State {
         if(!rtrn){
             if(this.json.has(key)){
                 rtrn = true;
-                this.json.remove(key);
+                removeOwn(key);
             }
         }
         return rtrn;
     }
     public Object get(String key){
+        if(!KeyPath.isSimple(key)){
+            return find(key);
+        }
+        long stamp = stamp();
+        Lookup cached = getCache.get(key);
+        if(cached != null && cached.stamp == stamp){
+            return cached.value;
+        }
+        Object rtrn = find(key);
+        cache(getCache,key,new Lookup(stamp,rtrn));
+        return rtrn;
+    }
+    private Object find(String key){
         State target = this;
         Object rtrn = null;
         String currentKey = key;
@@ -272,8 +415,7 @@ public class State {
         do {
             if(target.prefix!=null && currentKey.startsWith(target.prefix)){
                 currentKey = currentKey.substring(target.prefix.length());
-                String searchKey = currentKey.startsWith("$") ? currentKey : "$."+currentKey;
-                rtrn = target.json.has(currentKey) ? target.json.get(currentKey) : Json.find(target.json,searchKey);
+                rtrn = KeyPath.get(currentKey).find(target.json);
             }
         }while( (target=target.parent)!=null && rtrn==null);
 
@@ -285,7 +427,7 @@ public class State {
                 if(target.prefix!=null && currentKey.startsWith(target.prefix)){
                     currentKey = currentKey.substring(target.prefix.length());
                 }
-                rtrn = target.json.has(currentKey) ? target.json.get(currentKey) : Json.find(target.json,currentKey.startsWith("$") ? currentKey : "$."+currentKey);
+                rtrn = KeyPath.get(currentKey).find(target.json);
             } while (rtrn == null && (target = target.parent) != null);
         }
         return rtrn;
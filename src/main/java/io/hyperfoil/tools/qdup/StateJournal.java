@@ -0,0 +1,712 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.qdup.stream.JsonStreamWriter;
+import io.hyperfoil.tools.yaup.json.Json;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of State and Coordinator changes in the run output directory so the state of a run can be
+ * recovered if the process is killed before run.json is written.
+ *
+ * Each State change is applied and given an ordering ticket under the same lock, json values are serialized there once
+ * because the State changes nested values in place. The record is queued after the lock is released so a caller that
+ * waits for room in the queue does not hold up other changes, and the writer thread puts the records back in ticket
+ * order. The writer encodes the records, appends every record that is queued when it wakes up and flushes once per
+ * batch (group commit) so a tight set-state loop does not wait for a write per change. Records hold the new value
+ * instead of the operation so they can be replayed more than once.
+ *
+ * The writer periodically folds the journal into a json snapshot: it starts a new segment, writes the current State,
+ * latches and counters to the snapshot and then deletes the older segments. load replays the segments that follow
+ * the snapshot and stops at the first incomplete or corrupt record.
+ *
+ * Values pass through the SecretFilter on the writer thread before they are written so secrets do not reach the disk.
+ */
+public class StateJournal implements AutoCloseable {
+
+    final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String SEGMENT_PREFIX = "state.journal.";
+    public static final String SNAPSHOT_NAME = "state.snapshot.json";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
+    public static final long DEFAULT_COMPACT_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_COMPACT_MS = 60_000;
+
+    private static final int MAX_BATCH = 4 * 1024;
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long POLL_MS = 100;
+
+    private static final byte SET = 1;
+    private static final byte REMOVE = 2;
+    private static final byte SIGNAL = 3;
+    private static final byte COUNTER = 4;
+
+    private static final byte STRING = 'S';
+    private static final byte LONG = 'L';
+    private static final byte DOUBLE = 'D';
+    private static final byte BOOLEAN = 'B';
+    private static final byte JSON = 'J';
+
+    /**
+     * The text of a json value at the time it was set
+     */
+    private static class JsonText {
+        private final String text;
+
+        private JsonText(Json json){
+            this.text = json.toString();
+        }
+    }
+
+    /**
+     * A change waiting for the writer thread
+     */
+    private static class Record {
+        private final long ticket;
+        private final byte type;
+        private final List<String> path;
+        private final String name;
+        private final Object value;
+        private final int count;
+        private final long time;
+
+        private Record(long ticket, byte type, List<String> path, String name, Object value, int count, long time){
+            this.ticket = ticket;
+            this.type = type;
+            this.path = path;
+            this.name = name;
+            this.value = value;
+            this.count = count;
+            this.time = time;
+        }
+    }
+
+    /**
+     * The State, latches and counters rebuilt from a journal
+     */
+    public static class Recovered {
+        private final Json state;
+        private final Map<String,Long> latchTimes;
+        private final Map<String,Integer> signals;
+        private final Map<String,Integer> counters;
+        private long records = 0;
+        private long skipped = 0;
+
+        private Recovered(Json state){
+            this.state = state;
+            this.latchTimes = new LinkedHashMap<>();
+            this.signals = new LinkedHashMap<>();
+            this.counters = new LinkedHashMap<>();
+        }
+
+        public Json getState(){return state;}
+        public Map<String,Long> getLatchTimes(){return latchTimes;}
+        public Map<String,Integer> getSignals(){return signals;}
+        public Map<String,Integer> getCounters(){return counters;}
+        /**
+         * @return the number of records replayed after the snapshot
+         */
+        public long getRecords(){return records;}
+        /**
+         * @return the number of segments that ended with an incomplete or corrupt record
+         */
+        public long getSkipped(){return skipped;}
+
+        /**
+         * Write the recovered values in the same layout as Run.writeRunJson
+         */
+        public void writeRunJson(Path path) throws IOException {
+            try (JsonStreamWriter json = new JsonStreamWriter(new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path), StandardCharsets.UTF_8), BUFFER_SIZE))) {
+                json.beginObject();
+                json.field("state", state);
+                json.beginObject("timestamps");
+                json.endObject();
+                writeMap(json, "latches", latchTimes);
+                writeMap(json, "counters", counters);
+                json.field("recovered", true);
+                json.endObject();
+            }
+        }
+    }
+
+    private final Path directory;
+    private final State state;
+    private final Coordinator coordinator;
+    private final long compactBytes;
+    private final long compactMs;
+    private final BlockingQueue<Record> queue;
+    private final Object sequence = new Object();
+    private final AtomicLong tickets = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    //only used by the writer thread
+    private final PriorityQueue<Record> outOfOrder = new PriorityQueue<>(Comparator.comparingLong((Record r) -> r.ticket));
+    private long nextTicket = 0;
+    private final CRC32 crc = new CRC32();
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordData = new DataOutputStream(recordBytes);
+    private int segment = 0;
+    private DataOutputStream out;
+    private long segmentBytes = 0;
+    private long lastCompact;
+    private long uncompacted = 0;
+    private volatile long records = 0;
+    private volatile long batches = 0;
+    private volatile long compactions = 0;
+
+    public StateJournal(Path directory, State state, Coordinator coordinator) throws IOException {
+        this(directory, state, coordinator, DEFAULT_QUEUE_CAPACITY, DEFAULT_COMPACT_BYTES, DEFAULT_COMPACT_MS);
+    }
+    public StateJournal(Path directory, State state, Coordinator coordinator, int queueCapacity, long compactBytes, long compactMs) throws IOException {
+        this.directory = directory;
+        this.state = state;
+        this.coordinator = coordinator;
+        this.compactBytes = compactBytes;
+        this.compactMs = compactMs;
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        Files.createDirectories(directory);
+        deleteSegments(Integer.MAX_VALUE);
+        //attach before the first snapshot so a change cannot fall between the snapshot and the journal
+        if(state != null){
+            state.setJournal(this);
+        }
+        if(coordinator != null){
+            coordinator.setJournal(this);
+        }
+        try {
+            snapshot(segment);
+            out = openSegment(segment);
+        } catch (IOException | RuntimeException e){
+            detach();
+            throw e;
+        }
+        lastCompact = System.currentTimeMillis();
+        writer = new Thread(this::write, "qdup-state-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void detach(){
+        if(state != null && state.getJournal() == this){
+            state.setJournal(null);
+        }
+        if(coordinator != null && coordinator.getJournal() == this){
+            coordinator.setJournal(null);
+        }
+    }
+
+    public Path getDirectory(){return directory;}
+    public long getRecords(){return records;}
+    public long getBatches(){return batches;}
+    public long getCompactions(){return compactions;}
+
+    /**
+     * Apply a change to the State and record it in the order it was applied
+     * @param change updates the State json to value
+     */
+    public void set(List<String> path, String key, Object value, Runnable change){
+        Record record;
+        synchronized (sequence){
+            change.run();
+            //serialize json before the next change because the State changes nested values in place
+            record = new Record(tickets.getAndIncrement(), SET, path, key, value instanceof Json ? new JsonText((Json)value) : value, 0, 0);
+        }
+        enqueue(record);
+    }
+    /**
+     * Apply a change to the State and record it in the order it was applied
+     * @param change removes key from the State json
+     */
+    public void remove(List<String> path, String key, Runnable change){
+        Record record;
+        synchronized (sequence){
+            change.run();
+            record = new Record(tickets.getAndIncrement(), REMOVE, path, key, null, 0, 0);
+        }
+        enqueue(record);
+    }
+    /**
+     * @param time the time the latch reached zero or -1
+     */
+    public void signal(String name, int count, long time){
+        enqueue(new Record(tickets.getAndIncrement(), SIGNAL, null, name, null, count, time));
+    }
+    public void counter(String name, int value){
+        enqueue(new Record(tickets.getAndIncrement(), COUNTER, null, name, null, value, 0));
+    }
+
+    /**
+     * Queue a record that has a ticket. Every ticket must reach the queue or the writer holds back the records after it,
+     * so an interrupt is kept for the caller instead of giving up on the record.
+     */
+    private void enqueue(Record record){
+        boolean interrupted = false;
+        while(!closed){
+            try {
+                //block when the writer falls behind instead of holding every change in memory
+                queue.put(record);
+                break;
+            } catch (InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Encode a record on the writer thread
+     */
+    private byte[] encode(Record record) throws IOException {
+        recordBytes.reset();
+        recordData.writeByte(record.type);
+        switch (record.type){
+            case SET:
+                writePath(recordData, record.path);
+                writeString(recordData, record.name);
+                writeValue(recordData, record.value);
+                break;
+            case REMOVE:
+                writePath(recordData, record.path);
+                writeString(recordData, record.name);
+                break;
+            case SIGNAL:
+                writeString(recordData, record.name);
+                recordData.writeInt(record.count);
+                recordData.writeLong(record.time);
+                break;
+            default:
+                writeString(recordData, record.name);
+                recordData.writeInt(record.count);
+        }
+        recordData.flush();
+        return recordBytes.toByteArray();
+    }
+
+    private void writePath(DataOutputStream data, List<String> path) throws IOException {
+        data.writeShort(path.size());
+        for(String name : path){
+            writeString(data, name);
+        }
+    }
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+    private void writeValue(DataOutputStream data, Object value) throws IOException {
+        SecretFilter filter = state == null ? null : state.getSecretFilter();
+        if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte){
+            data.writeByte(LONG);
+            data.writeLong(((Number)value).longValue());
+        }else if(value instanceof Double || value instanceof Float){
+            data.writeByte(DOUBLE);
+            data.writeDouble(((Number)value).doubleValue());
+        }else if(value instanceof Boolean){
+            data.writeByte(BOOLEAN);
+            data.writeBoolean((Boolean)value);
+        }else if(value instanceof JsonText){
+            data.writeByte(JSON);
+            String text = ((JsonText)value).text;
+            writeString(data, filter == null ? text : filter.filter(text));
+        }else{
+            data.writeByte(STRING);
+            String text = value == null ? "" : value.toString();
+            writeString(data, filter == null ? text : filter.filter(text));
+        }
+    }
+
+    private Path segmentPath(int index){
+        return directory.resolve(SEGMENT_PREFIX + index);
+    }
+    private DataOutputStream openSegment(int index) throws IOException {
+        segmentBytes = 0;
+        return new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(segmentPath(index), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE),
+            BUFFER_SIZE
+        ));
+    }
+
+    /**
+     * Delete the segments before index
+     */
+    private void deleteSegments(int index) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)){
+            for(Path path : (Iterable<Path>)paths::iterator){
+                int found = segmentIndex(path);
+                if(found >= 0 && found < index){
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+    private static int segmentIndex(Path path){
+        String name = path.getFileName().toString();
+        if(!name.startsWith(SEGMENT_PREFIX)){
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException e){
+            return -1;
+        }
+    }
+
+    private void write(){
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        while(!closed || !queue.isEmpty()){
+            try {
+                Record first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if(first != null){
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    int written = 0;
+                    for(Record queued : batch){
+                        if(queued.ticket == nextTicket && outOfOrder.isEmpty()){
+                            append(queued);
+                            written++;
+                        }else{
+                            //a caller with an earlier ticket has not queued its record yet
+                            outOfOrder.add(queued);
+                        }
+                    }
+                    while(!outOfOrder.isEmpty() && outOfOrder.peek().ticket == nextTicket){
+                        append(outOfOrder.poll());
+                        written++;
+                    }
+                    batch.clear();
+                    if(written > 0){
+                        out.flush();
+                        uncompacted += written;
+                        records += written;
+                        batches++;
+                    }
+                }
+                if(!closed && uncompacted > 0 && (segmentBytes >= compactBytes || System.currentTimeMillis() - lastCompact >= compactMs)){
+                    compact();
+                }
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException e){
+                logger.error("failed to write state journal to {}, journaling stopped", directory, e);
+                closed = true;
+                queue.clear();
+                outOfOrder.clear();
+            }
+        }
+        try {
+            //a caller that took a ticket after close did not queue its record, write the rest in order
+            while(!outOfOrder.isEmpty()){
+                append(outOfOrder.poll());
+                records++;
+            }
+            out.close();
+        } catch (IOException e){
+            logger.warn("failed to close state journal segment {}", segmentPath(segment), e);
+        }
+    }
+
+    private void append(Record queued) throws IOException {
+        byte[] record = encode(queued);
+        crc.reset();
+        crc.update(record, 0, record.length);
+        out.writeInt(record.length);
+        out.writeInt((int)crc.getValue());
+        out.write(record);
+        segmentBytes += record.length + 8;
+        nextTicket = queued.ticket + 1;
+    }
+
+    /**
+     * Start a new segment then snapshot and remove the previous segments. A change made while the snapshot is written
+     * can be in both the snapshot and the new segment, which is safe because records hold the new value.
+     */
+    private void compact() throws IOException {
+        out.close();
+        segment++;
+        out = openSegment(segment);
+        lastCompact = System.currentTimeMillis();
+        uncompacted = 0;
+        try {
+            snapshot(segment);
+        } catch (RuntimeException e){
+            //the state changed while it was copied, keep the previous snapshot and segments until the next compaction
+            logger.debug("state snapshot for segment {} failed, will retry", segment, e);
+            return;
+        }
+        deleteSegments(segment);
+        compactions++;
+    }
+
+    private void snapshot(int start) throws IOException {
+        Path tmp = directory.resolve(SNAPSHOT_NAME + ".tmp");
+        OutputStream file = new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE);
+        OutputStream target = file;
+        if(state != null){
+            SecretFilter.FilterStream filtered = state.getSecretFilter().stream(SNAPSHOT_NAME);
+            filtered.addStream("file", file);
+            target = filtered;
+        }
+        try (JsonStreamWriter json = new JsonStreamWriter(new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), BUFFER_SIZE), 0)){
+            json.beginObject();
+            json.field("segment", start);
+            json.field("state", state == null ? new Json(false) : state.toJson());
+            if(coordinator != null){
+                writeMap(json, "latches", coordinator.getLatchTimes());
+                writeMap(json, "signals", coordinator.getLatches());
+                writeMap(json, "counters", coordinator.getCounters());
+            }
+            json.endObject();
+        }
+        try {
+            Files.move(tmp, directory.resolve(SNAPSHOT_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e){
+            Files.move(tmp, directory.resolve(SNAPSHOT_NAME), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeMap(JsonStreamWriter json, String name, Map<String,? extends Number> map) throws IOException {
+        json.beginObject(name);
+        for(Map.Entry<String,? extends Number> entry : map.entrySet()){
+            json.field(entry.getKey(), entry.getValue());
+        }
+        json.endObject();
+    }
+
+    /**
+     * Stop journaling and wait for the queued changes to be written
+     */
+    @Override
+    public void close(){
+        detach();
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Close the journal and remove its files, e.g. after run.json is written
+     */
+    public void delete() throws IOException {
+        close();
+        deleteSegments(Integer.MAX_VALUE);
+        Files.deleteIfExists(directory.resolve(SNAPSHOT_NAME));
+        Files.deleteIfExists(directory.resolve(SNAPSHOT_NAME + ".tmp"));
+    }
+
+    /**
+     * @return true if the directory has a journal to load
+     */
+    public static boolean exists(Path directory){
+        return Files.exists(directory.resolve(SNAPSHOT_NAME));
+    }
+
+    /**
+     * Rebuild the state from the snapshot and the segments that follow it
+     */
+    public static Recovered load(Path directory) throws IOException {
+        Path snapshotPath = directory.resolve(SNAPSHOT_NAME);
+        int start = 0;
+        Json stateJson = new Json(false);
+        Json snapshot = null;
+        if(Files.exists(snapshotPath)){
+            snapshot = Json.fromString(new String(Files.readAllBytes(snapshotPath), StandardCharsets.UTF_8));
+        }
+        if(snapshot != null){
+            start = ((Number)snapshot.get("segment")).intValue();
+            if(snapshot.get("state") instanceof Json){
+                stateJson = snapshot.getJson("state");
+            }
+        }
+        Recovered rtrn = new Recovered(stateJson);
+        if(snapshot != null){
+            readMap(snapshot, "latches", (k, v) -> rtrn.latchTimes.put(k, v.longValue()));
+            readMap(snapshot, "signals", (k, v) -> rtrn.signals.put(k, v.intValue()));
+            readMap(snapshot, "counters", (k, v) -> rtrn.counters.put(k, v.intValue()));
+        }
+        List<Integer> segments = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(directory)){
+            paths.mapToInt(StateJournal::segmentIndex).filter(i -> i >= 0).sorted().forEach(segments::add);
+        }
+        for(int index : segments){
+            if(index < start){
+                continue;
+            }
+            try (InputStream input = Files.newInputStream(directory.resolve(SEGMENT_PREFIX + index))){
+                if(!replay(new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE)), rtrn)){
+                    logger.warn("state journal segment {} ends with an incomplete record", index);
+                    rtrn.skipped++;
+                }
+            }
+        }
+        return rtrn;
+    }
+
+    private interface Entry {
+        void accept(String key, Number value);
+    }
+    private static void readMap(Json snapshot, String name, Entry entry){
+        if(snapshot.get(name) instanceof Json){
+            snapshot.getJson(name).forEach((key, value) -> {
+                if(value instanceof Number){
+                    entry.accept(key.toString(), (Number)value);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return false if the segment ends with an incomplete or corrupt record
+     */
+    private static boolean replay(DataInputStream input, Recovered recovered) throws IOException {
+        CRC32 crc = new CRC32();
+        while(true){
+            int length;
+            try {
+                length = input.readInt();
+            } catch (EOFException e){
+                return true;
+            }
+            try {
+                int checksum = input.readInt();
+                if(length <= 0 || length > MAX_RECORD_BYTES){
+                    return false;
+                }
+                byte[] record = new byte[length];
+                input.readFully(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if((int)crc.getValue() != checksum){
+                    return false;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(record)), recovered);
+                recovered.records++;
+            } catch (EOFException e){
+                return false;
+            }
+        }
+    }
+
+    private static void apply(DataInputStream record, Recovered recovered) throws IOException {
+        byte type = record.readByte();
+        switch (type){
+            case SET: {
+                Json target = target(recovered.state, readPath(record));
+                String key = readString(record);
+                Json.chainSet(target, key, readValue(record));
+                break;
+            }
+            case REMOVE: {
+                Json target = target(recovered.state, readPath(record));
+                target.remove(readString(record));
+                break;
+            }
+            case SIGNAL: {
+                String name = readString(record);
+                int count = record.readInt();
+                long time = record.readLong();
+                recovered.signals.put(name, count);
+                if(time >= 0){
+                    recovered.latchTimes.put(name, time);
+                }
+                break;
+            }
+            case COUNTER: {
+                String name = readString(record);
+                recovered.counters.put(name, record.readInt());
+                break;
+            }
+            default:
+                throw new IOException("unknown state journal record type " + type);
+        }
+    }
+
+    /**
+     * Find the json for a child State the same way State.toJson nests children, creating it if it is missing
+     */
+    private static Json target(Json root, List<String> path){
+        Json target = root;
+        for(String name : path){
+            Object child = target.get(name);
+            if(!(child instanceof Json)){
+                child = new Json(false);
+                target.set(name, child);
+            }
+            target = (Json)child;
+        }
+        return target;
+    }
+    private static List<String> readPath(DataInputStream record) throws IOException {
+        int size = record.readShort();
+        List<String> rtrn = new ArrayList<>(size);
+        for(int i = 0; i < size; i++){
+            rtrn.add(readString(record));
+        }
+        return rtrn;
+    }
+    private static String readString(DataInputStream record) throws IOException {
+        byte[] bytes = new byte[record.readInt()];
+        record.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    private static Object readValue(DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        switch (type){
+            case LONG:
+                return record.readLong();
+            case DOUBLE:
+                return record.readDouble();
+            case BOOLEAN:
+                return record.readBoolean();
+            case JSON: {
+                String text = readString(record);
+                Json json = Json.fromString(text);
+                return json == null ? text : json;
+            }
+            case STRING:
+                return readString(record);
+            default:
+                throw new IOException("unknown state journal value type " + type);
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package io.hyperfoil.tools.qdup.cmd;
 
 import io.hyperfoil.tools.qdup.Coordinator;
+import io.hyperfoil.tools.qdup.KeyPath;
 import io.hyperfoil.tools.qdup.SecretFilter;
 import io.hyperfoil.tools.qdup.State;
 import io.hyperfoil.tools.qdup.cmd.impl.*;
+import io.hyperfoil.tools.qdup.stream.OutputSequence;
 import io.hyperfoil.tools.yaup.AsciiArt;
 import io.hyperfoil.tools.yaup.HashedLists;
 import io.hyperfoil.tools.yaup.PopulatePatternException;
@@ -145,6 +147,12 @@ public abstract class Cmd {
    public static final String ENV_SUFFIX = "}";
    public static final Pattern ENV_PATTERN = Pattern.compile("\\$\\{(?<name>[^\\{][^\\}]*)}");
 
+   private static final List<String> JAVASCRIPT_HELPERS = Collections.unmodifiableList(Arrays.asList(
+           "function milliseconds(v){ return Packages.io.hyperfoil.tools.yaup.StringUtil.parseToMs(v)}",
+           "function seconds(v){ return Packages.io.hyperfoil.tools.yaup.StringUtil.parseToMs(v)/1000}",
+           "function range(start,stop,step=1){ return Array(Math.ceil(Math.abs(stop - start) / step)).fill(start).map((x, y) => x + Math.ceil(Math.abs(stop - start) / (stop - start)) * y * step);}"
+   ));
+
    public static final Pattern NAMED_CAPTURE = java.util.regex.Pattern.compile("\\(\\?<([^>]+)>");
 
    public static Cmd js(String code) {
@@ -336,9 +344,10 @@ public abstract class Cmd {
 
    public boolean hasWith(String name) {
       boolean hasIt = false;
+      KeyPath path = KeyPath.get(name);
       Cmd target = this;
       while (!hasIt && target != null) {
-         hasIt = target.withActive.has(name) || Json.find(target.withActive, name.startsWith("$") ? name : "$." + name) != null;
+         hasIt = path.has(target.withActive);
          target = target.stateParent;
       }
       return hasIt;
@@ -356,9 +365,10 @@ public abstract class Cmd {
    }
    public Object getWith(String name,State state) {
       Object value = null;
+      KeyPath path = KeyPath.get(name);
       Cmd target = this;
       while (value == null && target != null) {
-         value = target.withActive.has(name) ? target.withActive.get(name) : Json.find(target.withActive, name.startsWith("$") ? name : "$." + name);
+         value = path.find(target.withActive);
          if(value!=null){//we found something
             if(Cmd.hasStateReference(value.toString(),target)){//
                //target.loadWithDefs(state);
@@ -418,31 +428,36 @@ public abstract class Cmd {
       return populateStateVariables(command, cmd,
               context == null ? null : context.getState(),
               context == null ? null : context.getCoordinator(),
-              new Ref(cmd)
+              new Ref(cmd),
+              context == null ? JsEngine.getDefault() : context.getJsEngine()
       );
    }
    public static String populateStateVariables(String command, Cmd cmd, State state, Coordinator coordinator) {
       return populateStateVariables(command, cmd, state, coordinator, new Ref(cmd));
    }
    public static String populateStateVariables(String command, Cmd cmd, State state, Coordinator coordinator, Ref ref) {
-      List<String> evals = Arrays.asList(
-              "function milliseconds(v){ return Packages.io.hyperfoil.tools.yaup.StringUtil.parseToMs(v)}",
-              "function seconds(v){ return Packages.io.hyperfoil.tools.yaup.StringUtil.parseToMs(v)/1000}",
-              "function range(start,stop,step=1){ return Array(Math.ceil(Math.abs(stop - start) / step)).fill(start).map((x, y) => x + Math.ceil(Math.abs(stop - start) / (stop - start)) * y * step);}"
-      );
+      return populateStateVariables(command, cmd, state, coordinator, ref, JsEngine.getDefault());
+   }
+   public static String populateStateVariables(String command, Cmd cmd, State state, Coordinator coordinator, Ref ref, JsEngine engine) {
       if(command == null){
          return "";
       }
       if(!hasStateReference(command,cmd)){
          return command;
       }
+      String prefix = cmd != null ? cmd.getPatternPrefix() : StringUtil.PATTERN_PREFIX;
+      String separator = cmd != null ? cmd.getPatternSeparator() : StringUtil.PATTERN_DEFAULT_SEPARATOR;
+      String suffix = cmd != null ? cmd.getPatternSuffix() : StringUtil.PATTERN_SUFFIX;
+      String javascriptPrefix = cmd != null ? cmd.getPatternJavascriptPrefix() : StringUtil.PATTERN_JAVASCRIPT_PREFIX;
+      PatternTemplate template = PatternTemplate.get(command,prefix,separator,suffix,javascriptPrefix);
       PatternValuesMap map = new PatternValuesMap(cmd,state,coordinator,ref);
+      String populated = template.populate(map, engine, JAVASCRIPT_HELPERS);
+      if(populated != null){
+         return populated;
+      }
       try {
-         if(cmd!=null){
-            return StringUtil.populatePattern(command,map,evals,cmd.getPatternPrefix(),cmd.getPatternSeparator(),cmd.getPatternSuffix(),cmd.getPatternJavascriptPrefix());
-         }else {
-            return StringUtil.populatePattern(command, map, evals, StringUtil.PATTERN_PREFIX, StringUtil.PATTERN_DEFAULT_SEPARATOR, StringUtil.PATTERN_SUFFIX, StringUtil.PATTERN_JAVASCRIPT_PREFIX);
-         }
+         //only templates with javascript or nested patterns get here so they need the javascript helpers
+         return StringUtil.populatePattern(command,map,JAVASCRIPT_HELPERS,prefix,separator,suffix,javascriptPrefix);
       } catch (PopulatePatternException pe){
          //pe.printStackTrace();
          logger.debug(pe.getMessage());//changed to debug because runs now fail when patterns are missing
@@ -474,6 +489,7 @@ public abstract class Cmd {
 
    int uid;
    private String output;
+   private OutputSequence outputSequence;
 
    protected Cmd() {
       this(false);
@@ -702,8 +718,39 @@ public abstract class Cmd {
       return output;
    }
 
+   /**
+    * Set the output and keep the file backed output of the previous command when the output is unchanged from the input
+    */
    public void setOutput(String output) {
+      CharSequence input = getInputSequence(output);
+      setOutput(output, input instanceof OutputSequence ? (OutputSequence) input : null);
+   }
+
+   /**
+    * @param outputSequence the full output when output is only the in memory preview of output that exceeded the memory limit
+    */
+   public void setOutput(String output, OutputSequence outputSequence) {
       this.output = output;
+      this.outputSequence = outputSequence;
+   }
+
+   /**
+    * @return the full output when the output is only the in memory preview of output that exceeded the memory limit, otherwise null
+    */
+   public OutputSequence getOutputSequence() {
+      return outputSequence;
+   }
+
+   /**
+    * Get the full output of the previous command when input is the in memory preview of output that exceeded the memory limit.
+    * @return a file backed sequence for large output, otherwise input
+    */
+   public CharSequence getInputSequence(String input) {
+      Cmd previous = getPrevious();
+      if (previous != null && previous.outputSequence != null && input != null && input.equals(previous.output)) {
+         return previous.outputSequence;
+      }
+      return input;
    }
 
    public Cmd getPrevious() {
@@ -3,6 +3,7 @@ package io.hyperfoil.tools.qdup.cmd;
 import io.hyperfoil.tools.qdup.Coordinator;
 import io.hyperfoil.tools.qdup.Host;
 import io.hyperfoil.tools.qdup.Local;
+import io.hyperfoil.tools.qdup.Metrics;
 import io.hyperfoil.tools.qdup.SshSession;
 import io.hyperfoil.tools.qdup.State;
 
@@ -26,6 +27,11 @@ public interface Context {
     boolean isColorTerminal();
     SystemTimer getTimer();
 
+    /**
+     * @return the latency histograms for the run or null if the context is not part of a run
+     */
+    default Metrics getMetrics(){return null;}
+
     String getRunOutputPath();
 
     Cmd getCurrentCmd();
@@ -42,6 +48,11 @@ public interface Context {
     void schedule(Runnable runnable, long delayMs);
     Coordinator getCoordinator();
 
+    /**
+     * @return the engine for javascript in commands and state patterns
+     */
+    default JsEngine getJsEngine(){return JsEngine.getDefault();}
+
     void close();
 
 }
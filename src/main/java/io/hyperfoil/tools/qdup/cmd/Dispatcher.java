@@ -60,9 +60,11 @@ public class Dispatcher {
     private final List<DispatchObserver> dispatchObservers;
     private final List<ContextObserver> contextObservers;
 
-    private final ThreadPoolExecutor executor;
+    private final ExecutorService executor;
     private final ScheduledThreadPoolExecutor scheduler;
-    private ScheduledFuture<?> nannyFuture;
+    private final TimerWheel timerWheel;
+    private volatile TimerWheel.Timeout nannyTimeout;
+    private final AtomicInteger waitingContexts = new AtomicInteger(0);
     private final AtomicBoolean isRunning;
     private final Consumer<Long> nannyTask;
 
@@ -124,6 +126,7 @@ public class Dispatcher {
                 scriptContext.getTimer().stop(); //fix bug where last timer has stop = 0
 
                 scriptContexts.remove(scriptContext.getRootCmd());
+                unregister(scriptContext);
                 scriptObservers.forEach(observer -> observer.onStop(scriptContext));
                 context.close();
                 //context.getSession().close(); //using close on context to only close base context
@@ -176,6 +179,48 @@ public class Dispatcher {
 
     @Override public String toString(){return "CD";}
 
+    /**
+     * Create a ThreadFactory for virtual threads using reflection so qDup can still be compiled for and run on
+     * JVMs without virtual threads.
+     * @param prefix prefix for the thread names
+     * @return the ThreadFactory or null if the JVM does not support virtual threads
+     */
+    public static ThreadFactory virtualThreadFactory(String prefix){
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public static final int DEFAULT_MAX_VIRTUAL_THREADS = 10_000;
+
+    /**
+     * Create an executor that starts a new thread for each task, so tasks never wait in a queue behind threads that
+     * are blocked on a shell. The threads are virtual threads if the JVM supports them, otherwise they are platform
+     * threads. At most maxConcurrent tasks run at the same time, the others wait for a permit in their own thread.
+     * @param prefix prefix for the thread names
+     * @param maxConcurrent the maximum number of tasks that run at the same time
+     * @param uncaughtExceptionHandler handler for each thread
+     * @return the executor
+     */
+    public static ThreadPerTaskExecutor newVirtualThreadExecutor(String prefix, int maxConcurrent, Thread.UncaughtExceptionHandler uncaughtExceptionHandler){
+        ThreadFactory virtualFactory = virtualThreadFactory(prefix);
+        AtomicInteger count = new AtomicInteger(0);
+        if(virtualFactory == null){
+            logger.warn("virtual threads are not supported by java {}, using a platform thread per task", System.getProperty("java.version"));
+        }
+        ThreadFactory factory = runnable -> {
+            Thread rtrn = virtualFactory != null ? virtualFactory.newThread(runnable) : new Thread(runnable, prefix + count.getAndIncrement());
+            rtrn.setUncaughtExceptionHandler(uncaughtExceptionHandler);
+            return rtrn;
+        };
+        return new ThreadPerTaskExecutor(factory, maxConcurrent);
+    }
+
     public Dispatcher(){
         this(
                 new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(), 30, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), new ThreadFactory() {
@@ -197,10 +242,10 @@ public class Dispatcher {
                 true
         );
     }
-    public Dispatcher(ThreadPoolExecutor executor, ScheduledThreadPoolExecutor scheduler) {
+    public Dispatcher(ExecutorService executor, ScheduledThreadPoolExecutor scheduler) {
         this(executor,scheduler,false);
     }
-    private Dispatcher(ThreadPoolExecutor executor, ScheduledThreadPoolExecutor scheduler, boolean autoClose){
+    private Dispatcher(ExecutorService executor, ScheduledThreadPoolExecutor scheduler, boolean autoClose){
         this.executor = executor;
         this.scheduler = scheduler;
         this.autoClose=autoClose;
@@ -211,59 +256,21 @@ public class Dispatcher {
         this.dispatchObservers = new LinkedList<>();
         this.contextObservers = new LinkedList<>();
 
-        this.nannyFuture = null;
+        this.timerWheel = new TimerWheel("qdup-timer-wheel",scheduler);
+        this.nannyTimeout = null;
         this.nannyTask = (timestamp)->{
+            //the contexts are only checked when the count says they are all waiting for a signal
+            if(waitingContexts.get() < scriptContexts.size()){
+                return;
+            }
             AtomicInteger nonWaitingContexts = new AtomicInteger(0);
             scriptContexts.forEach((script, context)->{
                 Cmd command = context.getCurrentCmd();
-                long lastUpdate = context.getUpdateTime();
                 logger.trace("Nanny checking:\n  host={}\n  command={}",
                         context.getSession().getHost(),
                         command);
-
-                //checking if the command is waiting for a signal
-                if(command instanceof WaitFor){
-
-                }else {
-                    Cmd target = command;
-                    boolean isWaiting = false;
-
-                    do {
-                        if (target instanceof RepeatUntilSignal) {
-                            boolean selfSignals = ((RepeatUntilSignal)target).isSelfSignaling();
-                            isWaiting = !selfSignals;
-                        }
-                    } while (!isWaiting && target.hasParent() && (target = target.getParent()) != null);
-                    if(!isWaiting){
-                        nonWaitingContexts.incrementAndGet();
-                    }else{
-                    }
-                }
-
-                //check for idle sh
-
-                if(command.hasIdleTimer() &&  timestamp - lastUpdate > command.getIdleTimer()){
-                    if(command instanceof Sh){
-                        String output = context.getSession().peekOutput();
-                        String parentName = null;
-                        if (command.getParent() instanceof Script)
-                            parentName = ((Script) (command).getParent()).getName();
-                        if(!command.isSilent()){
-                            logger.warn("{}Nanny found idle{}\n  command={}\n  host={}\n  contextId={} script={}\n  idle={}\n  lastLine={}",
-                                    context.isColorTerminal() ? AsciiArt.ANSI_RED : "",
-                                    context.isColorTerminal() ? AsciiArt.ANSI_RESET : "",
-                                    command,
-                                    context.getSession().getHost().getHostName(),
-                                    context.getContextId(),
-                                    script + (parentName.equals(null)? "" : ":" + parentName),
-                                    String.format("%5.2f", (1.0 * timestamp - lastUpdate) / 1_000),
-                                    context.getSession().peekOutputTail());
-                        }
-                        //TODO do we check for common prompts in output?
-                        if(output.contains(SshSession.PROMPT)){
-                            //TODO do we assume the prompt means we missed the end of the command?
-                        }
-                    }
+                if(!isWaiting(command)){
+                    nonWaitingContexts.incrementAndGet();
                 }
             });
             if(nonWaitingContexts.get() == 0){
@@ -291,10 +298,79 @@ public class Dispatcher {
 
     public ScheduledThreadPoolExecutor getScheduler(){return scheduler;}
 
+    /**
+     * @return the wheel for idle, timer and wait-for timeouts. Expired tasks run on the scheduler
+     */
+    public TimerWheel getTimerWheel(){return timerWheel;}
+
+    /**
+     * A command is waiting if it is a wait-for or inside a repeat-until that does not signal itself.
+     * The phase ends when all the scripts are waiting.
+     */
+    static boolean isWaiting(Cmd command){
+        if(command instanceof WaitFor){
+            return true;
+        }
+        Cmd target = command;
+        while(target != null){
+            if(target instanceof RepeatUntilSignal && !((RepeatUntilSignal)target).isSelfSignaling()){
+                return true;
+            }
+            target = target.hasParent() ? target.getParent() : null;
+        }
+        return false;
+    }
+
+    /**
+     * Update the count of waiting contexts when a registered context changes command
+     */
+    void updateWaiting(ScriptContext context, Cmd command){
+        synchronized (context){
+            if(context.getDispatcher() != this){
+                return;
+            }
+            boolean waiting = isWaiting(command);
+            if(waiting != context.isWaiting()){
+                context.setWaiting(waiting);
+                waitingContexts.addAndGet(waiting ? 1 : -1);
+            }
+        }
+    }
+    private void register(ScriptContext context){
+        synchronized (context){
+            context.setDispatcher(this);
+            context.setWaiting(false);
+        }
+        updateWaiting(context,context.getCurrentCmd());
+    }
+    private void unregister(ScriptContext context){
+        synchronized (context){
+            if(context.getDispatcher() == this){
+                if(context.isWaiting()){
+                    waitingContexts.decrementAndGet();
+                }
+                context.setWaiting(false);
+                context.setDispatcher(null);
+            }
+        }
+    }
+
+    private void scheduleNanny(){
+        nannyTimeout = timerWheel.schedule(()->{
+            if(isRunning.get() && nannyTimeout != null){
+                nannyTask.accept(System.currentTimeMillis());
+                if(isRunning.get() && nannyTimeout != null){
+                    scheduleNanny();
+                }
+            }
+        },Cmd.DEFAULT_IDLE_TIMER);
+    }
+
 
     public void addContextObserver(ContextObserver observer){contextObservers.add(observer);}
     public void removeContextObserver(ContextObserver observer){contextObservers.remove(observer);}
     public boolean hasContextObserver(){return !contextObservers.isEmpty();}
+    public boolean isRunning(){return isRunning.get();}
 
     public void addScriptObserver(ScriptObserver observer){scriptObservers.add(observer);}
     public void removeScriptObserver(ScriptObserver observer){
@@ -324,6 +400,7 @@ public class Dispatcher {
                 context
         );
         contextById.put(context.getContextId(),context);
+        register(context);
         if(previous!=null){
             logger.error("already have getScript.tail={} mapped to {}@{}",context.getRootCmd().getTail().getUid(),context.getRootCmd(),context.getSession().getHost().getHostName());
         }
@@ -334,7 +411,7 @@ public class Dispatcher {
                logger.info("queueing\n  host={}\n  script={}",
                   contextResult.getSession().getHost().getHostName(),
                   context.getRootCmd());
-               context.getTimer().start("waiting in run queue");
+               context.queued();
                getExecutor().submit(context);
             }
         }
@@ -353,12 +430,9 @@ public class Dispatcher {
             dispatchObservers.forEach(c->c.preStart());
             logger.info("starting {} scripts", scriptContexts.size());
             if(!scriptContexts.isEmpty()){
-                if(nannyFuture == null) {
+                if(nannyTimeout == null) {
                     logger.info("starting nanny");
-                    nannyFuture = scheduler.scheduleAtFixedRate(() -> {
-                        long timestamp = System.currentTimeMillis();
-                        nannyTask.accept(timestamp);
-                    }, Cmd.DEFAULT_IDLE_TIMER, Cmd.DEFAULT_IDLE_TIMER, TimeUnit.MILLISECONDS);
+                    scheduleNanny();
                 }
                 for(Cmd script : scriptContexts.keySet()){
                     ScriptContext contextResult = scriptContexts.get(script);
@@ -366,7 +440,7 @@ public class Dispatcher {
                     logger.trace("queueing\n  host={}\n  script={}",
                             contextResult.getSession().getHost().getHostName(),
                             script);
-                    contextResult.getTimer().start("waiting in run queue");
+                    contextResult.queued();
                     getExecutor().submit(contextResult);
                 }
             }else{
@@ -402,14 +476,17 @@ public class Dispatcher {
         if(isRunning.compareAndSet(true,false)){
             logger.debug("stop");
 
-            if(nannyFuture!=null){
-                boolean cancelledFuture= nannyFuture.cancel(true);
-                nannyFuture = null;
+            TimerWheel.Timeout nanny = nannyTimeout;
+            nannyTimeout = null;
+            if(nanny!=null){
+                nanny.cancel();
             }
             //needs to occur before we notify observers because observers can queue next stage
             scriptContexts.values().forEach(ctx->{
                 ctx.closeLineQueue();
+                ctx.cancelTimeouts();
                 ctx.getSession().close(wait);
+                unregister(ctx);
             });
             scriptContexts.clear();
 
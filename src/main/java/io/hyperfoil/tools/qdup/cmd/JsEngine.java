@@ -0,0 +1,311 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import io.hyperfoil.tools.yaup.StringUtil;
+import io.hyperfoil.tools.yaup.json.Json;
+import io.hyperfoil.tools.yaup.json.ValueConverter;
+import io.hyperfoil.tools.yaup.json.graaljs.JsonProxy;
+import io.hyperfoil.tools.yaup.json.graaljs.JsonProxyObject;
+import io.hyperfoil.tools.yaup.json.graaljs.MapProxyWrapper;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates javascript the same way as StringUtil.jsEval but shares one graaljs Engine between a pool of Contexts
+ * and caches the Source for each code string. Code is parsed once per Engine and stays JIT warm across evaluations
+ * instead of building a new Engine and Context for every call.
+ * A Context only goes back to the pool if the evaluation left the globals unchanged so code never sees the variables
+ * of a previous evaluation. Code that could declare a top level let, const or class, or that adds or replaces a
+ * property of globalThis, closes its Context instead.
+ */
+public class JsEngine implements AutoCloseable {
+
+   final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+   public static final int MAX_CACHED_SOURCES = 4 * 1024;
+   public static final int DEFAULT_MAX_IDLE_CONTEXTS = 2 * Runtime.getRuntime().availableProcessors();
+
+   private static final String GLOBALS_NAME = "__yaupGlobal";
+   private static final String GLOBALS_PROXY = "Object.setPrototypeOf(globalThis, new Proxy(Object.prototype, {\n" +
+      "    has(target, key) {\n" +
+      "        return  " + GLOBALS_NAME + ".containsKey(key) || key in target;\n" +
+      "    },\n" +
+      "    get(target, key, receiver) {\n" +
+      "        if (" + GLOBALS_NAME + ".containsKey(key)){ return " + GLOBALS_NAME + ".get(key); }\n" +
+      "        else { return Reflect.get( target, key, receiver); }\n" +
+      "    }\n" +
+      "}))";
+   //returns a function that compares the own properties of globalThis to the last call with reset=true
+   private static final String GLOBALS_CHANGED = "(() => {\n" +
+      "    const read = () => {\n" +
+      "        const rtrn = new Map();\n" +
+      "        for (const key of Reflect.ownKeys(globalThis)) {\n" +
+      "            const descriptor = Object.getOwnPropertyDescriptor(globalThis, key);\n" +
+      "            rtrn.set(key, 'value' in descriptor ? descriptor.value : descriptor.get);\n" +
+      "        }\n" +
+      "        return rtrn;\n" +
+      "    };\n" +
+      "    let baseline = read();\n" +
+      "    return (reset) => {\n" +
+      "        const current = read();\n" +
+      "        if (reset) { baseline = current; return false; }\n" +
+      "        if (current.size !== baseline.size) { return true; }\n" +
+      "        for (const [key, value] of current) {\n" +
+      "            if (!baseline.has(key) || !Object.is(baseline.get(key), value)) { return true; }\n" +
+      "        }\n" +
+      "        return false;\n" +
+      "    };\n" +
+      "})()";
+   //a top level let, const or class is not a property of globalThis so any code that could declare one is not re-used
+   private static final Pattern LEXICAL_DECLARATION = Pattern.compile("\\b(let|const|class)\\b");
+
+   private static volatile JsEngine defaultEngine;
+
+   /**
+    * @return a JsEngine shared by everything that is not part of a Run
+    */
+   public static JsEngine getDefault(){
+      JsEngine rtrn = defaultEngine;
+      if(rtrn == null){
+         synchronized (JsEngine.class){
+            rtrn = defaultEngine;
+            if(rtrn == null){
+               rtrn = new JsEngine();
+               defaultEngine = rtrn;
+            }
+         }
+      }
+      return rtrn;
+   }
+
+   /**
+    * The state variables for the current evaluation. The globalThis proxy of a pooled Context reads from this.
+    */
+   public static class Globals {
+      private Map<Object,Object> map = Collections.emptyMap();
+
+      public boolean containsKey(Object key){
+         return map.containsKey(key);
+      }
+      public Object get(Object key){
+         return map.get(key);
+      }
+   }
+
+   private class PooledContext {
+      private final org.graalvm.polyglot.Context context;
+      private final Globals globals = new Globals();
+      private final Set<String> evaluated = new HashSet<>();
+      private final Value globalsChanged;
+      private boolean dirty = false;
+
+      private PooledContext(){
+         context = org.graalvm.polyglot.Context.newBuilder("js")
+            .engine(engine)
+            .allowAllAccess(true)
+            .allowExperimentalOptions(true)
+            .option("js.experimental-foreign-object-prototype", "true")
+            .option("js.global-property", "true")
+            .build();
+         context.getBindings("js").putMember(GLOBALS_NAME, globals);
+         context.eval(source(GLOBALS_PROXY));
+         globalsChanged = context.eval(source(GLOBALS_CHANGED));
+      }
+   }
+
+   private final Engine engine;
+   private final int maxIdle;
+   private final Queue<PooledContext> idle = new ConcurrentLinkedQueue<>();
+   private final AtomicInteger idleCount = new AtomicInteger(0);
+   private final Map<String,Source> sources = new ConcurrentHashMap<>();
+   private volatile boolean closed = false;
+
+   public JsEngine(){
+      this(DEFAULT_MAX_IDLE_CONTEXTS);
+   }
+   public JsEngine(int maxIdle){
+      this.engine = Engine.create();
+      this.maxIdle = maxIdle;
+   }
+
+   private Source source(String code){
+      Source rtrn = sources.get(code);
+      if(rtrn == null){
+         if(sources.size() >= MAX_CACHED_SOURCES){
+            sources.clear();
+         }
+         rtrn = Source.newBuilder("js", code, "qdup.js").cached(true).buildLiteral();
+         sources.put(code, rtrn);
+      }
+      return rtrn;
+   }
+
+   /**
+    * Take an idle Context or create a new one and enter it. An idle Context that was closed is replaced before any
+    * code runs in it.
+    */
+   private PooledContext borrow(){
+      PooledContext rtrn;
+      while((rtrn = idle.poll()) != null){
+         idleCount.decrementAndGet();
+         try {
+            rtrn.context.enter();
+            return rtrn;
+         } catch (IllegalStateException e){
+            logger.debug("replacing a closed javascript context", e);
+         }
+      }
+      rtrn = new PooledContext();
+      rtrn.context.enter();
+      return rtrn;
+   }
+   private void release(PooledContext pooled){
+      pooled.context.leave();
+      if(pooled.dirty){
+         pooled.context.close();
+      }else if(!closed && idleCount.incrementAndGet() <= maxIdle){
+         idle.add(pooled);
+         if(closed && idle.remove(pooled)){//close raced with the release
+            idleCount.decrementAndGet();
+            pooled.context.close();
+         }
+      }else{
+         idleCount.decrementAndGet();
+         pooled.context.close();
+      }
+   }
+
+   /**
+    * @return the number of Sources in the cache
+    */
+   public int getCachedSourceCount(){return sources.size();}
+
+   /**
+    * @return the number of Contexts waiting in the pool
+    */
+   public int getIdleContextCount(){return idleCount.get();}
+
+   public Object eval(String js, Object... args){
+      return eval(js, Collections.emptyMap(), Collections.emptyList(), args);
+   }
+
+   /**
+    * Evaluate js with the same behavior as StringUtil.jsEval
+    * @param globals values that javascript can reference as global variables
+    * @param evals code to evaluate before js (e.g. helper functions). Each is only evaluated once per Context.
+    * @param args arguments if js evaluates to a function
+    * @throws IllegalStateException if js fails to evaluate
+    */
+   public Object eval(String js, Map<Object,Object> globals, Collection<String> evals, Object... args){
+      if(closed){
+         throw new IllegalStateException("jsEval exception for:" + js, new IllegalStateException("JsEngine is closed"));
+      }
+      PooledContext pooled = borrow();
+      try {
+         return eval(pooled, js, globals, evals, args);
+      } finally {
+         release(pooled);
+      }
+   }
+
+   private Object eval(PooledContext pooled, String js, Map<Object,Object> globals, Collection<String> evals, Object... args){
+      org.graalvm.polyglot.Context context = pooled.context;
+      try {
+         pooled.globals.map = globals == null || globals.isEmpty() ? Collections.emptyMap() : new MapProxyWrapper(globals);
+         for(String helper : evals){
+            if(!pooled.evaluated.contains(helper)){
+               try {
+                  context.eval(source(helper));
+               } catch (PolyglotException pge) {
+                  throw new RuntimeException("failed to evaluate " + helper + " preparing for " + js, pge);
+               }
+               pooled.evaluated.add(helper);
+               //the helper functions are part of the baseline
+               pooled.globalsChanged.execute(true);
+            }
+         }
+         pooled.dirty = LEXICAL_DECLARATION.matcher(js).find();
+         Value matcher = null;
+         //only try the other forms when the code did not parse so code that ran and failed does not run again
+         try {
+            matcher = context.eval(source(js));
+         } catch (PolyglotException pge) {
+            if(!pge.isSyntaxError()){
+               throw pge;
+            }
+            try {
+               matcher = context.eval(source("(() => " + js + ")()"));
+            } catch (PolyglotException pge2) {
+               if(!pge2.isSyntaxError()){
+                  throw pge2;
+               }
+               Value factory = context.eval(source("new Function('return '+" + StringUtil.quote(js) + ")"));
+               matcher = factory.execute();
+            }
+         }
+         if(matcher == null){
+            return null;
+         }
+         if(matcher.canExecute() && args != null && args.length > 0){
+            for(int i=0; i<args.length; i++){
+               if(args[i] instanceof Json){
+                  args[i] = JsonProxy.create((Json)args[i]);
+               }
+            }
+            Value result = matcher.execute(args);
+            if(result != null){
+               matcher = result;
+            }
+         }
+         Object converted = ValueConverter.convert(matcher);
+         if(converted instanceof JsonProxyObject){
+            return ((JsonProxyObject)converted).getJson();
+         }
+         return converted;
+      } catch (Throwable e) {
+         throw new IllegalStateException("jsEval exception for:" + js, e);
+      } finally {
+         pooled.globals.map = Collections.emptyMap();
+         if(!pooled.dirty){
+            try {
+               pooled.dirty = pooled.globalsChanged.execute(false).asBoolean();
+            } catch (RuntimeException e){
+               pooled.dirty = true;
+            }
+         }
+      }
+   }
+
+   /**
+    * Close the idle Contexts and the Engine. Contexts in use are closed when they are released.
+    */
+   @Override
+   public void close(){
+      closed = true;
+      PooledContext pooled;
+      while((pooled = idle.poll()) != null){
+         idleCount.decrementAndGet();
+         pooled.context.close();
+      }
+      try {
+         engine.close();
+      } catch (IllegalStateException e){
+         logger.debug("JsEngine closed while a context was in use", e);
+      }
+   }
+}
@@ -0,0 +1,214 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A ring buffer of output lines from a watched command to the thread that runs the watchers.
+ * Lines are added from the session reader, which is the ssh IO thread, so adding never waits and never drops a line.
+ * Instead the buffer calls pause when it reaches capacity so the source stops reading (see SshSession.pauseOutput)
+ * and calls resume once the watchers drained it to half the capacity. The output that is already in flight when the
+ * source pauses is still added so the ring can grow past capacity by at most one ssh channel window of lines.
+ * The ring starts small and grows as lines arrive so a context that never watches a command does not pay for it.
+ * Lines are drained in batches so the watcher thread takes the lock once per batch instead of once per line.
+ */
+public class LineBuffer {
+
+   public static final int DEFAULT_CAPACITY = 4 * 1024;
+   private static final int INITIAL_SIZE = 16;
+   private static final Runnable NO_OP = ()->{};
+
+   private final int capacity;
+   private final Runnable pause;
+   private final Runnable resume;
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition notEmpty = lock.newCondition();
+   private String[] lines = null;//allocated by the first add
+   private int head = 0;
+   private int count = 0;
+   private boolean closed = false;
+   private boolean paused = false;
+   private long added = 0;
+   private long pauses = 0;
+
+   public LineBuffer(){
+      this(DEFAULT_CAPACITY);
+   }
+   public LineBuffer(int capacity){
+      this(capacity, NO_OP, NO_OP);
+   }
+   /**
+    * The callbacks are called while holding the buffer lock so a resume cannot overtake the pause before it,
+    * they should only signal the source and not wait.
+    * @param capacity the number of lines before the source is paused
+    * @param pause called when the buffer reaches capacity
+    * @param resume called when the buffer is back to half the capacity, closed or cleared after a pause
+    */
+   public LineBuffer(int capacity, Runnable pause, Runnable resume){
+      if(capacity <= 0){
+         throw new IllegalArgumentException("capacity must be greater than 0 but was "+capacity);
+      }
+      this.capacity = capacity;
+      this.pause = pause;
+      this.resume = resume;
+   }
+
+   public int getCapacity(){return capacity;}
+
+   /**
+    * Add a line without waiting, pausing the source if this fills the buffer.
+    * @return false if the line was not added because the buffer is closed
+    */
+   public boolean add(String line){
+      lock.lock();
+      try {
+         if(closed){
+            return false;
+         }
+         if(lines == null){
+            lines = new String[Math.min(INITIAL_SIZE, capacity)];
+         }else if(count == lines.length){
+            grow();
+         }
+         lines[(head + count) % lines.length] = line;
+         count++;
+         added++;
+         if(!paused && count >= capacity){
+            paused = true;
+            pauses++;
+            pause.run();
+         }
+         notEmpty.signal();
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   //double the ring and move the lines to the start of it
+   private void grow(){
+      String[] grown = new String[lines.length * 2];
+      int first = Math.min(count, lines.length - head);
+      System.arraycopy(lines, head, grown, 0, first);
+      System.arraycopy(lines, 0, grown, first, count - first);
+      lines = grown;
+      head = 0;
+   }
+
+   private void resume(){
+      if(paused){
+         paused = false;
+         resume.run();
+      }
+   }
+
+   /**
+    * Move up to batch.length lines into batch, waiting until there is at least one line or the buffer is closed.
+    * Lines added before close are still drained.
+    * @return the number of lines in batch or -1 if the buffer is closed and empty
+    */
+   public int drain(String[] batch) throws InterruptedException {
+      lock.lockInterruptibly();
+      try {
+         while(count == 0 && !closed){
+            notEmpty.await();
+         }
+         if(count == 0){
+            return -1;
+         }
+         int drained = Math.min(count, batch.length);
+         int first = Math.min(drained, lines.length - head);
+         System.arraycopy(lines, head, batch, 0, first);
+         Arrays.fill(lines, head, head + first, null);
+         if(first < drained){
+            System.arraycopy(lines, 0, batch, first, drained - first);
+            Arrays.fill(lines, 0, drained - first, null);
+         }
+         head = (head + drained) % lines.length;
+         count -= drained;
+         if(count <= capacity / 2){
+            resume();
+         }
+         return drained;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Stop accepting lines and end drain once the remaining lines are drained
+    */
+   public void close(){
+      lock.lock();
+      try {
+         closed = true;
+         resume();
+         notEmpty.signalAll();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Discard any lines and the ring, re-open the buffer and reset the counters
+    */
+   public void clear(){
+      lock.lock();
+      try {
+         lines = null;
+         head = 0;
+         count = 0;
+         closed = false;
+         added = 0;
+         pauses = 0;
+         resume();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return true if there are lines to drain or the buffer is closed
+    */
+   public boolean isPending(){
+      lock.lock();
+      try {
+         return count > 0 || closed;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return true if the source is paused until the watchers catch up
+    */
+   public boolean isPaused(){
+      lock.lock();
+      try {
+         return paused;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public long getAdded(){
+      lock.lock();
+      try {
+         return added;
+      } finally {
+         lock.unlock();
+      }
+   }
+   /**
+    * @return the number of times the source was paused since the last clear
+    */
+   public long getPauses(){
+      lock.lock();
+      try {
+         return pauses;
+      } finally {
+         lock.unlock();
+      }
+   }
+}
@@ -0,0 +1,214 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import io.hyperfoil.tools.yaup.StringUtil;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A parsed state variable pattern (e.g. <code>echo ${{name}} ${{other:default}}</code>).
+ * Templates are cached by the pattern and the prefix, separator, suffix, and javascript prefix used to parse them.
+ * A simple template only references plain variable names with optional literal defaults or javascript expressions
+ * (e.g. <code>${{= ${{count}} * 2}}</code> is not simple but <code>${{= count * 2}}</code> is) and can be populated
+ * without re-scanning the pattern. Anything else (nested patterns, quoted defaults, javascript with a separator)
+ * is not simple and must use StringUtil.populatePattern.
+ */
+public class PatternTemplate {
+
+   public static final int MAX_CACHE_SIZE = 4 * 1024;
+
+   private static final String JAVASCRIPT_CHARS = "()/*^+-";
+   private static final String QUOTE_CHARS = "\"'`";
+
+   private static final Map<String,Map<String,PatternTemplate>> cache = new ConcurrentHashMap<>();
+
+   public static PatternTemplate get(String pattern, String prefix, String separator, String suffix, String javascriptPrefix){
+      String settings = prefix + '\u0000' + separator + '\u0000' + suffix + '\u0000' + javascriptPrefix;
+      Map<String,PatternTemplate> templates = cache.computeIfAbsent(settings, (key) -> new ConcurrentHashMap<>());
+      PatternTemplate rtrn = templates.get(pattern);
+      if(rtrn == null){
+         if(templates.size() >= MAX_CACHE_SIZE){
+            templates.clear();
+         }
+         rtrn = compile(pattern, prefix, separator, suffix, javascriptPrefix);
+         templates.put(pattern, rtrn);
+      }
+      return rtrn;
+   }
+
+   public static PatternTemplate compile(String pattern, String prefix, String separator, String suffix, String javascriptPrefix){
+      //StringUtil.populatePattern assumes the default suffix length when replacing a pattern
+      if(suffix.length() != StringUtil.PATTERN_SUFFIX.length() || prefix.isEmpty() || separator.isEmpty() || suffix.isEmpty() ||
+         prefix.contains(separator) || prefix.contains(suffix) ||
+         separator.contains(prefix) || separator.contains(suffix) ||
+         suffix.contains(prefix) || suffix.contains(separator)){
+         return new PatternTemplate(pattern, prefix, null, null, null, null, null);
+      }
+      int count = 0;
+      for(int index = pattern.indexOf(prefix); index >= 0; index = pattern.indexOf(prefix, index + prefix.length())){
+         count++;
+      }
+      String[] literals = new String[count + 1];
+      String[] names = new String[count];
+      String[] defaults = new String[count];
+      String[] sources = new String[count];
+      boolean[] javascript = new boolean[count];
+      int start = 0;
+      for(int i=0; i<count; i++){
+         int nameStart = pattern.indexOf(prefix, start);
+         int end = pattern.indexOf(suffix, nameStart + prefix.length());
+         if(end < 0){
+            return new PatternTemplate(pattern, prefix, null, null, null, null, null);
+         }
+         String body = pattern.substring(nameStart + prefix.length(), end);
+         if(body.startsWith(javascriptPrefix) && !body.contains(prefix) && !body.contains(separator)){
+            literals[i] = pattern.substring(start, nameStart);
+            names[i] = body.substring(javascriptPrefix.length());
+            sources[i] = pattern.substring(nameStart, end + suffix.length());
+            javascript[i] = true;
+            start = end + suffix.length();
+            continue;
+         }
+         if(body.contains(prefix) || findAny(body, QUOTE_CHARS) >= 0){
+            return new PatternTemplate(pattern, prefix, null, null, null, null, null);
+         }
+         String name = body;
+         String defaultValue = null;
+         int separatorIndex = body.indexOf(separator);
+         if(separatorIndex >= 0){
+            if(body.indexOf(separator, separatorIndex + separator.length()) >= 0){
+               return new PatternTemplate(pattern, prefix, null, null, null, null, null);
+            }
+            name = body.substring(0, separatorIndex);
+            defaultValue = body.substring(separatorIndex + separator.length());
+         }
+         if(name.startsWith(javascriptPrefix) || findAny(name, JAVASCRIPT_CHARS) >= 0 || name.matches(".*?\\.\\.\\.\\s*[{\\[].*")){
+            return new PatternTemplate(pattern, prefix, null, null, null, null, null);
+         }
+         literals[i] = pattern.substring(start, nameStart);
+         names[i] = name;
+         defaults[i] = defaultValue;
+         start = end + suffix.length();
+      }
+      literals[count] = pattern.substring(start);
+      if(literals[count].contains(prefix)){
+         return new PatternTemplate(pattern, prefix, null, null, null, null, null);
+      }
+      return new PatternTemplate(pattern, prefix, literals, names, defaults, sources, javascript);
+   }
+
+   private static int findAny(String input, String chars){
+      for(int i=0; i<input.length(); i++){
+         if(chars.indexOf(input.charAt(i)) >= 0){
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   private final String pattern;
+   private final String prefix;
+   private final String[] literals;
+   private final String[] names;
+   private final String[] defaults;
+   private final String[] sources;
+   private final boolean[] javascript;
+   private final boolean hasJavascript;
+
+   private PatternTemplate(String pattern, String prefix, String[] literals, String[] names, String[] defaults, String[] sources, boolean[] javascript){
+      this.pattern = pattern;
+      this.prefix = prefix;
+      this.literals = literals;
+      this.names = names;
+      this.defaults = defaults;
+      this.sources = sources;
+      this.javascript = javascript;
+      boolean hasJavascript = false;
+      for(int i=0; javascript != null && i<javascript.length; i++){
+         hasJavascript |= javascript[i];
+      }
+      this.hasJavascript = hasJavascript;
+   }
+
+   public String getPattern(){return pattern;}
+
+   /**
+    * @return true if the pattern can be populated by populate
+    */
+   public boolean isSimple(){return names != null;}
+
+   /**
+    * @return true if the template has javascript expressions that need a JsEngine to populate
+    */
+   public boolean hasJavascript(){return hasJavascript;}
+
+   /**
+    * Populate a simple template without javascript using the values from map.
+    * @return the populated pattern or null if the result needs StringUtil.populatePattern
+    * (e.g. a value is missing or a value contains another pattern)
+    */
+   public String populate(Map<Object,Object> map){
+      return populate(map, null, Collections.emptyList());
+   }
+
+   /**
+    * Populate a simple template using the values from map and evaluate any javascript expressions with engine.
+    * The variables are resolved before any javascript runs so a template that needs StringUtil.populatePattern
+    * returns null without evaluating javascript that StringUtil.populatePattern would evaluate again.
+    * Javascript that fails or has no value leaves its pattern in the result, the same as StringUtil.populatePattern.
+    * @param evals code to evaluate before each javascript expression (e.g. helper functions)
+    * @return the populated pattern or null if the result needs StringUtil.populatePattern
+    * (e.g. a value is missing or a value contains another pattern)
+    */
+   public String populate(Map<Object,Object> map, JsEngine engine, Collection<String> evals){
+      if(!isSimple() || (hasJavascript && engine == null)){
+         return null;
+      }
+      if(names.length == 0){
+         return pattern;
+      }
+      String[] replacements = new String[names.length];
+      for(int i=0; i<names.length; i++){
+         if(javascript[i]){
+            continue;
+         }
+         String name = names[i];
+         Object value = map.containsKey(name) ? map.get(name) : null;
+         String replacement = value == null ? null : value.toString();
+         if(replacement == null || replacement.isEmpty()){
+            replacement = defaults[i] != null ? defaults[i] : replacement;
+         }
+         //a value that adds a pattern needs to be populated as well
+         if(replacement == null || replacement.contains(prefix)){
+            return null;
+         }
+         replacements[i] = replacement;
+      }
+      StringBuilder sb = new StringBuilder(pattern.length() + 16 * names.length);
+      for(int i=0; i<names.length; i++){
+         sb.append(literals[i]);
+         String replacement = replacements[i];
+         if(javascript[i]){
+            String name = names[i];
+            try {
+               Object result = engine.eval(name, map, evals);
+               replacement = result == null ? null : result.toString();
+            } catch (RuntimeException e){
+               replacement = null;
+            }
+            if(replacement == null || replacement.isEmpty()){
+               Object value = map.containsKey(name) ? map.get(name) : null;
+               replacement = value == null ? null : value.toString();
+            }
+            if(replacement == null || replacement.isEmpty()){
+               replacement = sources[i];
+            }
+         }
+         sb.append(replacement);
+      }
+      sb.append(literals[names.length]);
+      return sb.toString();
+   }
+}
@@ -132,8 +132,11 @@ public class PatternValuesMap implements Map<Object, Object>  , ProxyObject {
          Object rtrn = null;
          Cmd.Ref target = ref;
          do {
-            if (target.getCommand() != null && target.getCommand().hasWith(key.toString()) && ! target.getCommand().getWith(key.toString()).toString().contains(cmd.getPatternPrefix()+key.toString())) {
-               rtrn = target.getCommand().hasWith(key.toString()) ? target.getCommand().getWith(key.toString()) : null;
+            if (target.getCommand() != null && target.getCommand().hasWith(key.toString())) {
+               Object found = target.getCommand().getWith(key.toString());
+               if (found != null && !found.toString().contains(cmd.getPatternPrefix()+key.toString())) {
+                  rtrn = found;
+               }
             }
          } while ((target = target.getParent()) != null && rtrn == null);
          if( rtrn != null ){
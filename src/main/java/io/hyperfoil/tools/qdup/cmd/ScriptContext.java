@@ -2,11 +2,14 @@ package io.hyperfoil.tools.qdup.cmd;
 
 import io.hyperfoil.tools.qdup.Coordinator;
 import io.hyperfoil.tools.qdup.Host;
+import io.hyperfoil.tools.qdup.LatencyHistogram;
 import io.hyperfoil.tools.qdup.Local;
+import io.hyperfoil.tools.qdup.Metrics;
 import io.hyperfoil.tools.qdup.Run;
 import io.hyperfoil.tools.qdup.SshSession;
 import io.hyperfoil.tools.qdup.State;
 import io.hyperfoil.tools.qdup.cmd.impl.ScriptCmd;
+import io.hyperfoil.tools.qdup.cmd.impl.Sh;
 import io.hyperfoil.tools.yaup.AsciiArt;
 import io.hyperfoil.tools.yaup.PopulatePatternException;
 import io.hyperfoil.tools.yaup.StringUtil;
@@ -69,7 +72,7 @@ public class ScriptContext implements Context, Runnable{
 
     private static final AtomicReferenceFieldUpdater<ScriptContext,Cmd> currentCmdUpdater =
             AtomicReferenceFieldUpdater.newUpdater(ScriptContext.class,Cmd.class,"currentCmd");
-    private static final String CLOSE_QUEUE = "CLOSE_LINE_QUEUE_"+System.currentTimeMillis();
+    private static final int WATCH_BATCH_SIZE = 64;
 
     private final SshSession session;
     private final Cmd rootCmd;
@@ -79,17 +82,22 @@ public class ScriptContext implements Context, Runnable{
     private final SystemTimer timer;
     private ContextObserver observer = null;
     private Semaphore lineQueueSemaphore;
-    private BlockingQueue<String> lineQueue;
+    private LineBuffer lineQueue;
 
     private AtomicInteger sessionCounter = new AtomicInteger(1);
 
-    private List<ScheduledFuture<?>> timeouts;
+    private final List<TimerWheel.Timeout> timeouts = new ArrayList<>();//guarded by timeouts
+    private final List<Runnable> closeHooks = new CopyOnWriteArrayList<>();
+    private volatile Dispatcher dispatcher;
+    private boolean waiting = false;//guarded by this
 
     private volatile Cmd currentCmd;
     private final Map<String,Cmd> signalCmds = new HashMap<>();
 
     long startTime = -1;
     long updateTime = -1;
+    private volatile long queuedNanos = 0;
+    private long cmdStartNanos = 0;
 
     public String getContextId(){
         //TODO use a StringBuilder to correctly handle missing session or root
@@ -129,8 +137,12 @@ public class ScriptContext implements Context, Runnable{
             );
         }
         this.lineQueueSemaphore = new Semaphore(1);
-        this.lineQueue = new LinkedBlockingQueue<>();
-        this.timeouts = new LinkedList<>();
+        //pause the session output instead of dropping lines when the watchers fall behind
+        this.lineQueue = new LineBuffer(
+            LineBuffer.DEFAULT_CAPACITY,
+            ()->{ if(this.session!=null){ this.session.pauseOutput(); } },
+            ()->{ if(this.session!=null){ this.session.resumeOutput(); } }
+        );
     }
 
     public ScriptContext newChildContext(SystemTimer timer,Cmd root){
@@ -151,6 +163,13 @@ public class ScriptContext implements Context, Runnable{
 
     public Run getRun(){return run;}
 
+    @Override
+    public Metrics getMetrics(){return run == null ? null : run.getMetrics();}
+
+    private String getHostName(){
+        return session == null ? null : session.getHost().getShortHostName();
+    }
+
     private Logger getRunLogger(){return run.getRunLogger();}
 
     public SystemTimer getTimer(){return timer;}
@@ -171,8 +190,23 @@ public class ScriptContext implements Context, Runnable{
 
     public Coordinator getCoordinator(){return run.getCoordinator();}
 
+    @Override
+    public JsEngine getJsEngine(){return run.getJsEngine();}
+
+    /**
+     * Run hook when the context closes or aborts so a command waiting for this context does not wait forever.
+     * The hook can run more than once.
+     */
+    public void addCloseHook(Runnable hook){
+        closeHooks.add(hook);
+    }
+    private void runCloseHooks(){
+        closeHooks.forEach(Runnable::run);
+    }
+
     @Override
     public void close() {
+        runCloseHooks();
         checkClose();
     }
 
@@ -194,6 +228,7 @@ public class ScriptContext implements Context, Runnable{
     }
     public void abort(Boolean skipCleanup){
         run.abort(skipCleanup);
+        runCloseHooks();
     }
     public void done(){
         run.done();
@@ -202,7 +237,31 @@ public class ScriptContext implements Context, Runnable{
 
     @Override
     public void schedule(Runnable runnable, long delayMs) {
-        run.getDispatcher().getScheduler().schedule(runnable,delayMs,TimeUnit.MILLISECONDS);
+        run.getDispatcher().getTimerWheel().schedule(runnable,delayMs);
+    }
+
+    Dispatcher getDispatcher(){return dispatcher;}
+    void setDispatcher(Dispatcher dispatcher){this.dispatcher = dispatcher;}
+    boolean isWaiting(){return waiting;}
+    void setWaiting(boolean waiting){this.waiting = waiting;}
+
+    private void addTimeout(TimerWheel.Timeout timeout){
+        synchronized (timeouts){
+            timeouts.removeIf(TimerWheel.Timeout::isExpired);
+            timeouts.add(timeout);
+        }
+    }
+
+    /**
+     * Cancel the idle and timer timeouts of the current command
+     */
+    void cancelTimeouts(){
+        synchronized (timeouts){
+            if(!timeouts.isEmpty()){
+                timeouts.forEach(TimerWheel.Timeout::cancel);
+                timeouts.clear();
+            }
+        }
     }
 
     protected ContextObserver getObserver(){return observer;}
@@ -236,8 +295,7 @@ public class ScriptContext implements Context, Runnable{
     }
     @Override
     public void terminal(String output){
-        String filteredMessage = state.getSecretFilter().filter(output);
-        run.getRunLogger().info(filteredMessage);
+        run.getRunLog().info(null,getHost().getShortHostName(),output,state.getSecretFilter());
     }
     @Override
     public boolean isColorTerminal(){
@@ -253,8 +311,7 @@ public class ScriptContext implements Context, Runnable{
         }else{
             rootString = rootCmd.toString();
         }
-        String filteredMessage = state.getSecretFilter().filter(message);
-        getRunLogger().info("{}@{}:{}",rootString,getHost().getShortHostName(),filteredMessage);
+        run.getRunLog().info(rootString,getHost().getShortHostName(),message,state.getSecretFilter());
     }
     public void error(String message){
         String rootString;
@@ -265,25 +322,22 @@ public class ScriptContext implements Context, Runnable{
         }else{
             rootString = rootCmd.toString();
         }
-        String filteredMessage = state.getSecretFilter().filter(message);
-        if(isColorTerminal()){
-            getRunLogger().error(AsciiArt.ANSI_RED+"{}@{}:{}"+AsciiArt.ANSI_RESET,rootString,getHost().getShortHostName(),filteredMessage);
-        }else{
-            getRunLogger().error("{}@{}:{}",rootString,getHost().getShortHostName(),filteredMessage);
-        }
+        run.getRunLog().error(rootString,getHost().getShortHostName(),message,state.getSecretFilter(),isColorTerminal());
 
     }
 
     public void closeLineQueue(){
         //only close if something is listening
         //may need to send close before listener has the semaphore (e.g. tests)
-        lineQueue.add(CLOSE_QUEUE);
+        lineQueue.close();
     }
 
     @Override
     public void next(String output) {
         getTimer().start("next");
         Cmd cmd = getCurrentCmd();
+        recordCmd(cmd);
+        cancelTimeouts();
         if(!signalCmds.isEmpty()){
             signalCmds.forEach((name,onsignal)->{
                 getCoordinator().removeWaiter(name,onsignal);
@@ -312,6 +366,8 @@ public class ScriptContext implements Context, Runnable{
     public void skip(String output) {
         getTimer().start("skip");
         Cmd cmd = getCurrentCmd();
+        recordCmd(cmd);
+        cancelTimeouts();
 
         if(!signalCmds.isEmpty()){
             signalCmds.forEach((name,onsignal)->{
@@ -337,14 +393,29 @@ public class ScriptContext implements Context, Runnable{
 
         }
     }
+    private void recordCmd(Cmd cmd){
+        Metrics metrics = getMetrics();
+        if(cmd != null && metrics != null && cmdStartNanos != 0){
+            metrics.command(cmd.getClass().getSimpleName(), getHostName()).recordSince(cmdStartNanos);
+            cmdStartNanos = 0;
+        }
+    }
     protected void startCurrentCmd(){
         Run run = getRun();
         if(run!=null) {
-            getTimer().start("waiting in run queue");
+            queued();
             run.getDispatcher().submit(this);
         }
     }
 
+    /**
+     * Called before the context is submitted to the dispatcher to measure the time it waits in the queue
+     */
+    void queued(){
+        getTimer().start("waiting in run queue");
+        queuedNanos = System.nanoTime();
+    }
+
     @Override
     public void update(String output) {
         long timestamp = System.currentTimeMillis();
@@ -352,11 +423,17 @@ public class ScriptContext implements Context, Runnable{
         Cmd cmd = getCurrentCmd();
         if(cmd!=null){
             observerUpdate(cmd,output);
-            lineQueue.add(output);
+            if(cmd.hasWatchers()){
+                lineQueue.add(output);
+            }
         }
     }
     public boolean setCurrentCmd(Cmd current,Cmd next){
         currentCmd = next;
+        Dispatcher dispatcher = this.dispatcher;
+        if(dispatcher != null){
+            dispatcher.updateWaiting(this,next);
+        }
         boolean changed = true;//currentCmdUpdater.compareAndSet(this,current,next);
 
         if(logger.isTraceEnabled()) {
@@ -377,7 +454,7 @@ public class ScriptContext implements Context, Runnable{
     }
 
     private void addTimer(Cmd toWatch,Cmd toRun,long timeout){
-        run.getDispatcher().getScheduler().schedule(()->{
+        addTimeout(run.getDispatcher().getTimerWheel().schedule(()->{
             if(toWatch.equals(getCurrentCmd())){
                 toRun.doRun(""+timeout,new SyncContext(
                     this.getSession(),
@@ -388,11 +465,47 @@ public class ScriptContext implements Context, Runnable{
                    this
                 ));
             }
-        },timeout,TimeUnit.MILLISECONDS);
+        },timeout));
+    }
+
+    private void addIdleTimer(Cmd command,long delay){
+        addTimeout(run.getDispatcher().getTimerWheel().schedule(()->checkIdle(command),delay));
+    }
+
+    /**
+     * Warn when a sh command has not produced output for longer than its idle timer
+     */
+    private void checkIdle(Cmd command){
+        if(command != getCurrentCmd()){
+            return;
+        }
+        long timestamp = System.currentTimeMillis();
+        long idle = timestamp - getUpdateTime();
+        if(idle < command.getIdleTimer()){
+            addIdleTimer(command,command.getIdleTimer() - idle);
+            return;
+        }
+        String parentName = command.getParent() instanceof Script ? ((Script)command.getParent()).getName() : null;
+        logger.warn("{}Nanny found idle{}\n  command={}\n  host={}\n  contextId={} script={}\n  idle={}\n  lastLine={}",
+                isColorTerminal() ? AsciiArt.ANSI_RED : "",
+                isColorTerminal() ? AsciiArt.ANSI_RESET : "",
+                command,
+                getSession().getHost().getHostName(),
+                getContextId(),
+                getRootCmd() + (parentName == null ? "" : ":" + parentName),
+                String.format("%5.2f", (1.0 * timestamp - getUpdateTime()) / 1_000),
+                getSession().peekOutputTail());
+        addIdleTimer(command,command.getIdleTimer());
     }
 
     @Override
     public void run() {
+        long queued = queuedNanos;
+        Metrics metrics = getMetrics();
+        if(queued != 0 && metrics != null){
+            queuedNanos = 0;
+            metrics.queueWait(getHostName()).recordSince(queued);
+        }
         Cmd cmd = getCurrentCmd();
         String input = cmd != null && cmd.getPrevious() != null ? cmd.getPrevious().getOutput() : "";
         run(cmd,input);
@@ -403,7 +516,7 @@ public class ScriptContext implements Context, Runnable{
             } else {
                 observerPreStart(cmd);
                 getTimer().start(cmd.toString());
-                if (!lineQueue.isEmpty()) {//clear any unhandled output lines
+                if (lineQueue.isPending()) {//clear any unhandled output lines
                     //TODO log that we are clearing orphaned lines
                     //need to make sure we don't clear if another thread needs to pickup up the CLOSE_QUEUE
                     try{
@@ -420,6 +533,10 @@ public class ScriptContext implements Context, Runnable{
                 long timestamp = System.currentTimeMillis();
                 setStartTime(timestamp);
                 setUpdateTime(timestamp);
+                cmdStartNanos = System.nanoTime();
+                if (cmd instanceof Sh && cmd.hasIdleTimer() && !cmd.isSilent() && run != null) {
+                    addIdleTimer(cmd, cmd.getIdleTimer());
+                }
 
 
                 if (cmd.hasSignalWatchers()){
@@ -454,34 +571,56 @@ public class ScriptContext implements Context, Runnable{
                     }
                 }
                 if (cmd.hasWatchers()) {
-                    String line = "";
+                    List<Cmd> watchers = cmd.getWatchers();
+                    //one context per watcher for the whole command, each line resets the context to the watcher
+                    SyncContext[] watcherContexts = new SyncContext[watchers.size()];
+                    String[] batch = new String[WATCH_BATCH_SIZE];
+                    long lines = 0;
+                    long pausesBefore = lineQueue.getPauses();
+                    long watchStart = System.nanoTime();
+                    Metrics metrics = getMetrics();
+                    LatencyHistogram[] watcherTimes = new LatencyHistogram[watchers.size()];
                     try {
                         getTimer().start("watch.acquire:"+cmd.toString());
                         lineQueueSemaphore.acquire();
                         getTimer().start("watch.start:"+cmd.toString());
                         assert lineQueueSemaphore.availablePermits() == 0;
 
+                        for (int i = 0; i < watcherContexts.length; i++) {
+                            watcherTimes[i] = metrics == null ? null : metrics.watcher(watchers.get(i).getClass().getSimpleName(), getHostName());
+                            watcherContexts[i] = new SyncContext(
+                               this.getSession(),
+                               this.getState(),
+                               this.getRun(),
+                               this.getTimer(),
+                               cmd,
+                               this
+                            );
+                        }
                         cmd.doRun(input, this);
-                        while (!CLOSE_QUEUE.equals(line = lineQueue.take())) {
-                            logger.trace("watch.line: {}",line);
-                            for (Cmd watcher : cmd.getWatchers()) {
-                                SyncContext watcherContext = new SyncContext(
-                                   this.getSession(),
-                                   this.getState(),
-                                   this.getRun(),
-                                   this.getTimer(),
-                                   cmd,
-                                   this
-                                );
-                                try {
-
-                                    logger.trace("watcher.run {}",watcher);
-                                    watcherContext.forceCurrentCmd(watcher);
-                                    watcher.doRun(line, watcherContext);
-                                } catch (Exception e) {
-                                    logger.warn("Exception from watcher " + watcher + "\n  curentCmd=" + watcherContext.getCurrentCmd(), e);
+                        int count;
+                        while ((count = lineQueue.drain(batch)) >= 0) {
+                            for (int b = 0; b < count; b++) {
+                                String line = batch[b];
+                                batch[b] = null;
+                                logger.trace("watch.line: {}",line);
+                                for (int i = 0; i < watcherContexts.length; i++) {
+                                    Cmd watcher = watchers.get(i);
+                                    SyncContext watcherContext = watcherContexts[i];
+                                    long watcherStart = System.nanoTime();
+                                    try {
+                                        logger.trace("watcher.run {}",watcher);
+                                        watcherContext.forceCurrentCmd(watcher);
+                                        watcher.doRun(line, watcherContext);
+                                    } catch (Exception e) {
+                                        logger.warn("Exception from watcher " + watcher + "\n  curentCmd=" + watcherContext.getCurrentCmd(), e);
+                                    }
+                                    if (watcherTimes[i] != null) {
+                                        watcherTimes[i].recordSince(watcherStart);
+                                    }
                                 }
                             }
+                            lines += count;
                         }
                     } catch (InterruptedException e) {
                         e.printStackTrace();
@@ -489,6 +628,12 @@ public class ScriptContext implements Context, Runnable{
                         getTimer().start("watch.release:"+cmd.toString());
                         lineQueueSemaphore.release();
                         assert lineQueueSemaphore.availablePermits() == 1;
+                        long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - watchStart));
+                        long pauses = lineQueue.getPauses() - pausesBefore;
+                        if (pauses > 0) {
+                            logger.debug("{} paused the session output {} times for the watchers to catch up", cmd, pauses);
+                        }
+                        logger.debug("{} watched {} lines in {}ms ({} lines/s)", cmd, lines, elapsedMs, lines * 1000 / elapsedMs);
                     }
                 } else {
                     cmd.doRun(input, this);
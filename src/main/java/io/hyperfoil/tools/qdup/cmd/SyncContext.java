@@ -3,6 +3,7 @@ package io.hyperfoil.tools.qdup.cmd;
 import io.hyperfoil.tools.qdup.Coordinator;
 import io.hyperfoil.tools.qdup.Host;
 import io.hyperfoil.tools.qdup.Local;
+import io.hyperfoil.tools.qdup.Metrics;
 import io.hyperfoil.tools.qdup.Run;
 import io.hyperfoil.tools.qdup.SshSession;
 import io.hyperfoil.tools.qdup.State;
@@ -91,8 +92,7 @@ public class SyncContext implements Context, Runnable{
 
     @Override
     public void terminal(String output){
-        String filteredMessage = state.getSecretFilter().filter(output);
-        run.getRunLogger().info(filteredMessage);
+        run.getRunLog().info(null,getHostName(),output,state.getSecretFilter());
     }
     @Override
     public boolean isColorTerminal(){
@@ -134,14 +134,16 @@ public class SyncContext implements Context, Runnable{
 
     @Override
     public void log(String message) {
-        String filteredMessage = state.getSecretFilter().filter(message);
-        getRunLogger().info(filteredMessage);
+        run.getRunLog().info(null,getHostName(),message,state.getSecretFilter());
     }
 
     @Override
     public void error(String message) {
-        String filteredMessage = state.getSecretFilter().filter(message);
-        getRunLogger().error(filteredMessage);
+        run.getRunLog().error(null,getHostName(),message,state.getSecretFilter(),false);
+    }
+
+    private String getHostName() {
+        return session == null ? null : session.getHost().getShortHostName();
     }
 
 
@@ -154,6 +156,11 @@ public class SyncContext implements Context, Runnable{
         return timer;
     }
 
+    @Override
+    public Metrics getMetrics() {
+        return run == null ? null : run.getMetrics();
+    }
+
     @Override
     public String getRunOutputPath() {
         return run.getOutputPath();
@@ -205,7 +212,7 @@ public class SyncContext implements Context, Runnable{
 
     @Override
     public void schedule(Runnable runnable, long delayMs) {
-        run.getDispatcher().getScheduler().schedule(runnable,delayMs,TimeUnit.MILLISECONDS);
+        run.getDispatcher().getTimerWheel().schedule(runnable,delayMs);
     }
 
     @Override
@@ -213,6 +220,11 @@ public class SyncContext implements Context, Runnable{
         return run.getCoordinator();
     }
 
+    @Override
+    public JsEngine getJsEngine() {
+        return run.getJsEngine();
+    }
+
     @Override
     public void close() {
         //TODO should this also close the session
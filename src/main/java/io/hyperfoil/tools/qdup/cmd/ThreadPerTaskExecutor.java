@@ -0,0 +1,166 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Start a new thread for each task instead of re-using pooled threads. This is meant for virtual threads where a
+ * thread is cheaper than a queue entry and a task that blocks on a shell should not hold a pooled carrier.
+ * The number of tasks that run at the same time is limited by a semaphore that each new thread acquires before it
+ * runs its task, so the caller of execute never blocks.
+ */
+public class ThreadPerTaskExecutor extends AbstractExecutorService {
+
+    private final ThreadFactory factory;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition terminated = lock.newCondition();
+    private volatile boolean shutdown = false;
+    private volatile boolean stopped = false;
+    private int pending = 0;
+
+    /**
+     * @param factory creates the thread for each task
+     * @param maxConcurrent the maximum number of tasks that run at the same time
+     */
+    public ThreadPerTaskExecutor(ThreadFactory factory, int maxConcurrent){
+        this.factory = factory;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.permits = new Semaphore(this.maxConcurrent);
+    }
+
+    public int getMaxConcurrent(){return maxConcurrent;}
+
+    /**
+     * @return the number of tasks that are running
+     */
+    public int getActiveCount(){return maxConcurrent - permits.availablePermits();}
+
+    /**
+     * @return the number of threads that are running or waiting for a permit
+     */
+    public int getThreadCount(){return threads.size();}
+
+    @Override
+    public void execute(Runnable task){
+        lock.lock();
+        try {
+            if(shutdown){
+                throw new RejectedExecutionException("executor is shutdown");
+            }
+            pending++;
+        } finally {
+            lock.unlock();
+        }
+        Thread thread;
+        try {
+            thread = factory.newThread(() -> run(task));
+        } catch (RuntimeException e){
+            done();
+            throw new RejectedExecutionException(e);
+        }
+        if(thread == null){
+            done();
+            throw new RejectedExecutionException("thread factory did not create a thread");
+        }
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void run(Runnable task){
+        try {
+            permits.acquire();
+            try {
+                if(!stopped){
+                    task.run();
+                }
+            } finally {
+                permits.release();
+            }
+        } catch (InterruptedException e){
+            //interrupted by shutdownNow before the task started
+            Thread.currentThread().interrupt();
+        } finally {
+            threads.remove(Thread.currentThread());
+            done();
+        }
+    }
+
+    private void done(){
+        lock.lock();
+        try {
+            pending--;
+            if(pending == 0){
+                terminated.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown(){
+        lock.lock();
+        try {
+            shutdown = true;
+            if(pending == 0){
+                terminated.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Interrupt every thread. Tasks that are still waiting for a permit do not run.
+     * The waiting tasks are not queued so the returned list is always empty.
+     */
+    @Override
+    public List<Runnable> shutdownNow(){
+        stopped = true;
+        shutdown();
+        threads.forEach(Thread::interrupt);
+        return new ArrayList<>();
+    }
+
+    @Override
+    public boolean isShutdown(){return shutdown;}
+
+    @Override
+    public boolean isTerminated(){
+        lock.lock();
+        try {
+            return shutdown && pending == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while(!(shutdown && pending == 0)){
+                if(remaining <= 0){
+                    return false;
+                }
+                remaining = terminated.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel for the idle, timer and wait-for timeouts of the Dispatcher.
+ * Scheduling and cancelling add the timeout to a queue that the wheel thread moves into a bucket (or out of its bucket)
+ * on the next tick, so both are O(1) for the caller and cancelled timeouts never reach the executor.
+ * Timeouts fire on the tick after their deadline, so the precision is the tick duration.
+ * The wheel thread starts with the first timeout and stops after it has been idle for a second.
+ */
+public class TimerWheel {
+
+    final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    public static final long DEFAULT_TICK_MS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final long IDLE_STOP_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    public interface Timeout {
+        /**
+         * @return true if the timeout was pending and will not run
+         */
+        boolean cancel();
+        boolean isCancelled();
+        boolean isExpired();
+    }
+
+    private class Entry implements Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds;
+        //only used by the wheel thread
+        private Bucket bucket;
+        private Entry next;
+        private Entry previous;
+
+        private Entry(Runnable task, long deadline){
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel(){
+            if(!state.compareAndSet(PENDING, CANCELLED)){
+                return false;
+            }
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+        @Override
+        public boolean isCancelled(){return state.get() == CANCELLED;}
+        @Override
+        public boolean isExpired(){return state.get() == EXPIRED;}
+
+        private void expire(){
+            if(!state.compareAndSet(PENDING, EXPIRED)){
+                return;
+            }
+            pending.decrementAndGet();
+            expired.incrementAndGet();
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e){
+                logger.debug("executor rejected timer task, running on the wheel thread");
+                run(task);
+            } catch (RuntimeException e){
+                logger.error("timer task failed", e);
+            }
+        }
+    }
+
+    private class Bucket {
+        private Entry head;
+        private Entry tail;
+
+        private void add(Entry entry){
+            entry.bucket = this;
+            inWheel++;
+            if(head == null){
+                head = tail = entry;
+            }else{
+                tail.next = entry;
+                entry.previous = tail;
+                tail = entry;
+            }
+        }
+
+        private Entry remove(Entry entry){
+            Entry next = entry.next;
+            if(entry.previous != null){
+                entry.previous.next = next;
+            }
+            if(next != null){
+                next.previous = entry.previous;
+            }
+            if(entry == head){
+                head = next;
+            }
+            if(entry == tail){
+                tail = entry.previous;
+            }
+            entry.previous = null;
+            entry.next = null;
+            entry.bucket = null;
+            inWheel--;
+            return next;
+        }
+
+        private void expire(){
+            Entry entry = head;
+            while(entry != null){
+                if(entry.isCancelled()){
+                    entry = remove(entry);
+                }else if(entry.remainingRounds <= 0){
+                    Entry toExpire = entry;
+                    entry = remove(entry);
+                    toExpire.expire();
+                }else{
+                    entry.remainingRounds--;
+                    entry = entry.next;
+                }
+            }
+        }
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final Queue<Entry> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicLong pending = new AtomicLong(0);
+    private final AtomicLong expired = new AtomicLong(0);
+
+    //only used by the wheel thread
+    private long startNanos;
+    private long tick;
+    private int inWheel;
+
+    public TimerWheel(String name, Executor executor){
+        this(name, DEFAULT_TICK_MS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE, executor);
+    }
+    /**
+     * @param executor runs the expired tasks so a slow task does not delay the other timeouts
+     */
+    public TimerWheel(String name, long tickDuration, TimeUnit unit, int wheelSize, Executor executor){
+        this.name = name;
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for(int i = 0; i < size; i++){
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.executor = executor;
+    }
+
+    public long getTickMs(){return TimeUnit.NANOSECONDS.toMillis(tickNanos);}
+    public long getPending(){return pending.get();}
+    public long getExpired(){return expired.get();}
+
+    public Timeout schedule(Runnable task, long delayMs){
+        return schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit){
+        Entry entry = new Entry(task, System.nanoTime() + Math.max(0, unit.toNanos(delay)));
+        pending.incrementAndGet();
+        added.add(entry);
+        if(running.compareAndSet(false, true)){
+            start();
+        }
+        return entry;
+    }
+
+    private void start(){
+        Thread thread = new Thread(this::work, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void work(){
+        //the wheel is empty when the thread starts so ticks can be counted from now
+        startNanos = System.nanoTime();
+        tick = 0;
+        long idleSince = startNanos;
+        while(true){
+            long now = waitForNextTick();
+            removeCancelled();
+            transferAdded();
+            wheel[(int)(tick & mask)].expire();
+            tick++;
+            if(inWheel > 0 || !added.isEmpty()){
+                idleSince = now;
+            }else if(now - idleSince > IDLE_STOP_NS){
+                //only the thread that holds running can change the buckets, later cancels wait for the next thread
+                removeCancelled();
+                running.set(false);
+                //a timeout added after the check must not be left without a thread
+                if(added.isEmpty() || !running.compareAndSet(false, true)){
+                    return;
+                }
+                idleSince = now;
+            }
+        }
+    }
+
+    private long waitForNextTick(){
+        long deadline = startNanos + (tick + 1) * tickNanos;
+        long now;
+        while((now = System.nanoTime()) < deadline){
+            LockSupport.parkNanos(this, deadline - now);
+        }
+        return now;
+    }
+
+    private void removeCancelled(){
+        Entry entry;
+        while((entry = cancelled.poll()) != null){
+            if(entry.bucket != null){
+                entry.bucket.remove(entry);
+            }
+        }
+    }
+
+    private void transferAdded(){
+        Entry entry;
+        while((entry = added.poll()) != null){
+            if(entry.isCancelled()){
+                continue;
+            }
+            long calculated = Math.max(0, (entry.deadline - startNanos) / tickNanos);
+            entry.remainingRounds = (calculated - tick) / wheel.length;
+            wheel[(int)(Math.max(calculated, tick) & mask)].add(entry);
+        }
+    }
+
+    private static void run(Runnable task){
+        try {
+            task.run();
+        } catch (RuntimeException e){
+            logger.error("timer task failed", e);
+        }
+    }
+}
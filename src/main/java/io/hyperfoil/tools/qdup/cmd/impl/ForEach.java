@@ -1,7 +1,11 @@
 package io.hyperfoil.tools.qdup.cmd.impl;
 
+import io.hyperfoil.tools.qdup.Run;
+import io.hyperfoil.tools.qdup.SshSession;
 import io.hyperfoil.tools.qdup.cmd.LoopCmd;
+import io.hyperfoil.tools.qdup.cmd.ScriptContext;
 import io.hyperfoil.tools.qdup.stream.MultiStream;
+import io.hyperfoil.tools.qdup.stream.OutputSequence;
 import io.hyperfoil.tools.yaup.AsciiArt;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
@@ -10,35 +14,166 @@ import io.hyperfoil.tools.qdup.cmd.Context;
 import io.hyperfoil.tools.yaup.StringUtil;
 import io.hyperfoil.tools.yaup.json.Json;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
 
 public class ForEach extends LoopCmd {
 
    final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
 
+   /**
+    * The entries of one loop shared by the parallel workers. The last worker to finish moves the forking context
+    * past the for-each. If a worker context closes or aborts before it runs out of entries the forking context
+    * aborts instead, unless the dispatcher already stopped it.
+    */
+   static class Fork {
+      private static final Object END = new Object();
+
+      private final String name;
+      private final List<Object> split;
+      private final BufferedReader lines;
+      private final Context context;
+      private final String input;
+      private final BooleanSupplier running;
+      private final AtomicInteger active = new AtomicInteger(0);
+      private final Set<Context> finished = ConcurrentHashMap.newKeySet();
+      private volatile boolean incomplete = false;
+      private int index = 0;
+
+      Fork(String name, List<Object> split, BufferedReader lines, Context context, String input, BooleanSupplier running){
+         this.name = name;
+         this.split = split;
+         this.lines = lines;
+         this.context = context;
+         this.input = input;
+         this.running = running;
+      }
+
+      void start(int workers){
+         active.set(workers);
+      }
+
+      private synchronized Object next(){
+         if(lines != null){
+            try {
+               String line = lines.readLine();
+               return line == null ? END : line;
+            } catch (IOException e) {
+               context.error("for-each: " + name + " failed to read output " + e.getMessage());
+               return END;
+            }
+         }
+         return index < split.size() ? iterationValue(split.get(index++)) : END;
+      }
+
+      /**
+       * Only the first call for each worker context is counted
+       * @param completed false if the worker context closed or aborted before it ran out of entries
+       */
+      void done(Context worker, boolean completed){
+         if(!finished.add(worker)){
+            return;
+         }
+         if(!completed){
+            incomplete = true;
+         }
+         if(active.decrementAndGet() == 0){
+            if(lines != null){
+               try {
+                  lines.close();
+               } catch (IOException e) {
+                  logger.debug("failed to close output for for-each:{}", name, e);
+               }
+            }
+            if(!incomplete){
+               context.skip(input);
+            }else if(running.getAsBoolean()){
+               context.error("for-each: " + name + " a parallel worker ended before the loop finished");
+               context.abort(false);
+            }
+         }
+      }
+   }
+
+   /**
+    * Runs the for-each commands for the next entry of the Fork until there are no more entries
+    */
+   private static class Worker extends LoopCmd {
+      private final Fork fork;
+      private Object value;
+
+      private Worker(Fork fork){
+         super(false);
+         this.fork = fork;
+      }
+
+      @Override
+      public void run(String input, Context context) {
+         value = fork.next();
+         if(value == Fork.END){
+            value = null;
+            context.skip(input);
+            fork.done(context, true);
+         }else{
+            with(fork.name, value);
+            context.next(value.toString());
+         }
+      }
+
+      @Override
+      public Cmd copy() {
+         return new Worker(fork);
+      }
+
+      @Override
+      public String toString() {
+         return "for-each-worker: " + fork.name;
+      }
+
+      @Override
+      public String getLogOutput(String output, Context context) {
+         return value == null ? toString() : "for-each: " + fork.name + " = " + value;
+      }
+   }
+
    private String name;
    private String populatedName;
 
    private String declaredInput;
-   private String loadedInput;
+   private String declaredParallel;
    private String lastInput;
    private final List<Object> split = new ArrayList<>();
    private int index = -1;
+   //reads one line per iteration when the input was too large to keep in memory
+   private BufferedReader lines;
+   private String line;
 
    public ForEach(String name) {
       this(name, "");
    }
 
    public ForEach(String name, String input) {
+      this(name, input, "");
+   }
+
+   /**
+    * @param parallel the number of entries to run at the same time, each on a copy of the session
+    */
+   public ForEach(String name, String input, String parallel) {
       super(false);
       this.name = name;
       this.populatedName = name;
       this.declaredInput = input == null ? "" : input;
-      this.loadedInput = declaredInput;
+      this.declaredParallel = parallel == null ? "" : parallel;
       this.lastInput = null;
 
    }
@@ -53,6 +188,12 @@ public class ForEach extends LoopCmd {
    public String getDeclaredInput() {
       return declaredInput;
    }
+   public boolean hasParallel(){
+      return !declaredParallel.isBlank();
+   }
+   public String getParallel() {
+      return declaredParallel;
+   }
 
    public static List<Object> split(String toSplit) {
       //fixes bug where '\','n' in json value would be seen as a newline when passing the string to fromJs
@@ -97,31 +238,33 @@ public class ForEach extends LoopCmd {
 
          int callbackRunCount = getCallback().getRunCount();
 
-         String populatedDeclaredInput = Cmd.populateStateVariables(declaredInput, this, context);
-         //if we need to load from declaredInput
-         //this only works if the iteration array has not changed, we need to track the index in the array not the array itself?
-         if (!declaredInput.isEmpty() && !populatedDeclaredInput.isEmpty() && (split.isEmpty() || !this.loadedInput.equalsIgnoreCase(populatedDeclaredInput))) {
-            clearLoopState();
-            split.addAll(split(populatedDeclaredInput));
-            this.loadedInput = populatedDeclaredInput;//set loadedInput to the string rep of what we loaded
-            logger.debug("for-each:{} input={} split={}", name, input, split);
-            //if we need to load from input
-         } else if ((declaredInput.isEmpty() || populatedDeclaredInput.isEmpty()) && (split.isEmpty() || !this.loadedInput.equals(input))) {
-            clearLoopState();
-            split.addAll(split(input));
-            this.loadedInput = input;
+         //only load at the start of a loop, later iterations use the index instead of re-populating the input
+         if (isEmptyLoopState()) {
+            load(input, context);
+            if (!isEmptyLoopState() && fork(input, context)) {
+               return;
+            }
          }
-         if (!split.isEmpty()) {
+         if (lines != null) {
+            try {
+               line = lines.readLine();
+            } catch (IOException e) {
+               context.error("for-each: " + name + " failed to read output " + e.getMessage());
+               line = null;
+            }
+            if (line != null) {
+               populatedName = Cmd.populateStateVariables(this.name, this, context);
+               with(populatedName, line);
+               context.next(line);
+            } else {
+               clearLoopState();//we finished looping, next run() should start a new loop
+               context.skip(input);
+            }
+         } else if (!split.isEmpty()) {
             populatedName = Cmd.populateStateVariables(this.name, this, context);
             index++;
             if (index < split.size()) {
-               Object value = split.get(index);
-               if (value == null) {
-                  value = "";
-               }
-               if (value instanceof String) {
-                  value = ((String) value).replaceAll("\r|\n", "");//defensive agaisnt trailing newline characters
-               }
+               Object value = iterationValue(split.get(index));
                with(populatedName, value);
                context.next(value.toString());
             } else {
@@ -139,6 +282,116 @@ public class ForEach extends LoopCmd {
       }
    }
 
+   private static Object iterationValue(Object value) {
+      if (value == null) {
+         value = "";
+      }
+      if (value instanceof String) {
+         value = ((String) value).replaceAll("\r|\n", "");//defensive agaisnt trailing newline characters
+      }
+      return value;
+   }
+
+   /**
+    * Load the entries from the declared input or from the input if the declared input is empty
+    */
+   private void load(String input, Context context) throws IOException {
+      String populatedDeclaredInput = declaredInput.isEmpty() ? "" : Cmd.populateStateVariables(declaredInput, this, context);
+      if (!populatedDeclaredInput.isEmpty()) {
+         split.addAll(split(populatedDeclaredInput));
+         logger.debug("for-each:{} input={} split={}", name, input, split);
+      } else {
+         CharSequence sequence = getInputSequence(input);
+         if (sequence instanceof OutputSequence && !isJsonLike((OutputSequence) sequence) && ((OutputSequence) sequence).getLineCount() > 1) {
+            //read large output one line at a time
+            lines = ((OutputSequence) sequence).lines();
+         } else {
+            //json and comma separated values need all of the input
+            try {
+               split.addAll(split(sequence.toString()));
+            } catch (IllegalStateException e) {
+               context.error("for-each: " + name + " cannot split the output, " + e.getMessage());
+            }
+         }
+      }
+   }
+
+   /**
+    * @return true if the output starts and ends like a json array or object
+    */
+   private static boolean isJsonLike(OutputSequence sequence) {
+      String start = sequence.substring(0, Math.min(64, sequence.longLength())).trim();
+      String end = sequence.tail(64).trim();
+      if (start.isEmpty() || end.isEmpty()) {
+         return false;
+      }
+      char first = start.charAt(0);
+      char last = end.charAt(end.length() - 1);
+      return (first == '[' && last == ']') || (first == '{' && last == '}');
+   }
+
+   /**
+    * Run the loop with parallel workers, each in a new ScriptContext with a copy of the session and state.
+    * The context moves to the next command once every worker finishes.
+    * @return false if the loop should run on the current context
+    */
+   private boolean fork(String input, Context context) {
+      if (!hasParallel() || !(context instanceof ScriptContext) || context.getSession() == null) {
+         return false;
+      }
+      int workers;
+      String populatedParallel = Cmd.populateStateVariables(declaredParallel, this, context);
+      try {
+         workers = Integer.parseInt(populatedParallel.trim());
+      } catch (NumberFormatException e) {
+         context.error("for-each: " + name + " parallel must be a number but was " + populatedParallel);
+         return false;
+      }
+      if (lines == null) {
+         workers = Math.min(workers, split.size());
+      }
+      Run run = ((ScriptContext) context).getRun();
+      if (workers <= 1 || run == null) {
+         return false;
+      }
+      populatedName = Cmd.populateStateVariables(this.name, this, context);
+      Fork fork = new Fork(populatedName, new ArrayList<>(split), lines, context, input, run.getDispatcher()::isRunning);
+      List<ScriptContext> forked = new ArrayList<>();
+      for (int i = 0; i < workers; i++) {
+         SshSession session = context.getSession().openCopy();
+         if (!session.isOpen()) {
+            logger.warn("for-each:{} failed to open session {} of {}", populatedName, i + 1, workers);
+            session.close();
+            continue;
+         }
+         Worker worker = new Worker(fork);
+         worker.loadWith(this);
+         for (Cmd then : getThens()) {
+            worker.then(then.deepCopy());
+         }
+         ScriptContext workerContext = new ScriptContext(
+            session,
+            context.getState().clone(),
+            run,
+            context.getTimer().start(populatedName + "-" + i, true),
+            worker,
+            context.checkExitCode()
+         );
+         workerContext.addCloseHook(() -> fork.done(workerContext, false));
+         forked.add(workerContext);
+      }
+      if (forked.isEmpty()) {
+         return false;
+      }
+      //the fork owns the entries now, the next run() starts a new loop
+      split.clear();
+      lines = null;
+      index = -1;
+      fork.start(forked.size());
+      forked.forEach(run.getDispatcher()::addScriptContext);
+      return true;
+   }
+
    private boolean isFirstCall() {
       return lastInput == null;
    }
@@ -154,15 +407,24 @@ public class ForEach extends LoopCmd {
    private void clearLoopState() {
       index = -1;
       split.clear();
+      line = null;
+      if (lines != null) {
+         try {
+            lines.close();
+         } catch (IOException e) {
+            logger.debug("failed to close output for for-each:{}", name, e);
+         }
+         lines = null;
+      }
    }
 
    private boolean isEmptyLoopState() {
-      return split.isEmpty() && index == -1;
+      return split.isEmpty() && lines == null && index == -1;
    }
 
    @Override
    public Cmd copy() {
-      return new ForEach(this.name, this.declaredInput);
+      return new ForEach(this.name, this.declaredInput, this.declaredParallel);
    }
 
 
@@ -173,7 +435,9 @@ public class ForEach extends LoopCmd {
 
    @Override
    public String getLogOutput(String output, Context context) {
-      if (!split.isEmpty() && index < split.size()) {
+      if (line != null) {
+         return "for-each: " + name + " = " + line;
+      } else if (!split.isEmpty() && index < split.size()) {
          return "for-each: " + name + " = " + split.get(index);
       } else {
          return "for-each: " + name;
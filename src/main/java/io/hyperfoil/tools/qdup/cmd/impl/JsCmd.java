@@ -3,7 +3,6 @@ package io.hyperfoil.tools.qdup.cmd.impl;
 import io.hyperfoil.tools.qdup.cmd.Cmd;
 import io.hyperfoil.tools.qdup.cmd.PatternValuesMap;
 import io.hyperfoil.tools.qdup.cmd.Context;
-import io.hyperfoil.tools.yaup.StringUtil;
 import io.hyperfoil.tools.yaup.json.Json;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
@@ -46,7 +45,7 @@ public class JsCmd extends Cmd {
 
                 Object rtrn = null;
                 try{
-                    Object result = StringUtil.jsEval(populatedCodeString,jsInput,map);
+                    Object result = context.getJsEngine().eval(populatedCodeString,jsInput,map);
                     rtrn = result;
                 }catch( RuntimeException ise){
                     //todo; raise ISE
@@ -3,9 +3,11 @@ package io.hyperfoil.tools.qdup.cmd.impl;
 import io.hyperfoil.tools.qdup.cmd.Cmd;
 import io.hyperfoil.tools.qdup.cmd.CmdWithElse;
 import io.hyperfoil.tools.qdup.cmd.Context;
+import io.hyperfoil.tools.qdup.stream.OutputSequence;
 import io.hyperfoil.tools.yaup.StringUtil;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -13,6 +15,80 @@ import java.util.regex.PatternSyntaxException;
 
 public class Regex extends CmdWithElse {
 
+   public static final int MAX_CACHED_PATTERNS = 64;
+
+   /**
+    * A populated pattern after the named capture groups are renamed and the pattern is compiled
+    */
+   private static class CompiledPattern {
+      private final String newPattern;
+      private final Pattern pattern;
+      private final Map<String, String> renames;
+      private final List<String> names;
+
+      private CompiledPattern(String newPattern, Pattern pattern, Map<String, String> renames, List<String> names) {
+         this.newPattern = newPattern;
+         this.pattern = pattern;
+         this.renames = renames;
+         this.names = names;
+      }
+   }
+
+   /**
+    * LRU cache of compiled patterns keyed by the populated pattern, shared by all copies of a Regex
+    */
+   private static class PatternCache {
+      private final Map<String, CompiledPattern> patterns = new LinkedHashMap<>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, CompiledPattern> eldest) {
+            return size() > MAX_CACHED_PATTERNS;
+         }
+      };
+      private final AtomicLong hits = new AtomicLong(0);
+      private final AtomicLong misses = new AtomicLong(0);
+
+      private CompiledPattern get(String populatedPattern) throws PatternSyntaxException {
+         CompiledPattern rtrn;
+         synchronized (patterns) {
+            rtrn = patterns.get(populatedPattern);
+         }
+         if (rtrn != null) {
+            hits.incrementAndGet();
+            return rtrn;
+         }
+         misses.incrementAndGet();
+         rtrn = compile(populatedPattern);
+         synchronized (patterns) {
+            patterns.put(populatedPattern, rtrn);
+         }
+         return rtrn;
+      }
+   }
+
+   private static CompiledPattern compile(String populatedPattern) throws PatternSyntaxException {
+      String newPattern = populatedPattern;
+      //key is a regex friendly capture name and message is the user provided capture name
+      LinkedHashMap<String, String> renames = new LinkedHashMap<>();
+      Matcher fieldMatcher = NAMED_CAPTURE.matcher(populatedPattern);
+
+      while (fieldMatcher.find()) {
+         String realName = fieldMatcher.group(1);
+         String compName = realName.replaceAll("[\\*\\.\\\\_]", "x");
+         if (!compName.equals(realName)) {
+            newPattern = newPattern.replace(realName, compName);
+         }
+         renames.put(compName, realName);
+      }
+      Pattern pattern = Pattern.compile(newPattern, Pattern.DOTALL);
+      fieldMatcher = NAMED_CAPTURE.matcher(newPattern);
+      List<String> names = new LinkedList<>();
+      while (fieldMatcher.find()) {
+         names.add(fieldMatcher.group(1));
+      }
+      return new CompiledPattern(newPattern, pattern, renames, names);
+   }
+
+   private final PatternCache patternCache;
    private String pattern;
    private String patternString;
    private boolean matched = false;
@@ -25,6 +101,11 @@ public class Regex extends CmdWithElse {
    }
 
    public Regex(String pattern, boolean miss) {
+      this(pattern, miss, new PatternCache());
+   }
+
+   private Regex(String pattern, boolean miss, PatternCache patternCache) {
+      this.patternCache = patternCache;
       this.pattern = pattern;
       this.miss = miss;
       this.patternString = StringUtil.removeQuotes(pattern).replaceAll("\\\\\\\\(?=[dDsSwW\\(\\)remo])", "\\\\");
@@ -50,6 +131,16 @@ public class Regex extends CmdWithElse {
       return patternString;
    }
 
+   /**
+    * @return the number of executions (of this Regex and its copies) that re-used a compiled pattern
+    */
+   public long getCacheHits(){return patternCache.hits.get();}
+
+   /**
+    * @return the number of executions (of this Regex and its copies) that had to compile the pattern
+    */
+   public long getCacheMisses(){return patternCache.misses.get();}
+
    @Override
    public void run(String input, Context context) {
       ran = true;
@@ -58,37 +149,30 @@ public class Regex extends CmdWithElse {
 
       matches.clear();
 
-      //key is a regex friendly capture name and message is the user provided capture name
-      LinkedHashMap<String, String> renames = new LinkedHashMap<>();
-      Matcher fieldMatcher = NAMED_CAPTURE.matcher(populatedPattern);
-
-      while (fieldMatcher.find()) {
-         String realName = fieldMatcher.group(1);
-         String compName = realName.replaceAll("[\\*\\.\\\\_]", "x");
-         if (!compName.equals(realName)) {
-            newPattern = newPattern.replace(realName, compName);
-         }
-         renames.put(compName, realName);
-      }
       try {
-         Pattern pattern = Pattern.compile(newPattern, Pattern.DOTALL);
+         CompiledPattern compiled = patternCache.get(populatedPattern);
+         newPattern = compiled.newPattern;
+         Pattern pattern = compiled.pattern;
 
-         Matcher matcher = pattern.matcher(input);
+         //match against all of the output even when it was too large to keep in memory
+         CharSequence sequence = getInputSequence(input);
+         if (sequence instanceof OutputSequence && !((OutputSequence) sequence).isIndexable()) {
+            context.error("regex: " + populatedPattern + " cannot match " + ((OutputSequence) sequence).longLength() + " characters of output");
+            context.abort(false);
+            return;
+         }
+         Matcher matcher = pattern.matcher(sequence);
 
          //full line matching only if the pattern specifies start of line
          matched = newPattern.startsWith("^") ? matcher.matches() : matcher.find();
          if (matched == !miss) {//if matched and !miss or miss and !match
             logger.trace("{} match {} ", this, input);
             if (!miss) { //cannot populate name capture groups for miss becasue it didn't match
-               fieldMatcher = NAMED_CAPTURE.matcher(newPattern);
-               List<String> names = new LinkedList<>();
-               while (fieldMatcher.find()) {
-                  names.add(fieldMatcher.group(1));
-               }
+               List<String> names = compiled.names;
                if (!names.isEmpty()) {
                   for (String name : names) {
                      String capturedValue = matcher.group(name);
-                     String realName = renames.get(name);
+                     String realName = compiled.renames.get(name);
                      matches.put(realName, capturedValue);
                      //context.getState().set(realName,capturedValue);
                   }
@@ -139,7 +223,7 @@ public class Regex extends CmdWithElse {
 
    @Override
    public Cmd copy() {
-      return new Regex(this.patternString, this.miss);
+      return new Regex(this.patternString, this.miss, patternCache);
    }
 
 
@@ -8,6 +8,7 @@ public class RepeatUntilSignal extends LoopCmd {
     private String name;
     private String populatedName;
     private int amount=-1;
+    private Boolean selfSignaling = null;
     public RepeatUntilSignal(String name){
         super(false);
         this.name = name;
@@ -29,8 +30,16 @@ public class RepeatUntilSignal extends LoopCmd {
         }
     }
 
+    /**
+     * The result is cached after the first call because the children do not change while the command runs
+     */
     public boolean isSelfSignaling(){
-        return walk(false,cmd-> cmd instanceof Signal && ((Signal)cmd).getName().equals(getName())).stream().filter(v->v).findAny().orElse(false);
+        Boolean rtrn = selfSignaling;
+        if(rtrn == null){
+            rtrn = walk(false,cmd-> cmd instanceof Signal && ((Signal)cmd).getName().equals(getName())).stream().filter(v->v).findAny().orElse(false);
+            selfSignaling = rtrn;
+        }
+        return rtrn;
     }
 
     @Override
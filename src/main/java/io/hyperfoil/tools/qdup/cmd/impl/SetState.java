@@ -45,9 +45,20 @@ public class SetState extends Cmd {
 
     @Override
     public void run(String input, Context context) {
+        String output = null;
+        if(this.value == null){
+            try {
+                //state is kept in memory so output that spilled to disk is read back in full
+                output = getInputSequence(input).toString().trim();
+            } catch (IllegalStateException e){
+                context.error("set-state: " + this.key + " cannot store the output in state, " + e.getMessage());
+                context.abort(false);
+                return;
+            }
+        }
         synchronized (STATE_LOCK){
             try {
-                populatedValue = this.value == null ? input.trim() : Cmd.populateStateVariables(this.value, this, context);
+                populatedValue = output != null ? output : Cmd.populateStateVariables(this.value, this, context);
                 if (StringUtil.isQuoted(populatedValue) && (StringUtil.removeQuotes(populatedValue)).trim().isEmpty()) {
                     populatedValue = "";
                 }
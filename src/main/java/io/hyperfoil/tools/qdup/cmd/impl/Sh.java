@@ -1,8 +1,10 @@
 package io.hyperfoil.tools.qdup.cmd.impl;
 
+import io.hyperfoil.tools.qdup.LatencyHistogram;
 import io.hyperfoil.tools.qdup.SshSession;
 import io.hyperfoil.tools.qdup.cmd.Cmd;
 import io.hyperfoil.tools.qdup.cmd.Context;
+import io.hyperfoil.tools.qdup.stream.OutputSequence;
 import io.hyperfoil.tools.yaup.AsciiArt;
 
 import java.util.*;
@@ -17,10 +19,19 @@ public class Sh extends Cmd {
     private String exitCode = "";
     private boolean ignoreExitCode = false;
     private String previousPrompt="";
+    private OutputSequence sessionOutput;
 
     private void setPreviousPrompt(String prompt){
         this.previousPrompt = prompt;
     }
+
+    /**
+     * The output comes from the session instead of the previous command
+     */
+    @Override
+    public void setOutput(String output){
+        setOutput(output, sessionOutput);
+    }
     public String getPreviousPrompt(){return previousPrompt;}
 
     public Sh(String command){
@@ -51,6 +62,7 @@ public class Sh extends Cmd {
 
     @Override
     public void run(String input, Context context) {
+        sessionOutput = null;
         populatedCommand = populateStateVariables(command,this,context);
         if(Cmd.hasStateReference(populatedCommand,this)){
             context.error(
@@ -61,10 +73,16 @@ public class Sh extends Cmd {
             context.abort(false);
         }
         context.getTimer().start("Sh-invoke:"+populatedCommand);
+        LatencyHistogram promptWait = context.getMetrics() == null ? null : context.getMetrics().promptWait(context.getSession().getHost().getShortHostName());
+        long sent = System.nanoTime();
         //TODO do we need to manually remove the lineObserver?
         if(prompt.isEmpty()) {
             context.getSession().sh(populatedCommand, (output,promptName)->{
+                if(promptWait!=null){
+                    promptWait.recordSince(sent);
+                }
                 setPreviousPrompt(promptName);
+                sessionOutput = context.getSession().getOutputSequence();
                 context.next(output);
             });
         }else{
@@ -78,7 +96,11 @@ public class Sh extends Cmd {
             context.getSession().sh(
                     populatedCommand,
                     (output,promptName)->{
+                        if(promptWait!=null){
+                            promptWait.recordSince(sent);
+                        }
                         setPreviousPrompt(promptName);
+                        sessionOutput = context.getSession().getOutputSequence();
                         context.next(output);
                     },
                     populated
@@ -103,9 +125,17 @@ public class Sh extends Cmd {
         //not working in benchlab?
 
         if(context.getSession()!=null && context.getSession().isOpen() && SshSession.PROMPT.equals(getPreviousPrompt())){
-            String response = context.getSession().shSync("export __qdup_ec=$?; echo $__qdup_ec;");
-            context.getSession().shSync("(exit $__qdup_ec);");
-            context.getSession().flushAndResetBuffer();
+            //the exit code is part of the PROMPT unless something changed PS1, then fall back to asking the shell
+            long checkStart = System.nanoTime();
+            String response = context.getSession().getExitCode();
+            if(response == null || response.isEmpty()) {
+                response = context.getSession().shSync("export __qdup_ec=$?; echo $__qdup_ec;");
+                context.getSession().shSync("(exit $__qdup_ec);");
+                context.getSession().flushAndResetBuffer();
+            }
+            if(context.getMetrics()!=null){
+                context.getMetrics().exitCode(context.getSession().getHost().getShortHostName()).recordSince(checkStart);
+            }
 
             //not working in lab :(
             if(toLog != null && !toLog.isBlank()) {
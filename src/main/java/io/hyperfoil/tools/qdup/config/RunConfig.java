@@ -23,6 +23,14 @@ public class RunConfig {
 
     public static final String MAKE_TEMP_KEY = "MKTEMP";
     public static final String REMOVE_TEMP_KEY = "RMTEMP";
+    public static final String SSH_NIO_WORKERS_KEY = "ssh-nio-workers";
+    public static final String SSH_MAX_SESSIONS_KEY = "ssh-max-sessions";
+    public static final String OUTPUT_MEMORY_LIMIT_KEY = "output-memory-limit";
+    public static final String DOWNLOAD_CONCURRENCY_KEY = "download-concurrency";
+    public static final String STATE_JOURNAL_KEY = "state-journal";
+    public static final String LOG_BUFFER_SIZE_KEY = "log-buffer-size";
+    public static final String LOG_OVERFLOW_KEY = "log-overflow";
+    public static final String LOG_SPLIT_KEY = "log-split";
 
     private final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
 
@@ -5,21 +5,27 @@ import org.slf4j.ext.XLoggerFactory;
 import io.hyperfoil.tools.yaup.AsciiArt;
 import io.hyperfoil.tools.yaup.Sets;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
- * need to return length of full match or length or partial match
- * just return length of match and then check if last char is m
+ * Removes VT100 / xterm escape sequences with a table driven state machine that keeps its state across writes.
+ * Content outside of escape sequences is passed through without copying unless a write contains more than one run of it.
+ * Only the start of an escape sequence that is split across writes is kept until the next write.
+ * Sequences that do not match the table (e.g. a stray ESC) are written unchanged.
  */
 public class EscapeFilteredStream extends MultiStream {
     final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
 
     private static final int CR = 13;  //\u000d
-    private static final int ESC = 27; //\u001b
+    static final int ESC = 27; //\u001b
     private static final int NULL = 0; //\u0000
+    private static final int BEL = 7;
 
     private static final Set<Character> CONTROL_SUFFIX = Sets.of(
             'A',//cursor up
@@ -43,24 +49,155 @@ public class EscapeFilteredStream extends MultiStream {
             'h',//seen in git output, switches screen?
             'l'//same as 'h', seen in git and supposedly changes screens?
             );
+    //xterm CSI sequences used by progress bars and full screen tools in addition to CONTROL_SUFFIX
+    private static final String CSI_FINAL = "@LMPXdrtcgq`";
+    //ESC followed by one of these is a complete sequence (keypad modes, save / restore cursor, index, reset, string terminator)
+    private static final String ESC_FINAL = "=>78MDEHc\\";
+    //ESC followed by one of these starts a string terminated by BEL or ESC \ (OSC, DCS, SOS, PM, APC)
+    private static final String STRING_START = "]PX^_";
 
-    private byte[] buffered;
-    private int writeIndex = 0;
+    public static final int MAX_SEQUENCE_LENGTH = 4096;
+
+    public enum Type {
+        CSI,//ESC [ parameters final
+        OSC,//ESC ] text BEL, also DCS, SOS, PM and APC strings
+        CHARSET,//ESC intermediate final, e.g. ESC ( B
+        ESC//ESC final
+    }
+
+    /**
+     * An escape sequence removed from the output.
+     */
+    public static class Escape {
+        private final Type type;
+        private final String sequence;
+
+        public Escape(Type type, String sequence){
+            this.type = type;
+            this.sequence = sequence;
+        }
+        public Type getType(){return type;}
+
+        /**
+         * @return the sequence after the ESC
+         */
+        public String getSequence(){return sequence;}
+
+        /**
+         * @return the content between the introducer and the final byte or terminator
+         */
+        public String getParameters(){
+            switch (type){
+                case CSI:
+                    return sequence.substring(1, sequence.length() - 1);
+                case OSC:
+                    int end = sequence.endsWith("\u001b\\") ? sequence.length() - 2 : sequence.endsWith("\u0007") ? sequence.length() - 1 : sequence.length();
+                    return sequence.substring(1, Math.max(1, end));
+                case CHARSET:
+                    return sequence.substring(0, sequence.length() - 1);
+                default:
+                    return "";
+            }
+        }
+
+        /**
+         * @return the final byte of the sequence or 0 for OSC
+         */
+        public char getFinal(){
+            return Type.OSC.equals(type) || sequence.isEmpty() ? 0 : sequence.charAt(sequence.length() - 1);
+        }
+
+        @Override
+        public String toString(){return type + ":" + sequence;}
+    }
+
+    //states, the table is shared with SessionStreams
+    static final int GROUND = 0;
+    static final int ESCAPE = 1;
+    private static final int CSI = 2;
+    private static final int INTERMEDIATE = 3;
+    private static final int STRING = 4;
+    private static final int STRING_ESC = 5;
+    private static final int STATES = 6;
+    //actions
+    static final int COMPLETE = -1;//the byte ends the sequence, remove it
+    private static final int FAIL = -2;//not an escape sequence, write it and process the byte from GROUND
+    static final int RESTART = -3;//the ESC that ended a string starts a new sequence
+
+    static final int[] TRANSITIONS = new int[STATES * 256];
+    static {
+        for(int b = 0; b < 256; b++){
+            TRANSITIONS[GROUND * 256 + b] = b == ESC ? ESCAPE : GROUND;
+
+            int escape = FAIL;
+            if(b == '['){
+                escape = CSI;
+            }else if(b < 128 && STRING_START.indexOf(b) >= 0){
+                escape = STRING;
+            }else if(b >= 0x20 && b <= 0x2F){
+                escape = INTERMEDIATE;
+            }else if(b < 128 && ESC_FINAL.indexOf(b) >= 0){
+                escape = COMPLETE;
+            }
+            TRANSITIONS[ESCAPE * 256 + b] = escape;
+
+            int csi = FAIL;
+            if(b >= 0x20 && b <= 0x3F){//parameters and intermediates
+                csi = CSI;
+            }else if(b < 128 && (CONTROL_SUFFIX.contains((char)b) || CSI_FINAL.indexOf(b) >= 0)){
+                csi = COMPLETE;
+            }
+            TRANSITIONS[CSI * 256 + b] = csi;
+
+            TRANSITIONS[INTERMEDIATE * 256 + b] = b >= 0x20 && b <= 0x2F ? INTERMEDIATE : b >= 0x30 && b <= 0x7E ? COMPLETE : FAIL;
+
+            //line breaks are not part of a title, give up so a stray ESC ] does not hold back the prompt
+            TRANSITIONS[STRING * 256 + b] = b == BEL ? COMPLETE : b == ESC ? STRING_ESC : b == '\n' || b == CR ? FAIL : STRING;
+
+            TRANSITIONS[STRING_ESC * 256 + b] = b == '\\' ? COMPLETE : RESTART;
+        }
+    }
+
+    private int state = GROUND;
+    private Type type;
+    private byte[] pending;//the start of a sequence from a previous write
+    private int pendingLength = 0;
+    private int sequenceLength = 0;
+
+    //content kept from the current write when it has more than one run outside of escape sequences
+    private byte[] scratch;
+    private int scratchLength;
+    private int keptFrom;
+    private int keptTo;
+
+    private final List<Consumer<Escape>> escapeConsumers = new LinkedList<>();
 
     public EscapeFilteredStream(){this("");}
     public EscapeFilteredStream(String name){
         super(name);
-        buffered = new byte[20*1024];
+        pending = new byte[64];
+        scratch = new byte[4*1024];
     }
     protected void superWrite(byte b[], int off, int len) throws IOException {
         super.write(b,off,len);
     }
 
+    /**
+     * Receive each escape sequence that is removed from the output
+     */
+    public void addEscapeConsumer(Consumer<Escape> consumer){
+        escapeConsumers.add(consumer);
+    }
+    public void removeEscapeConsumer(Consumer<Escape> consumer){
+        escapeConsumers.remove(consumer);
+    }
+    public boolean hasEscapeConsumers(){return !escapeConsumers.isEmpty();}
+
     public void flushBuffer() throws IOException {
-        if(writeIndex>0){
-            superWrite(buffered,0,writeIndex);
-            writeIndex=0;
+        if(pendingLength>0){
+            superWrite(pending,0,pendingLength);
         }
+        reset();
     }
 
     @Override
@@ -74,7 +211,9 @@ public class EscapeFilteredStream extends MultiStream {
     }
 
     public void reset(){
-        writeIndex = 0;
+        state = GROUND;
+        pendingLength = 0;
+        sequenceLength = 0;
     }
 
     @Override
@@ -84,61 +223,156 @@ public class EscapeFilteredStream extends MultiStream {
     @Override
     public void write(byte b[], int off, int len) throws IOException {
         try {
-            int flushIndex = 0;
-            int trailingEscapeIndex = Integer.MAX_VALUE;
-            if (writeIndex + len > buffered.length) {
-                int needed = writeIndex + len - buffered.length;
-                byte[] newBuffer = new byte[buffered.length + needed];
-                System.arraycopy(buffered, 0, newBuffer, 0, writeIndex);
-                buffered = newBuffer;
-            }
-            System.arraycopy(b, off, buffered, writeIndex, len);
-            writeIndex += len;
-
-            for (int currentIndex = flushIndex; currentIndex < writeIndex; currentIndex++) {
-                boolean filtered = false;
-                do {
-                    filtered = false;
-                    int escapeLength = escapeLength(buffered, currentIndex, writeIndex - currentIndex);
-                    if (escapeLength > 0 && isEscaped(buffered, currentIndex, escapeLength)) {//is full match, flush to super
-                        filtered = true;
-                    } else if (escapeLength > 0) {//match reached end of buffer
-                        if (trailingEscapeIndex > currentIndex) {
-                            trailingEscapeIndex = currentIndex;
-                        }
+            int end = off + len;
+            int runStart = off;//start of the content to keep
+            int sequenceStart = state == GROUND ? -1 : off;//off when the sequence started in a previous write
+            keptFrom = -1;
+            scratchLength = 0;
+            int current = state;
+            for (int i = off; i < end; i++) {
+                if (current == GROUND) {
+                    //most of the output is text so look for the next ESC without going through the table
+                    while (i < end && b[i] != ESC) {
+                        i++;
                     }
-                    if (filtered) {
-                        //broken escape sequences are not supported in terminals
-                        //is this true? Don't see that in spec
-                        if (flushIndex < currentIndex) {
-                            superWrite(buffered, flushIndex, currentIndex - flushIndex);
-                        }
-                        currentIndex += escapeLength;
-                        flushIndex = currentIndex;
-                        trailingEscapeIndex = Integer.MAX_VALUE;
+                    if (i < end) {
+                        sequenceStart = i;
+                        sequenceLength = 1;
+                        pendingLength = 0;
+                        current = ESCAPE;
+                    }
+                    continue;
+                }
+                int next = TRANSITIONS[current * 256 + (b[i] & 0xFF)];
+                if (next >= 0) {
+                    if (current == ESCAPE) {
+                        type = next == CSI ? Type.CSI : next == STRING ? Type.OSC : Type.CHARSET;
+                    }
+                    current = next;
+                    if (++sequenceLength > MAX_SEQUENCE_LENGTH) {
+                        runStart = fail(off, runStart);
+                        current = GROUND;
+                    }
+                } else if (next == COMPLETE) {
+                    if (current == ESCAPE) {
+                        type = Type.ESC;
+                    }
+                    sequenceLength++;
+                    if (pendingLength == 0) {
+                        keep(b, runStart, sequenceStart);
                     }
-                } while (filtered);
+                    escape(b, off, sequenceStart, i + 1);
+                    runStart = i + 1;
+                    pendingLength = 0;
+                    current = GROUND;
+                } else if (next == RESTART) {
+                    //the sequence ends before the ESC at i - 1
+                    if (pendingLength == 0) {
+                        keep(b, runStart, sequenceStart);
+                    }
+                    escape(b, off, sequenceStart, i - 1);
+                    if (i - 1 >= off) {
+                        sequenceStart = i - 1;
+                        pendingLength = 0;
+                    } else {//the ESC was the last pending byte
+                        pending[0] = ESC;
+                        pendingLength = 1;
+                    }
+                    runStart = Math.max(off, i - 1);
+                    sequenceLength = 1;
+                    current = ESCAPE;
+                    i--;//process the byte after the ESC
+                } else {//FAIL
+                    runStart = fail(off, runStart);
+                    current = GROUND;
+                    i--;//process the byte again from GROUND
+                }
             }
-            if (trailingEscapeIndex < Integer.MAX_VALUE) {//flush from flushIndex to trailingPrefixIndex
-                if (trailingEscapeIndex - flushIndex > 0) {
-                    superWrite(buffered, flushIndex, trailingEscapeIndex - flushIndex);
+            state = current;
+            if (state == GROUND) {
+                keep(b, runStart, end);
+            } else {
+                //keep the start of the sequence for the next write
+                int from = off;
+                if (pendingLength == 0) {//the sequence started in this write
+                    keep(b, runStart, sequenceStart);
+                    from = sequenceStart;
                 }
-                flushIndex = trailingEscapeIndex;
-            } else {// no matches and no potential matches, flush everything
-                superWrite(buffered, flushIndex, writeIndex - flushIndex);
-                flushIndex = writeIndex - 1;
-                flushIndex = writeIndex;//TODO testing if fixes double write
-
-
+                pending = ensureCapacity(pending, pendingLength, pendingLength + end - from);
+                System.arraycopy(b, from, pending, pendingLength, end - from);
+                pendingLength += end - from;
             }
-            if (flushIndex > 0) {
-                System.arraycopy(buffered, flushIndex, buffered, 0, writeIndex - flushIndex);
-                writeIndex = writeIndex - flushIndex;
+            if (scratchLength > 0) {
+                superWrite(scratch, 0, scratchLength);
+            } else if (keptFrom >= 0) {
+                superWrite(b, keptFrom, keptTo - keptFrom);
             }
-
         }catch(Exception e){
             logger.error(e.getMessage(),e);
-            throw new RuntimeException("b.length="+(b==null?"null":b.length)+" off="+off+" len="+len+" buffered.length="+buffered.length, e);
+            throw new RuntimeException("b.length="+(b==null?"null":b.length)+" off="+off+" len="+len+" pending="+pendingLength, e);
+        }
+    }
+
+    /**
+     * Keep b[from,to) for the downstream write. The first run is written from b, the scratch buffer is only used when there is more than one run.
+     */
+    private void keep(byte b[], int from, int to){
+        if (to <= from) {
+            return;
+        }
+        if (keptFrom < 0) {
+            keptFrom = from;
+            keptTo = to;
+            return;
+        }
+        if (scratchLength == 0 && from == keptTo) {//a failed sequence continues the run
+            keptTo = to;
+            return;
+        }
+        if (scratchLength == 0) {
+            scratch = ensureCapacity(scratch, 0, keptTo - keptFrom + to - from);
+            System.arraycopy(b, keptFrom, scratch, 0, keptTo - keptFrom);
+            scratchLength = keptTo - keptFrom;
+        }
+        scratch = ensureCapacity(scratch, scratchLength, scratchLength + to - from);
+        System.arraycopy(b, from, scratch, scratchLength, to - from);
+        scratchLength += to - from;
+    }
+
+    /**
+     * The current sequence is not an escape sequence so it stays in the output.
+     * @return the start of the content to keep
+     */
+    private int fail(int off, int runStart) throws IOException {
+        sequenceLength = 0;
+        if (pendingLength > 0) {
+            //the sequence started in a previous write so nothing from this write was kept yet
+            superWrite(pending, 0, pendingLength);
+            pendingLength = 0;
+            return off;
+        }
+        return runStart;
+    }
+
+    /**
+     * Send the sequence that ends before b[end] to the escape consumers, end is off - 1 when the sequence ended before the last pending byte
+     */
+    private void escape(byte b[], int off, int sequenceStart, int end){
+        if (escapeConsumers.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        if (pendingLength > 0) {
+            sb.append(new String(pending, 1, pendingLength - 1 + Math.min(0, end - off), StandardCharsets.UTF_8));
+            if (end > off) {
+                sb.append(new String(b, off, end - off, StandardCharsets.UTF_8));
+            }
+        } else {
+            sb.append(new String(b, sequenceStart + 1, end - sequenceStart - 1, StandardCharsets.UTF_8));
+        }
+        Escape escape = new Escape(type, sb.toString());
+        for (Consumer<Escape> consumer : escapeConsumers) {
+            consumer.accept(escape);
         }
     }
     //basically just makes sure we have \u001b[...m
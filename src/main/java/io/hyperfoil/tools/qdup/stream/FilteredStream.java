@@ -12,7 +12,7 @@ import java.util.stream.Collectors;
 /**
  * Created by wreicher
  * A MultiStream that filters content before writing to subsequent OutputStreams.
- * TODO tree of filters to speed up filtering content
+ * Filters are matched with a PatternAutomaton so the cost of a write does not depend on the number of filters.
  * TODO need to also create a a suffix filter (for PROMPT)
  */
 public class FilteredStream extends MultiStream{
@@ -26,6 +26,11 @@ public class FilteredStream extends MultiStream{
 
     private final List<Consumer<String>> observers;
 
+    private volatile PatternAutomaton automaton;
+    private PatternAutomaton scannedWith;
+    private int state = PatternAutomaton.ROOT;
+    private int scanIndex = 0;
+
     public FilteredStream(){this("");}
     public FilteredStream(String name){
         super(name);
@@ -44,6 +49,26 @@ public class FilteredStream extends MultiStream{
             }
             writeIndex=0;
         }
+        resetState();
+    }
+
+    private void resetState(){
+        state = PatternAutomaton.ROOT;
+        scanIndex = 0;
+    }
+
+    private PatternAutomaton getAutomaton(){
+        PatternAutomaton rtrn = automaton;
+        if(rtrn == null){
+            synchronized (filters){
+                rtrn = automaton;
+                if(rtrn == null){
+                    rtrn = PatternAutomaton.compile(filters);
+                    automaton = rtrn;
+                }
+            }
+        }
+        return rtrn;
     }
 
     @Override
@@ -79,15 +104,21 @@ public class FilteredStream extends MultiStream{
         addFilter(name,filter.getBytes());
     }
     public void addFilter(String name,byte bytes[]){
-        filters.put(name,bytes);
-        replacements.remove(name);
+        synchronized (filters) {
+            filters.put(name, bytes);
+            replacements.remove(name);
+            automaton = null;
+        }
     }
     public void addFilter(String name,String filter,String replacement) {
         addFilter(name,filter.getBytes(),replacement.getBytes());
     }
     public void addFilter(String name,byte filter[],byte replacement[]){
-        filters.put(name,filter);
-        replacements.put(name,replacement);
+        synchronized (filters) {
+            filters.put(name, filter);
+            replacements.put(name, replacement);
+            automaton = null;
+        }
     }
     public boolean hasFilter(String name){
         return filters.containsKey(name);
@@ -103,8 +134,11 @@ public class FilteredStream extends MultiStream{
         return replacements.containsKey(name);
     }
     public void remove(String name){
-        filters.remove(name);
-        replacements.remove(name);
+        synchronized (filters) {
+            filters.remove(name);
+            replacements.remove(name);
+            automaton = null;
+        }
     }
 
     protected void superWrite(byte b[], int off, int len) throws IOException {
@@ -120,8 +154,6 @@ public class FilteredStream extends MultiStream{
     public void write(byte b[], int off, int len) throws IOException {
         try{
             int flushIndex = 0;
-            int trailingPrefixIndex = Integer.MAX_VALUE;
-
 
             while(postFilterDrop > 0 && len > 0 && (b[off] == '\r' || b[off] == '\n') ){
                 off++;
@@ -129,106 +161,121 @@ public class FilteredStream extends MultiStream{
                 postFilterDrop--;
             }
 
-            if(filters.isEmpty()){
+            PatternAutomaton automaton = getAutomaton();
+            if(automaton.isEmpty()){
                 if(writeIndex > 0){//something was buffered, probably back when there were filters
 
                     superWrite(buffered,0, writeIndex);
                     writeIndex = 0;
                 }
+                resetState();
                 superWrite(b,off,len);
+            }else if(writeIndex == 0 && passThrough(automaton,b,off,len)){
+                //nothing was filtered and only the partial match at the end was buffered
             }else{
-                //if the current position + amount to write would overflow the buffer
-                if(writeIndex + len > buffered.length){
-                    int needed = writeIndex+len-buffered.length;
-                    //slower growth because starting at 20k
-                    byte[] newBuffer = new byte[buffered.length+needed];
-                    System.arraycopy(buffered,0,newBuffer,0, writeIndex);
-                    buffered = newBuffer;
-                }
+                buffered = ensureCapacity(buffered, writeIndex, writeIndex + len);
                 //copy the content to write into the buffered content
                 System.arraycopy(b,off,buffered, writeIndex,len);
                 writeIndex +=len;
-                boolean filteredAtLeastOnce = false;
-                for(int currentIndex = 0; currentIndex < writeIndex; currentIndex++){
-                    boolean filtered = false;
-                    do{
-                        filtered = false;
-                        int dropLength = 0;
-                        String matchedName = "";
+                if(automaton != scannedWith || scanIndex > writeIndex){//filters changed, re-scan what is buffered
+                    scannedWith = automaton;
+                    resetState();
+                }
 
-                        //hack because ConcurrentModificationException from Sh calling before loop finishes :(
-                        Set<String> filterNames = new HashSet<>(filters.keySet());
-                        for(String name : filterNames){
-                            byte[] filter = filters.get(name);
-                            if(filter!=null){
-                                int prefixLength = prefixLength(buffered, filter, currentIndex, writeIndex-currentIndex);
-                                if(prefixLength == filter.length) {//full match
-                                    if(filter.length > dropLength){
-                                        dropLength=filter.length;
-                                        filtered=true;
-                                        filteredAtLeastOnce=true;
-                                        matchedName = name;
-                                    }
-                                }else if (prefixLength > 0) {
-                                    if(trailingPrefixIndex > currentIndex){
-                                        trailingPrefixIndex = currentIndex;
-                                    }
-                                }
-                            }
-                        }
-                        if(filtered){
-                            tellObservers(matchedName);
-                            postFilterDrop += 2;
-                            if ( flushIndex < currentIndex) {
-                                superWrite(buffered,flushIndex, currentIndex - flushIndex);
-                            }
-                            if(hasReplacement(matchedName) && replacements.get(matchedName).length > 0){
-                                superWrite(replacements.get(matchedName),0,replacements.get(matchedName).length);
-                            }
-                            int nextIndex = currentIndex + filters.get(matchedName).length;
-                            //trap the potential \r\n if we filtered the entire write / line
-                            //TODO BUG, this can increment currentIndex && flushIndex beyondWriteIndex
-                            //TODO BUG, this only works if /r/n are on the same write, what about a subsequent call to write
-                            if(postFilterDrop > 0 && currentIndex == off && nextIndex < writeIndex && (buffered[nextIndex]=='\n' || buffered[nextIndex]=='\r') ){
-                                nextIndex++;
-                                postFilterDrop--;
-                            }
-                            if(postFilterDrop > 0 && currentIndex == off && nextIndex < writeIndex &&  (buffered[nextIndex]=='\n' || buffered[nextIndex]=='\r') ){
-                                nextIndex++;
-                                postFilterDrop--;
+                //filter the left most match, picking the longest filter if more than one match starts at the same index
+                String matchedName = null;
+                int matchStart = -1;
+                int matchLength = 0;
+                int currentIndex = scanIndex;
+                while(currentIndex < writeIndex || matchedName != null){
+                    if(currentIndex < writeIndex) {
+                        state = automaton.step(state, buffered[currentIndex]);
+                        currentIndex++;
+                        int length = automaton.matchLength(state);
+                        if (length > 0) {
+                            int start = currentIndex - length;
+                            if (matchedName == null || start < matchStart || (start == matchStart && length > matchLength)) {
+                                matchedName = automaton.matchName(state);
+                                matchStart = start;
+                                matchLength = length;
                             }
-                            //currentIndex += filters.get(matchedName).length;
-                            currentIndex = nextIndex;
-                            flushIndex = currentIndex;
-                            trailingPrefixIndex = Integer.MAX_VALUE;
                         }
-                    }while(filtered);
-                }
-
-                if (trailingPrefixIndex < Integer.MAX_VALUE) { // flush from flushIndex to trailingPrefixIndex
-                    if(trailingPrefixIndex-flushIndex>0) {
-                        superWrite(buffered, flushIndex, trailingPrefixIndex - flushIndex);
                     }
-                    flushIndex = trailingPrefixIndex;
-                } else { // no matches and no potential matches, flush everything
-                    if (flushIndex < writeIndex) { //fix #44 to only write empty
-                        superWrite(buffered,flushIndex,writeIndex-flushIndex);//here is where writeIndex-flushIndex == -2
+                    //wait until no partial match starts at or before matchStart, or until the end of the buffer
+                    if(matchedName != null && (currentIndex == writeIndex || currentIndex - automaton.depth(state) > matchStart)){
+                        tellObservers(matchedName);
+                        postFilterDrop += 2;
+                        if ( flushIndex < matchStart) {
+                            superWrite(buffered,flushIndex, matchStart - flushIndex);
+                        }
+                        byte[] replacement = replacements.get(matchedName);
+                        if(replacement != null && replacement.length > 0){
+                            superWrite(replacement,0,replacement.length);
+                        }
+                        int nextIndex = matchStart + matchLength;
+                        //trap the potential \r\n if we filtered the entire write / line
+                        //TODO BUG, this only works if /r/n are on the same write, what about a subsequent call to write
+                        if(postFilterDrop > 0 && matchStart == off && nextIndex < writeIndex && (buffered[nextIndex]=='\n' || buffered[nextIndex]=='\r') ){
+                            nextIndex++;
+                            postFilterDrop--;
+                        }
+                        if(postFilterDrop > 0 && matchStart == off && nextIndex < writeIndex &&  (buffered[nextIndex]=='\n' || buffered[nextIndex]=='\r') ){
+                            nextIndex++;
+                            postFilterDrop--;
+                        }
+                        //resume matching after the filtered content
+                        currentIndex = nextIndex;
+                        flushIndex = currentIndex;
+                        state = PatternAutomaton.ROOT;
+                        matchedName = null;
                     }
+                }
 
-                    //flushIndex = writeIndex-1;
-                    flushIndex = writeIndex;//TODO testing if fixes double write
+                //hold back any partial match at the end of the buffer
+                int trailingPrefixIndex = writeIndex - automaton.depth(state);
+                if(trailingPrefixIndex-flushIndex>0) {
+                    superWrite(buffered, flushIndex, trailingPrefixIndex - flushIndex);
                 }
+                flushIndex = trailingPrefixIndex;
                 //compact the buffer if we haven't flushed everything
                 if (flushIndex > 0 ) {
                     System.arraycopy(buffered, flushIndex, buffered, 0, writeIndex-flushIndex);
                     writeIndex=writeIndex-flushIndex;
                 }
+                scanIndex = writeIndex;
             }
         } catch(Exception e) {
             logger.error(e.getMessage(),e);
             throw new RuntimeException("b.length="+(b==null?"null":b.length)+" off="+off+" len="+len+" buffered.length="+buffered.length, e);
         }
     }
+    /**
+     * Scan the write in place when nothing is buffered so content without a filter does not need to be copied into the buffer.
+     * @return false without changing the stream if the write contains a filter
+     */
+    private boolean passThrough(PatternAutomaton automaton,byte b[],int off,int len) throws IOException {
+        if(automaton != scannedWith){
+            scannedWith = automaton;
+            resetState();
+        }
+        int scanned = state;
+        for(int i=off; i<off+len; i++){
+            scanned = automaton.step(scanned,b[i]);
+            if(automaton.matchLength(scanned) > 0){
+                return false;
+            }
+        }
+        int trailing = automaton.depth(scanned);
+        if(len - trailing > 0){
+            superWrite(b,off,len - trailing);
+        }
+        buffered = ensureCapacity(buffered,0,trailing);
+        System.arraycopy(b,off + len - trailing,buffered,0,trailing);
+        writeIndex = trailing;
+        scanIndex = writeIndex;
+        state = scanned;
+        return true;
+    }
     public boolean hasSuffix(byte b[],byte suffix[],int off,int len){
         boolean rtrn = true;
         for(int index=0; index < suffix.length && rtrn; index++){
@@ -0,0 +1,252 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import io.hyperfoil.tools.yaup.json.Json;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes Json to a Writer as it walks the values instead of rendering the whole document to a String.
+ * The output uses the same escaping and number format as Json.toString(indent) but keeps the insertion order of keys.
+ * A null value inside Json, either a missing object value or JSONObject.NULL, is written as the null literal.
+ */
+public class JsonStreamWriter implements Closeable, Flushable {
+
+    public static final int DEFAULT_INDENT = 2;
+
+    private final Writer writer;
+    private final int indentFactor;
+    private boolean[] hasEntries = new boolean[8];
+    private int depth = 0;
+
+    public JsonStreamWriter(Writer writer){
+        this(writer, DEFAULT_INDENT);
+    }
+    public JsonStreamWriter(Writer writer, int indentFactor){
+        this.writer = writer;
+        this.indentFactor = Math.max(0, indentFactor);
+    }
+
+    /**
+     * Start the top level object
+     */
+    public JsonStreamWriter beginObject() throws IOException {
+        writer.write('{');
+        push();
+        return this;
+    }
+
+    /**
+     * Start an object as an entry of the current object
+     */
+    public JsonStreamWriter beginObject(String name) throws IOException {
+        name(name);
+        return beginObject();
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        if(depth == 0){
+            throw new IllegalStateException("endObject without beginObject");
+        }
+        boolean entries = hasEntries[--depth];
+        if(entries){
+            newline(depth);
+        }
+        writer.write('}');
+        return this;
+    }
+
+    /**
+     * Write an entry of the current object. Json values are written recursively. A null value skips the entry.
+     */
+    public JsonStreamWriter field(String name, Object value) throws IOException {
+        if(value == null){
+            return this;
+        }
+        name(name);
+        writeValue(value, depth);
+        return this;
+    }
+
+    private void name(String name) throws IOException {
+        if(depth == 0){
+            throw new IllegalStateException("field "+name+" must be inside an object");
+        }
+        if(hasEntries[depth - 1]){
+            writer.write(',');
+        }
+        hasEntries[depth - 1] = true;
+        newline(depth);
+        quote(name, writer);
+        writer.write(':');
+        if(indentFactor > 0){
+            writer.write(' ');
+        }
+    }
+
+    private void push(){
+        if(depth == hasEntries.length){
+            hasEntries = Arrays.copyOf(hasEntries, depth * 2);
+        }
+        hasEntries[depth++] = false;
+    }
+
+    private void newline(int level) throws IOException {
+        if(indentFactor > 0){
+            writer.write('\n');
+            for(int i = 0, spaces = level * indentFactor; i < spaces; i++){
+                writer.write(' ');
+            }
+        }
+    }
+
+    private void writeValue(Object value, int level) throws IOException {
+        if(value == null || value.equals(null)){
+            writer.write("null");
+        }else if(value instanceof Json){
+            writeJson((Json)value, level);
+        }else if(value instanceof String){
+            quote((String)value, writer);
+        }else if(value instanceof Number){
+            String number = numberToString((Number)value);
+            if(number == null){
+                quote(value.toString(), writer);
+            }else{
+                writer.write(number);
+            }
+        }else if(value instanceof Boolean){
+            writer.write(value.toString());
+        }else{
+            quote(value.toString(), writer);
+        }
+    }
+
+    private void writeJson(Json json, int level) throws IOException {
+        boolean first = true;
+        if(json.isArray()){
+            writer.write('[');
+            for(int i = 0, size = json.size(); i < size; i++){
+                if(!first){
+                    writer.write(',');
+                }
+                first = false;
+                newline(level + 1);
+                writeValue(json.get(i), level + 1);
+            }
+            if(!first){
+                newline(level);
+            }
+            writer.write(']');
+        }else{
+            writer.write('{');
+            Iterator<Map.Entry<Object,Object>> entries = json.stream().iterator();
+            while(entries.hasNext()){
+                Map.Entry<Object,Object> entry = entries.next();
+                if(!first){
+                    writer.write(',');
+                }
+                first = false;
+                newline(level + 1);
+                quote(String.valueOf(entry.getKey()), writer);
+                writer.write(':');
+                if(indentFactor > 0){
+                    writer.write(' ');
+                }
+                writeValue(entry.getValue(), level + 1);
+            }
+            if(!first){
+                newline(level);
+            }
+            writer.write('}');
+        }
+    }
+
+    /**
+     * Format a number the same as org.json: trailing zeros are removed from decimals
+     * @return the number or null if it is not a valid json number (NaN or infinite)
+     */
+    public static String numberToString(Number number){
+        if((number instanceof Double && !Double.isFinite(number.doubleValue())) ||
+           (number instanceof Float && !Float.isFinite(number.floatValue()))){
+            return null;
+        }
+        String rtrn = number.toString();
+        if(rtrn.indexOf('.') > 0 && rtrn.indexOf('e') < 0 && rtrn.indexOf('E') < 0){
+            int end = rtrn.length();
+            while(rtrn.charAt(end - 1) == '0'){
+                end--;
+            }
+            if(rtrn.charAt(end - 1) == '.'){
+                end--;
+            }
+            rtrn = rtrn.substring(0, end);
+        }
+        return rtrn;
+    }
+
+    /**
+     * Write value as a quoted json string with the same escaping as org.json
+     */
+    public static void quote(String value, Writer writer) throws IOException {
+        writer.write('"');
+        char previous;
+        char c = 0;
+        for(int i = 0, length = value.length(); i < length; i++){
+            previous = c;
+            c = value.charAt(i);
+            switch (c){
+                case '"':
+                case '\\':
+                    writer.write('\\');
+                    writer.write(c);
+                    break;
+                case '/':
+                    if(previous == '<'){
+                        writer.write('\\');
+                    }
+                    writer.write(c);
+                    break;
+                case '\b':
+                    writer.write("\\b");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\f':
+                    writer.write("\\f");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                default:
+                    if(c < ' ' || (c >= 0x80 && c < 0xA0) || (c >= 0x2000 && c < 0x2100)){
+                        String hex = Integer.toHexString(c);
+                        writer.write("\\u");
+                        writer.write("0000", 0, 4 - hex.length());
+                        writer.write(hex);
+                    }else{
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
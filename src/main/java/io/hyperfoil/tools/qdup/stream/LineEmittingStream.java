@@ -82,12 +82,8 @@ public class LineEmittingStream extends OutputStream {
                     if (writeIndex == 0) {//nothing buffered, can just flush from b
                         emit(b, writeFrom, off + i - writeFrom);
                     } else {//have to add up to off+i to buffered to emit all at once
-                        if (writeIndex + off + i >= buffered.length) {
-                            byte newBuffered[] = new byte[buffered.length * 2];
-                            System.arraycopy(buffered, 0, newBuffered, 0, writeIndex);
-                            buffered = newBuffered;
-                        }
-                        System.arraycopy(b, off, buffered, writeIndex, off + i - writeFrom);
+                        buffered = MultiStream.ensureCapacity(buffered, writeIndex, writeIndex + off + i - writeFrom);
+                        System.arraycopy(b, writeFrom, buffered, writeIndex, off + i - writeFrom);
                         writeIndex = writeIndex + off + i - writeFrom;
                         emit(buffered, 0, writeIndex);
                         reset();
@@ -101,15 +97,8 @@ public class LineEmittingStream extends OutputStream {
             }
             if (writeFrom < off + len) {
                 int toBuffer = (off + len - writeFrom);//remaining bytes
-                //should only grow once but still using while loop
-                while (writeIndex + toBuffer > buffered.length) {
-                    int needed = writeIndex + toBuffer - buffered.length;
-                    byte newBuffered[] = new byte[buffered.length + 2 * needed];
-                    System.arraycopy(buffered, 0, newBuffered, 0, writeIndex);
-                    buffered = newBuffered;
-                }
-
-                System.arraycopy(b, off, buffered, writeIndex, toBuffer);
+                buffered = MultiStream.ensureCapacity(buffered, writeIndex, writeIndex + toBuffer);
+                System.arraycopy(b, writeFrom, buffered, writeIndex, toBuffer);
                 writeIndex += toBuffer;
             }
         }catch(Exception e){
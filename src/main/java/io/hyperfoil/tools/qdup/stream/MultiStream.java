@@ -62,6 +62,25 @@ public class MultiStream extends OutputStream{
         return "bytes="+bytes.toString()+System.lineSeparator()+"chars="+chars.toString()+System.lineSeparator()+"indxs="+indxs.toString();
     }
 
+    /**
+     * Get a buffer that can hold at least required bytes, doubling the capacity so a series of small writes does not
+     * copy the buffered content on each write.
+     * @param used the number of bytes to keep from the start of buffer
+     * @return buffer if it is already large enough, otherwise a larger copy of the used bytes
+     */
+    public static byte[] ensureCapacity(byte[] buffer, int used, int required){
+        if(required <= buffer.length){
+            return buffer;
+        }
+        int capacity = Math.max(buffer.length, 16);
+        while(capacity < required){
+            capacity = capacity > Integer.MAX_VALUE / 2 ? Math.max(required, Integer.MAX_VALUE - 8) : capacity * 2;
+        }
+        byte[] rtrn = new byte[capacity];
+        System.arraycopy(buffer, 0, rtrn, 0, used);
+        return rtrn;
+    }
+
     private String name = "";
     private Map<String,OutputStream> streams;
 
@@ -0,0 +1,466 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A CharSequence over UTF-8 command output in a SpillFile. The sequence reads the spill file in place and has the same
+ * changes as SpillingOutputStream.trimOutput: leading and trailing newlines are skipped and \r\n is read as \n.
+ * The file is split into pages that end on a character boundary and only the most recently used pages are decoded on
+ * to the heap so a Matcher or a line reader can scan output that is larger than the memory limit.
+ * Output with more than Integer.MAX_VALUE characters can only be read with longLength, substring, tail and lines,
+ * the CharSequence methods throw an IllegalStateException.
+ * The sequence keeps a reference to the spill file until release is called.
+ */
+public class OutputSequence implements CharSequence {
+
+    public static final int PAGE_SIZE = 64 * 1024;
+
+    private static final int CACHED_PAGES = 4;
+
+    private static CharsetDecoder decoder(){
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static boolean isNewline(byte b){
+        return b == '\r' || b == '\n';
+    }
+
+    /**
+     * Create an OutputSequence over the first size bytes of file. The sequence adds a reference to the file.
+     */
+    public static OutputSequence trimmed(SpillFile file, long size) throws IOException {
+        if(!file.retain()){
+            throw new IOException(file.getPath()+" was already deleted");
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.getPath(), StandardOpenOption.READ);
+            Indexer indexer = new Indexer(channel);
+            long start = indexer.skipLeading(size);
+            long end = indexer.skipTrailing(start, size);
+            indexer.index(start, end);
+            return new OutputSequence(file, channel, indexer);
+        } catch (IOException | RuntimeException e) {
+            if(channel != null){
+                channel.close();
+            }
+            file.release();
+            throw e;
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            int read = channel.read(buffer, position + buffer.position());
+            if(read < 0){
+                throw new IOException("unexpected end of output file");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Decode the bytes and replace \r\n with \n. The bytes do not end with a \r that is followed by a \n.
+     * @return the number of characters in chars
+     */
+    private static int decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars){
+        chars.clear();
+        decoder.reset();
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        char[] array = chars.array();
+        int length = chars.position();
+        int write = 0;
+        for(int read = 0; read < length; read++){
+            if(array[read] == '\r' && read + 1 < length && array[read + 1] == '\n'){
+                continue;
+            }
+            array[write++] = array[read];
+        }
+        return write;
+    }
+
+    /**
+     * Finds the trimmed range of the file and records the byte and char offset of each page
+     */
+    private static class Indexer {
+        private final FileChannel channel;
+        private final CharsetDecoder decoder = decoder();
+        private final ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        private final CharBuffer decoded = CharBuffer.allocate(PAGE_SIZE);
+        private long[] byteOffsets = new long[16];
+        private long[] charOffsets = new long[16];
+        private int pages = 0;
+        private long start = 0;
+        private long end = 0;
+        private long chars = 0;
+        private long newlines = 0;
+
+        private Indexer(FileChannel channel){
+            this.channel = channel;
+        }
+
+        private int fill(long position, long limit) throws IOException {
+            page.clear();
+            page.limit((int)Math.min(PAGE_SIZE, limit - position));
+            read(channel, page, position);
+            return page.limit();
+        }
+
+        private long skipLeading(long size) throws IOException {
+            long position = 0;
+            while(position < size){
+                int length = fill(position, size);
+                for(int i=0; i<length; i++){
+                    if(!isNewline(page.get(i))){
+                        return position + i;
+                    }
+                }
+                position += length;
+            }
+            return size;
+        }
+
+        private long skipTrailing(long start, long size) throws IOException {
+            long position = size;
+            while(position > start){
+                long from = Math.max(start, position - PAGE_SIZE);
+                int length = fill(from, position);
+                for(int i=length - 1; i>=0; i--){
+                    if(!isNewline(page.get(i))){
+                        return from + i + 1;
+                    }
+                }
+                position = from;
+            }
+            return start;
+        }
+
+        private void index(long start, long end) throws IOException {
+            this.start = start;
+            this.end = end;
+            long position = start;
+            while(position < end){
+                int length = fill(position, end);
+                if(position + length < end){
+                    length = pageEnd(length);
+                }
+                page.limit(length);
+                int count = decode(decoder, page, decoded);
+                char[] array = decoded.array();
+                for(int i=0; i<count; i++){
+                    if(array[i] == '\n'){
+                        newlines++;
+                    }
+                }
+                if(pages + 1 >= byteOffsets.length){
+                    byteOffsets = Arrays.copyOf(byteOffsets, byteOffsets.length * 2);
+                    charOffsets = Arrays.copyOf(charOffsets, charOffsets.length * 2);
+                }
+                byteOffsets[pages] = position;
+                charOffsets[pages] = chars;
+                pages++;
+                position += length;
+                chars += count;
+            }
+            byteOffsets[pages] = end;
+            charOffsets[pages] = chars;
+        }
+
+        /**
+         * Move the end of a full page back so it does not split a UTF-8 character or a \r\n
+         */
+        private int pageEnd(int length){
+            int end = length;
+            int lead = length - 1;
+            while(lead > 0 && lead > length - 4 && (page.get(lead) & 0xC0) == 0x80){
+                lead--;
+            }
+            if(lead > 0 && lead + expectedLength(page.get(lead)) > length){
+                end = lead;
+            }
+            if(end > 1 && page.get(end - 1) == '\r'){
+                end--;
+            }
+            return end;
+        }
+
+        private static int expectedLength(byte lead){
+            if((lead & 0xE0) == 0xC0){
+                return 2;
+            }else if((lead & 0xF0) == 0xE0){
+                return 3;
+            }else if((lead & 0xF8) == 0xF0){
+                return 4;
+            }
+            return 1;
+        }
+    }
+
+    /**
+     * A view of part of an OutputSequence
+     */
+    private static class View implements CharSequence {
+        private final OutputSequence source;
+        private final int start;
+        private final int end;
+
+        private View(OutputSequence source, int start, int end){
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if(index < 0 || index >= length()){
+                throw new IndexOutOfBoundsException("index "+index+" length "+length());
+            }
+            return source.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if(start < 0 || end > length() || start > end){
+                throw new IndexOutOfBoundsException("start "+start+" end "+end+" length "+length());
+            }
+            return source.subSequence(this.start + start, this.start + end);
+        }
+
+        @Override
+        public String toString() {
+            return source.substring(start, end);
+        }
+    }
+
+    /**
+     * Reads the trimmed bytes of the file
+     */
+    private class RangeInputStream extends InputStream {
+        private long position = start;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(position >= end){
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int)Math.min(len, end - position));
+            int read = channel().read(buffer, position);
+            if(read > 0){
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    private final SpillFile file;
+    private final long[] byteOffsets;
+    private final long[] charOffsets;
+    private final int pages;
+    private final long start;
+    private final long end;
+    private final long length;
+    private final long newlines;
+    private final CharsetDecoder decoder = decoder();
+    private final int[] cachedPage = new int[CACHED_PAGES];
+    private final char[][] cachedChars = new char[CACHED_PAGES][];
+    private int nextCache = 0;
+    private FileChannel channel;
+    private boolean released = false;
+
+    private OutputSequence(SpillFile file, FileChannel channel, Indexer indexer){
+        this.file = file;
+        this.channel = channel;
+        this.byteOffsets = Arrays.copyOf(indexer.byteOffsets, indexer.pages + 1);
+        this.charOffsets = Arrays.copyOf(indexer.charOffsets, indexer.pages + 1);
+        this.pages = indexer.pages;
+        this.start = indexer.start;
+        this.end = indexer.end;
+        this.length = indexer.chars;
+        this.newlines = indexer.newlines;
+        Arrays.fill(cachedPage, -1);
+    }
+
+    public Path getPath(){return file.getPath();}
+
+    /**
+     * @return the size of the trimmed output in bytes
+     */
+    public long getByteSize(){return end - start;}
+
+    /**
+     * @return the number of lines in the trimmed output
+     */
+    public long getLineCount(){return length == 0 ? 0 : newlines + 1;}
+
+    /**
+     * @return the number of characters, which can be more than a CharSequence can index
+     */
+    public long longLength(){return length;}
+
+    /**
+     * @return true if the CharSequence methods can index every character
+     */
+    public boolean isIndexable(){return length <= Integer.MAX_VALUE;}
+
+    private void checkIndexable(){
+        if(!isIndexable()){
+            throw new IllegalStateException("output has "+length+" characters which is more than a CharSequence can index, use substring, tail or lines");
+        }
+    }
+
+    @Override
+    public int length() {
+        checkIndexable();
+        return (int)length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        checkIndexable();
+        if(index < 0 || index >= length){
+            throw new IndexOutOfBoundsException("index "+index+" length "+length);
+        }
+        int page = findPage(index);
+        return page(page)[(int)(index - charOffsets[page])];
+    }
+
+    private int findPage(long index){
+        int found = Arrays.binarySearch(charOffsets, 0, pages, index);
+        return found < 0 ? -found - 2 : found;
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if(released){
+            throw new IOException("output sequence was released");
+        }
+        if(channel == null){
+            channel = FileChannel.open(file.getPath(), StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    private synchronized char[] page(int page){
+        for(int i=0; i<CACHED_PAGES; i++){
+            if(cachedPage[i] == page){
+                return cachedChars[i];
+            }
+        }
+        int byteLength = (int)(byteOffsets[page + 1] - byteOffsets[page]);
+        ByteBuffer buffer = ByteBuffer.allocate(byteLength);
+        CharBuffer chars = CharBuffer.allocate(byteLength);
+        try {
+            read(channel(), buffer, byteOffsets[page]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int count = decode(decoder, buffer, chars);
+        char[] rtrn = Arrays.copyOf(chars.array(), count);
+        cachedPage[nextCache] = page;
+        cachedChars[nextCache] = rtrn;
+        nextCache = (nextCache + 1) % CACHED_PAGES;
+        return rtrn;
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        checkIndexable();
+        if(start < 0 || end > length || start > end){
+            throw new IndexOutOfBoundsException("start "+start+" end "+end+" length "+length);
+        }
+        return new View(this, start, end);
+    }
+
+    /**
+     * Copy the characters from start to end on to the heap
+     */
+    public String substring(long start, long end){
+        if(start < 0 || end > length || start > end){
+            throw new IndexOutOfBoundsException("start "+start+" end "+end+" length "+length);
+        }
+        if(end - start > Integer.MAX_VALUE - 8){
+            throw new IllegalStateException("cannot copy "+(end - start)+" characters to a String");
+        }
+        StringBuilder sb = new StringBuilder((int)(end - start));
+        long index = start;
+        while(index < end){
+            int page = findPage(index);
+            char[] chars = page(page);
+            int offset = (int)(index - charOffsets[page]);
+            int count = (int)Math.min(chars.length - offset, end - index);
+            sb.append(chars, offset, count);
+            index += count;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return at most maxLength characters from the end of the sequence
+     */
+    public String tail(int maxLength){
+        return substring(Math.max(0, length - Math.max(0, maxLength)), length);
+    }
+
+    /**
+     * @return a reader for the lines in the sequence that the caller must close
+     */
+    public BufferedReader lines() throws IOException {
+        channel();
+        return new BufferedReader(new InputStreamReader(new RangeInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Close the file and release the reference to it. The file is deleted when nothing else references it.
+     */
+    public synchronized void release(){
+        if(released){
+            return;
+        }
+        released = true;
+        try {
+            if(channel != null){
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException e) {
+            //the file is released anyway
+        }
+        Arrays.fill(cachedPage, -1);
+        Arrays.fill(cachedChars, null);
+        file.release();
+    }
+
+    /**
+     * @return the entire sequence as a String. This loads the whole file on to the heap.
+     */
+    @Override
+    public String toString() {
+        return substring(0, length);
+    }
+}
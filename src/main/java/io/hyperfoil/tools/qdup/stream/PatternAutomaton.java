@@ -0,0 +1,196 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * An immutable Aho-Corasick automaton over byte patterns.
+ * Callers keep the current state (starting from ROOT) and step it one byte at a time so matching can continue across
+ * writes without re-scanning buffered content. Each state knows the length of the longest input suffix that is
+ * a prefix of a pattern (depth) and the longest pattern that ends at that state (match).
+ * Empty patterns are ignored and when two names share the same bytes the first name wins.
+ */
+public class PatternAutomaton {
+
+    public static final int ROOT = 0;
+
+    private static final int[] NO_TARGETS = new int[0];
+    private static final byte[] NO_LABELS = new byte[0];
+
+    public static PatternAutomaton compile(Map<String,byte[]> patterns){
+        return new PatternAutomaton(patterns);
+    }
+
+    private int size;
+    private byte[][] labels;
+    private int[][] targets;
+    private int[] rootNext;
+    private int[] fail;
+    private int[] depth;
+    private String[] matchName;
+    private int[] matchLength;
+    private int maxLength;
+
+    private PatternAutomaton(Map<String,byte[]> patterns){
+        int capacity = 1;
+        for(byte[] pattern : patterns.values()){
+            capacity += pattern == null ? 0 : pattern.length;
+        }
+        labels = new byte[capacity][];
+        targets = new int[capacity][];
+        fail = new int[capacity];
+        depth = new int[capacity];
+        matchName = new String[capacity];
+        matchLength = new int[capacity];
+        labels[ROOT] = NO_LABELS;
+        targets[ROOT] = NO_TARGETS;
+        size = 1;
+
+        for(Map.Entry<String,byte[]> entry : patterns.entrySet()){
+            byte[] pattern = entry.getValue();
+            if(pattern == null || pattern.length == 0){
+                continue;
+            }
+            int state = ROOT;
+            for(byte b : pattern){
+                int next = child(state, b);
+                if(next < 0){
+                    next = addChild(state, b);
+                }
+                state = next;
+            }
+            if(matchName[state] == null){
+                matchName[state] = entry.getKey();
+                matchLength[state] = pattern.length;
+            }
+            maxLength = Math.max(maxLength, pattern.length);
+        }
+
+        rootNext = new int[256];
+        for(int i=0; i<labels[ROOT].length; i++){
+            rootNext[labels[ROOT][i] & 0xFF] = targets[ROOT][i];
+        }
+
+        //breadth first so the fail state of a parent is complete before its children
+        Queue<Integer> queue = new LinkedList<>();
+        for(int target : targets[ROOT]){
+            fail[target] = ROOT;
+            queue.add(target);
+        }
+        while(!queue.isEmpty()){
+            int state = queue.poll();
+            for(int i=0; i<labels[state].length; i++){
+                int target = targets[state][i];
+                fail[target] = step(fail[state], labels[state][i]);
+                if(matchName[target] == null && matchName[fail[target]] != null){
+                    matchName[target] = matchName[fail[target]];
+                    matchLength[target] = matchLength[fail[target]];
+                }
+                queue.add(target);
+            }
+        }
+    }
+
+    private int child(int state, byte b){
+        byte[] stateLabels = labels[state];
+        for(int i=0; i<stateLabels.length; i++){
+            if(stateLabels[i] == b){
+                return targets[state][i];
+            }
+        }
+        return -1;
+    }
+
+    private int addChild(int state, byte b){
+        int next = size++;
+        labels[next] = NO_LABELS;
+        targets[next] = NO_TARGETS;
+        depth[next] = depth[state] + 1;
+        int length = labels[state].length;
+        labels[state] = Arrays.copyOf(labels[state], length + 1);
+        targets[state] = Arrays.copyOf(targets[state], length + 1);
+        labels[state][length] = b;
+        targets[state][length] = next;
+        return next;
+    }
+
+    public boolean isEmpty(){return size == 1;}
+
+    /**
+     * @return the length of the longest pattern
+     */
+    public int getMaxLength(){return maxLength;}
+
+    /**
+     * Advance the automaton by one byte
+     * @param state the current state
+     * @param b the next byte
+     * @return the new state
+     */
+    public int step(int state, byte b){
+        while(state != ROOT){
+            int next = child(state, b);
+            if(next >= 0){
+                return next;
+            }
+            state = fail[state];
+        }
+        return rootNext[b & 0xFF];
+    }
+
+    /**
+     * Advance the automaton over len bytes from b starting at off
+     * @return the new state
+     */
+    public int scan(int state, byte[] b, int off, int len){
+        int limit = off + len;
+        for(int i=off; i<limit; i++){
+            state = step(state, b[i]);
+        }
+        return state;
+    }
+
+    /**
+     * Skip the bytes that do not start a pattern, for callers that are at ROOT
+     * @return the index of the first byte from off that starts a pattern or limit if none of them do
+     */
+    public int skip(byte[] b, int off, int limit){
+        for(int i=off; i<limit; i++){
+            if(rootNext[b[i] & 0xFF] != ROOT){
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * @return the length of the longest input suffix that is also a prefix of a pattern
+     */
+    public int depth(int state){return depth[state];}
+
+    /**
+     * @return the name of the longest pattern that ends at this state or null if no pattern ends at this state
+     */
+    public String matchName(int state){return matchName[state];}
+
+    /**
+     * @return the length of the longest pattern that ends at this state or 0 if no pattern ends at this state
+     */
+    public int matchLength(int state){return matchLength[state];}
+
+    /**
+     * @return true if the len bytes from b starting at off are the start (or all) of a pattern
+     */
+    public boolean isPrefix(byte[] b, int off, int len){
+        int state = ROOT;
+        for(int i=off; i<off+len; i++){
+            state = state == ROOT ? rootNext[b[i] & 0xFF] : child(state, b[i]);
+            if(state <= ROOT){
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,204 @@
+package io.hyperfoil.tools.qdup.stream;
+
+/**
+ * The exit code and command nonce that SshSession puts in PS1 before the prompt:
+ * exitCodePrefix + digits + [noncePrefix + digits] + prompt
+ * SuffixStream and SessionStreams use this to find them in the end of the output they hold back.
+ * The methods only look at b up to the endIndex or length they are given.
+ */
+final class PromptMarkers {
+
+    static final int MAX_EXIT_CODE_DIGITS = 3;
+    static final int MAX_NONCE_DIGITS = 19;
+
+    private byte[] exitCodePrefix;
+    private byte[] noncePrefix;
+    private volatile byte[] expectedNonce;
+
+    void setExitCodePrefix(String prefix){
+        this.exitCodePrefix = prefix == null || prefix.isEmpty() ? null : prefix.getBytes();
+    }
+    boolean hasExitCodePrefix(){return exitCodePrefix != null;}
+
+    void setNoncePrefix(String prefix){
+        this.noncePrefix = prefix == null || prefix.isEmpty() ? null : prefix.getBytes();
+    }
+    boolean hasNoncePrefix(){return noncePrefix != null;}
+
+    void expectNonce(String nonce){
+        this.expectedNonce = nonce == null ? null : nonce.getBytes();
+    }
+
+    /**
+     * @return the longest exit code and nonce that can precede a prompt
+     */
+    int markerLength(){
+        int rtrn = 0;
+        if(exitCodePrefix != null){
+            rtrn += exitCodePrefix.length + MAX_EXIT_CODE_DIGITS;
+        }
+        if(noncePrefix != null){
+            rtrn += noncePrefix.length + MAX_NONCE_DIGITS;
+        }
+        return rtrn;
+    }
+
+    /**
+     * @return the longest content at the end of the output that can be part of a prompt and the exit code and nonce before it
+     */
+    int tailLength(PatternAutomaton automaton){
+        int rtrn = automaton.getMaxLength();
+        if(exitCodePrefix != null){
+            rtrn += exitCodePrefix.length + MAX_EXIT_CODE_DIGITS;
+            if(noncePrefix != null){
+                rtrn += noncePrefix.length + MAX_NONCE_DIGITS;
+            }
+        }
+        return rtrn;
+    }
+
+    /**
+     * @return true if the prompt that starts at suffixStart is preceded by the expected nonce
+     */
+    boolean isExpectedNonce(byte[] b, int suffixStart){
+        byte[] expected = expectedNonce;
+        if(expected == null){
+            return false;
+        }
+        int nonceStart = nonceStart(b, suffixStart);
+        if(nonceStart < 0 || suffixStart - nonceStart - noncePrefix.length != expected.length){
+            return false;
+        }
+        for(int i=0; i<expected.length; i++){
+            if(b[suffixStart - expected.length + i] != expected[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the start of noncePrefix + digits that ends at endIndex, the digits are optional
+     * @return the index of the prefix or -1 if b does not have a nonce before endIndex
+     */
+    int nonceStart(byte[] b, int endIndex){
+        if(noncePrefix == null){
+            return -1;
+        }
+        int digitStart = endIndex;
+        while(digitStart > 0 && endIndex - digitStart < MAX_NONCE_DIGITS && isDigit(b[digitStart - 1])){
+            digitStart--;
+        }
+        int prefixStart = digitStart - noncePrefix.length;
+        if(prefixStart < 0){
+            return -1;
+        }
+        for(int i=0; i<noncePrefix.length; i++){
+            if(b[prefixStart + i] != noncePrefix[i]){
+                return -1;
+            }
+        }
+        return prefixStart;
+    }
+
+    /**
+     * @return the digits of the nonce found by nonceStart
+     */
+    String nonce(byte[] b, int nonceStart, int endIndex){
+        return new String(b, nonceStart + noncePrefix.length, endIndex - nonceStart - noncePrefix.length);
+    }
+
+    /**
+     * Find the start of exitCodePrefix + digits that ends at endIndex
+     * @return the index of the prefix or -1 if b does not have an exit code before endIndex
+     */
+    int exitCodeStart(byte[] b, int endIndex){
+        if(exitCodePrefix == null){
+            return -1;
+        }
+        int digitStart = endIndex;
+        while(digitStart > 0 && endIndex - digitStart < MAX_EXIT_CODE_DIGITS && isDigit(b[digitStart - 1])){
+            digitStart--;
+        }
+        int prefixStart = digitStart - exitCodePrefix.length;
+        if(digitStart == endIndex || prefixStart < 0){
+            return -1;
+        }
+        for(int i=0; i<exitCodePrefix.length; i++){
+            if(b[prefixStart + i] != exitCodePrefix[i]){
+                return -1;
+            }
+        }
+        return prefixStart;
+    }
+
+    /**
+     * @return the digits of the exit code found by exitCodeStart
+     */
+    String exitCode(byte[] b, int exitCodeStart, int endIndex){
+        return new String(b, exitCodeStart + exitCodePrefix.length, endIndex - exitCodeStart - exitCodePrefix.length);
+    }
+
+    /**
+     * Get the length of the content at the end of b that could be the start of exitCodePrefix + digits + [noncePrefix + digits] + prompt
+     * @param start the first index to check
+     * @param length the end of the content in b
+     * @return the length to hold back or 0 if the content does not end with a partial exit code
+     */
+    int trailingExitCodeLength(PatternAutomaton automaton, byte[] b, int start, int length){
+        if(exitCodePrefix == null){
+            return 0;
+        }
+        for(int i=start; i<length; i++){
+            if(b[i] == exitCodePrefix[0] && isPartialExitCode(automaton, b, i, length)){
+                return length - i;
+            }
+        }
+        return 0;
+    }
+
+    private boolean isPartialExitCode(PatternAutomaton automaton, byte[] b, int index, int length){
+        for(int i = 0; i < exitCodePrefix.length && index < length; i++, index++){
+            if(b[index] != exitCodePrefix[i]){
+                return false;
+            }
+        }
+        int digits = 0;
+        while(index < length && digits < MAX_EXIT_CODE_DIGITS && isDigit(b[index])){
+            digits++;
+            index++;
+        }
+        if(index == length){
+            return true;
+        }
+        if(digits == 0){
+            return false;
+        }
+        if(noncePrefix != null){
+            int nonceIndex = index;
+            int matched = 0;
+            while(matched < noncePrefix.length && nonceIndex < length && b[nonceIndex] == noncePrefix[matched]){
+                matched++;
+                nonceIndex++;
+            }
+            if(nonceIndex == length){
+                return true;
+            }
+            if(matched == noncePrefix.length){
+                int nonceDigits = 0;
+                while(nonceIndex < length && nonceDigits < MAX_NONCE_DIGITS && isDigit(b[nonceIndex])){
+                    nonceDigits++;
+                    nonceIndex++;
+                }
+                if(nonceIndex == length || automaton.isPrefix(b, nonceIndex, length - nonceIndex)){
+                    return true;
+                }
+            }
+        }
+        return automaton.isPrefix(b, index, length - index);
+    }
+
+    private static boolean isDigit(byte b){
+        return b >= '0' && b <= '9';
+    }
+}
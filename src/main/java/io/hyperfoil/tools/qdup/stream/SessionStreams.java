@@ -1,89 +1,191 @@
 package io.hyperfoil.tools.qdup.stream;
 
-import java.io.ByteArrayOutputStream;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
+import static io.hyperfoil.tools.qdup.stream.EscapeFilteredStream.COMPLETE;
+import static io.hyperfoil.tools.qdup.stream.EscapeFilteredStream.ESC;
+import static io.hyperfoil.tools.qdup.stream.EscapeFilteredStream.ESCAPE;
+import static io.hyperfoil.tools.qdup.stream.EscapeFilteredStream.GROUND;
+import static io.hyperfoil.tools.qdup.stream.EscapeFilteredStream.MAX_SEQUENCE_LENGTH;
+import static io.hyperfoil.tools.qdup.stream.EscapeFilteredStream.RESTART;
+import static io.hyperfoil.tools.qdup.stream.EscapeFilteredStream.TRANSITIONS;
+import static io.hyperfoil.tools.qdup.stream.SuffixStream.DEFAULT_DELAY;
+
+/**
+ * The output of a shell session processed in a single pass over a shared ring buffer.
+ * Each write is copied into the ring without its escape sequences and the stages below only keep positions in the ring,
+ * so the output is not copied from stream to stream and each stage scans the bytes while they are still in the cache.
+ *
+ * Stages (same behaviour as the EscapeFilteredStream, SuffixStream, FilteredStream and LineEmittingStream chain)
+ *    escapes - removes bash escape sequences, only a sequence that is split across writes is kept outside of the ring
+ *    suffix - holds back the end of the output that could be a prompt (and the exit code / nonce before it) until the prompt is found or ruled out
+ *    inline prompts - watches the released output for suffixes that need a response (Y/n, Ok?, ...)
+ *    filters - removes sequences from anywhere in the released output (the bash command, control characters)
+ *    sh and lines - stores the output for a command (spills to a temporary file past the memory limit) and sends each line (\n or \r\n) to the line consumers
+ */
 public class SessionStreams extends MultiStream {
+   final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
 
+   private static final int CR = 13;
+   private static final int LF = 10;
+   private static final int INITIAL_CAPACITY = 32 * 1024;
 
-   public EscapeFilteredStream getEscapeFilteredStream() {
-      return escapeFilteredStream;
-   }
+   /**
+    * Named patterns compiled into a PatternAutomaton the first time they are used after a change.
+    */
+   private static class Patterns {
+      private final Map<String,byte[]> patterns = new LinkedHashMap<>();
+      private final Map<String,byte[]> replacements = new LinkedHashMap<>();
+      private volatile PatternAutomaton automaton;
 
-   public SuffixStream getSuffixStream() {
-      return suffixStream;
+      private PatternAutomaton getAutomaton(){
+         PatternAutomaton rtrn = automaton;
+         if(rtrn == null){
+            synchronized (patterns){
+               rtrn = automaton;
+               if(rtrn == null){
+                  rtrn = PatternAutomaton.compile(patterns);
+                  automaton = rtrn;
+               }
+            }
+         }
+         return rtrn;
+      }
+      /**
+       * @param replacement the content that replaces the pattern or null to keep the pattern
+       */
+      private void put(String name, byte[] pattern, byte[] replacement){
+         synchronized (patterns){
+            patterns.put(name, pattern);
+            if(replacement == null){
+               replacements.remove(name);
+            }else{
+               replacements.put(name, replacement);
+            }
+            automaton = null;
+         }
+      }
+      private void clear(){
+         synchronized (patterns){
+            patterns.clear();
+            replacements.clear();
+            automaton = null;
+         }
+      }
+      private byte[] get(String name){return patterns.get(name);}
+      private byte[] getReplacement(String name){return replacements.get(name);}
+      private Set<String> names(){return patterns.keySet();}
    }
 
-   public SuffixStream getPromptStream() {
-      return promptStream;
-   }
+   private class FoundRunnable implements Runnable {
+      private long lastIndex;
+      private String name;
 
-   public LineEmittingStream getLineEmittingStream() {
-      return lineEmittingStream;
-   }
+      private void reset(String name, long end){
+         this.name = name;
+         this.lastIndex = end;
+      }
 
-   public FilteredStream getFilteredStream() {
-      return filteredStream;
+      @Override
+      public void run() {
+         if(lastIndex == end){//if there has not been a subsequent write
+            future = null; //so we don't accidentally cancel the future running a shSync
+            foundSuffix(name);
+            callPromptCallbacks(name);
+         }
+      }
    }
 
-   public ByteArrayOutputStream getShStream() {
-      return shStream;
-   }
+   //positions only increase so they are longs and map to the ring with index()
+   private byte[] ring = new byte[INITIAL_CAPACITY];
+   private int mask = INITIAL_CAPACITY - 1;
+   private long end = 0;//the position after the output without escape sequences
 
-   private EscapeFilteredStream escapeFilteredStream = null;
-   private SuffixStream suffixStream = null;
-   private SuffixStream promptStream = null;
-   private LineEmittingStream lineEmittingStream = null;
-   private FilteredStream filteredStream = null;
-   private ByteArrayOutputStream shStream = null;
-
-   /* Stream hierarchy
-    * escapeFilteredStream - removes bash escape sequences
-    *    suffixStream - looks for substrings at the end of the write buffer (bash prompt)
-    *       filteredStream - removes sequences from anywhere in the write buffer (the bash command)
-    *          lineEmittingStream - sends each line (\n or \r\n) of the write buffer to listeners (watching commands)
-    *          shStream - stores all of the write buffer for a command
-    *       promptStream - watches for suffixes and sends a prompt response (Y/n, Ok?, ...)
-    */
-   public SessionStreams(String name, ScheduledThreadPoolExecutor executor){
-      super(name);
-      shStream = new ByteArrayOutputStream();
-      escapeFilteredStream = new EscapeFilteredStream(name);
-      filteredStream = new FilteredStream(name);
-      suffixStream = new SuffixStream(name+"-suffix", executor);
-      promptStream = new SuffixStream(name+"-prompt",null);
-      lineEmittingStream = new LineEmittingStream(name);
+   //escapes
+   private int escapeState = GROUND;
+   private long sequenceStart;
+   private int sequenceLength;
+   private byte[] pending = new byte[64];//the start of a sequence from a previous write
+   private int pendingLength = 0;
+   private OutputStream trace;
+
+   //suffix
+   private final Patterns prompts = new Patterns();
+   private final List<Consumer<String>> promptCallbacks = new LinkedList<>();
+   private long suffixFrom = 0;//the output before this position was released to the other stages
+   private long suffixScan = 0;
+   private int suffixState = PatternAutomaton.ROOT;
+   private PatternAutomaton suffixScannedWith;
+   private byte[] tail = new byte[256];//the end of the held output for the exit code and nonce checks
+   private long tailStart;
+   private final PromptMarkers markers = new PromptMarkers();
+   private volatile String exitCode = "";
+   private volatile String lastNonce = null;
+   private final ScheduledThreadPoolExecutor executor;
+   private int executorDelay = DEFAULT_DELAY;
+   private ScheduledFuture future;
+   private final FoundRunnable foundRunnable = new FoundRunnable();
 
-      escapeFilteredStream.addStream("semaphore", suffixStream);
+   //inline prompts
+   private final Patterns inlinePrompts = new Patterns();
+   private final List<Consumer<String>> inlineCallbacks = new LinkedList<>();
+   private int inlineState = PatternAutomaton.ROOT;
+   private PatternAutomaton inlineScannedWith;
+   private byte[] inlineHeld = new byte[64];//the partial prompt at the end of the released output, to re-scan when the prompts change
+   private int inlineHeldLength = 0;
 
-      suffixStream.addStream("filtered", filteredStream);
-      suffixStream.addStream("prompt-callback", promptStream);
+   //filters
+   private final Patterns filters = new Patterns();
+   private long filterFrom = 0;//the released output before this position was filtered
+   private long filterScan = 0;
+   private int filterState = PatternAutomaton.ROOT;
+   private PatternAutomaton filterScannedWith;
+   private int postFilterDrop = 0;
 
-      //move before opening connection or sending
-      //was getting a ConcurrentModificationException with this after the setup sh() calls
-      filteredStream.addStream("lines", lineEmittingStream);
-      filteredStream.addStream("sh", shStream);
+   //sh and lines
+   private final SpillingOutputStream shStream = new SpillingOutputStream();
+   private final List<Consumer<String>> lineConsumers = new LinkedList<>();
+   private byte[] line = new byte[4 * 1024];//a line that is split across writes or filtered content
+   private int lineLength = 0;
 
-      filteredStream.addFilter("^C", new byte[]{0, 0, 0, 3});
-      filteredStream.addFilter("echo-^C", "^C");
-      filteredStream.addFilter("^D", new byte[]{0, 0, 0, 4});
-      filteredStream.addFilter("echo-^D", "^D");
-      filteredStream.addFilter("^P", new byte[]{0, 0, 0, 16});
-      filteredStream.addFilter("^T", new byte[]{0, 0, 0, 20});
-      filteredStream.addFilter("^X", new byte[]{0, 0, 0, 24});
-      filteredStream.addFilter("^@", new byte[]{0, 0, 0});
+   public SessionStreams(String name, ScheduledThreadPoolExecutor executor){
+      super(name);
+      this.executor = executor;
+      filters.put("^C", new byte[]{0, 0, 0, 3}, null);
+      filters.put("echo-^C", "^C".getBytes(), null);
+      filters.put("^D", new byte[]{0, 0, 0, 4}, null);
+      filters.put("echo-^D", "^D".getBytes(), null);
+      filters.put("^P", new byte[]{0, 0, 0, 16}, null);
+      filters.put("^T", new byte[]{0, 0, 0, 20}, null);
+      filters.put("^X", new byte[]{0, 0, 0, 24}, null);
+      filters.put("^@", new byte[]{0, 0, 0}, null);
+   }
+
+   public SpillingOutputStream getShStream() {
+      return shStream;
    }
 
    public void write(String towrite) throws IOException {
       if(towrite != null){
-         escapeFilteredStream.write(towrite.getBytes(),0,towrite.getBytes().length);
+         byte[] bytes = towrite.getBytes();
+         write(bytes,0,bytes.length);
       }
    }
 
@@ -94,56 +196,76 @@ public class SessionStreams extends MultiStream {
 
    @Override
    public void write(byte b[], int off, int len) throws IOException {
-      escapeFilteredStream.write(b,off,len);
+      try {
+         long from = end;
+         ensureRoom(pendingLength + len);
+         filterEscapes(b, off, len);
+         if(end > from){
+            writeTrace(from, end);
+            scanSuffix();
+         }
+      }catch(Exception e){
+         logger.error(e.getMessage(),e);
+         throw new RuntimeException("b.length="+(b==null?"null":b.length)+" off="+off+" len="+len+" ring.length="+ring.length, e);
+      }
    }
+
    @Override
    public void flush() throws IOException{
-      escapeFilteredStream.flush();
+      //the suffix and filters hold back content on purpose, use flushBuffer
    }
 
+   /**
+    * Write the content held back by the filters and emit the last line even if it does not end with a new line
+    */
    public void flushBuffer(){
-      filteredStream.flushBuffer();
-      lineEmittingStream.forceEmit();
+      emit(filterFrom, suffixFrom);
+      filterFrom = suffixFrom;
+      filterScan = suffixFrom;
+      filterState = PatternAutomaton.ROOT;
+      forceEmit();
    }
 
    @Override
    public void close() throws IOException {
-      escapeFilteredStream.close();
-      suffixStream.close();
+      if(escapeState != GROUND){
+         long from = end;
+         ensureRoom(pendingLength);
+         append(pending, 0, pendingLength);
+         pendingLength = 0;
+         escapeState = GROUND;
+         writeTrace(from, end);
+         scanSuffix();
+      }
+      release(end);
+      suffixState = PatternAutomaton.ROOT;
+      suffixScan = end;
+      flushBuffer();
+      shStream.close();
    }
 
    public void addLineConsumer(Consumer<String> consumer){
-      lineEmittingStream.addConsumer(consumer);
+      lineConsumers.add(consumer);
    }
    public void removeLineConsumer(Consumer<String> consumer){
-      lineEmittingStream.removeConsumer(consumer);
+      lineConsumers.remove(consumer);
    }
 
-   @Override
-   public void setName(String name){
-      super.setName(name);
-      escapeFilteredStream.setName(name);
-      filteredStream.setName(name);
-      lineEmittingStream.setName(name);
-      suffixStream.setName(name+"-suffix");
-      promptStream.setName(name+"-prompt");
-   }
    public boolean hasTrace(){
-      return escapeFilteredStream.hasStream("trace");
+      return trace != null;
    }
    public void setTrace(String path) throws IOException{
       if(!hasTrace()){
          String tracePath = Files.createTempFile(path,".log").toAbsolutePath().toString();
-         FileOutputStream traceStream = new FileOutputStream(tracePath);
-         escapeFilteredStream.addStream("trace",traceStream);
+         trace = new FileOutputStream(tracePath);
       }
    }
    public OutputStream getTrace(){
-      return escapeFilteredStream.getStream("trace");
+      return trace;
    }
 
    public void setCommand(String command){
-      filteredStream.addFilter("command",command,"");
+      filters.put("command",command.getBytes(),null);
    }
 
    public void trace(String output){
@@ -156,51 +278,110 @@ public class SessionStreams extends MultiStream {
       }
    }
    public void setDelay(int delay){
-      suffixStream.setExecutorDelay(delay);
+      executorDelay = delay;
    }
    public int getDelay(){
-      return suffixStream.getExecutorDelay();
+      return executorDelay;
    }
 
    public void clearInline(){
-      promptStream.clear();
-      promptStream.clearConsumers();
+      inlinePrompts.clear();
+      inlineCallbacks.clear();
    }
    public void addInlinePrompts(Set<String> prompt,Consumer<String> callback){
-      prompt.forEach(promptStream::addSuffix);
-      promptStream.addConsumer(callback);
+      prompt.forEach(value -> inlinePrompts.put(value, value.getBytes(), null));
+      inlineCallbacks.add(callback);
    }
    public Set<String> getInlinePrompts(){
-      return suffixStream.getSuffixes();
+      return prompts.names();
    }
    public void addPrompt(String prompt){
       addPrompt(prompt,prompt,"");
    }
    public void addPrompt(String name,String prompt,String replacement){
-      suffixStream.addSuffix(name,prompt,replacement);
+      prompts.put(name,prompt.getBytes(),replacement.getBytes());
+   }
+
+   /**
+    * Look for an exit code in the form of prefix followed by digits immediately before a matched prompt.
+    * The prefix and digits are removed from the output and the digits are available from getExitCode.
+    * @param prefix the marker before the exit code or null to disable exit code parsing
+    */
+   public void setExitCodePrefix(String prefix){
+      markers.setExitCodePrefix(prefix);
+   }
+   /**
+    * @return the exit code that preceded the last matched prompt or an empty string if there was no exit code
+    */
+   public String getExitCode(){
+      return exitCode;
+   }
+
+   /**
+    * Look for a command nonce in the form of prefix followed by digits between the exit code and a matched prompt.
+    * A prompt preceded by the expected nonce is reported immediately instead of waiting for the delay.
+    * @param prefix the marker before the nonce or null to disable nonce parsing
+    */
+   public void setNoncePrefix(String prefix){
+      markers.setNoncePrefix(prefix);
+   }
+   public void expectNonce(String nonce){
+      markers.expectNonce(nonce);
+   }
+   public String getLastNonce(){
+      return lastNonce;
    }
 
    public void addPromptCallback(Consumer<String> callback){
-      suffixStream.addConsumer(callback);
+      promptCallbacks.add(callback);
    }
    public void removePromptCallback(Consumer<String> callback){
-      suffixStream.removeConsumer(callback);
+      promptCallbacks.remove(callback);
    }
 
    public void reset(){
-      lineEmittingStream.reset();
+      lineLength = 0;
       shStream.reset();
    }
 
+   public void setOutputMemoryLimit(long memoryLimit){
+      shStream.setMemoryLimit(memoryLimit);
+   }
+   public long getOutputMemoryLimit(){
+      return shStream.getMemoryLimit();
+   }
+   public boolean isOutputSpilled(){
+      return shStream.isSpilled();
+   }
+
+   /**
+    * @return the current output or only the last memory limit bytes if the output spilled to disk
+    */
    public String currentOutput(){
+      if(shStream.isSpilled()){
+         return new String(memoryTail(), StandardCharsets.UTF_8);
+      }
       return shStream.toString();
    }
+
+   private byte[] memoryTail(){
+      long limit = shStream.getMemoryLimit();
+      return shStream.tail(limit > 0 ? (int)Math.min(Integer.MAX_VALUE - 8, limit) : Integer.MAX_VALUE - 8);
+   }
+
+   /**
+    * @return the trimmed output as a file backed sequence or null if the output is still in memory
+    */
+   public OutputSequence currentOutputSequence(){
+      return shStream.toSequence();
+   }
+
    public String tail(int lines){
       if(lines<=0){
          lines=1;
       }
 
-      byte[] b= shStream.toByteArray();
+      byte[] b= memoryTail();
       int idx = b.length;
       while(lines > 0 && idx > 0){
          idx--;
@@ -210,4 +391,478 @@ public class SessionStreams extends MultiStream {
       }
       return new String(b,idx,b.length-(idx));
    }
+
+   //ring
+
+   private int index(long position){
+      return (int)position & mask;
+   }
+
+   /**
+    * Make room for extra bytes after end without losing the content the filters still hold
+    */
+   private void ensureRoom(int extra){
+      int required = (int)(end - filterFrom) + extra;
+      if(required <= ring.length){
+         return;
+      }
+      int capacity = ring.length;
+      while(capacity < required){
+         capacity = capacity * 2;
+      }
+      byte[] grown = new byte[capacity];
+      int grownMask = capacity - 1;
+      for(long position = filterFrom; position < end; position++){
+         grown[(int)position & grownMask] = ring[index(position)];
+      }
+      ring = grown;
+      mask = grownMask;
+   }
+
+   private void append(byte b[], int off, int len){
+      int start = index(end);
+      int first = Math.min(len, ring.length - start);
+      System.arraycopy(b, off, ring, start, first);
+      System.arraycopy(b, off + first, ring, 0, len - first);
+      end += len;
+   }
+
+   private void copyOut(long from, byte dest[], int off, int len){
+      int start = index(from);
+      int first = Math.min(len, ring.length - start);
+      System.arraycopy(ring, start, dest, off, first);
+      System.arraycopy(ring, 0, dest, off + first, len - first);
+   }
+
+   private void writeRange(OutputStream stream, long from, long to) throws IOException {
+      int start = index(from);
+      int len = (int)(to - from);
+      int first = Math.min(len, ring.length - start);
+      stream.write(ring, start, first);
+      if(first < len){
+         stream.write(ring, 0, len - first);
+      }
+   }
+
+   private int scan(PatternAutomaton automaton, int state, long from, long to){
+      int start = index(from);
+      int len = (int)(to - from);
+      int first = Math.min(len, ring.length - start);
+      state = scan(automaton, state, start, start + first);
+      return first < len ? scan(automaton, state, 0, len - first) : state;
+   }
+   private int scan(PatternAutomaton automaton, int state, int start, int limit){
+      int i = start;
+      while(i < limit){
+         if(state == PatternAutomaton.ROOT){
+            i = automaton.skip(ring, i, limit);
+            if(i == limit){
+               break;
+            }
+         }
+         state = automaton.step(state, ring[i++]);
+      }
+      return state;
+   }
+
+   private static boolean isLineEnd(byte b){
+      return b == LF || b == CR;
+   }
+
+   //escapes
+
+   /**
+    * Append b[off,off+len) to the ring without the escape sequences, see EscapeFilteredStream for the table.
+    */
+   private void filterEscapes(byte b[], int off, int len){
+      int state = escapeState;
+      if(state != GROUND){//the sequence started in a previous write
+         sequenceStart = end;
+         append(pending, 0, pendingLength);
+         pendingLength = 0;
+      }
+      int limit = off + len;
+      for(int i = off; i < limit; i++){
+         if(state == GROUND){
+            //most of the output is text so look for the next ESC without going through the table
+            int from = i;
+            while(i < limit && b[i] != ESC){
+               i++;
+            }
+            append(b, from, i - from);
+            if(i < limit){
+               sequenceStart = end;
+               ring[index(end++)] = ESC;
+               sequenceLength = 1;
+               state = ESCAPE;
+            }
+            continue;
+         }
+         int next = TRANSITIONS[state * 256 + (b[i] & 0xFF)];
+         if(next >= 0){
+            ring[index(end++)] = b[i];
+            state = next;
+            if(++sequenceLength > MAX_SEQUENCE_LENGTH){//too long to be an escape sequence, keep it
+               state = GROUND;
+            }
+         }else if(next == COMPLETE){
+            end = sequenceStart;
+            state = GROUND;
+         }else if(next == RESTART){
+            //the sequence ends before the last ESC, which starts the next sequence
+            ring[index(sequenceStart)] = ESC;
+            end = sequenceStart + 1;
+            sequenceLength = 1;
+            state = ESCAPE;
+            i--;
+         }else{//FAIL, keep the sequence and process the byte from GROUND
+            state = GROUND;
+            i--;
+         }
+      }
+      if(state != GROUND){
+         //keep the start of the sequence for the next write
+         pendingLength = (int)(end - sequenceStart);
+         pending = ensureCapacity(pending, 0, pendingLength);
+         copyOut(sequenceStart, pending, 0, pendingLength);
+         end = sequenceStart;
+      }
+      escapeState = state;
+   }
+
+   private void writeTrace(long from, long to){
+      if(trace != null){
+         try {
+            writeRange(trace, from, to);
+         } catch (IOException e) {
+            logger.error("failed to write trace: "+e.getMessage(),e);
+         }
+      }
+   }
+
+   //suffix
+
+   private void scanSuffix(){
+      PatternAutomaton automaton = prompts.getAutomaton();
+      if(automaton.isEmpty()){
+         suffixState = PatternAutomaton.ROOT;
+         suffixScan = end;
+         release(end);
+         return;
+      }
+      if(automaton != suffixScannedWith){//prompts changed, re-scan what is held
+         suffixScannedWith = automaton;
+         suffixState = PatternAutomaton.ROOT;
+         suffixScan = suffixFrom;
+      }
+      suffixState = scan(automaton, suffixState, suffixScan, end);
+      suffixScan = end;
+
+      String foundName = automaton.matchName(suffixState); //longest prompt that ends the output
+      int trailingSuffixLength = automaton.depth(suffixState); //longest partial prompt at the end of the output
+      int trailingExitCodeLength;
+      if(foundName != null){
+         if(isExpectedNonce(foundName)){
+            //the end of the current command, no need to wait for more output
+            if(future!=null){
+               future.cancel(true);
+               future = null;
+            }
+            foundSuffix(foundName);
+            callPromptCallbacks(foundName);
+         }else if(executor!=null && executorDelay>=0){
+            if(future!=null){
+               future.cancel(true);
+            }
+            foundRunnable.reset(foundName,end);
+            future = executor.schedule(foundRunnable,executorDelay,TimeUnit.MILLISECONDS);
+         }else{
+            foundSuffix(foundName);
+            callPromptCallbacks(foundName);
+         }
+      }else if(markers.hasExitCodePrefix() && (trailingExitCodeLength = trailingExitCodeLength(automaton)) > trailingSuffixLength){
+         //keep the exit code until the rest of the prompt arrives
+         release(end - trailingExitCodeLength);
+      }else{
+         release(end - trailingSuffixLength);
+      }
+   }
+
+   /**
+    * Release the output before the prompt without the exit code and nonce, then the prompt or its replacement
+    */
+   private void foundSuffix(String name){
+      byte[] suffix = prompts.get(name);
+      int suffixLength = suffix == null ? 0 : suffix.length;
+      int length = copyTail(suffixLength + markers.markerLength());
+      int suffixStart = length - suffixLength;
+      int markerEnd = suffixStart;
+      int nonceStart = markers.nonceStart(tail, suffixStart);
+      if(nonceStart >= 0){
+         lastNonce = markers.nonce(tail, nonceStart, suffixStart);
+         markerEnd = nonceStart;
+      }else{
+         lastNonce = null;
+      }
+      int markerStart = markerEnd;
+      int exitCodeStart = markers.exitCodeStart(tail, markerEnd);
+      if(exitCodeStart >= 0){
+         exitCode = markers.exitCode(tail, exitCodeStart, markerEnd);
+         markerStart = exitCodeStart;
+      }else{
+         exitCode = "";
+      }
+      release(tailStart + markerStart);
+      end = tailStart + markerStart;
+      byte[] replacement = prompts.getReplacement(name);
+      if(replacement != null){
+         ensureRoom(replacement.length);
+         append(replacement, 0, replacement.length);
+      }else{
+         append(tail, suffixStart, length - suffixStart);
+      }
+      release(end);
+      suffixState = PatternAutomaton.ROOT;
+      suffixScan = end;
+   }
+
+   private void callPromptCallbacks(String name){
+      promptCallbacks.forEach(c -> c.accept(name));
+   }
+
+   /**
+    * Copy the last span bytes of the held output to tail
+    * @return the number of bytes in tail
+    */
+   private int copyTail(int span){
+      tailStart = Math.max(suffixFrom, end - span);
+      int length = (int)(end - tailStart);
+      tail = ensureCapacity(tail, 0, length);
+      copyOut(tailStart, tail, 0, length);
+      return length;
+   }
+
+   /**
+    * @return true if the prompt that ends the output is preceded by the expected nonce
+    */
+   private boolean isExpectedNonce(String name){
+      byte[] suffix = prompts.get(name);
+      if(suffix == null){
+         return false;
+      }
+      int length = copyTail(suffix.length + markers.markerLength());
+      return markers.isExpectedNonce(tail, length - suffix.length);
+   }
+
+   /**
+    * @return the length of the partial exit code, nonce and prompt to hold back at the end of the output or 0 if there is none
+    */
+   private int trailingExitCodeLength(PatternAutomaton automaton){
+      int length = copyTail(markers.tailLength(automaton));
+      return markers.trailingExitCodeLength(automaton, tail, 0, length);
+   }
+
+   /**
+    * Pass the held output before to to the inline prompts and the filters
+    */
+   private void release(long to){
+      if(to > suffixFrom){
+         long from = suffixFrom;
+         suffixFrom = to;
+         scanInline(from, to);
+         filter(from, to);
+      }
+   }
+
+   //inline prompts
+
+   private void scanInline(long from, long to){
+      PatternAutomaton automaton = inlinePrompts.getAutomaton();
+      if(automaton.isEmpty()){
+         inlineState = PatternAutomaton.ROOT;
+         inlineHeldLength = 0;
+         return;
+      }
+      if(automaton != inlineScannedWith){//prompts changed, re-scan the partial prompt
+         inlineScannedWith = automaton;
+         inlineState = automaton.scan(PatternAutomaton.ROOT, inlineHeld, 0, inlineHeldLength);
+      }
+      inlineState = scan(automaton, inlineState, from, to);
+      String foundName = automaton.matchName(inlineState);
+      if(foundName != null){
+         inlineState = PatternAutomaton.ROOT;
+         inlineHeldLength = 0;
+         inlineCallbacks.forEach(c -> c.accept(foundName));
+         return;
+      }
+      int depth = automaton.depth(inlineState);
+      int len = (int)(to - from);
+      inlineHeld = ensureCapacity(inlineHeld, inlineHeldLength, depth);
+      if(depth > len){//the partial prompt started before this release
+         System.arraycopy(inlineHeld, inlineHeldLength - (depth - len), inlineHeld, 0, depth - len);
+         copyOut(from, inlineHeld, depth - len, len);
+      }else{
+         copyOut(to - depth, inlineHeld, 0, depth);
+      }
+      inlineHeldLength = depth;
+   }
+
+   //filters
+
+   /**
+    * Remove the left most filter from the released output, picking the longest filter if more than one match starts
+    * at the same position, and hold back a partial filter at the end. See FilteredStream.
+    */
+   private void filter(long from, long to){
+      long chunkStart = from;
+      while(postFilterDrop > 0 && from < to && isLineEnd(ring[index(from)])){
+         from++;
+         postFilterDrop--;
+      }
+      PatternAutomaton automaton = filters.getAutomaton();
+      if(automaton.isEmpty()){
+         emit(filterFrom, chunkStart);
+         emit(from, to);
+         filterState = PatternAutomaton.ROOT;
+         filterFrom = to;
+         filterScan = to;
+         return;
+      }
+      if(from > chunkStart){
+         //the dropped line ends were between the held content and the rest of the release
+         int shift = (int)(from - chunkStart);
+         for(long position = chunkStart - 1; position >= filterFrom; position--){
+            ring[index(position + shift)] = ring[index(position)];
+         }
+         filterFrom += shift;
+         filterScan += shift;
+      }
+      if(automaton != filterScannedWith){//filters changed, re-scan what is held
+         filterScannedWith = automaton;
+         filterState = PatternAutomaton.ROOT;
+         filterScan = filterFrom;
+      }
+      long bufferStart = filterFrom;
+      long flushIndex = filterFrom;
+      String matchedName = null;
+      long matchStart = -1;
+      int matchLength = 0;
+      long current = filterScan;
+      while(current < to || matchedName != null){
+         if(current < to){
+            if(filterState == PatternAutomaton.ROOT && matchedName == null){
+               //most of the output does not start a filter
+               int start = index(current);
+               int limit = start + (int)Math.min(to - current, ring.length - start);
+               int next = automaton.skip(ring, start, limit);
+               current += next - start;
+               if(next == limit){//the end of the release or of the ring
+                  continue;
+               }
+            }
+            filterState = automaton.step(filterState, ring[index(current)]);
+            current++;
+            int length = automaton.matchLength(filterState);
+            if(length > 0){
+               long start = current - length;
+               if(matchedName == null || start < matchStart || (start == matchStart && length > matchLength)){
+                  matchedName = automaton.matchName(filterState);
+                  matchStart = start;
+                  matchLength = length;
+               }
+            }
+         }
+         //wait until no partial match starts at or before matchStart, or until the end of the release
+         if(matchedName != null && (current == to || current - automaton.depth(filterState) > matchStart)){
+            postFilterDrop += 2;
+            if(flushIndex < matchStart){
+               emit(flushIndex, matchStart);
+            }
+            long nextIndex = matchStart + matchLength;
+            //trap the potential \r\n if we filtered the entire line
+            if(postFilterDrop > 0 && matchStart == bufferStart && nextIndex < to && isLineEnd(ring[index(nextIndex)])){
+               nextIndex++;
+               postFilterDrop--;
+            }
+            if(postFilterDrop > 0 && matchStart == bufferStart && nextIndex < to && isLineEnd(ring[index(nextIndex)])){
+               nextIndex++;
+               postFilterDrop--;
+            }
+            //resume matching after the filtered content
+            current = nextIndex;
+            flushIndex = current;
+            filterState = PatternAutomaton.ROOT;
+            matchedName = null;
+         }
+      }
+      //hold back any partial match at the end of the release
+      long trailingPrefixIndex = to - automaton.depth(filterState);
+      if(trailingPrefixIndex > flushIndex){
+         emit(flushIndex, trailingPrefixIndex);
+      }
+      filterFrom = trailingPrefixIndex;
+      filterScan = to;
+   }
+
+   //sh and lines
+
+   private void emit(long from, long to){
+      if(to <= from){
+         return;
+      }
+      try {
+         writeRange(shStream, from, to);
+      } catch (IOException e) {
+         logger.error("failed to store output: "+e.getMessage(),e);
+      }
+      emitLines(from, to);
+   }
+
+   private void emitLines(long from, long to){
+      long lineFrom = from;
+      for(long position = from; position < to; position++){
+         if(isLineEnd(ring[index(position)])){
+            emitLine(lineFrom, position);
+            if(position + 1 < to && isLineEnd(ring[index(position + 1)])){//skip the next CR or LF
+               position++;
+            }
+            lineFrom = position + 1;
+         }
+      }
+      if(lineFrom < to){
+         int len = (int)(to - lineFrom);
+         line = ensureCapacity(line, lineLength, lineLength + len);
+         copyOut(lineFrom, line, lineLength, len);
+         lineLength += len;
+      }
+   }
+
+   private void emitLine(long from, long to){
+      int len = (int)(to - from);
+      int start = index(from);
+      if(lineLength == 0 && start + len <= ring.length){//nothing held and the line does not wrap
+         emitLine(ring, start, len);
+      }else{
+         line = ensureCapacity(line, lineLength, lineLength + len);
+         copyOut(from, line, lineLength, len);
+         emitLine(line, 0, lineLength + len);
+         lineLength = 0;
+      }
+   }
+
+   private void emitLine(byte b[], int off, int len){
+      if(!lineConsumers.isEmpty()){
+         String toEmit = new String(b, off, len);
+         for(Consumer<String> consumer : lineConsumers){
+            consumer.accept(toEmit);
+         }
+      }
+   }
+
+   private void forceEmit(){
+      if(lineLength > 0){
+         emitLine(line, 0, lineLength);
+         lineLength = 0;
+      }
+   }
 }
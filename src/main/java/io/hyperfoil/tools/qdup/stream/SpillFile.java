@@ -0,0 +1,65 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A temporary file for command output that is shared by the SpillingOutputStream that writes it and the
+ * OutputSequences that read it. Each owner releases its reference and the file is deleted with the last reference.
+ */
+public class SpillFile {
+
+    final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
+
+    private final Path path;
+    private int references = 1;
+
+    /**
+     * Create a new temporary file with one reference for the caller
+     */
+    public static SpillFile create() throws IOException {
+        return new SpillFile(Files.createTempFile("qdup-output-", ".log"));
+    }
+
+    private SpillFile(Path path){
+        this.path = path;
+    }
+
+    public Path getPath(){return path;}
+
+    public synchronized boolean isDeleted(){return references <= 0;}
+
+    /**
+     * Add a reference to the file
+     * @return false if the file was already deleted
+     */
+    public synchronized boolean retain(){
+        if(references <= 0){
+            return false;
+        }
+        references++;
+        return true;
+    }
+
+    /**
+     * Remove a reference and delete the file if it was the last one
+     */
+    public synchronized void release(){
+        if(references <= 0){
+            return;
+        }
+        references--;
+        if(references == 0){
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.error("failed to delete "+path+" "+e.getMessage(), e);
+            }
+        }
+    }
+}
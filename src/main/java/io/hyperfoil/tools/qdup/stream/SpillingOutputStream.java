@@ -0,0 +1,191 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Stores everything written to it in memory until the content exceeds the memory limit then moves the content to a
+ * temporary file and appends all subsequent writes to the file.
+ * A memory limit of 0 or less keeps everything in memory.
+ */
+public class SpillingOutputStream extends OutputStream {
+
+    public static final long DEFAULT_MEMORY_LIMIT = 16 * 1024 * 1024;
+
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private long memoryLimit;
+    private byte[] buffer = new byte[32];
+    private int count = 0;
+    private long size = 0;
+    private SpillFile spillFile;
+    private OutputStream spill;
+    private OutputSequence sequence;
+
+    public SpillingOutputStream(){
+        this(DEFAULT_MEMORY_LIMIT);
+    }
+    public SpillingOutputStream(long memoryLimit){
+        this.memoryLimit = memoryLimit;
+    }
+
+    public long getMemoryLimit(){return memoryLimit;}
+    public synchronized void setMemoryLimit(long memoryLimit){
+        this.memoryLimit = memoryLimit;
+    }
+
+    public synchronized boolean isSpilled(){return spill != null;}
+    public synchronized long size(){return size;}
+
+    /**
+     * @return the temporary file or null if the content is still in memory
+     */
+    public synchronized Path getSpillPath(){return spillFile == null ? null : spillFile.getPath();}
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte)b},0,1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if(len <= 0){
+            return;
+        }
+        sequence = null;
+        if(spill == null && memoryLimit > 0 && count + (long)len > memoryLimit){
+            spill();
+        }
+        if(spill != null){
+            spill.write(b, off, len);
+        }else{
+            if(count + len > buffer.length){
+                buffer = Arrays.copyOf(buffer, (int)Math.min(Integer.MAX_VALUE - 8, Math.max(buffer.length * 2L, count + (long)len)));
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+        size += len;
+    }
+
+    private void spill() throws IOException {
+        spillFile = SpillFile.create();
+        spill = new BufferedOutputStream(Files.newOutputStream(spillFile.getPath()), FILE_BUFFER_SIZE);
+        spill.write(buffer, 0, count);
+        buffer = new byte[32];
+        count = 0;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if(spill != null){
+            spill.flush();
+        }
+    }
+
+    /**
+     * Discard the content and release the temporary file. The file is deleted once the sequences that read it are released.
+     */
+    public synchronized void reset(){
+        if(spill != null){
+            try {
+                spill.close();
+            } catch (IOException e) {
+                //the file is deleted anyway
+            }
+            spillFile.release();
+            spill = null;
+            spillFile = null;
+        }
+        if(buffer.length > memoryLimit && memoryLimit > 0){
+            buffer = new byte[32];
+        }
+        count = 0;
+        size = 0;
+        sequence = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reset();
+    }
+
+    /**
+     * @return the content as a String. This loads spilled content back on to the heap, use toSequence or tail for large content.
+     */
+    @Override
+    public synchronized String toString(){
+        if(spill == null){
+            return new String(buffer, 0, count, StandardCharsets.UTF_8);
+        }
+        try {
+            spill.flush();
+            return new String(Files.readAllBytes(spillFile.getPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read at most maxBytes from the end of the content. The first byte is moved forward to the start of a UTF-8 character.
+     */
+    public synchronized byte[] tail(int maxBytes){
+        int length = (int)Math.min(size, Math.max(0, maxBytes));
+        byte[] rtrn = new byte[length];
+        if(spill == null){
+            System.arraycopy(buffer, count - length, rtrn, 0, length);
+        }else{
+            try {
+                spill.flush();
+                try(RandomAccessFile file = new RandomAccessFile(spillFile.getPath().toFile(), "r")){
+                    file.seek(size - length);
+                    file.readFully(rtrn);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        int start = 0;
+        while(start < length && length < size && (rtrn[start] & 0xC0) == 0x80){
+            start++;
+        }
+        return start == 0 ? rtrn : Arrays.copyOfRange(rtrn, start, length);
+    }
+
+    /**
+     * @return the content as a String with leading and trailing newlines removed and \r\n replaced with \n
+     */
+    public static String trimOutput(String output){
+        return output
+                .replaceAll("^[\r\n]+", "")  //replace leading newlines
+                .replaceAll("[\r\n]+$", "") //replace trailing newlines
+                .replaceAll("\r\n", "\n"); //change \r\n to just \n
+    }
+
+    /**
+     * Create an OutputSequence that reads the spill file with the same changes as trimOutput. The same sequence is
+     * returned until the next write or reset and the caller must release it once it is no longer used.
+     * @return the sequence or null if the content is still in memory
+     */
+    public synchronized OutputSequence toSequence(){
+        if(spill == null){
+            return null;
+        }
+        if(sequence == null){
+            try {
+                spill.flush();
+                sequence = OutputSequence.trimmed(spillFile, size);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return sequence;
+    }
+}
@@ -17,6 +17,8 @@ public class SuffixStream extends MultiStream {
     private final static XLogger logger = XLoggerFactory.getXLogger(MethodHandles.lookup().lookupClass());
     public static final int DEFAULT_DELAY = 100; //MS
     public static final int NO_DELAY = -1;
+    public static final int MAX_EXIT_CODE_DIGITS = PromptMarkers.MAX_EXIT_CODE_DIGITS;
+    public static final int MAX_NONCE_DIGITS = PromptMarkers.MAX_NONCE_DIGITS;
 
     private class FoundRunnable implements Runnable{
         private int lastIndex;
@@ -51,6 +53,15 @@ public class SuffixStream extends MultiStream {
     private Map<String,byte[]> replacements;
     private List<Consumer<String>> consumers;
 
+    private volatile PatternAutomaton automaton;
+    private PatternAutomaton scannedWith;
+    private int state = PatternAutomaton.ROOT;
+    private int scanIndex = 0;
+
+    private final PromptMarkers markers = new PromptMarkers();
+    private volatile String exitCode = "";
+    private volatile String lastNonce = null;
+
     private ScheduledThreadPoolExecutor executor;
     private int executorDelay = DEFAULT_DELAY;
     private ScheduledFuture future;
@@ -93,6 +104,26 @@ public class SuffixStream extends MultiStream {
             superWrite(buffered,0,writeIndex);
             writeIndex=0;
         }
+        resetState();
+    }
+
+    private void resetState(){
+        state = PatternAutomaton.ROOT;
+        scanIndex = 0;
+    }
+
+    private PatternAutomaton getAutomaton(){
+        PatternAutomaton rtrn = automaton;
+        if(rtrn == null){
+            synchronized (suffixes){
+                rtrn = automaton;
+                if(rtrn == null){
+                    rtrn = PatternAutomaton.compile(suffixes);
+                    automaton = rtrn;
+                }
+            }
+        }
+        return rtrn;
     }
 
     @Override
@@ -106,20 +137,67 @@ public class SuffixStream extends MultiStream {
         super.close();
     }
 
+    /**
+     * Look for an exit code in the form of prefix followed by digits immediately before a matched suffix.
+     * The prefix and digits are removed from the output and the digits are available from getExitCode.
+     * @param prefix the marker before the exit code or null to disable exit code parsing
+     */
+    public void setExitCodePrefix(String prefix){
+        markers.setExitCodePrefix(prefix);
+    }
+    public boolean hasExitCodePrefix(){return markers.hasExitCodePrefix();}
+
+    /**
+     * @return the exit code that preceded the last matched suffix or an empty string if there was no exit code
+     */
+    public String getExitCode(){return exitCode;}
+
+    /**
+     * Look for a command nonce in the form of prefix followed by digits between the exit code and a matched suffix.
+     * A suffix preceded by the expected nonce is the end of the current command so it is reported immediately instead
+     * of waiting for the executor delay. The prefix and digits are removed from the output.
+     * @param prefix the marker before the nonce or null to disable nonce parsing
+     */
+    public void setNoncePrefix(String prefix){
+        markers.setNoncePrefix(prefix);
+    }
+    public boolean hasNoncePrefix(){return markers.hasNoncePrefix();}
+
+    /**
+     * @param nonce the digits that will precede the suffix at the end of the current command or null if the command does not have a nonce
+     */
+    public void expectNonce(String nonce){
+        markers.expectNonce(nonce);
+    }
+
+    /**
+     * @return the nonce that preceded the last matched suffix (empty if the prefix had no digits) or null if there was no nonce prefix
+     */
+    public String getLastNonce(){return lastNonce;}
+
     public void clear(){
-        suffixes.clear();
-        replacements.clear();
+        synchronized (suffixes) {
+            suffixes.clear();
+            replacements.clear();
+            automaton = null;
+        }
     }
     public void addSuffix(String name){
         addSuffix(name,name);
     }
     public void addSuffix(String name,String suffix){
-        suffixes.put(name,suffix.getBytes());
-        replacements.remove(name);
+        synchronized (suffixes) {
+            suffixes.put(name, suffix.getBytes());
+            replacements.remove(name);
+            automaton = null;
+        }
     }
     public void addSuffix(String name,String suffix,String replacement){
-        suffixes.put(name,suffix.getBytes());
-        replacements.put(name,replacement.getBytes());
+        synchronized (suffixes) {
+            suffixes.put(name, suffix.getBytes());
+            replacements.put(name, replacement.getBytes());
+            automaton = null;
+        }
     }
     public boolean hasSuffix(String name){
         return suffixes.containsKey(name);
@@ -160,43 +238,63 @@ public class SuffixStream extends MultiStream {
             logger.error(Arrays.asList(Thread.currentThread().getStackTrace()).stream().map(Object::toString).collect(Collectors.joining("\n")));
         }
         try {
-            int trailingSuffixLength = Integer.MIN_VALUE;
+            PatternAutomaton automaton = getAutomaton();
 
-            if (suffixes.isEmpty()) {
+            if (automaton.isEmpty()) {
                 if (writeIndex > 0) {
                     superWrite(buffered, 0, writeIndex);
                     writeIndex = 0;
                 }
+                resetState();
                 superWrite(b, off, len);
             } else {//we are going searching for a suffix
-                if (writeIndex + len > buffered.length) {
-                    int needed = writeIndex + len - buffered.length;
-                    byte[] newBuffer = new byte[buffered.length + needed];
-                    System.arraycopy(buffered, 0, newBuffer, 0, writeIndex);
-                    buffered = newBuffer;
+                int tailLength = markers.tailLength(automaton);
+                boolean passedThrough = false;
+                if (writeIndex == 0 && len > tailLength) {
+                    //nothing is buffered so scan the write in place and only buffer the tail unless it ends with a suffix
+                    if (automaton != scannedWith) {
+                        scannedWith = automaton;
+                        resetState();
+                    }
+                    int scanned = automaton.scan(state, b, off, len);
+                    if (automaton.matchName(scanned) == null) {
+                        superWrite(b, off, len - tailLength);
+                        buffered = ensureCapacity(buffered, 0, tailLength);
+                        System.arraycopy(b, off + len - tailLength, buffered, 0, tailLength);
+                        writeIndex = tailLength;
+                        scanIndex = writeIndex;
+                        state = scanned;
+                        passedThrough = true;
+                    }
                 }
-                //copy the content to write into the buffered content
-                System.arraycopy(b, off, buffered, writeIndex, len);
-                writeIndex += len;
-
-                boolean found = false;
-                String foundName = "";
-                for (String name : suffixes.keySet()) {
-                    byte[] toFind = suffixes.get(name);
-                    int suffMatch = suffixLength(buffered, toFind, writeIndex);
-                    if (suffMatch == toFind.length) {
-                        if (!found || trailingSuffixLength < suffMatch) {//pick the longest match
-                            found = true;
-                            foundName = name;
-                            trailingSuffixLength = suffMatch;
-                        }
-                    } else if (!found && suffMatch > trailingSuffixLength) {
-                        trailingSuffixLength = suffMatch;
+                if (!passedThrough) {
+                    buffered = ensureCapacity(buffered, writeIndex, writeIndex + len);
+                    //copy the content to write into the buffered content
+                    System.arraycopy(b, off, buffered, writeIndex, len);
+                    writeIndex += len;
+
+                    if (automaton != scannedWith || scanIndex > writeIndex) {//suffixes changed, re-scan what is buffered
+                        scannedWith = automaton;
+                        resetState();
                     }
+                    state = automaton.scan(state, buffered, scanIndex, writeIndex - scanIndex);
+                    scanIndex = writeIndex;
                 }
-                if (found) {
 
-                    if(executor!=null && executorDelay>=0){
+                String foundName = automaton.matchName(state); //longest suffix that ends the buffer
+                int trailingSuffixLength = automaton.depth(state); //longest partial suffix at the end of the buffer
+                int trailingExitCodeLength;
+                if (foundName != null) {
+
+                    if(isExpectedNonce(foundName)){
+                        //the end of the current command, no need to wait for more output
+                        if(future!=null){
+                            future.cancel(true);
+                            future = null;
+                        }
+                        foundSuffix(foundName,writeIndex);
+                        callConsumers(foundName);
+                    } else if(executor!=null && executorDelay>=0){
                         if(future!=null){
                             future.cancel(true);
                         }
@@ -207,10 +305,17 @@ public class SuffixStream extends MultiStream {
                         callConsumers(foundName);
                     }
 
-                } else if (trailingSuffixLength > Integer.MIN_VALUE) {
+                } else if ((trailingExitCodeLength = markers.trailingExitCodeLength(automaton, buffered, Math.max(0, writeIndex - tailLength), writeIndex)) > trailingSuffixLength) {
+                    //keep the exit code in the buffer until the rest of the suffix arrives
+                    superWrite(buffered, 0, writeIndex - trailingExitCodeLength);
+                    System.arraycopy(buffered, writeIndex - trailingExitCodeLength, buffered, 0, trailingExitCodeLength);
+                    writeIndex = trailingExitCodeLength;
+                    scanIndex = writeIndex;
+                } else {
                     superWrite(buffered, 0, writeIndex - trailingSuffixLength);
                     System.arraycopy(buffered, writeIndex - trailingSuffixLength, buffered, 0, trailingSuffixLength);
                     writeIndex = trailingSuffixLength;
+                    scanIndex = writeIndex;
                 }
             }
         }catch(Exception e){
@@ -220,44 +325,50 @@ public class SuffixStream extends MultiStream {
     }
     private void foundSuffix(String name,int index){
         try {
+            byte[] suffix = suffixes.get(name);
+            int suffixStart = writeIndex - (suffix == null ? 0 : suffix.length);
+            int markerEnd = suffixStart;
+            int nonceStart = markers.nonceStart(buffered, suffixStart);
+            if(nonceStart >= 0){
+                lastNonce = markers.nonce(buffered, nonceStart, suffixStart);
+                markerEnd = nonceStart;
+            }else{
+                lastNonce = null;
+            }
+            int exitCodeStart = markers.exitCodeStart(buffered, markerEnd);
+            if(exitCodeStart >= 0){
+                exitCode = markers.exitCode(buffered, exitCodeStart, markerEnd);
+                superWrite(buffered, 0, exitCodeStart);
+            }else{
+                exitCode = "";
+                superWrite(buffered, 0, markerEnd);
+            }
             if (replacements.containsKey(name)) {
                 byte replacement[] = replacements.get(name);
-                int trimLength = suffixes.get(name).length;
-                superWrite(buffered, 0, writeIndex - trimLength);
                 if (replacement.length > 0) {
                     superWrite(replacement, 0, replacement.length);
                 }
-                writeIndex = 0;
             } else {
-                superWrite(buffered, 0, writeIndex);
-                writeIndex = 0;
+                superWrite(buffered, suffixStart, writeIndex - suffixStart);
             }
+            writeIndex = 0;
+            resetState();
         }catch(IOException e){
             logger.error(e.getMessage(),e);
         }
     }
+
+    /**
+     * @return true if the suffix that ends the buffer is preceded by the expected nonce
+     */
+    private boolean isExpectedNonce(String name){
+        byte[] suffix = suffixes.get(name);
+        return suffix != null && markers.isExpectedNonce(buffered, writeIndex - suffix.length);
+    }
+
     private void callConsumers(String name){
         consumers.forEach(c -> c.accept(name));
     }
-    public int suffixLength(byte b[], byte toFind[], int endIndex){
-        boolean matching = false;
-        int rtrn = 0;
-        for(int shift=Math.max(0,toFind.length-endIndex); shift< toFind.length && !matching; shift++){
-            matching = true;
-            int matchLength = toFind.length-shift;
-            for(rtrn=0; rtrn < matchLength && matching; rtrn++){
-                matching = rtrn < matchLength && b[endIndex-matchLength+rtrn] == toFind[rtrn];
-                if(!matching){
-                    if( rtrn < matchLength){
-                        rtrn = -1;
-                    }else{
-                        rtrn -- ;
-                    }
-                }
-            }
-        }
-        return rtrn;
-    }
 
 
 
@@ -0,0 +1,122 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.qdup.cmd.Cmd;
+import io.hyperfoil.tools.qdup.cmd.SpyContext;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoordinatorTest {
+
+   private static class CountingContext extends SpyContext {
+      private final AtomicIntegerArray nextCounts;
+      private final int index;
+
+      CountingContext(AtomicIntegerArray nextCounts, int index){
+         this.nextCounts = nextCounts;
+         this.index = index;
+      }
+
+      @Override
+      public void next(String output){
+         nextCounts.incrementAndGet(index);
+      }
+   }
+
+   private static void invokeAll(int threads, List<Callable<Object>> tasks) throws Exception {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+         for(Future<Object> future : executor.invokeAll(tasks)){
+            future.get();
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test(timeout = 60_000)
+   public void signal_waitFor_stress() throws Exception {
+      int pairs = 10_000;
+      Coordinator coordinator = new Coordinator();
+      AtomicIntegerArray nextCounts = new AtomicIntegerArray(pairs);
+      List<Callable<Object>> tasks = new ArrayList<>();
+      for(int i=0; i<pairs; i++){
+         String name = "signal-"+i;
+         coordinator.setSignal(name,1);
+         Cmd command = Cmd.sh("echo "+i);
+         CountingContext context = new CountingContext(nextCounts,i);
+         tasks.add(()->{ coordinator.waitFor(name,command,context,"input"); return null;});
+         tasks.add(()->{ coordinator.signal(name); return null;});
+      }
+      Collections.shuffle(tasks);
+      invokeAll(16,tasks);
+      for(int i=0; i<pairs; i++){
+         assertEquals("waiter "+i+" should be woken exactly once",1,nextCounts.get(i));
+         assertEquals("signal-"+i+" should not have waiters",0,coordinator.getWaitCount("signal-"+i));
+         assertEquals(0,coordinator.getSignalCount("signal-"+i));
+      }
+      assertEquals("every latch should record when it reached zero",pairs,coordinator.getLatchTimes().size());
+   }
+
+   @Test(timeout = 60_000)
+   public void shared_signal_stress() throws Exception {
+      int waiters = 10_000;
+      Coordinator coordinator = new Coordinator();
+      coordinator.setSignal("shared",waiters);
+      AtomicIntegerArray nextCounts = new AtomicIntegerArray(waiters);
+      List<Callable<Object>> tasks = new ArrayList<>();
+      for(int i=0; i<waiters; i++){
+         Cmd command = Cmd.sh("echo "+i);
+         CountingContext context = new CountingContext(nextCounts,i);
+         tasks.add(()->{ coordinator.waitFor("shared",command,context,"input"); return null;});
+         tasks.add(()->{ coordinator.signal("shared"); return null;});
+      }
+      Collections.shuffle(tasks);
+      invokeAll(16,tasks);
+      for(int i=0; i<waiters; i++){
+         assertEquals("waiter "+i+" should be woken exactly once",1,nextCounts.get(i));
+      }
+      assertEquals(0,coordinator.getSignalCount("shared"));
+      assertEquals(0,coordinator.getWaitCount("shared"));
+   }
+
+   @Test(timeout = 60_000)
+   public void counters_stress() throws Exception {
+      Coordinator coordinator = new Coordinator();
+      List<Callable<Object>> tasks = new ArrayList<>();
+      for(int i=0; i<10_000; i++){
+         tasks.add(()->coordinator.increase("up"));
+         tasks.add(()->coordinator.decrease("down",10_000));
+      }
+      invokeAll(16,tasks);
+      assertEquals(10_000,coordinator.getCounter("up"));
+      assertEquals(0,coordinator.getCounter("down"));
+   }
+
+   @Test
+   public void waitFor_missing_latch_runs_next(){
+      Coordinator coordinator = new Coordinator();
+      AtomicIntegerArray nextCounts = new AtomicIntegerArray(1);
+      coordinator.waitFor("missing",Cmd.sh("echo"),new CountingContext(nextCounts,0),"input");
+      assertEquals(1,nextCounts.get(0));
+   }
+
+   @Test
+   public void setSignal_duplicate_keeps_previous(){
+      Coordinator coordinator = new Coordinator();
+      coordinator.setSignal("foo",2);
+      coordinator.setSignal("foo",5);
+      assertEquals(2,coordinator.getSignalCount("foo"));
+      coordinator.setSignal("foo",5,true);
+      assertEquals(5,coordinator.getSignalCount("foo"));
+   }
+}
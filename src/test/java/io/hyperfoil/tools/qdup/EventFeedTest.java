@@ -0,0 +1,153 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventFeedTest {
+
+    @Test
+    public void batch_in_order(){
+        EventFeed feed = new EventFeed();
+        assertNull("nothing to flush", feed.flush());
+        feed.add(EventFeed.event("stage.start"));
+        feed.add(EventFeed.event("cmd.start"));
+        Json batch = feed.flush();
+        assertEquals("batch", batch.getString("type"));
+        assertEquals(1L, batch.getLong("seq"));
+        assertEquals(0L, batch.getLong("dropped"));
+        Json events = batch.getJson("events");
+        assertEquals(2, events.size());
+        assertEquals("stage.start", events.getJson(0).getString("type"));
+        assertEquals("cmd.start", events.getJson(1).getString("type"));
+        assertNull("flush clears the events", feed.flush());
+        feed.add(EventFeed.event("stage.stop"));
+        assertEquals(2L, feed.flush().getLong("seq"));
+    }
+
+    @Test
+    public void output_coalesced_per_context(){
+        EventFeed feed = new EventFeed(100, 8);
+        feed.add(EventFeed.event("cmd.start"));
+        feed.output(1, 10, "first ");
+        feed.output(2, 20, "other");
+        feed.output(1, 10, "second");
+        Json events = feed.flush().getJson("events");
+        assertEquals(3, events.size());
+        Json first = events.getJson(1);
+        assertEquals("cmd.output", first.getString("type"));
+        assertEquals("last 8 characters", "t second", first.getString("output"));
+        assertEquals("other", events.getJson(2).getString("output"));
+    }
+
+    @Test
+    public void output_cleared_on_stop(){
+        EventFeed feed = new EventFeed();
+        feed.output(1, 10, "partial");
+        feed.output(1, 11, "next command");
+        assertEquals("new command replaces the tail", 1, feed.size());
+        feed.clearOutput(1);
+        assertEquals(0, feed.size());
+        feed.output(2, 20, "same");
+        feed.output(3, 30, "same");
+        feed.clearOutput(3);
+        Json events = feed.flush().getJson("events");
+        assertEquals(1, events.size());
+        assertEquals(2, events.getJson(0).get("contextUid"));
+    }
+
+    @Test
+    public void drop_when_full(){
+        EventFeed feed = new EventFeed(2, 10);
+        assertTrue(feed.add(EventFeed.event("a")));
+        assertTrue(feed.add(EventFeed.event("b")));
+        assertFalse(feed.add(EventFeed.event("c")));
+        feed.output(1, 1, "output has its own limit");
+        Json batch = feed.flush();
+        assertEquals(3, batch.getJson("events").size());
+        assertEquals(1L, batch.getLong("dropped"));
+        assertEquals(1L, feed.getDropped());
+        assertNull(feed.flush());
+    }
+
+    @Test
+    public void output_cannot_crowd_out_events(){
+        EventFeed feed = new EventFeed(2, 1, 10, () -> null);
+        feed.output(1, 1, "kept");
+        feed.output(2, 2, "dropped");
+        assertTrue(feed.add(EventFeed.event("a")));
+        assertTrue(feed.add(EventFeed.event("b")));
+        assertFalse(feed.add(EventFeed.event("c")));
+        Json batch = feed.flush();
+        assertEquals(3, batch.getJson("events").size());
+        assertEquals("kept", batch.getJson("events").getJson(0).getString("output"));
+        assertEquals(2L, batch.getLong("dropped"));
+    }
+
+    @Test
+    public void secrets_filtered_before_escape(){
+        SecretFilter secrets = new SecretFilter();
+        secrets.addSecret("pa\"ss\\word");
+        EventFeed feed = new EventFeed(10, 10, 100, () -> secrets);
+        Json event = EventFeed.event("cmd.start");
+        event.set("cmd", "login pa\"ss\\word");
+        feed.add(event);
+        String batch = feed.flush().toString();
+        assertFalse(batch, batch.contains("pa"));
+        assertTrue(batch, batch.contains("login " + SecretFilter.REPLACEMENT));
+    }
+
+    @Test
+    public void secrets_filtered_before_tail(){
+        SecretFilter secrets = new SecretFilter();
+        secrets.addSecret("secret");
+        EventFeed feed = new EventFeed(10, 10, 12, () -> secrets);
+        assertEquals("the tail is cut after the secret is replaced", "he " + SecretFilter.REPLACEMENT + "!", feed.tail("the secret!"));
+        feed.output(1, 1, "first line\nsec");
+        feed.output(1, 1, "ret!");
+        String output = feed.flush().getJson("events").getJson(0).getString("output");
+        assertEquals("ne\n" + SecretFilter.REPLACEMENT + "!", output);
+    }
+
+    @Test
+    public void secret_split_across_flush(){
+        SecretFilter secrets = new SecretFilter();
+        secrets.addSecret("secret");
+        EventFeed feed = new EventFeed(10, 10, 100, () -> secrets);
+        feed.output(1, 1, "first sec");
+        assertEquals("the start of the secret is held back", "first ", feed.flush().getJson("events").getJson(0).getString("output"));
+        feed.output(1, 1, "ret!");
+        assertEquals("the next batch only has the new output", SecretFilter.REPLACEMENT + "!", feed.flush().getJson("events").getJson(0).getString("output"));
+        assertNull("no output since the last flush", feed.flush());
+        feed.output(1, 2, "sec");
+        feed.output(1, 3, "ret");
+        assertEquals("a new command does not continue the secret", "ret", feed.flush().getJson("events").getJson(0).getString("output"));
+    }
+
+    @Test
+    public void subscriber_missed_batches(){
+        EventFeed feed = new EventFeed();
+        feed.subscribe("slow");
+        assertEquals(1, feed.getSubscriberCount());
+        assertEquals(0, feed.delivered("slow"));
+        assertEquals(1, feed.drop("slow"));
+        assertEquals(2, feed.drop("slow"));
+        assertEquals(2, feed.delivered("slow"));
+        assertEquals(0, feed.delivered("slow"));
+        feed.unsubscribe("slow");
+        assertEquals(0, feed.getSubscriberCount());
+        assertEquals(0, feed.delivered("slow"));
+    }
+
+    @Test
+    public void tail_of_output(){
+        EventFeed feed = new EventFeed(10, 4);
+        assertEquals("", feed.tail(null));
+        assertEquals("abc", feed.tail("abc"));
+        assertEquals("cdef", feed.tail("abcdef"));
+    }
+}
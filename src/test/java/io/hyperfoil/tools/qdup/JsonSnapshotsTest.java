@@ -0,0 +1,150 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JsonSnapshotsTest {
+
+    private static Json json(String key, Object value){
+        Json rtrn = new Json(false);
+        rtrn.set(key, value);
+        return rtrn;
+    }
+
+    @Test
+    public void cached_until_max_age(){
+        AtomicInteger calls = new AtomicInteger();
+        JsonSnapshots snapshots = new JsonSnapshots(Function.identity(), 60_000);
+        snapshots.add("test", () -> json("calls", calls.incrementAndGet()));
+        JsonSnapshots.Snapshot first = snapshots.get("test");
+        assertSame(first, snapshots.get("test"));
+        assertSame(first, snapshots.getIfFresh("test"));
+        assertEquals(1, calls.get());
+        assertNull(snapshots.get("missing"));
+    }
+
+    @Test
+    public void version_only_changes_with_content(){
+        AtomicReference<Json> value = new AtomicReference<>(json("a", 1));
+        JsonSnapshots snapshots = new JsonSnapshots(Function.identity(), 0);
+        snapshots.add("test", value::get);
+        JsonSnapshots.Snapshot first = snapshots.get("test");
+        assertEquals(1, first.getVersion());
+        assertEquals(1, snapshots.get("test").getVersion());
+        value.set(json("a", 2));
+        JsonSnapshots.Snapshot second = snapshots.get("test");
+        assertEquals(2, second.getVersion());
+        assertEquals("\"test-2\"", second.getETag());
+    }
+
+    @Test
+    public void etag_matches(){
+        JsonSnapshots snapshots = new JsonSnapshots();
+        snapshots.add("test", () -> json("a", 1));
+        JsonSnapshots.Snapshot snapshot = snapshots.get("test");
+        assertTrue(snapshot.matches("\"test-1\""));
+        assertTrue(snapshot.matches("\"other-3\", W/\"test-1\""));
+        assertTrue(snapshot.matches("*"));
+        assertFalse(snapshot.matches("\"test-2\""));
+        assertFalse(snapshot.matches(null));
+    }
+
+    @Test
+    public void body_is_filtered(){
+        JsonSnapshots snapshots = new JsonSnapshots((text) -> text.replace("secret", "****"), 0);
+        snapshots.add("test", () -> json("password", "secret"), 0);
+        assertEquals("{\"password\":\"****\"}", snapshots.get("test").getBody());
+    }
+
+    @Test
+    public void body_is_filtered_before_escape(){
+        SecretFilter secrets = new SecretFilter();
+        secrets.addSecret("se\"cret\n");
+        JsonSnapshots snapshots = new JsonSnapshots(secrets::filter, 0);
+        snapshots.add("test", () -> json("nested", json("password", "se\"cret\n")), 0);
+        assertEquals("{\"nested\":{\"password\":\"" + SecretFilter.REPLACEMENT + "\"}}", snapshots.get("test").getBody());
+    }
+
+    @Test
+    public void delta_since_version(){
+        AtomicReference<Json> value = new AtomicReference<>();
+        Json first = new Json(false);
+        first.set("same", "x");
+        first.set("changed", 1);
+        first.set("removed", true);
+        value.set(first);
+        JsonSnapshots snapshots = new JsonSnapshots(Function.identity(), 0);
+        snapshots.add("test", value::get);
+        long since = snapshots.get("test").getVersion();
+
+        Json second = new Json(false);
+        second.set("same", "x");
+        second.set("changed", 2);
+        second.set("added", "y");
+        value.set(second);
+
+        Json delta = snapshots.delta("test", since);
+        assertFalse(delta.getBoolean("full"));
+        assertEquals(2L, delta.getLong("version"));
+        Json set = delta.getJson("set");
+        assertEquals(2, set.size());
+        assertEquals(2, set.get("changed"));
+        assertEquals("y", set.get("added"));
+        assertEquals(1, delta.getJson("removed").size());
+        assertEquals("removed", delta.getJson("removed").get(0));
+
+        Json none = snapshots.delta("test", 2);
+        assertEquals(0, none.getJson("set").size());
+    }
+
+    @Test
+    public void delta_nested_change(){
+        Json value = new Json(false);
+        value.set("foo", json("bar", 1));
+        value.set("same", json("x", "y"));
+        JsonSnapshots snapshots = new JsonSnapshots(Function.identity(), 0);
+        snapshots.add("test", () -> value);
+        long since = snapshots.get("test").getVersion();
+
+        value.getJson("foo").set("bar", 2);
+
+        Json delta = snapshots.delta("test", since);
+        assertFalse(delta.getBoolean("full"));
+        assertEquals(2L, delta.getLong("version"));
+        Json set = delta.getJson("set");
+        assertEquals(1, set.size());
+        assertEquals(2, set.getJson("foo").get("bar"));
+    }
+
+    @Test
+    public void delta_unknown_version_is_full(){
+        JsonSnapshots snapshots = new JsonSnapshots(Function.identity(), 0);
+        snapshots.add("test", () -> json("a", 1));
+        Json delta = snapshots.delta("test", 42);
+        assertTrue(delta.getBoolean("full"));
+        assertEquals(1, delta.getJson("json").get("a"));
+        assertNull(snapshots.delta("missing", 1));
+    }
+
+    @Test
+    public void history_is_bounded(){
+        AtomicInteger counter = new AtomicInteger();
+        JsonSnapshots snapshots = new JsonSnapshots(Function.identity(), 0);
+        snapshots.add("test", () -> json("count", counter.incrementAndGet()));
+        for(int i = 0; i < JsonSnapshots.HISTORY + 5; i++){
+            snapshots.get("test");
+        }
+        assertTrue(snapshots.delta("test", 1).getBoolean("full"));
+        assertFalse(snapshots.delta("test", snapshots.get("test").getVersion() - 1).getBoolean("full"));
+    }
+}
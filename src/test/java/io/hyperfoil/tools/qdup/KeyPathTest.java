@@ -0,0 +1,41 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyPathTest {
+
+    @Test
+    public void isSimple(){
+        assertTrue(KeyPath.isSimple("FOO"));
+        assertTrue(KeyPath.isSimple("host-name"));
+        assertTrue(KeyPath.isSimple("_secret"));
+        assertFalse(KeyPath.isSimple("foo.bar"));
+        assertFalse(KeyPath.isSimple("foo[0]"));
+        assertFalse(KeyPath.isSimple("$.foo"));
+        assertFalse(KeyPath.isSimple("0"));
+        assertFalse(KeyPath.isSimple(""));
+    }
+
+    @Test
+    public void get_cached(){
+        assertSame(KeyPath.get("foo.bar"),KeyPath.get("foo.bar"));
+    }
+
+    @Test
+    public void find_matches_Json_find(){
+        Json json = Json.fromString("{\"foo\":{\"bar\":\"value\"},\"list\":[\"a\",\"b\"],\"dotted.key\":\"dot\",\"key\":\"top\"}");
+        for(String key : new String[]{"foo","foo.bar","list[1]","$.foo.bar","dotted.key","key","missing","foo.missing"}){
+            Object expected = json.has(key) ? json.get(key) : Json.find(json,key.startsWith("$") ? key : "$."+key);
+            assertEquals(key,expected,KeyPath.get(key).find(json));
+            assertEquals(key,expected != null || json.has(key),KeyPath.get(key).has(json));
+        }
+        assertNull(KeyPath.get("missing").find(json));
+    }
+}
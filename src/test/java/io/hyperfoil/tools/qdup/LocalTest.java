@@ -6,8 +6,11 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class LocalTest extends SshTestBase{
@@ -43,4 +46,70 @@ public class LocalTest extends SshTestBase{
             }
         }
     }
+
+    @Test
+    public void download_batch() throws IOException {
+        Host host = getHost();
+        exec("echo foo > /tmp/batch-foo.txt","echo bar > /tmp/batch-bar.txt");
+        File destination = Files.createTempDirectory("qdup-batch").toFile();
+        try {
+            Local local = new Local(getBuilder().buildConfig(Parser.getInstance()));
+            Local.DownloadResult result = local.download(Arrays.asList("/tmp/batch-foo.txt","/tmp/batch-bar.txt"),destination.getPath(),host);
+            assertEquals("foo and bar with newlines",8,result.getBytes());
+            assertTrue(result.getFailed().isEmpty());
+            assertEquals("foo",Files.readString(new File(destination,"batch-foo.txt").toPath()).trim());
+            assertEquals("bar",Files.readString(new File(destination,"batch-bar.txt").toPath()).trim());
+        } finally {
+            for(File file : destination.listFiles()){
+                file.delete();
+            }
+            destination.delete();
+        }
+    }
+
+    @Test
+    public void download_batch_partial() throws IOException {
+        Host host = getHost();
+        exec("echo foo > /tmp/partial-foo.txt","rm -f /tmp/partial-missing.txt");
+        File destination = Files.createTempDirectory("qdup-batch").toFile();
+        try {
+            Local local = new Local(getBuilder().buildConfig(Parser.getInstance()));
+            Local.DownloadResult result = local.download(Arrays.asList("/tmp/partial-foo.txt","/tmp/partial-missing.txt"),destination.getPath(),host);
+            assertEquals("bytes from the files that were transferred",4,result.getBytes());
+            assertEquals(Arrays.asList("/tmp/partial-missing.txt"),result.getFailed());
+            assertEquals("foo",Files.readString(new File(destination,"partial-foo.txt").toPath()).trim());
+        } finally {
+            for(File file : destination.listFiles()){
+                file.delete();
+            }
+            destination.delete();
+        }
+    }
+
+    @Test
+    public void parseFailedPath(){
+        assertEquals("/tmp/missing",Local.parseFailedPath("rsync: [sender] link_stat \"/tmp/missing\" failed: No such file or directory (2)"));
+        assertEquals("/tmp/missing",Local.parseFailedPath("rsync: link_stat \"/tmp/missing\" failed: No such file or directory (2)"));
+        assertEquals("/tmp/dir/secret",Local.parseFailedPath("rsync: [sender] send_files failed to open \"/tmp/dir/secret\": Permission denied (13)"));
+        assertNull(Local.parseFailedPath("rsync error: some files/attrs were not transferred (see previous errors) (code 23) at main.c(1865) [generator=3.2.7]"));
+        assertEquals(Arrays.asList("/tmp/dir"),Local.failedPaths(Arrays.asList("/tmp/dir","/tmp/file"),Arrays.asList("/tmp/dir/secret")));
+    }
+
+    @Test
+    public void canBatch(){
+        assertTrue(Local.canBatch("/tmp/foo.log"));
+        assertTrue(Local.canBatch("/tmp/dir"));
+        assertFalse("glob",Local.canBatch("/tmp/*.log"));
+        assertFalse("relative",Local.canBatch("foo.log"));
+        assertFalse("home",Local.canBatch("~/foo.log"));
+        assertFalse("trailing /",Local.canBatch("/tmp/dir/"));
+        assertFalse("--relative marker",Local.canBatch("/tmp/./dir/foo.log"));
+    }
+
+    @Test
+    public void parseTransferredBytes(){
+        assertEquals(1234567,Local.parseTransferredBytes("Total transferred file size: 1,234,567 bytes"));
+        assertEquals(42,Local.parseTransferredBytes("Total transferred file size: 42 bytes"));
+        assertEquals(-1,Local.parseTransferredBytes("Total file size: 42 bytes"));
+    }
 }
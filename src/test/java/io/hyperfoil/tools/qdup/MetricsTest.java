@@ -0,0 +1,110 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void bucket_bounds_contain_value(){
+        long[] values = new long[]{0, 1, 63, 64, 65, 127, 128, 1_000, 123_456, 987_654_321L, (1L << 45) + 12345};
+        for(long value : values){
+            int index = LatencyHistogram.index(value);
+            assertTrue(value + " >= lower bound", value >= LatencyHistogram.lowerBound(index));
+            assertTrue(value + " <= upper bound", value <= LatencyHistogram.upperBound(index));
+            assertTrue(value + " bucket width", LatencyHistogram.upperBound(index) - LatencyHistogram.lowerBound(index) <= Math.max(1, value / 32));
+        }
+    }
+
+    @Test
+    public void percentiles_within_precision(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 10_000; i++){
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1), histogram.getMin());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(10_000), histogram.getMax());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(5_000), histogram.getValueAtPercentile(50), TimeUnit.MICROSECONDS.toNanos(5_000) / 60.0);
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(9_900), histogram.getValueAtPercentile(99), TimeUnit.MICROSECONDS.toNanos(9_900) / 60.0);
+        assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void empty_histogram(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0L, histogram.toJson().getLong("count"));
+    }
+
+    @Test
+    public void large_values_keep_max(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        long day = TimeUnit.DAYS.toNanos(1);
+        histogram.record(day);
+        assertEquals(day, histogram.getMax());
+        assertEquals(day, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void same_histogram_for_type_and_host(){
+        Metrics metrics = new Metrics();
+        assertSame(metrics.command("Sh", "host"), metrics.command("Sh", "host"));
+        assertTrue(metrics.command("Sh", "host") != metrics.command("Sh", "other"));
+        assertSame(metrics.queueWait(null), metrics.queueWait(null));
+    }
+
+    @Test
+    public void prometheus_format(){
+        Metrics metrics = new Metrics();
+        metrics.command("Sh", "alpha").record(TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.command("Sh", "alpha").record(TimeUnit.MILLISECONDS.toNanos(4));
+        metrics.promptWait("with\"quote").record(TimeUnit.SECONDS.toNanos(1));
+        String text = metrics.toPrometheus();
+        assertTrue(text, text.contains("# TYPE qdup_command_duration_seconds summary\n"));
+        assertTrue(text, text.contains("qdup_command_duration_seconds_count{command=\"Sh\",host=\"alpha\"} 2\n"));
+        assertTrue(text, text.contains("qdup_command_duration_seconds_sum{command=\"Sh\",host=\"alpha\"} 0.006\n"));
+        assertTrue(text, text.contains("qdup_command_duration_seconds{command=\"Sh\",host=\"alpha\",quantile=\"0.99\"} 0.004\n"));
+        assertTrue(text, text.contains("qdup_sh_prompt_wait_seconds_count{host=\"with\\\"quote\"} 1\n"));
+        assertTrue(text, text.contains("# HELP qdup_watcher_duration_seconds "));
+    }
+
+    @Test
+    public void json_summary(){
+        Metrics metrics = new Metrics();
+        metrics.command("Sh", "alpha").record(TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.queueWait("alpha").record(TimeUnit.MICROSECONDS.toNanos(500));
+        Json json = metrics.getJson();
+        Json sh = json.getJson("command").getJson("alpha").getJson("Sh");
+        assertEquals(1L, sh.getLong("count"));
+        assertEquals(2.0, sh.getDouble("p50"), 0.0);
+        assertEquals(0.5, json.getJson("queue").getJson("alpha").getDouble("max"), 0.0);
+    }
+
+    @Test
+    public void record_from_many_threads() throws InterruptedException {
+        Metrics metrics = new Metrics();
+        int threads = 8;
+        int count = 100_000;
+        Thread[] recorders = new Thread[threads];
+        for(int t = 0; t < threads; t++){
+            recorders[t] = new Thread(() -> {
+                for(int i = 0; i < count; i++){
+                    metrics.command("Sh", "host").record(i);
+                }
+            });
+            recorders[t].start();
+        }
+        for(Thread recorder : recorders){
+            recorder.join();
+        }
+        assertEquals((long) threads * count, metrics.command("Sh", "host").getCount());
+    }
+}
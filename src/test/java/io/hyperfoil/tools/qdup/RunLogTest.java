@@ -0,0 +1,239 @@
+package io.hyperfoil.tools.qdup;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import io.hyperfoil.tools.yaup.AsciiArt;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RunLogTest {
+
+    private static class ListAppender extends AppenderBase<ILoggingEvent> {
+        private final List<ILoggingEvent> events = Collections.synchronizedList(new ArrayList<>());
+        private volatile CountDownLatch latch = new CountDownLatch(0);
+
+        @Override
+        protected void append(ILoggingEvent event){
+            try {
+                latch.await();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            events.add(event);
+        }
+    }
+
+    private Path directory;
+    private Logger logger;
+    private ListAppender appender;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("qdup-run-log");
+        LoggerContext context = new LoggerContext();
+        logger = context.getLogger("run");
+        logger.setLevel(Level.INFO);
+        logger.setAdditive(false);
+        appender = new ListAppender();
+        appender.setContext(context);
+        appender.start();
+        logger.addAppender(appender);
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)){
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private List<String> lines(Path path) throws IOException {
+        return Files.exists(path) ? Files.readAllLines(path, StandardCharsets.UTF_8) : Collections.emptyList();
+    }
+
+    @Test
+    public void messages_keep_order_and_format(){
+        RunLog runLog = new RunLog(logger, null, 16, RunLog.Overflow.BLOCK, RunLog.Split.NONE);
+        SecretFilter filter = new SecretFilter();
+        filter.addSecret("hunter2");
+        for(int i = 0; i < 1_000; i++){
+            runLog.info("script", "host", "message " + i + " hunter2", filter);
+        }
+        runLog.error(null, "host", "failed", null, true);
+        runLog.close();
+        assertEquals(1_001, appender.events.size());
+        for(int i = 0; i < 1_000; i++){
+            assertEquals("script@host:message " + i + " " + SecretFilter.REPLACEMENT, appender.events.get(i).getFormattedMessage());
+        }
+        ILoggingEvent error = appender.events.get(1_000);
+        assertEquals(Level.ERROR, error.getLevel());
+        assertTrue(error.getFormattedMessage().endsWith("failed" + AsciiArt.ANSI_RESET));
+        assertEquals(1_001, runLog.getLogged());
+    }
+
+    @Test
+    public void disabled_level_is_not_queued(){
+        RunLog runLog = new RunLog(logger, null, 16, RunLog.Overflow.BLOCK, RunLog.Split.NONE);
+        runLog.log(Level.DEBUG, null, null, "debug", null, false);
+        runLog.close();
+        assertEquals(0, appender.events.size());
+        assertEquals(0, runLog.getLogged());
+    }
+
+    @Test
+    public void drop_when_full(){
+        appender.latch = new CountDownLatch(1);
+        RunLog runLog = new RunLog(logger, null, 4, RunLog.Overflow.DROP, RunLog.Split.NONE);
+        for(int i = 0; i < 100; i++){
+            runLog.info(null, null, "message " + i, null);
+        }
+        appender.latch.countDown();
+        runLog.close();
+        assertTrue("expected dropped messages", runLog.getDropped() > 0);
+        assertEquals(100, runLog.getLogged() + runLog.getDropped());
+        assertEquals(runLog.getLogged(), appender.events.size());
+        assertEquals(runLog.getDropped(), runLog.toJson().getLong("dropped"));
+    }
+
+    @Test
+    public void block_when_full(){
+        RunLog runLog = new RunLog(logger, null, 4, RunLog.Overflow.BLOCK, RunLog.Split.NONE);
+        for(int i = 0; i < 1_000; i++){
+            runLog.info(null, null, "message " + i, null);
+        }
+        runLog.close();
+        assertEquals(0, runLog.getDropped());
+        assertEquals(1_000, appender.events.size());
+        assertEquals("message 999", appender.events.get(999).getFormattedMessage());
+    }
+
+    @Test
+    public void log_after_close(){
+        RunLog runLog = new RunLog(logger, null, 16, RunLog.Overflow.BLOCK, RunLog.Split.NONE);
+        runLog.close();
+        runLog.info(null, null, "late", null);
+        assertEquals(1, appender.events.size());
+        assertEquals("late", appender.events.get(0).getFormattedMessage());
+    }
+
+    @Test
+    public void split_by_host() throws IOException {
+        RunLog runLog = new RunLog(logger, directory.toString(), 16, RunLog.Overflow.BLOCK, RunLog.Split.HOST);
+        runLog.info("first", "alpha", "one", null);
+        runLog.info("second", "alpha", "two", null);
+        runLog.info("first", "bravo", "three", null);
+        runLog.info(null, null, "no host", null);
+        runLog.close();
+        assertEquals(4, appender.events.size());
+        List<String> alpha = lines(directory.resolve(RunLog.LOG_DIRECTORY).resolve("alpha.log"));
+        assertEquals(2, alpha.size());
+        assertTrue(alpha.get(0), alpha.get(0).endsWith(" first@alpha:one"));
+        assertTrue(alpha.get(1), alpha.get(1).endsWith(" second@alpha:two"));
+        List<String> bravo = lines(directory.resolve(RunLog.LOG_DIRECTORY).resolve("bravo.log"));
+        assertEquals(1, bravo.size());
+    }
+
+    @Test
+    public void split_by_script() throws IOException {
+        RunLog runLog = new RunLog(logger, directory.toString(), 16, RunLog.Overflow.BLOCK, RunLog.Split.SCRIPT);
+        runLog.info("first", "alpha", "one", null);
+        runLog.info("second", "alpha", "two", null);
+        runLog.info(null, "alpha", "terminal", null);
+        runLog.close();
+        Path host = directory.resolve(RunLog.LOG_DIRECTORY).resolve("alpha");
+        assertEquals(1, lines(host.resolve("first.log")).size());
+        assertEquals(1, lines(host.resolve("second.log")).size());
+        List<String> terminal = lines(directory.resolve(RunLog.LOG_DIRECTORY).resolve("alpha.log"));
+        assertEquals(1, terminal.size());
+        assertTrue(terminal.get(0).endsWith(" terminal"));
+        assertFalse(Files.exists(host.resolve("null.log")));
+    }
+
+    @Test
+    public void split_without_output_path(){
+        RunLog runLog = new RunLog(logger, null, 16, RunLog.Overflow.BLOCK, RunLog.Split.HOST);
+        assertEquals(RunLog.Split.NONE, runLog.getSplit());
+        runLog.close();
+    }
+
+    @Test
+    public void parse_settings(){
+        assertEquals(RunLog.Overflow.DROP, RunLog.Overflow.from("drop"));
+        assertEquals(RunLog.Split.SCRIPT, RunLog.Split.from("Script"));
+        try {
+            RunLog.Split.from("nope");
+            assertTrue("expected an exception", false);
+        } catch (IllegalArgumentException e){
+            //expected
+        }
+    }
+
+    @Test
+    public void many_producers() throws InterruptedException {
+        int threads = 8;
+        int count = 50_000;
+        RunLog runLog = new RunLog(logger, null, RunLog.DEFAULT_CAPACITY, RunLog.Overflow.BLOCK, RunLog.Split.NONE);
+        Thread[] producers = new Thread[threads];
+        for(int t = 0; t < threads; t++){
+            String host = "host" + t;
+            producers[t] = new Thread(() -> {
+                for(int i = 0; i < count; i++){
+                    runLog.info("script", host, Integer.toString(i), null);
+                }
+            });
+            producers[t].start();
+        }
+        for(Thread producer : producers){
+            producer.join();
+        }
+        runLog.close();
+        assertEquals(threads * count, appender.events.size());
+        int[] next = new int[threads];
+        for(ILoggingEvent event : appender.events){
+            String message = event.getFormattedMessage();
+            int t = Integer.parseInt(message.substring("script@host".length(), message.indexOf(':')));
+            assertEquals("per producer order", next[t]++, Integer.parseInt(message.substring(message.indexOf(':') + 1)));
+        }
+    }
+
+    @Test
+    public void close_while_logging() throws InterruptedException {
+        int threads = 4;
+        int count = 20_000;
+        RunLog runLog = new RunLog(logger, null, 64, RunLog.Overflow.BLOCK, RunLog.Split.NONE);
+        Thread[] producers = new Thread[threads];
+        for(int t = 0; t < threads; t++){
+            producers[t] = new Thread(() -> {
+                for(int i = 0; i < count; i++){
+                    runLog.info(null, null, Integer.toString(i), null);
+                }
+            });
+            producers[t].start();
+        }
+        runLog.close();
+        for(Thread producer : producers){
+            producer.join();
+        }
+        assertEquals("messages logged during close should not be lost", threads * count, appender.events.size());
+        assertEquals(0, runLog.getDropped());
+    }
+}
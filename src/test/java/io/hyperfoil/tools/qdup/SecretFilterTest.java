@@ -9,6 +9,8 @@ import io.hyperfoil.tools.qdup.config.yaml.Parser;
 import io.hyperfoil.tools.yaup.json.Json;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
@@ -42,6 +44,82 @@ public class SecretFilterTest extends SshTestBase {
       }
    }
 
+   @Test
+   public void filter_overlapping_longest(){
+      SecretFilter filter = new SecretFilter();
+      filter.addSecret("pass");
+      filter.addSecret("password");
+      String output = filter.filter("my password is pass");
+      assertEquals("my "+REPLACEMENT+" is "+REPLACEMENT,output);
+   }
+
+   @Test
+   public void filter_no_secrets_returns_input(){
+      SecretFilter filter = new SecretFilter();
+      String input = "nothing to see here";
+      assertSame(input,filter.filter(input));
+      filter.addSecret("secret");
+      assertSame("input without secrets should not be copied",input,filter.filter(input));
+   }
+
+   @Test
+   public void filter_secret_added_after_filter(){
+      SecretFilter filter = new SecretFilter();
+      filter.addSecret("foo");
+      assertEquals(REPLACEMENT+"bar",filter.filter("foobar"));
+      filter.addSecret("bar");
+      assertEquals(REPLACEMENT+REPLACEMENT,filter.filter("foobar"));
+   }
+
+   @Test
+   public void filter_many_secrets_large_input(){
+      SecretFilter filter = new SecretFilter();
+      for(int i=0; i<60; i++){
+         filter.addSecret("secret-"+i+"-"+(i*7919));
+      }
+      StringBuilder input = new StringBuilder();
+      StringBuilder expected = new StringBuilder();
+      for(int i=0; input.length() < 2*1024*1024; i++){
+         String line = "line "+i+" has secret-"+(i%60)+"-"+((i%60)*7919)+" in the middle\n";
+         input.append(line);
+         expected.append("line "+i+" has "+REPLACEMENT+" in the middle\n");
+      }
+      assertEquals(expected.toString(),filter.filter(input.toString()));
+   }
+
+   @Test
+   public void stream_secret_split_across_writes() throws IOException {
+      SecretFilter filter = new SecretFilter();
+      filter.addSecret("secret");
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      SecretFilter.FilterStream stream = filter.stream("test");
+      stream.addStream("baos",baos);
+      stream.write("foo sec".getBytes());
+      assertEquals("partial secret should be held","foo ",baos.toString());
+      stream.write("ret bar se".getBytes());
+      assertEquals("foo "+REPLACEMENT+" bar ",baos.toString());
+      stream.close();
+      assertEquals("close should write the held content","foo "+REPLACEMENT+" bar se",baos.toString());
+   }
+
+   @Test
+   public void stream_matches_filter() throws IOException {
+      SecretFilter filter = new SecretFilter();
+      filter.addSecret("abc");
+      filter.addSecret("abcdef");
+      filter.addSecret("cd");
+      String input = "xabcdefx abcdx cdab abcd";
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      SecretFilter.FilterStream stream = filter.stream("test");
+      stream.addStream("baos",baos);
+      byte[] bytes = input.getBytes();
+      for(int i=0; i<bytes.length; i+=3){
+         stream.write(bytes,i,Math.min(3,bytes.length-i));
+      }
+      stream.close();
+      assertEquals(filter.filter(input),baos.toString());
+   }
+
    @Test
    public void detect_secret_in_state(){
       State state = new State("");
@@ -0,0 +1,232 @@
+package io.hyperfoil.tools.qdup;
+
+import org.apache.sshd.client.ClientFactoryManager;
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.PropertyResolverUtils;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.pubkey.AcceptAllPublickeyAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.security.GeneralSecurityException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SshConnectionManagerTest {
+
+   private static SshServer server;
+   private static final AtomicInteger serverSessions = new AtomicInteger(0);
+
+   @BeforeClass
+   public static void startServer() throws IOException {
+      server = SshServer.setUpDefaultServer();
+      server.setHost("localhost");
+      server.setPort(0);
+      server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+      server.setPublickeyAuthenticator(AcceptAllPublickeyAuthenticator.INSTANCE);
+      server.addSessionListener(new SessionListener() {
+         @Override
+         public void sessionCreated(Session session) {
+            serverSessions.incrementAndGet();
+         }
+      });
+      server.start();
+   }
+
+   @AfterClass
+   public static void stopServer() throws IOException {
+      if(server != null){
+         server.stop(true);
+      }
+   }
+
+   private Host getHost(){
+      return new Host(System.getProperty("user.name"),"localhost",null,server.getPort());
+   }
+
+   @Test
+   public void getClient_shared(){
+      SshConnectionManager manager = new SshConnectionManager(2);
+      try {
+         SshClient first = manager.getClient();
+         SshClient second = manager.getClient();
+         assertSame("getClient should return the same client", first, second);
+         assertTrue("client should be started", first.isStarted());
+         assertEquals("nio workers", 2, PropertyResolverUtils.getIntProperty(first, ClientFactoryManager.NIO_WORKERS, -1));
+      } finally {
+         manager.close();
+      }
+   }
+
+   @Test
+   public void close_stopsClient(){
+      SshConnectionManager manager = new SshConnectionManager(1);
+      SshClient client = manager.getClient();
+      manager.close();
+      assertFalse("client should be stopped after close", client.isStarted());
+      assertFalse(manager.isStarted());
+      SshClient restarted = manager.getClient();
+      try {
+         assertNotSame("getClient after close should start a new client", client, restarted);
+      } finally {
+         manager.close();
+      }
+   }
+
+   @Test
+   public void nioWorkers_default(){
+      SshConnectionManager manager = new SshConnectionManager(0);
+      assertEquals(SshConnectionManager.DEFAULT_NIO_WORKERS, manager.getNioWorkers());
+   }
+
+   @Test(timeout = 30_000)
+   public void acquireSession_reusesConnection() throws IOException, GeneralSecurityException {
+      SshConnectionManager manager = new SshConnectionManager(1,10);
+      int before = serverSessions.get();
+      List<ClientSession> sessions = new LinkedList<>();
+      try {
+         for(int i=0; i<5; i++){
+            ClientSession session = manager.acquireSession(getHost(), SshTestBase.getIdentity(), null, 5);
+            assertNotNull("failed to acquire session "+i, session);
+            sessions.add(session);
+         }
+         assertEquals("5 leases on one host should use one connection", 1, manager.getConnectCount());
+         assertEquals("server should only see one handshake", 1, serverSessions.get() - before);
+         sessions.forEach(session -> assertSame(sessions.get(0), session));
+         sessions.forEach(manager::releaseSession);
+         ClientSession afterRelease = manager.acquireSession(getHost(), SshTestBase.getIdentity(), null, 5);
+         assertSame("released connection should be re-used", sessions.get(0), afterRelease);
+         assertEquals(1, manager.getConnectCount());
+      } finally {
+         manager.close();
+      }
+   }
+
+   @Test(timeout = 30_000)
+   public void acquireSession_maxSessions() throws IOException, GeneralSecurityException {
+      SshConnectionManager manager = new SshConnectionManager(1,2);
+      try {
+         ClientSession first = manager.acquireSession(getHost(), SshTestBase.getIdentity(), null, 5);
+         ClientSession second = manager.acquireSession(getHost(), SshTestBase.getIdentity(), null, 5);
+         ClientSession third = manager.acquireSession(getHost(), SshTestBase.getIdentity(), null, 5);
+         assertSame(first, second);
+         assertNotSame("third lease should exceed max sessions and open a new connection", first, third);
+         assertEquals(2, manager.getConnectCount());
+      } finally {
+         manager.close();
+      }
+   }
+
+   @Test(timeout = 30_000)
+   public void acquireSession_replacesClosedConnection() throws IOException, GeneralSecurityException {
+      SshConnectionManager manager = new SshConnectionManager(1,10);
+      try {
+         ClientSession first = manager.acquireSession(getHost(), SshTestBase.getIdentity(), null, 5);
+         first.close(true);
+         manager.releaseSession(first);
+         ClientSession second = manager.acquireSession(getHost(), SshTestBase.getIdentity(), null, 5);
+         assertNotSame("closed connection should not be re-used", first, second);
+         assertTrue(second.isOpen());
+         assertEquals(2, manager.getConnectCount());
+      } finally {
+         manager.close();
+      }
+   }
+
+   @Test(timeout = 30_000)
+   public void acquireSession_connectsInParallel() throws Exception {
+      //each authentication waits for the other so connecting one at a time fails
+      CountDownLatch authenticating = new CountDownLatch(2);
+      SshServer slowServer = SshServer.setUpDefaultServer();
+      slowServer.setHost("localhost");
+      slowServer.setPort(0);
+      slowServer.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+      PropertyResolverUtils.updateProperty(slowServer, ClientFactoryManager.NIO_WORKERS, 4);
+      slowServer.setPublickeyAuthenticator((username, key, session) -> {
+         authenticating.countDown();
+         try {
+            return authenticating.await(5, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            return false;
+         }
+      });
+      slowServer.start();
+      SshConnectionManager manager = new SshConnectionManager(2,1);
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+         Host host = new Host(System.getProperty("user.name"),"localhost",null,slowServer.getPort());
+         Callable<ClientSession> acquire = () -> manager.acquireSession(host, SshTestBase.getIdentity(), null, 10);
+         Future<ClientSession> first = executor.submit(acquire);
+         Future<ClientSession> second = executor.submit(acquire);
+         assertNotNull(first.get());
+         assertNotNull(second.get());
+         assertNotSame(first.get(), second.get());
+         assertEquals(2, manager.getConnectCount());
+      } finally {
+         executor.shutdownNow();
+         manager.close();
+         slowServer.stop(true);
+      }
+   }
+
+   @Test(timeout = 30_000)
+   public void acquireSession_waitsForPendingConnection() throws Exception {
+      SshConnectionManager manager = new SshConnectionManager(2,10);
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+         List<Future<ClientSession>> futures = new LinkedList<>();
+         for(int i=0; i<4; i++){
+            futures.add(executor.submit(() -> manager.acquireSession(getHost(), SshTestBase.getIdentity(), null, 5)));
+         }
+         ClientSession session = futures.get(0).get();
+         assertNotNull(session);
+         for(Future<ClientSession> future : futures){
+            assertSame("concurrent leases should share the pending connection", session, future.get());
+         }
+         assertEquals(1, manager.getConnectCount());
+      } finally {
+         executor.shutdownNow();
+         manager.close();
+      }
+   }
+
+   @Test(timeout = 30_000)
+   public void acquireSession_failedConnectionIsNotPooled() throws Exception {
+      SshConnectionManager manager = new SshConnectionManager(1,10);
+      int port;
+      try (ServerSocket socket = new ServerSocket(0)) {
+         port = socket.getLocalPort();
+      }
+      try {
+         Host host = new Host(System.getProperty("user.name"),"localhost",null,port);
+         assertNull(manager.acquireSession(host, SshTestBase.getIdentity(), null, 1));
+         assertNull("failed connection should not be leased again", manager.acquireSession(host, SshTestBase.getIdentity(), null, 1));
+         assertNotNull(manager.acquireSession(getHost(), SshTestBase.getIdentity(), null, 5));
+         assertEquals(1, manager.getConnectCount());
+      } finally {
+         manager.close();
+      }
+   }
+}
@@ -176,6 +176,42 @@ public class SshSessionTest extends SshTestBase{
         assertEquals("expect 1 permit", 1, session.permits());
     }
 
+    @Test
+    public void multi_line_sh(){
+        SshSession sshSession = new SshSession(getHost(),
+           "/dev/null",
+           getIdentity(),
+           null,
+           5,
+           "",
+           executor,
+           false);
+        //the first command can use the nonce so the multi-line command follows a nonce prompt
+        assertEquals("first", sshSession.shSync("echo first"));
+        String out = sshSession.shSync("echo one\nsleep 1\necho two");
+        assertTrue("output should include every line:\n" + out, out.contains("one") && out.contains("two"));
+        assertEquals("the next command should not get the end of the multi-line output", "next", sshSession.shSync("echo next"));
+        assertEquals("one permit expected", 1, sshSession.permits());
+        sshSession.close();
+    }
+
+    @Test
+    public void exit_code_of_previous_sh(){
+        SshSession sshSession = new SshSession(getHost(),
+           "/dev/null",
+           getIdentity(),
+           null,
+           5,
+           "",
+           executor,
+           false);
+        sshSession.shSync("false");
+        assertEquals("the nonce should not change $? of the previous command", "1", sshSession.shSync("echo $?"));
+        sshSession.shSync("true");
+        assertEquals("0", sshSession.shSync("echo $?"));
+        sshSession.close();
+    }
+
     //failing sometimes?
     @Test
     public void echo_PS1(){
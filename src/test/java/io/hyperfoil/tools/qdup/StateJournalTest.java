@@ -0,0 +1,253 @@
+package io.hyperfoil.tools.qdup;
+
+import io.hyperfoil.tools.yaup.json.Json;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StateJournalTest {
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("qdup-journal");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)){
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private long segments() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)){
+            return paths.filter(path -> path.getFileName().toString().startsWith(StateJournal.SEGMENT_PREFIX)).count();
+        }
+    }
+
+    @Test
+    public void replay_set_and_remove() throws IOException {
+        State state = new State(State.RUN_PREFIX);
+        state.set("before", "journal");
+        Coordinator coordinator = new Coordinator();
+        StateJournal journal = new StateJournal(directory, state, coordinator);
+        State host = state.getChild("host.example.com", State.HOST_PREFIX);
+        State script = host.getChild("script").getChild("id=1");
+        state.set("count", 1);
+        state.set("count", 2);
+        host.set("name", "host");
+        script.set("json", Json.fromString("{\"a\":{\"b\":\"c\"}}"));
+        script.set("ratio", "0.5");
+        script.set("flag", true);
+        script.set("RUN.fromScript", "run");
+        script.set("removed", "value");
+        script.remove("removed");
+        coordinator.setSignal("ready", 2);
+        coordinator.signal("ready");
+        coordinator.signal("ready");
+        coordinator.increase("hits");
+        coordinator.increase("hits");
+        journal.close();
+
+        StateJournal.Recovered recovered = StateJournal.load(directory);
+        Json json = recovered.getState();
+        assertEquals("journal", json.getString("before"));
+        assertEquals(2L, json.getLong("count"));
+        assertEquals("run", json.getString("fromScript"));
+        Json hostJson = json.getJson("host.example.com");
+        assertEquals("host", hostJson.getString("name"));
+        Json scriptJson = hostJson.getJson("script").getJson("id=1");
+        assertEquals("c", scriptJson.getJson("json").getJson("a").getString("b"));
+        assertEquals(0.5, scriptJson.getDouble("ratio"), 0.0);
+        assertEquals(true, scriptJson.get("flag"));
+        assertFalse("removed should not be recovered", scriptJson.has("removed"));
+        assertTrue(recovered.getLatchTimes().containsKey("ready"));
+        assertEquals(0, recovered.getSignals().get("ready").intValue());
+        assertEquals(2, recovered.getCounters().get("hits").intValue());
+        assertEquals(0, recovered.getSkipped());
+    }
+
+    @Test
+    public void close_stops_journaling() throws IOException {
+        State state = new State(State.RUN_PREFIX);
+        Coordinator coordinator = new Coordinator();
+        StateJournal journal = new StateJournal(directory, state, coordinator);
+        state.set("foo", "bar");
+        journal.close();
+        state.set("foo", "biz");
+        coordinator.increase("hits");
+        assertEquals(null, state.getJournal());
+        assertEquals(null, coordinator.getJournal());
+        StateJournal.Recovered recovered = StateJournal.load(directory);
+        assertEquals("bar", recovered.getState().getString("foo"));
+        assertFalse(recovered.getCounters().containsKey("hits"));
+    }
+
+    @Test
+    public void torn_tail_is_ignored() throws IOException {
+        State state = new State(State.RUN_PREFIX);
+        StateJournal journal = new StateJournal(directory, state, null);
+        state.set("foo", "bar");
+        state.set("biz", "buz");
+        journal.close();
+        //a partial record from a process that was killed mid write
+        try (OutputStream out = Files.newOutputStream(directory.resolve(StateJournal.SEGMENT_PREFIX + 0), StandardOpenOption.APPEND)){
+            out.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        }
+        StateJournal.Recovered recovered = StateJournal.load(directory);
+        assertEquals("bar", recovered.getState().getString("foo"));
+        assertEquals("buz", recovered.getState().getString("biz"));
+        assertEquals(2, recovered.getRecords());
+        assertEquals(1, recovered.getSkipped());
+    }
+
+    @Test
+    public void compaction_removes_old_segments() throws IOException {
+        State state = new State(State.RUN_PREFIX);
+        State child = state.getChild("child");
+        StateJournal journal = new StateJournal(directory, state, null, 1024, 512, StateJournal.DEFAULT_COMPACT_MS);
+        for(int i = 0; i < 2_000; i++){
+            child.set("key" + (i % 10), "value" + i);
+        }
+        journal.close();
+        assertTrue("expected compactions", journal.getCompactions() > 0);
+        assertFalse("the first segment should be compacted", Files.exists(directory.resolve(StateJournal.SEGMENT_PREFIX + 0)));
+        assertTrue("older segments should be removed", segments() <= 2);
+
+        StateJournal.Recovered recovered = StateJournal.load(directory);
+        Json childJson = recovered.getState().getJson("child");
+        for(int i = 0; i < 10; i++){
+            assertEquals("value" + (1_990 + i), childJson.getString("key" + i));
+        }
+    }
+
+    @Test
+    public void secrets_are_filtered() throws IOException {
+        State state = new State(State.RUN_PREFIX);
+        StateJournal journal = new StateJournal(directory, state, null);
+        state.set("_password", "hunter2");
+        state.set("message", "the password is hunter2");
+        journal.close();
+        for(Path path : (Iterable<Path>)Files.list(directory)::iterator){
+            String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            assertFalse(path + " should not contain the secret", content.contains("hunter2"));
+        }
+        StateJournal.Recovered recovered = StateJournal.load(directory);
+        assertEquals("the password is " + SecretFilter.REPLACEMENT, recovered.getState().getString("message"));
+    }
+
+    @Test
+    public void write_run_json() throws IOException {
+        State state = new State(State.RUN_PREFIX);
+        Coordinator coordinator = new Coordinator();
+        StateJournal journal = new StateJournal(directory, state, coordinator);
+        state.set("foo", "bar");
+        coordinator.setCounter("hits", 3);
+        journal.close();
+        Path runJson = directory.resolve("run.json");
+        StateJournal.load(directory).writeRunJson(runJson);
+        Json json = Json.fromString(new String(Files.readAllBytes(runJson), StandardCharsets.UTF_8));
+        assertEquals("bar", json.getJson("state").getString("foo"));
+        assertEquals(3L, json.getJson("counters").getLong("hits"));
+        assertEquals(true, json.get("recovered"));
+    }
+
+    @Test
+    public void delete_removes_journal() throws IOException {
+        State state = new State(State.RUN_PREFIX);
+        StateJournal journal = new StateJournal(directory, state, null);
+        state.set("foo", "bar");
+        journal.delete();
+        assertFalse(StateJournal.exists(directory));
+        assertEquals(0, segments());
+    }
+
+    @Test
+    public void tight_set_loop_is_batched() throws IOException {
+        int count = 200_000;
+        State state = new State(State.RUN_PREFIX);
+        State child = state.getChild("loop");
+        StateJournal journal = new StateJournal(directory, state, null);
+        for(int i = 0; i < count; i++){
+            child.set("counter", i);
+        }
+        journal.close();
+        assertEquals(count, journal.getRecords());
+        assertTrue("records should be written in batches", journal.getBatches() < count);
+        assertEquals(count - 1L, StateJournal.load(directory).getState().getJson("loop").getLong("counter"));
+    }
+
+    @Test
+    public void concurrent_sets_journaled_in_order() throws IOException, InterruptedException {
+        State state = new State(State.RUN_PREFIX);
+        StateJournal journal = new StateJournal(directory, state, null);
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++){
+            String name = "thread" + t;
+            threads[t] = new Thread(() -> {
+                for(int i = 0; i < 10_000; i++){
+                    state.set("shared", name + "-" + i);
+                    state.set("nested.value", i);
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        journal.close();
+        Json recovered = StateJournal.load(directory).getState();
+        assertEquals(state.get("shared"), recovered.getString("shared"));
+        assertEquals(state.toJson().getJson("nested").getLong("value"), recovered.getJson("nested").getLong("value"));
+    }
+
+    @Test
+    public void full_queue_keeps_ticket_order() throws IOException, InterruptedException {
+        State state = new State(State.RUN_PREFIX);
+        //callers wait for room after they leave the lock so they can queue out of order
+        StateJournal journal = new StateJournal(directory, state, null, 2, StateJournal.DEFAULT_COMPACT_BYTES, StateJournal.DEFAULT_COMPACT_MS);
+        Thread[] threads = new Thread[8];
+        for(int t = 0; t < threads.length; t++){
+            String name = "thread" + t;
+            threads[t] = new Thread(() -> {
+                for(int i = 0; i < 2_000; i++){
+                    state.set("shared", name + "-" + i);
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        journal.close();
+        assertEquals(threads.length * 2_000L, journal.getRecords());
+        assertEquals(state.get("shared"), StateJournal.load(directory).getState().getString("shared"));
+    }
+
+    @Test
+    public void json_value_journaled_when_set() throws IOException {
+        State state = new State(State.RUN_PREFIX);
+        StateJournal journal = new StateJournal(directory, state, null);
+        state.set("foo", Json.fromString("{\"bar\":1}"));
+        state.set("foo.bar", 2);
+        state.remove("foo");
+        state.set("foo", Json.fromString("{\"bar\":3}"));
+        journal.close();
+        assertEquals(3L, StateJournal.load(directory).getState().getJson("foo").getLong("bar"));
+    }
+}
@@ -293,4 +293,32 @@ public class StateTest extends SshTestBase{
         bot.set("TOP.foo", "topper");
         assertEquals("top[foo] should now be topper", "topper", top.get("foo"));
     }
+
+    @Test
+    public void get_cached_until_set() {
+        State top = new State(State.RUN_PREFIX);
+        State bot = top.addChild("bot", null);
+        top.set("foo", "top");
+        assertEquals("top", bot.get("foo"));
+        assertEquals("top", bot.get("foo"));
+        long version = top.getVersion();
+        top.set("foo", "changed");
+        assertTrue("set should change the version", top.getVersion() > version);
+        assertEquals("parent change should not use the cached value", "changed", bot.get("foo"));
+        bot.set("foo", "bot");
+        assertEquals("bot", bot.get("foo"));
+        bot.remove("foo");
+        assertEquals("changed", bot.get("foo"));
+    }
+
+    @Test
+    public void has_cached_miss() {
+        State top = new State(State.RUN_PREFIX);
+        State bot = top.addChild("bot", null);
+        assertFalse(bot.has("missing"));
+        assertNull(bot.get("missing"));
+        top.set("missing", "found");
+        assertTrue("cached miss should be replaced after set", bot.has("missing"));
+        assertEquals("found", bot.get("missing"));
+    }
 }
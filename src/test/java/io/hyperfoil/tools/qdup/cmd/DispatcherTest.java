@@ -0,0 +1,105 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DispatcherTest {
+
+   @Test(timeout = 60_000)
+   public void newVirtualThreadExecutor_blockedTasks_doNotQueue() throws InterruptedException {
+      int tasks = 1_000;
+      ThreadPerTaskExecutor executor = Dispatcher.newVirtualThreadExecutor("test-", Dispatcher.DEFAULT_MAX_VIRTUAL_THREADS, Dispatcher.DefaultUncaughtExceptionHandler);
+      CountDownLatch started = new CountDownLatch(tasks);
+      CountDownLatch release = new CountDownLatch(1);
+      try {
+         for (int i = 0; i < tasks; i++) {
+            executor.execute(() -> {
+               started.countDown();
+               try {
+                  release.await();
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+               }
+            });
+         }
+         assertTrue("every task should start while the others are blocked", started.await(30, TimeUnit.SECONDS));
+      } finally {
+         release.countDown();
+         executor.shutdown();
+         executor.awaitTermination(30, TimeUnit.SECONDS);
+      }
+   }
+
+   @Test(timeout = 60_000)
+   public void newVirtualThreadExecutor_limitsConcurrentTasks() throws InterruptedException {
+      int tasks = 50;
+      int limit = 4;
+      ThreadPerTaskExecutor executor = Dispatcher.newVirtualThreadExecutor("test-", limit, Dispatcher.DefaultUncaughtExceptionHandler);
+      AtomicInteger running = new AtomicInteger();
+      AtomicInteger maxRunning = new AtomicInteger();
+      CountDownLatch limited = new CountDownLatch(limit);
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(tasks);
+      for (int i = 0; i < tasks; i++) {
+         //execute does not wait for a permit
+         executor.execute(() -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            limited.countDown();
+            try {
+               release.await();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            done.countDown();
+         });
+      }
+      assertTrue(limited.await(30, TimeUnit.SECONDS));
+      assertEquals(limit, executor.getActiveCount());
+      assertEquals(tasks, executor.getThreadCount());
+      release.countDown();
+      assertTrue(done.await(30, TimeUnit.SECONDS));
+      assertEquals(limit, maxRunning.get());
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+      assertTrue(executor.isTerminated());
+   }
+
+   @Test(timeout = 60_000)
+   public void threadPerTaskExecutor_shutdown() throws InterruptedException {
+      ThreadPerTaskExecutor executor = Dispatcher.newVirtualThreadExecutor("test-", 1, Dispatcher.DefaultUncaughtExceptionHandler);
+      CountDownLatch started = new CountDownLatch(1);
+      AtomicInteger interrupted = new AtomicInteger();
+      executor.execute(() -> {
+         started.countDown();
+         try {
+            Thread.sleep(60_000);
+         } catch (InterruptedException e) {
+            interrupted.incrementAndGet();
+         }
+      });
+      //submit after the first task has the permit so it waits for the permit until shutdownNow
+      assertTrue(started.await(30, TimeUnit.SECONDS));
+      executor.execute(interrupted::incrementAndGet);
+      executor.shutdown();
+      assertFalse(executor.awaitTermination(10, TimeUnit.MILLISECONDS));
+      try {
+         executor.execute(() -> {});
+         fail("execute after shutdown should be rejected");
+      } catch (RejectedExecutionException e) {
+         //expected
+      }
+      executor.shutdownNow();
+      assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+      assertEquals("only the running task is interrupted, the waiting task never runs", 1, interrupted.get());
+   }
+}
@@ -0,0 +1,150 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import io.hyperfoil.tools.yaup.json.Json;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsEngineTest {
+
+   @Test
+   public void eval_expression(){
+      try(JsEngine engine = new JsEngine()){
+         assertEquals(2L,((Number)engine.eval("1+1")).longValue());
+         assertEquals("foo",engine.eval("'foo'"));
+      }
+   }
+
+   @Test
+   public void eval_function_args(){
+      try(JsEngine engine = new JsEngine()){
+         Object result = engine.eval("(input,state)=>input.toUpperCase()+state.key","foo",Json.fromString("{\"key\":\"bar\"}"));
+         assertEquals("FOObar",result);
+      }
+   }
+
+   @Test
+   public void eval_returns_json(){
+      try(JsEngine engine = new JsEngine()){
+         Object result = engine.eval("({key:'value',list:[1,2]})");
+         assertTrue("expected json but was "+result,result instanceof Json);
+         assertEquals("value",((Json)result).getString("key"));
+      }
+   }
+
+   @Test
+   public void eval_globals_are_not_shared(){
+      try(JsEngine engine = new JsEngine(1)){
+         Map<Object,Object> first = new HashMap<>();
+         first.put("name","first");
+         Map<Object,Object> second = new HashMap<>();
+         second.put("name","second");
+         assertEquals("first",engine.eval("name",first,Collections.emptyList()));
+         assertEquals("second",engine.eval("name",second,Collections.emptyList()));
+         try{
+            engine.eval("name");
+            fail("name should not be defined without globals");
+         }catch (IllegalStateException e){
+            //expected
+         }
+      }
+   }
+
+   @Test
+   public void eval_helpers(){
+      try(JsEngine engine = new JsEngine(1)){
+         for(int i=0; i<3; i++){
+            assertEquals(6L,((Number)engine.eval("twice(3)",Collections.emptyMap(),Arrays.asList("function twice(v){return v*2}"))).longValue());
+         }
+      }
+   }
+
+   @Test
+   public void eval_redeclared_let(){
+      try(JsEngine engine = new JsEngine(1)){
+         assertEquals(1L,((Number)engine.eval("let x = 1; x")).longValue());
+         assertEquals(2L,((Number)engine.eval("let x = 2; x")).longValue());
+      }
+   }
+
+   @Test
+   public void eval_global_property_not_kept(){
+      try(JsEngine engine = new JsEngine(1)){
+         engine.eval("globalThis.name='stale'");
+         assertEquals("undefined",engine.eval("typeof name"));
+         engine.eval("var count = 1");
+         assertEquals("undefined",engine.eval("typeof count"));
+         engine.eval("let x = 1");
+         assertEquals("undefined",engine.eval("typeof x"));
+      }
+   }
+
+   @Test
+   public void eval_reuses_unchanged_context(){
+      try(JsEngine engine = new JsEngine(1)){
+         engine.eval("1+1");
+         assertEquals(1,engine.getIdleContextCount());
+         engine.eval("[1,2].map(v=>v*2)");
+         assertEquals("context without global changes goes back to the pool",1,engine.getIdleContextCount());
+         engine.eval("globalThis.name='stale'");
+         assertEquals("context with global changes is closed",0,engine.getIdleContextCount());
+      }
+   }
+
+   @Test
+   public void eval_failure_runs_once(){
+      try(JsEngine engine = new JsEngine(1)){
+         AtomicInteger counter = new AtomicInteger();
+         Map<Object,Object> globals = new HashMap<>();
+         globals.put("counter",counter);
+         engine.eval("1+1");//the next evaluation uses a pooled context
+         try{
+            engine.eval("counter.incrementAndGet() && notDefined()",globals,Collections.emptyList());
+            fail("undefined function should throw IllegalStateException");
+         }catch (IllegalStateException e){
+            //expected
+         }
+         assertEquals("failed code should not be retried",1,counter.get());
+      }
+   }
+
+   @Test
+   public void eval_caches_source(){
+      try(JsEngine engine = new JsEngine()){
+         for(int i=0; i<10; i++){
+            engine.eval("1+1");
+         }
+         assertEquals(1,engine.getCachedSourceCount() - 2);//the globals proxy and globals check are also cached
+      }
+   }
+
+   @Test
+   public void eval_invalid(){
+      try(JsEngine engine = new JsEngine()){
+         engine.eval("not valid javascript(");
+         fail("invalid javascript should throw IllegalStateException");
+      }catch (IllegalStateException e){
+         assertTrue(e.getMessage(),e.getMessage().startsWith("jsEval exception for:"));
+      }
+   }
+
+   @Test
+   public void eval_closed(){
+      JsEngine engine = new JsEngine();
+      engine.close();
+      try{
+         engine.eval("1+1");
+         fail("closed engine should throw IllegalStateException");
+      }catch (IllegalStateException e){
+         //expected
+      }
+   }
+}
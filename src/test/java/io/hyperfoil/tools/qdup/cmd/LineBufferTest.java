@@ -0,0 +1,90 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LineBufferTest {
+
+   @Test
+   public void drain_in_order() throws InterruptedException {
+      LineBuffer buffer = new LineBuffer(4);
+      String[] batch = new String[3];
+      buffer.add("one");
+      buffer.add("two");
+      buffer.add("three");
+      buffer.add("four");
+      assertEquals(3, buffer.drain(batch));
+      assertEquals("one", batch[0]);
+      assertEquals("three", batch[2]);
+      buffer.add("five");
+      buffer.add("six");
+      assertEquals("drain should wrap around the end of the ring", 3, buffer.drain(batch));
+      assertEquals("four", batch[0]);
+      assertEquals("five", batch[1]);
+      assertEquals("six", batch[2]);
+   }
+
+   @Test
+   public void drain_after_close() throws InterruptedException {
+      LineBuffer buffer = new LineBuffer(4);
+      String[] batch = new String[4];
+      buffer.add("one");
+      buffer.close();
+      assertTrue(buffer.isPending());
+      assertEquals("lines added before close should still drain", 1, buffer.drain(batch));
+      assertEquals(-1, buffer.drain(batch));
+      assertFalse("closed buffer should not accept lines", buffer.add("two"));
+      buffer.clear();
+      assertFalse(buffer.isPending());
+      assertTrue(buffer.add("three"));
+   }
+
+   @Test(timeout = 10_000)
+   public void full_pauses_without_dropping() throws InterruptedException {
+      AtomicInteger paused = new AtomicInteger();
+      AtomicInteger resumed = new AtomicInteger();
+      LineBuffer buffer = new LineBuffer(4, paused::incrementAndGet, resumed::incrementAndGet);
+      for(int i = 0; i < 3; i++){
+         assertTrue(buffer.add("line"+i));
+      }
+      assertEquals(0, paused.get());
+      assertTrue(buffer.add("line3"));
+      assertEquals("reaching capacity pauses the source", 1, paused.get());
+      assertTrue(buffer.isPaused());
+      //output that was in flight when the source paused
+      for(int i = 4; i < 10; i++){
+         assertTrue("a full buffer should grow instead of dropping", buffer.add("line"+i));
+      }
+      assertEquals(1, paused.get());
+      String[] batch = new String[3];
+      assertEquals(3, buffer.drain(batch));
+      assertEquals("line0", batch[0]);
+      assertEquals(0, resumed.get());
+      assertEquals(3, buffer.drain(batch));
+      assertEquals("line3", batch[0]);
+      assertEquals(3, buffer.drain(batch));
+      assertEquals("resume at half the capacity", 1, resumed.get());
+      assertFalse(buffer.isPaused());
+      assertEquals(1, buffer.drain(batch));
+      assertEquals("every line is drained in order", "line9", batch[0]);
+      assertEquals(10, buffer.getAdded());
+      assertEquals(1, buffer.getPauses());
+   }
+
+   @Test
+   public void close_resumes(){
+      AtomicInteger resumed = new AtomicInteger();
+      LineBuffer buffer = new LineBuffer(1, ()->{}, resumed::incrementAndGet);
+      buffer.add("one");
+      assertTrue(buffer.isPaused());
+      buffer.close();
+      assertEquals("a closed buffer should not leave the source paused", 1, resumed.get());
+      buffer.close();
+      assertEquals(1, resumed.get());
+   }
+}
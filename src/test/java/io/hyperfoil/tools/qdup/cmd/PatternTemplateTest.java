@@ -0,0 +1,144 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import io.hyperfoil.tools.yaup.PopulatePatternException;
+import io.hyperfoil.tools.yaup.StringUtil;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PatternTemplateTest {
+
+   private static PatternTemplate compile(String pattern){
+      return PatternTemplate.compile(pattern, StringUtil.PATTERN_PREFIX, StringUtil.PATTERN_DEFAULT_SEPARATOR, StringUtil.PATTERN_SUFFIX, StringUtil.PATTERN_JAVASCRIPT_PREFIX);
+   }
+
+   @Test
+   public void get_cached(){
+      PatternTemplate first = PatternTemplate.get("echo ${{foo}}", "${{", ":", "}}", "=");
+      PatternTemplate second = PatternTemplate.get("echo ${{foo}}", "${{", ":", "}}", "=");
+      assertSame(first,second);
+      PatternTemplate other = PatternTemplate.get("echo ${{foo}}", "${{", "_", "}}", "=");
+      assertFalse("different separator should not use the same template",first == other);
+   }
+
+   @Test
+   public void populate_simple(){
+      Map<Object,Object> map = new HashMap<>();
+      map.put("foo","FOO");
+      map.put("bar","BAR");
+      PatternTemplate template = compile("${{foo}} and ${{bar}} with ${{missing:default}}");
+      assertTrue(template.isSimple());
+      assertEquals("FOO and BAR with default",template.populate(map));
+   }
+
+   @Test
+   public void populate_missing(){
+      PatternTemplate template = compile("${{missing}}");
+      assertTrue(template.isSimple());
+      assertNull("missing value should need StringUtil.populatePattern",template.populate(new HashMap<>()));
+   }
+
+   @Test
+   public void populate_nested_value(){
+      Map<Object,Object> map = new HashMap<>();
+      map.put("foo","${{bar}}");
+      map.put("bar","BAR");
+      assertNull("value with a pattern should need StringUtil.populatePattern",compile("${{foo}}").populate(map));
+   }
+
+   @Test
+   public void not_simple(){
+      assertFalse("javascript with a separator",compile("${{=1+1:2}}").isSimple());
+      assertFalse("javascript with a nested pattern",compile("${{= ${{foo}}+1}}").isSimple());
+      assertFalse("javascript characters",compile("${{foo.length()}}").isSimple());
+      assertFalse("nested",compile("${{foo:${{bar}}}}").isSimple());
+      assertFalse("quoted default",compile("${{foo:'bar'}}").isSimple());
+      assertFalse("unterminated",compile("${{foo").isSimple());
+   }
+
+   @Test
+   public void populate_matches_StringUtil() throws PopulatePatternException {
+      Map<Object,Object> map = new HashMap<>();
+      map.put("foo","FOO");
+      map.put("empty","");
+      map.put("json","{\"key\":\"value\"}");
+      for(String pattern : Arrays.asList(
+         "no patterns",
+         "${{foo}}",
+         "${{foo}}${{foo}}",
+         "a ${{foo}} b ${{empty:default}} c",
+         "${{empty}}",
+         "${{empty:}}",
+         "${{missing:}}",
+         "{ ${{json}} } }}",
+         "$${{foo}}}"
+      )){
+         PatternTemplate template = compile(pattern);
+         assertTrue(pattern,template.isSimple());
+         assertEquals(pattern,StringUtil.populatePattern(pattern,map),template.populate(map));
+      }
+   }
+
+   @Test
+   public void populate_javascript(){
+      Map<Object,Object> map = new HashMap<>();
+      map.put("count",2);
+      PatternTemplate template = compile("${{= count * 2}} seconds ${{=seconds('2m')}}");
+      assertTrue(template.isSimple());
+      assertTrue(template.hasJavascript());
+      assertNull("javascript needs an engine",template.populate(map));
+      assertEquals("4 seconds 120",template.populate(map,JsEngine.getDefault(),Arrays.asList(
+         "function seconds(v){ return Packages.io.hyperfoil.tools.yaup.StringUtil.parseToMs(v)/1000}"
+      )));
+   }
+
+   @Test
+   public void populate_javascript_matches_StringUtil() throws PopulatePatternException {
+      Map<Object,Object> map = new HashMap<>();
+      map.put("foo","FOO");
+      map.put("count",3);
+      for(String pattern : Arrays.asList(
+         "${{=1+1}}",
+         "${{= foo.toLowerCase()}}",
+         "${{= [1,2,3].map(v=>v*count).join(',')}}",
+         "${{=\"a\"+foo}} ${{foo}}"
+      )){
+         PatternTemplate template = compile(pattern);
+         assertTrue(pattern,template.isSimple());
+         assertEquals(pattern,StringUtil.populatePattern(pattern,map),template.populate(map,JsEngine.getDefault(),Collections.emptyList()));
+      }
+   }
+
+   @Test
+   public void populate_javascript_failure() throws PopulatePatternException {
+      String pattern = "a ${{= not valid javascript(}} b";
+      String expected;
+      try {
+         expected = StringUtil.populatePattern(pattern,new HashMap<>());
+      } catch (PopulatePatternException e){
+         expected = e.getResult();
+      }
+      assertEquals("invalid javascript stays in the pattern",expected,compile(pattern).populate(new HashMap<>(),JsEngine.getDefault(),Collections.emptyList()));
+   }
+
+   @Test
+   public void populate_javascript_runs_once(){
+      AtomicInteger counter = new AtomicInteger();
+      Map<Object,Object> map = new HashMap<>();
+      map.put("counter",counter);
+      assertEquals("${{= counter.incrementAndGet() && notDefined() }}",compile("${{= counter.incrementAndGet() && notDefined() }}").populate(map,JsEngine.getDefault(),Collections.emptyList()));
+      assertEquals(1,counter.get());
+      assertNull("missing variable needs StringUtil.populatePattern",compile("${{= counter.incrementAndGet() }} ${{missing}}").populate(map,JsEngine.getDefault(),Collections.emptyList()));
+      assertEquals("javascript is not evaluated before the fallback",1,counter.get());
+   }
+}
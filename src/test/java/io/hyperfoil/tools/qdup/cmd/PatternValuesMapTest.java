@@ -165,4 +165,28 @@ public class PatternValuesMapTest {
         assertTrue("map should have key",map.containsKey("key.value"));
         assertEquals("key.value should be value","foo",map.get("key.value"));
     }
+
+    @Test
+    public void deep_with_nesting(){
+        int depth = 32;
+        State state = new State(State.RUN_PREFIX);
+        state.set("fromState","state");
+        Cmd root = Cmd.sh("root");
+        root.with("top","first");
+        Cmd.Ref ref = new Cmd.Ref(root);
+        Cmd cmd = root;
+        for(int i=0; i<depth; i++){
+            Cmd child = Cmd.sh("level"+i);
+            child.with("level"+i,i);
+            cmd.then(child);
+            ref = ref.add(child);
+            cmd = child;
+        }
+        PatternValuesMap map = new PatternValuesMap(cmd,state,null,ref);
+        assertEquals("first",map.get("top"));
+        assertEquals(0,map.get("level0"));
+        assertEquals(depth-1,map.get("level"+(depth-1)));
+        assertEquals("state",map.get("fromState"));
+        assertNull(map.get("missing"));
+    }
 }
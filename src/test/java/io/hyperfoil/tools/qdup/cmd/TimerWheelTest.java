@@ -0,0 +1,96 @@
+package io.hyperfoil.tools.qdup.cmd;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+   @Test(timeout = 10_000)
+   public void fires_after_delay() throws InterruptedException {
+      TimerWheel wheel = new TimerWheel("test-wheel", Runnable::run);
+      CountDownLatch latch = new CountDownLatch(1);
+      long start = System.nanoTime();
+      TimerWheel.Timeout timeout = wheel.schedule(latch::countDown, 50);
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+      long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("should not fire early " + elapsedMs, elapsedMs >= 50);
+      assertTrue(timeout.isExpired());
+      assertFalse(timeout.cancel());
+   }
+
+   @Test(timeout = 10_000)
+   public void cancelled_does_not_fire() throws InterruptedException {
+      TimerWheel wheel = new TimerWheel("test-wheel", Runnable::run);
+      AtomicInteger fired = new AtomicInteger();
+      TimerWheel.Timeout cancelled = wheel.schedule(fired::incrementAndGet, 20);
+      assertTrue(cancelled.cancel());
+      assertFalse("cancel is only true once", cancelled.cancel());
+      CountDownLatch latch = new CountDownLatch(1);
+      wheel.schedule(latch::countDown, 100);
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+      assertEquals(0, fired.get());
+      assertTrue(cancelled.isCancelled());
+      assertEquals(0, wheel.getPending());
+   }
+
+   @Test(timeout = 10_000)
+   public void delay_longer_than_a_round() throws InterruptedException {
+      //8 buckets of 1ms so 50ms needs several rounds
+      TimerWheel wheel = new TimerWheel("test-wheel", 1, TimeUnit.MILLISECONDS, 8, Runnable::run);
+      CountDownLatch latch = new CountDownLatch(1);
+      long start = System.nanoTime();
+      wheel.schedule(latch::countDown, 50);
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+   }
+
+   @Test(timeout = 20_000)
+   public void restarts_after_idle() throws InterruptedException {
+      TimerWheel wheel = new TimerWheel("test-wheel", Runnable::run);
+      CountDownLatch first = new CountDownLatch(1);
+      wheel.schedule(first::countDown, 10);
+      assertTrue(first.await(5, TimeUnit.SECONDS));
+      //let the wheel thread stop
+      Thread.sleep(1_500);
+      CountDownLatch second = new CountDownLatch(1);
+      wheel.schedule(second::countDown, 10);
+      assertTrue(second.await(5, TimeUnit.SECONDS));
+   }
+
+   @Test(timeout = 60_000)
+   public void schedule_and_cancel_many() throws InterruptedException {
+      int count = 200_000;
+      TimerWheel wheel = new TimerWheel("test-wheel", Runnable::run);
+      AtomicInteger fired = new AtomicInteger();
+      TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[count];
+      for (int i = 0; i < count; i++) {
+         timeouts[i] = wheel.schedule(fired::incrementAndGet, 30_000 + i);
+      }
+      for (int i = 0; i < count; i++) {
+         timeouts[i].cancel();
+      }
+      CountDownLatch latch = new CountDownLatch(1);
+      wheel.schedule(latch::countDown, 20);
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+      assertEquals(0, fired.get());
+      assertEquals(0, wheel.getPending());
+   }
+
+   @Test(timeout = 10_000)
+   public void task_exception_does_not_stop_wheel() throws InterruptedException {
+      TimerWheel wheel = new TimerWheel("test-wheel", Runnable::run);
+      wheel.schedule(() -> {
+         throw new RuntimeException("expected");
+      }, 10);
+      CountDownLatch latch = new CountDownLatch(1);
+      wheel.schedule(latch::countDown, 30);
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+   }
+}
@@ -1,5 +1,6 @@
 package io.hyperfoil.tools.qdup.cmd.impl;
 
+import io.hyperfoil.tools.qdup.Coordinator;
 import io.hyperfoil.tools.qdup.Run;
 import io.hyperfoil.tools.qdup.SshTestBase;
 import io.hyperfoil.tools.qdup.State;
@@ -11,6 +12,7 @@ import io.hyperfoil.tools.qdup.cmd.SpyContext;
 import io.hyperfoil.tools.qdup.config.RunConfig;
 import io.hyperfoil.tools.qdup.config.RunConfigBuilder;
 import io.hyperfoil.tools.qdup.config.yaml.Parser;
+import io.hyperfoil.tools.qdup.config.yaml.YamlFile;
 import io.hyperfoil.tools.yaup.Sets;
 import io.hyperfoil.tools.yaup.json.Json;
 import org.junit.Assert;
@@ -18,6 +20,7 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
@@ -520,6 +523,148 @@ public class ForEachTest extends SshTestBase {
         assertEquals("skip should be empty", "", context.getSkip());
     }
 
+    @Test
+    public void run_declared_input_loaded_once() {
+        State state = new State("");
+        state.set("list", "1 2");
+        Cmd forEach = Cmd.forEach("FOO", "${{list}}");
+        SpyContext context = new SpyContext(null, state, new Coordinator());
+
+        forEach.run("", context);
+        assertEquals("next", "1", context.getNext());
+        state.set("list", "3 4 5");
+
+        context.clear();
+        forEach.run("", context);
+        assertEquals("changing the input should not restart the loop", "2", context.getNext());
+
+        context.clear();
+        forEach.run("", context);
+        assertNull("next should be null", context.getNext());
+        assertEquals("skip should be empty", "", context.getSkip());
+
+        context.clear();
+        forEach.run("", context);
+        assertEquals("a new loop should load the new input", "3", context.getNext());
+    }
+
+    @Test
+    public void run_parallel_without_script_context() {
+        ForEach forEach = new ForEach("FOO", "1 2", "2");
+        SpyContext context = new SpyContext();
+
+        forEach.run("", context);
+        assertEquals("next", "1", context.getNext());
+        context.clear();
+        forEach.run("", context);
+        assertEquals("next", "2", context.getNext());
+        context.clear();
+        forEach.run("", context);
+        assertEquals("skip should be empty", "", context.getSkip());
+    }
+
+    @Test
+    public void yaml_parallel() {
+        Parser parser = Parser.getInstance();
+        RunConfigBuilder builder = getBuilder();
+        builder.loadYaml(parser.loadFile("", stream("" +
+                "scripts:",
+                "  foo:",
+                "  - for-each:",
+                "      name: arg",
+                "      input: [one, two, three, four, five]",
+                "      parallel: 3",
+                "    then:",
+                "    - sh: echo ${{arg}}",
+                "    - set-state: RUN.${{arg}} ${{arg}}",
+                "  - set-state: RUN.after ${{=[${{RUN.one:}},${{RUN.two:}},${{RUN.three:}},${{RUN.four:}},${{RUN.five:}}].length}}",
+                "hosts:",
+                "  local: " + getHost(),
+                "roles:",
+                "  doit:",
+                "    hosts: [local]",
+                "    run-scripts: [foo]"
+        )));
+        RunConfig config = builder.buildConfig(parser);
+        assertFalse("unexpected errors:\n" + config.getErrorStrings().stream().collect(Collectors.joining("\n")), config.hasErrors());
+
+        Cmd foo = config.getScript("foo");
+        assertTrue("first command should be for-each", foo.getNext() instanceof ForEach);
+        assertEquals("3", ((ForEach) foo.getNext()).getParallel());
+
+        Dispatcher dispatcher = new Dispatcher();
+        Run doit = new Run(tmpDir.toString(), config, dispatcher);
+        doit.run();
+        dispatcher.shutdown();
+
+        State state = config.getState();
+        for (String arg : Arrays.asList("one", "two", "three", "four", "five")) {
+            assertEquals("state should have " + arg + "\n" + state.tree(), arg, state.getString(arg));
+        }
+        assertEquals("the next command should wait for every entry\n" + state.tree(), 5L, state.get("after"));
+    }
+
+    @Test
+    public void yaml_parallel_encoded() {
+        Parser parser = Parser.getInstance();
+        YamlFile loaded = parser.loadFile("", stream("" +
+                "scripts:",
+                "  foo:",
+                "  - for-each:",
+                "      name: arg",
+                "      input: one two",
+                "      parallel: 2",
+                "    then:",
+                "    - sh: echo ${{arg}}"
+        ));
+        String output = parser.dump(loaded);
+        YamlFile reloaded = parser.loadFile("", stream(output));
+        Cmd forEach = reloaded.getScripts().get("foo").getNext();
+        assertTrue("first command should be for-each\n" + output, forEach instanceof ForEach);
+        assertEquals("parallel should be encoded\n" + output, "2", ((ForEach) forEach).getParallel());
+        assertEquals("one two", ((ForEach) forEach).getDeclaredInput());
+    }
+
+    @Test
+    public void fork_done_when_worker_completes() {
+        SpyContext context = new SpyContext();
+        SpyContext first = new SpyContext();
+        SpyContext second = new SpyContext();
+        ForEach.Fork fork = new ForEach.Fork("FOO", Arrays.asList("1", "2"), null, context, "input", () -> true);
+        fork.start(2);
+        fork.done(first, true);
+        fork.done(first, false);
+        assertNull("the fork should wait for every worker", context.getSkip());
+        fork.done(second, true);
+        assertEquals("input", context.getSkip());
+        assertFalse(context.isAborted());
+    }
+
+    @Test
+    public void fork_aborts_when_worker_closes_early() {
+        SpyContext context = new SpyContext();
+        SpyContext first = new SpyContext();
+        SpyContext second = new SpyContext();
+        ForEach.Fork fork = new ForEach.Fork("FOO", Arrays.asList("1", "2"), null, context, "input", () -> true);
+        fork.start(2);
+        fork.done(first, false);
+        fork.done(second, true);
+        assertNull("the forking context should not move past the loop", context.getSkip());
+        assertTrue("the forking context should not wait forever", context.isAborted());
+        assertEquals(1, context.getLogs().size());
+    }
+
+    @Test
+    public void fork_stopped_with_dispatcher() {
+        SpyContext context = new SpyContext();
+        SpyContext first = new SpyContext();
+        ForEach.Fork fork = new ForEach.Fork("FOO", Arrays.asList("1", "2"), null, context, "input", () -> false);
+        fork.start(1);
+        fork.done(first, false);
+        assertNull(context.getSkip());
+        assertFalse("the stopped dispatcher already ended the forking context", context.isAborted());
+    }
+
     @Test
     public void getTail_noTail() {
         Cmd start = Cmd.sh("one");
@@ -0,0 +1,51 @@
+package io.hyperfoil.tools.qdup.cmd.impl;
+
+import io.hyperfoil.tools.qdup.cmd.SpyContext;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RegexCacheTest {
+
+   @Test
+   public void patternCache_shared_with_copy() {
+      Regex regex = new Regex("(?<first.name>\\w+) (?<last>\\w+)");
+      Regex copy = (Regex)regex.copy();
+
+      SpyContext context = new SpyContext();
+      regex.run("John Smith", context);
+      assertEquals("John", context.getState().get("first.name"));
+      assertEquals(0, regex.getCacheHits());
+      assertEquals(1, regex.getCacheMisses());
+
+      context = new SpyContext();
+      copy.run("Jane Doe", context);
+      assertEquals("copy should use the compiled pattern", 1, regex.getCacheHits());
+      assertEquals(1, copy.getCacheMisses());
+      assertEquals("Jane", context.getState().get("first.name"));
+      assertEquals("Doe", context.getState().get("last"));
+   }
+
+   @Test
+   public void patternCache_keyed_by_populated_pattern() {
+      Regex regex = new Regex("(?<value>${{prefix}}\\d+)");
+
+      SpyContext context = new SpyContext();
+      context.getState().set("prefix", "a");
+      regex.run("a1", context);
+      assertEquals("a1", context.getState().get("value"));
+
+      context = new SpyContext();
+      context.getState().set("prefix", "b");
+      regex.run("b2", context);
+      assertEquals("b2", context.getState().get("value"));
+      assertEquals("each populated pattern is compiled", 2, regex.getCacheMisses());
+
+      context = new SpyContext();
+      context.getState().set("prefix", "a");
+      regex.run("a3", context);
+      assertEquals("a3", context.getState().get("value"));
+      assertEquals(1, regex.getCacheHits());
+      assertEquals(2, regex.getCacheMisses());
+   }
+}
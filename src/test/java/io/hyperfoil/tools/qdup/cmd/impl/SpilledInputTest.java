@@ -0,0 +1,96 @@
+package io.hyperfoil.tools.qdup.cmd.impl;
+
+import io.hyperfoil.tools.qdup.cmd.Cmd;
+import io.hyperfoil.tools.qdup.cmd.SpyContext;
+import io.hyperfoil.tools.qdup.stream.OutputSequence;
+import io.hyperfoil.tools.qdup.stream.SpillingOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SpilledInputTest {
+
+   private SpillingOutputStream stream;
+   private OutputSequence sequence;
+
+   @Before
+   public void createStream() {
+      stream = new SpillingOutputStream(4);
+   }
+
+   @After
+   public void releaseStream() {
+      if (sequence != null) {
+         sequence.release();
+      }
+      stream.reset();
+   }
+
+   private Cmd spilled(String output) throws IOException {
+      stream.write(output.getBytes(StandardCharsets.UTF_8));
+      sequence = stream.toSequence();
+      Cmd previous = Cmd.NO_OP();
+      previous.setOutput("preview", sequence);
+      return previous;
+   }
+
+   @Test
+   public void output_carried_when_unchanged() throws IOException {
+      Cmd previous = spilled("first\nsecond");
+      Cmd regex = Cmd.regex("first");
+      previous.then(regex);
+      assertSame(sequence, regex.getInputSequence("preview"));
+      regex.setOutput("preview");
+      assertSame("unchanged output keeps the sequence", sequence, regex.getOutputSequence());
+      regex.setOutput("changed");
+      assertNull(regex.getOutputSequence());
+   }
+
+   @Test
+   public void regex_matches_spilled_output() throws IOException {
+      Cmd previous = spilled("first\nsecond\nthird");
+      Cmd regex = Cmd.regex("third");
+      previous.then(regex);
+      SpyContext context = new SpyContext();
+      regex.run("preview", context);
+      assertEquals("preview", context.getNext());
+      assertNull(context.getSkip());
+   }
+
+   @Test
+   public void forEach_json_array() throws IOException {
+      Cmd previous = spilled("[\n  \"one\",\n  \"two\"\n]\n");
+      Cmd forEach = Cmd.forEach("FOO");
+      previous.then(forEach);
+      SpyContext context = new SpyContext();
+      forEach.run("preview", context);
+      assertEquals("one", context.getNext());
+      context.clear();
+      forEach.run("preview", context);
+      assertEquals("two", context.getNext());
+      context.clear();
+      forEach.run("preview", context);
+      assertNull(context.getNext());
+      assertEquals("preview", context.getSkip());
+   }
+
+   @Test
+   public void forEach_lines() throws IOException {
+      Cmd previous = spilled("one\r\ntwo\r\n");
+      Cmd forEach = Cmd.forEach("FOO");
+      previous.then(forEach);
+      SpyContext context = new SpyContext();
+      forEach.run("preview", context);
+      assertEquals("one", context.getNext());
+      context.clear();
+      forEach.run("preview", context);
+      assertEquals("two", context.getNext());
+   }
+}
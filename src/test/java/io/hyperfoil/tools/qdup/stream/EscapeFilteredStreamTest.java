@@ -5,6 +5,10 @@ import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -250,4 +254,121 @@ public class EscapeFilteredStreamTest {
     }
 
 
+    @Test
+    public void filter_osc_title(){
+        assertEquals("BEL terminated","foobar",filter("foo\u001b]0;user@host:~\u0007bar"));
+        assertEquals("ST terminated","foobar",filter("foo\u001b]2;title\u001b\\bar"));
+    }
+    @Test
+    public void filter_osc_restart(){
+        assertEquals("ESC that ends a string starts the next sequence","foobar",filter("foo\u001b]0;title\u001b[0mbar"));
+    }
+    @Test
+    public void filter_osc_line_break(){
+        assertEquals("a stray ESC ] should not hold back the next line","\u001b]x\nprompt",filter("\u001b]x\nprompt"));
+    }
+    @Test
+    public void filter_charset(){
+        assertEquals("foobar",filter("foo\u001b(Bbar"));
+        assertEquals("foobar",filter("foo\u001b)0bar"));
+    }
+    @Test
+    public void filter_progress_bar(){
+        //gradle and docker redraw lines with erase line and cursor up
+        assertEquals("> Task :compileJava",filter("\u001b[2K\u001b[1A\u001b[1m> Task :compileJava\u001b[m\u001b[?25l"));
+    }
+    @Test
+    public void stray_escape(){
+        assertEquals("\u001bx",filter("\u001bx"));
+        assertEquals("\u001b\u001b",filter("\u001b\u001b",true));
+    }
+    @Test
+    public void escape_events(){
+        EscapeFilteredStream fs = new EscapeFilteredStream();
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        fs.addStream("bao",bao);
+        List<EscapeFilteredStream.Escape> escapes = new ArrayList<>();
+        fs.addEscapeConsumer(escapes::add);
+        try {
+            fs.write("a\u001b[1;3".getBytes());
+            fs.write("4mb\u001b]0;ti".getBytes());
+            fs.write("tle\u0007c\u001b(Bd\u001b=".getBytes());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        assertEquals("abcd",bao.toString());
+        assertEquals(escapes.toString(),4,escapes.size());
+        assertEquals(EscapeFilteredStream.Type.CSI,escapes.get(0).getType());
+        assertEquals("1;34",escapes.get(0).getParameters());
+        assertEquals('m',escapes.get(0).getFinal());
+        assertEquals(EscapeFilteredStream.Type.OSC,escapes.get(1).getType());
+        assertEquals("0;title",escapes.get(1).getParameters());
+        assertEquals(EscapeFilteredStream.Type.CHARSET,escapes.get(2).getType());
+        assertEquals("(",escapes.get(2).getParameters());
+        assertEquals(EscapeFilteredStream.Type.ESC,escapes.get(3).getType());
+        assertEquals('=',escapes.get(3).getFinal());
+    }
+
+    @Test
+    public void split_writes_match_single_write() throws IOException {
+        String[] tokens = new String[]{
+            "text ","\r\n","\u001b[0m","\u001b[1;34m","\u001b[?25h","\u001b[2K","\u001b]0;title\u0007","\u001b]2;t\u001b\\",
+            "\u001b(B","\u001b=","\u001b","\u001b[","\u001b[bar","[INFO]","\u001b]","\u001b[0;"
+        };
+        Random random = new Random(31);
+        for(int round = 0; round < 2_000; round++){
+            StringBuilder sb = new StringBuilder();
+            int count = 1 + random.nextInt(12);
+            for(int t = 0; t < count; t++){
+                sb.append(tokens[random.nextInt(tokens.length)]);
+            }
+            byte[] input = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+            String expected = write(input, new int[0]);
+            int[] splits = new int[random.nextInt(Math.min(6, input.length) + 1)];
+            for(int i = 0; i < splits.length; i++){
+                splits[i] = random.nextInt(input.length + 1);
+            }
+            java.util.Arrays.sort(splits);
+            assertEquals("splits "+java.util.Arrays.toString(splits)+" of "+sb.toString().replace("\u001b","^["),expected,write(input, splits));
+        }
+    }
+    private String write(byte[] input, int[] splits) throws IOException {
+        EscapeFilteredStream fs = new EscapeFilteredStream();
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        fs.addStream("bao",bao);
+        int from = 0;
+        for(int split : splits){
+            fs.write(input, from, split - from);
+            from = split;
+        }
+        fs.write(input, from, input.length - from);
+        fs.close();
+        return bao.toString();
+    }
+
+    @Test
+    public void colored_build_output() throws IOException {
+        //modelled on maven and gradle console output: coloured log levels, bold task names, progress lines redrawn with erase line
+        String trace =
+            "\u001b[1;34mINFO\u001b[m] \u001b[1m--- \u001b[0;32mmaven-compiler-plugin:3.8.1:compile\u001b[m \u001b[1m(default-compile)\u001b[m @ \u001b[36mqDup\u001b[0;1m ---\u001b[m\r\n"+
+            "[\u001b[1;34mINFO\u001b[m] Compiling 190 source files to /home/user/qDup/target/classes\r\n"+
+            "[\u001b[1;33mWARNING\u001b[m] /home/user/qDup/src/main/java/Foo.java uses unchecked or unsafe operations.\r\n"+
+            "\u001b[2K\u001b[1A\u001b[2K\u001b[1m<\u001b[0;32;1m=========\u001b[0;39;1m----> 75% EXECUTING [12s]\u001b[m\u001b[35D\u001b[1B\r\n"+
+            "\u001b]0;user@host:~/qDup\u0007plain output line without any escape sequences at all, just text\r\n";
+        String expected =
+            "INFO] --- maven-compiler-plugin:3.8.1:compile (default-compile) @ qDup ---\r\n"+
+            "[INFO] Compiling 190 source files to /home/user/qDup/target/classes\r\n"+
+            "[WARNING] /home/user/qDup/src/main/java/Foo.java uses unchecked or unsafe operations.\r\n"+
+            "<=========----> 75% EXECUTING [12s]\r\n"+
+            "plain output line without any escape sequences at all, just text\r\n";
+        byte[] input = trace.repeat(3).getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected.repeat(3),write(input, new int[0]));
+        int[] splits = new int[input.length / 7];
+        for(int i = 0; i < splits.length; i++){
+            splits[i] = (i + 1) * 7;
+        }
+        assertEquals("split every 7 bytes",expected.repeat(3),write(input, splits));
+    }
+
 }
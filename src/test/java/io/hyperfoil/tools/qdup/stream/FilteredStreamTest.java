@@ -107,4 +107,21 @@ public class FilteredStreamTest {
         read = new String(bao.toByteArray());
         assertEquals("should read party after match on BARN","party",read);
     }
+
+    @Test
+    public void largeWrite_filterAcrossWrites() throws IOException {
+        FilteredStream filteredStream = new FilteredStream();
+        filteredStream.addFilter("filter","FOO","");
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        filteredStream.addStream("bao",bao);
+        StringBuilder large = new StringBuilder();
+        while(large.length() < 64*1024){
+            large.append("0123456789");
+        }
+        filteredStream.write((large+"F").getBytes());
+        assertEquals("partial filter should be buffered",large.length(),bao.size());
+        filteredStream.write("OO".getBytes());
+        filteredStream.write((large+"FOO"+large).getBytes());
+        assertEquals(large.toString()+large+large,bao.toString());
+    }
 }
@@ -0,0 +1,101 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import io.hyperfoil.tools.qdup.SecretFilter;
+import io.hyperfoil.tools.yaup.json.Json;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonStreamWriterTest {
+
+    private static String write(Json value) throws IOException {
+        StringWriter out = new StringWriter();
+        try(JsonStreamWriter writer = new JsonStreamWriter(out)){
+            writer.beginObject();
+            writer.field("value", value);
+            writer.endObject();
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void empty_object() throws IOException {
+        StringWriter out = new StringWriter();
+        new JsonStreamWriter(out).beginObject().endObject();
+        assertEquals("{}", out.toString());
+    }
+
+    @Test
+    public void nested_format() throws IOException {
+        Json json = Json.fromString("{\"a\":1,\"b\":[\"x\",true],\"c\":{},\"d\":[]}");
+        assertEquals("{\n" +
+            "  \"value\": {\n" +
+            "    \"a\": 1,\n" +
+            "    \"b\": [\n" +
+            "      \"x\",\n" +
+            "      true\n" +
+            "    ],\n" +
+            "    \"c\": {},\n" +
+            "    \"d\": []\n" +
+            "  }\n" +
+            "}", write(json));
+    }
+
+    @Test
+    public void same_as_toString() throws IOException {
+        Json json = Json.fromString("{\"string\":\"quote \\\" slash \\\\ </tag> tab\\t\",\"long\":12345678901,\"double\":1.50,\"list\":[1,\"two\",{\"three\":3.0}],\"nested\":{\"deep\":{\"deeper\":\"value\"}}}");
+        Json expected = new Json(false);
+        expected.set("value", json);
+        Json fromStream = Json.fromString(write(json));
+        assertEquals(Json.fromString(expected.toString(2)).toString(), fromStream.toString());
+    }
+
+    @Test
+    public void null_literal() throws IOException {
+        Json json = Json.fromString("{\"list\":[1,null,2],\"missing\":null,\"nested\":{\"value\":null}}");
+        String written = write(json);
+        assertFalse("null should not be quoted", written.contains("\"null\""));
+        assertTrue(written.contains("\"missing\": null"));
+        assertTrue(written.contains("\"value\": null"));
+        Json expected = new Json(false);
+        expected.set("value", json);
+        assertEquals(expected.toString(), Json.fromString(written).toString());
+    }
+
+    @Test
+    public void numberToString(){
+        assertEquals("1", JsonStreamWriter.numberToString(1.0));
+        assertEquals("1.5", JsonStreamWriter.numberToString(1.50));
+        assertEquals("100", JsonStreamWriter.numberToString(100L));
+        assertEquals("1.0E10", JsonStreamWriter.numberToString(1.0E10));
+        assertEquals(null, JsonStreamWriter.numberToString(Double.NaN));
+    }
+
+    @Test
+    public void filtered_while_streaming() throws IOException {
+        SecretFilter filter = new SecretFilter();
+        filter.addSecret("hunter2");
+        SecretFilter.FilterStream filtered = filter.stream("test");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filtered.addStream("bytes", bytes);
+        try(JsonStreamWriter writer = new JsonStreamWriter(new OutputStreamWriter(filtered, StandardCharsets.UTF_8))){
+            writer.beginObject();
+            for(int i=0; i<1000; i++){
+                writer.field("key"+i, "password=hunter2 #"+i);
+            }
+            writer.endObject();
+        }
+        String written = bytes.toString(StandardCharsets.UTF_8);
+        assertFalse("secret should be filtered", written.contains("hunter2"));
+        assertTrue(written.contains("password="+SecretFilter.REPLACEMENT+" #999"));
+        assertEquals(1000, Json.fromString(written).size());
+    }
+}
@@ -79,4 +79,16 @@ public class LineEmittingStreamTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    public void partial_line_after_newline(){
+        LineEmittingStream stream = new LineEmittingStream();
+        List<String> lines = new ArrayList<>();
+        stream.addConsumer(lines::add);
+        stream.write("a\nbc".getBytes(),0,4);
+        stream.write("d\n".getBytes(),0,2);
+        assertEquals("lines: "+lines,2,lines.size());
+        assertEquals("a",lines.get(0));
+        assertEquals("buffer the content after the last newline","bcd",lines.get(1));
+    }
 }
@@ -0,0 +1,138 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutputSequenceTest {
+
+    private static OutputSequence sequence(String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        SpillFile file = SpillFile.create();
+        try {
+            Files.write(file.getPath(), bytes);
+            return OutputSequence.trimmed(file, bytes.length);
+        } finally {
+            file.release();
+        }
+    }
+
+    private static String largeContent(){
+        StringBuilder sb = new StringBuilder();
+        int line = 0;
+        while(sb.length() < 3 * OutputSequence.PAGE_SIZE){
+            sb.append("line ").append(line++).append(" é中😀\r\n");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void empty() throws IOException {
+        OutputSequence sequence = sequence("\r\n\n");
+        try {
+            assertEquals(0, sequence.length());
+            assertEquals("", sequence.toString());
+        } finally {
+            sequence.release();
+        }
+    }
+
+    @Test
+    public void multiple_pages_match_string() throws IOException {
+        String content = largeContent();
+        String expected = SpillingOutputStream.trimOutput(content);
+        OutputSequence sequence = sequence(content);
+        try {
+            assertEquals(expected.length(), sequence.length());
+            for(int i=0; i<expected.length(); i++){
+                assertEquals("charAt "+i, expected.charAt(i), sequence.charAt(i));
+            }
+            assertEquals(expected, sequence.toString());
+            int start = OutputSequence.PAGE_SIZE - 10;
+            assertEquals(expected.substring(start, start + 100), sequence.subSequence(start, start + 100).toString());
+            assertEquals(expected.substring(expected.length() - 50), sequence.tail(50));
+        } finally {
+            sequence.release();
+        }
+    }
+
+    @Test
+    public void matcher_finds_last_line() throws IOException {
+        String content = largeContent() + "total: 42\n";
+        OutputSequence sequence = sequence(content);
+        try {
+            Matcher matcher = Pattern.compile("total: (?<total>\\d+)").matcher(sequence);
+            assertTrue(matcher.find());
+            assertEquals("42", matcher.group("total"));
+        } finally {
+            sequence.release();
+        }
+    }
+
+    @Test
+    public void lines() throws IOException {
+        OutputSequence sequence = sequence("\nfirst\r\nsecond\nthird\r\n");
+        try (BufferedReader reader = sequence.lines()) {
+            assertEquals("first", reader.readLine());
+            assertEquals("second", reader.readLine());
+            assertEquals("third", reader.readLine());
+            assertNull(reader.readLine());
+        } finally {
+            sequence.release();
+        }
+    }
+
+    @Test
+    public void release_removes_file() throws IOException {
+        OutputSequence sequence = sequence("content");
+        assertEquals('c', sequence.charAt(0));
+        assertTrue(Files.exists(sequence.getPath()));
+        sequence.release();
+        assertFalse(Files.exists(sequence.getPath()));
+    }
+
+    @Test
+    public void carriage_return_at_page_boundary() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while(sb.length() < OutputSequence.PAGE_SIZE - 1){
+            sb.append('a');
+        }
+        sb.append("\r\nnext\r\r\n");
+        sb.append("\r\n".repeat(OutputSequence.PAGE_SIZE));
+        sb.append("last\r\n\r\n");
+        String content = sb.toString();
+        String expected = SpillingOutputStream.trimOutput(content);
+        OutputSequence sequence = sequence(content);
+        try {
+            assertEquals(expected.length(), sequence.longLength());
+            assertEquals(expected, sequence.toString());
+            assertEquals(expected.split("\n", -1).length, sequence.getLineCount());
+        } finally {
+            sequence.release();
+        }
+    }
+
+    @Test
+    public void long_indexed() throws IOException {
+        String content = largeContent();
+        String expected = SpillingOutputStream.trimOutput(content);
+        OutputSequence sequence = sequence(content);
+        try {
+            assertTrue(sequence.isIndexable());
+            long start = expected.length() - OutputSequence.PAGE_SIZE - 5;
+            assertEquals(expected.substring((int)start), sequence.substring(start, sequence.longLength()));
+        } finally {
+            sequence.release();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PatternAutomatonTest {
+
+    private static PatternAutomaton compile(String...patterns){
+        Map<String,byte[]> map = new LinkedHashMap<>();
+        for(String pattern : patterns){
+            map.put(pattern,pattern.getBytes());
+        }
+        return PatternAutomaton.compile(map);
+    }
+    private static int scan(PatternAutomaton automaton,String input){
+        return automaton.scan(PatternAutomaton.ROOT,input.getBytes(),0,input.getBytes().length);
+    }
+
+    @Test
+    public void empty(){
+        PatternAutomaton automaton = compile();
+        assertTrue(automaton.isEmpty());
+        assertEquals(PatternAutomaton.ROOT,scan(automaton,"foo"));
+        assertTrue("empty pattern should be ignored",compile("").isEmpty());
+    }
+
+    @Test
+    public void match_longest(){
+        PatternAutomaton automaton = compile("FOO","OO","BARFOO");
+        int state = scan(automaton,"xxBARFOO");
+        assertEquals("BARFOO",automaton.matchName(state));
+        assertEquals(6,automaton.matchLength(state));
+        state = scan(automaton,"xxFOO");
+        assertEquals("FOO",automaton.matchName(state));
+        state = scan(automaton,"xxOO");
+        assertEquals("OO",automaton.matchName(state));
+    }
+
+    @Test
+    public void match_acrossScans(){
+        PatternAutomaton automaton = compile("FOO");
+        int state = scan(automaton,"xF");
+        assertNull(automaton.matchName(state));
+        assertEquals(1,automaton.depth(state));
+        state = automaton.scan(state,"O".getBytes(),0,1);
+        assertEquals(2,automaton.depth(state));
+        state = automaton.scan(state,"O".getBytes(),0,1);
+        assertEquals("FOO",automaton.matchName(state));
+    }
+
+    @Test
+    public void depth_failure(){
+        PatternAutomaton automaton = compile("ABAC");
+        int state = scan(automaton,"ABAB");
+        assertNull(automaton.matchName(state));
+        assertEquals("ABAB should fall back to the AB prefix",2,automaton.depth(state));
+        state = automaton.scan(state,"AC".getBytes(),0,2);
+        assertEquals("ABAC",automaton.matchName(state));
+    }
+
+    @Test
+    public void duplicate_firstNameWins(){
+        Map<String,byte[]> map = new LinkedHashMap<>();
+        map.put("first","FOO".getBytes());
+        map.put("second","FOO".getBytes());
+        PatternAutomaton automaton = PatternAutomaton.compile(map);
+        assertEquals("first",automaton.matchName(scan(automaton,"FOO")));
+    }
+
+    @Test
+    public void isPrefix(){
+        PatternAutomaton automaton = compile("FOO","BAR");
+        assertTrue(automaton.isPrefix("FO".getBytes(),0,2));
+        assertTrue(automaton.isPrefix("BAR".getBytes(),0,3));
+        assertFalse(automaton.isPrefix("OO".getBytes(),0,2));
+        assertFalse(automaton.isPrefix("FOOO".getBytes(),0,4));
+    }
+
+    @Test
+    public void filteredStream_manyFilters() throws IOException {
+        FilteredStream filteredStream = new FilteredStream();
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        filteredStream.addStream("bao",bao);
+        for(int i=0; i<200; i++){
+            filteredStream.addFilter("secret"+i,"secret-"+i+"-value","****");
+        }
+        StringBuilder expected = new StringBuilder();
+        for(int i=0; i<200; i++){
+            String line = "line "+i+" secret-"+i+"-value end\n";
+            //write in small chunks so matches span writes
+            for(int start=0; start<line.length(); start+=7){
+                byte[] chunk = line.substring(start,Math.min(line.length(),start+7)).getBytes();
+                filteredStream.write(chunk,0,chunk.length);
+            }
+            expected.append("line "+i+" **** end\n");
+        }
+        filteredStream.flushBuffer();
+        assertEquals(expected.toString(),bao.toString());
+    }
+}
@@ -4,16 +4,25 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class SessionStreamsTest {
 
+   private static final String PROMPT = "<_#%@_qdup_@%#_> ";
+   private static final String EXIT_CODE_PREFIX = "<_#%@_qdup_ec=";
+   private static final String NONCE_PREFIX = "<_#%@_qdup_n=";
+   private static final String INLINE = "Continue? [y/N] ";
 
    private SessionStreams getStreams(){
       SessionStreams sessionStreams = new SessionStreams("test",new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors()/2,new ThreadFactory() {
@@ -26,8 +35,26 @@ public class SessionStreamsTest {
       return sessionStreams;
    }
 
-   private void write(SessionStreams sessionStreams, String toWrite) throws IOException {
-      sessionStreams.getEscapeFilteredStream().write(toWrite.getBytes(),0,toWrite.getBytes().length);
+   /**
+    * The stream chain that SessionStreams replaced, to check the fused pipeline keeps the same behaviour
+    */
+   private static class Chain {
+      EscapeFilteredStream escapeFilteredStream = new EscapeFilteredStream("chain");
+      SuffixStream suffixStream = new SuffixStream("chain-suffix",null);
+      SuffixStream promptStream = new SuffixStream("chain-prompt",null);
+      FilteredStream filteredStream = new FilteredStream("chain");
+      LineEmittingStream lineEmittingStream = new LineEmittingStream("chain");
+      SpillingOutputStream shStream = new SpillingOutputStream();
+
+      Chain(){
+         escapeFilteredStream.addStream("semaphore", suffixStream);
+         suffixStream.addStream("filtered", filteredStream);
+         suffixStream.addStream("prompt-callback", promptStream);
+         filteredStream.addStream("lines", lineEmittingStream);
+         filteredStream.addStream("sh", shStream);
+         filteredStream.addFilter("^C", new byte[]{0, 0, 0, 3});
+         filteredStream.addFilter("echo-^C", "^C");
+      }
    }
 
    @Test
@@ -35,16 +62,16 @@ public class SessionStreamsTest {
       SessionStreams sessionStreams = getStreams();
 
       List<String> emitted = new ArrayList<>();
-      sessionStreams.getLineEmittingStream().addConsumer(emitted::add);
+      sessionStreams.addLineConsumer(emitted::add);
 
-      sessionStreams.getFilteredStream().addFilter("command","command","");
+      sessionStreams.setCommand("command");
       try{
-         write(sessionStreams,"command");
-         write(sessionStreams,"\r\n");
+         sessionStreams.write("command");
+         sessionStreams.write("\r\n");
          //works
-//         write(sessionStreams,"command\r\n");
-         write(sessionStreams,"foo\r\n");
-         write(sessionStreams,"bar\r\n");
+//         sessionStreams.write("command\r\n");
+         sessionStreams.write("foo\r\n");
+         sessionStreams.write("bar\r\n");
       }catch(IOException e){
          fail(e.getMessage());
       }
@@ -52,4 +79,147 @@ public class SessionStreamsTest {
 
       assertEquals("expect 2 entries in array: "+emitted.toString(),2,emitted.size());
    }
+
+   @Test
+   public void prompt_with_exit_code() throws IOException {
+      SessionStreams sessionStreams = new SessionStreams("test",null);
+      sessionStreams.addPrompt("PROMPT",PROMPT,"");
+      sessionStreams.setExitCodePrefix(EXIT_CODE_PREFIX);
+      sessionStreams.setNoncePrefix(NONCE_PREFIX);
+      List<String> found = new ArrayList<>();
+      sessionStreams.addPromptCallback(found::add);
+      sessionStreams.write("foo\r\n\u001b[0;32mbar\u001b[0m\r\n"+EXIT_CODE_PREFIX+"12");
+      assertEquals(0,found.size());
+      sessionStreams.write(NONCE_PREFIX+"7"+PROMPT.substring(0,4));
+      sessionStreams.write(PROMPT.substring(4));
+      assertEquals(1,found.size());
+      assertEquals("12",sessionStreams.getExitCode());
+      assertEquals("7",sessionStreams.getLastNonce());
+      assertEquals("foo\r\nbar\r\n",sessionStreams.currentOutput());
+   }
+
+   @Test
+   public void prompt_after_delay() throws IOException, InterruptedException {
+      SessionStreams sessionStreams = getStreams();
+      sessionStreams.setDelay(10);
+      sessionStreams.addPrompt("PROMPT",PROMPT,"");
+      CountDownLatch found = new CountDownLatch(1);
+      sessionStreams.addPromptCallback((name)->found.countDown());
+      sessionStreams.write("foo\r\n"+PROMPT);
+      assertTrue("prompt callback after the delay",found.await(5,TimeUnit.SECONDS));
+      assertEquals("foo\r\n",sessionStreams.currentOutput());
+   }
+
+   @Test
+   public void expected_nonce_skips_delay() throws IOException {
+      SessionStreams sessionStreams = getStreams();
+      sessionStreams.setDelay(10_000);
+      sessionStreams.addPrompt("PROMPT",PROMPT,"");
+      sessionStreams.setExitCodePrefix(EXIT_CODE_PREFIX);
+      sessionStreams.setNoncePrefix(NONCE_PREFIX);
+      sessionStreams.expectNonce("42");
+      List<String> found = new ArrayList<>();
+      sessionStreams.addPromptCallback(found::add);
+      sessionStreams.write(EXIT_CODE_PREFIX+"0"+NONCE_PREFIX+"41"+PROMPT);
+      assertEquals("a stale nonce waits for the delay",0,found.size());
+      sessionStreams.write("\r\n"+EXIT_CODE_PREFIX+"0"+NONCE_PREFIX+"42"+PROMPT);
+      assertEquals(1,found.size());
+      assertEquals("42",sessionStreams.getLastNonce());
+   }
+
+   @Test
+   public void escape_split_across_writes() throws IOException {
+      SessionStreams sessionStreams = new SessionStreams("test",null);
+      List<String> emitted = new ArrayList<>();
+      sessionStreams.addLineConsumer(emitted::add);
+      sessionStreams.write("one \u001b[0");
+      sessionStreams.write(";32mtwo\u001b");
+      sessionStreams.write("]0;title\u0007three\r\n");
+      assertEquals(Collections.singletonList("one twothree"),emitted);
+   }
+
+   @Test
+   public void inline_prompt() throws IOException {
+      SessionStreams sessionStreams = new SessionStreams("test",null);
+      List<String> found = new ArrayList<>();
+      sessionStreams.addInlinePrompts(Collections.singleton(INLINE),found::add);
+      sessionStreams.write("remove the file?\r\nCont");
+      sessionStreams.write("inue? [y/N] ");
+      assertEquals(Collections.singletonList(INLINE),found);
+      sessionStreams.clearInline();
+      sessionStreams.write(INLINE);
+      assertEquals(1,found.size());
+   }
+
+   @Test
+   public void matches_stream_chain() throws IOException {
+      SessionStreams sessionStreams = new SessionStreams("test",null);
+      Chain chain = new Chain();
+
+      List<String> lines = new ArrayList<>();
+      List<String> chainLines = new ArrayList<>();
+      sessionStreams.addLineConsumer(lines::add);
+      chain.lineEmittingStream.addConsumer(chainLines::add);
+
+      List<String> prompts = new ArrayList<>();
+      List<String> chainPrompts = new ArrayList<>();
+      sessionStreams.addPrompt("PROMPT",PROMPT,"");
+      sessionStreams.setExitCodePrefix(EXIT_CODE_PREFIX);
+      sessionStreams.setNoncePrefix(NONCE_PREFIX);
+      sessionStreams.addPromptCallback((name)->prompts.add(name+":"+sessionStreams.getExitCode()+":"+sessionStreams.getLastNonce()));
+      chain.suffixStream.addSuffix("PROMPT",PROMPT,"");
+      chain.suffixStream.setExitCodePrefix(EXIT_CODE_PREFIX);
+      chain.suffixStream.setNoncePrefix(NONCE_PREFIX);
+      chain.suffixStream.addConsumer((name)->chainPrompts.add(name+":"+chain.suffixStream.getExitCode()+":"+chain.suffixStream.getLastNonce()));
+
+      List<String> inline = new ArrayList<>();
+      List<String> chainInline = new ArrayList<>();
+      sessionStreams.addInlinePrompts(Collections.singleton(INLINE),inline::add);
+      chain.promptStream.addSuffix(INLINE);
+      chain.promptStream.addConsumer(chainInline::add);
+
+      //the command filter is left out, FilteredStream only drops the line end after the command when the command starts the write
+      //writes are shorter than the tail SuffixStream holds for the prompt, a longer write is split before the tail which can separate a \r\n
+      Random random = new Random(7);
+      long written = 0;
+      for(int command = 0; command < 400; command++){
+         String name = "cmd"+command+" --flag";
+         StringBuilder output = new StringBuilder();
+         output.append(name).append("\r\n");
+         for(int line = 0; line < command % 7; line++){
+            output.append("\u001b[0;32mok\u001b[0m line ").append(line).append(" of ").append(name).append("\r\n");
+         }
+         if(command % 5 == 0){
+            output.append("\u001b]0;title ").append(command).append("\u0007");
+         }
+         if(command % 11 == 0){
+            output.append(INLINE).append("y\r\n");
+         }
+         if(command % 13 == 0){
+            output.append("no line end ");
+         }
+         output.append(EXIT_CODE_PREFIX).append(command % 256).append(NONCE_PREFIX).append(command).append(PROMPT);
+         byte[] bytes = output.toString().getBytes();
+         int off = 0;
+         while(off < bytes.length){
+            int len = Math.min(bytes.length - off, 1 + random.nextInt(command % 2 == 0 ? 16 : 64));
+            sessionStreams.write(bytes,off,len);
+            chain.escapeFilteredStream.write(bytes,off,len);
+            off += len;
+         }
+         written += bytes.length;
+         sessionStreams.flushBuffer();
+         chain.filteredStream.flushBuffer();
+         chain.lineEmittingStream.forceEmit();
+         assertEquals("output of "+name,chain.shStream.toString(),sessionStreams.currentOutput());
+         sessionStreams.reset();
+         chain.lineEmittingStream.reset();
+         chain.shStream.reset();
+      }
+      assertEquals(chainLines,lines);
+      assertEquals(400,prompts.size());
+      assertEquals(chainPrompts,prompts);
+      assertEquals(chainInline,inline);
+      assertTrue("output should wrap the ring more than once, wrote "+written,written > 64 * 1024);
+   }
 }
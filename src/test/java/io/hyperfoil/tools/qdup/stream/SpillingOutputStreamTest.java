@@ -0,0 +1,110 @@
+package io.hyperfoil.tools.qdup.stream;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SpillingOutputStreamTest {
+
+    private static void write(SpillingOutputStream stream, String content) throws IOException {
+        stream.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void under_limit_stays_in_memory() throws IOException {
+        SpillingOutputStream stream = new SpillingOutputStream(10);
+        write(stream, "0123456789");
+        assertFalse(stream.isSpilled());
+        assertNull(stream.getSpillPath());
+        assertNull(stream.toSequence());
+        assertEquals("0123456789", stream.toString());
+    }
+
+    @Test
+    public void over_limit_spills() throws IOException {
+        SpillingOutputStream stream = new SpillingOutputStream(10);
+        write(stream, "01234");
+        write(stream, "56789");
+        write(stream, "abc");
+        assertTrue(stream.isSpilled());
+        Path path = stream.getSpillPath();
+        assertNotNull(path);
+        assertEquals(13, stream.size());
+        assertEquals("0123456789abc", stream.toString());
+        stream.reset();
+        assertFalse(stream.isSpilled());
+        assertFalse("reset should delete the spill file", Files.exists(path));
+        assertEquals(0, stream.size());
+        assertEquals("", stream.toString());
+    }
+
+    @Test
+    public void no_limit_never_spills() throws IOException {
+        SpillingOutputStream stream = new SpillingOutputStream(0);
+        for(int i=0; i<1000; i++){
+            write(stream, "line "+i+"\n");
+        }
+        assertFalse(stream.isSpilled());
+    }
+
+    @Test
+    public void tail_in_memory_and_spilled() throws IOException {
+        SpillingOutputStream stream = new SpillingOutputStream(8);
+        write(stream, "abcdef");
+        assertEquals("def", new String(stream.tail(3), StandardCharsets.UTF_8));
+        write(stream, "ghijkl");
+        assertTrue(stream.isSpilled());
+        assertEquals("ijkl", new String(stream.tail(4), StandardCharsets.UTF_8));
+        assertEquals("abcdefghijkl", new String(stream.tail(100), StandardCharsets.UTF_8));
+        stream.reset();
+    }
+
+    @Test
+    public void tail_starts_at_character() throws IOException {
+        SpillingOutputStream stream = new SpillingOutputStream(4);
+        write(stream, "abcéé");//each é is 2 bytes
+        assertEquals("é", new String(stream.tail(3), StandardCharsets.UTF_8));
+        stream.reset();
+    }
+
+    @Test
+    public void toSequence_matches_trimOutput() throws IOException {
+        String content = "\r\n\nfirst\r\nsecond\r\r\nthird\n\rfourth\r\n\r\n";
+        SpillingOutputStream stream = new SpillingOutputStream(4);
+        write(stream, content);
+        OutputSequence sequence = stream.toSequence();
+        try {
+            assertEquals(SpillingOutputStream.trimOutput(content), sequence.toString());
+            assertSame("sequence should be re-used until the next write", sequence, stream.toSequence());
+        } finally {
+            sequence.release();
+            stream.reset();
+        }
+    }
+
+    @Test
+    public void toSequence_reads_spill_file() throws IOException {
+        SpillingOutputStream stream = new SpillingOutputStream(4);
+        write(stream, "first\nsecond\n");
+        Path path = stream.getSpillPath();
+        OutputSequence sequence = stream.toSequence();
+        assertEquals("sequence should not copy the spill file", path, sequence.getPath());
+        write(stream, "third\n");
+        assertEquals("sequence keeps the size when it was created", "first\nsecond", sequence.toString());
+        stream.reset();
+        assertTrue("sequence keeps the file after reset", Files.exists(path));
+        assertEquals("first\nsecond", sequence.toString());
+        sequence.release();
+        assertFalse("last release deletes the file", Files.exists(path));
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -15,37 +16,28 @@ import static org.junit.Assert.assertNotEquals;
 
 public class SuffixStreamTest {
 
+    //the partial suffix match that SuffixStream keeps buffered at the end of a write
+    private static int suffixLength(String input, String suffix){
+        PatternAutomaton automaton = PatternAutomaton.compile(Collections.singletonMap(suffix, suffix.getBytes()));
+        byte[] bytes = input.getBytes();
+        return automaton.depth(automaton.scan(PatternAutomaton.ROOT, bytes, 0, bytes.length));
+    }
+
     @Test
     public void suffixLength_noMatch(){
-        SuffixStream stream = new SuffixStream();
-        byte expected[] = "FOO".getBytes();
-        String input;
-        input = "";
-        assertEquals("FOO should not match any of \"\"",0,stream.suffixLength(input.getBytes(),expected,input.getBytes().length));
+        assertEquals("FOO should not match any of \"\"",0,suffixLength("","FOO"));
     }
     @Test
     public void suffixLength_fullMatch(){
-        SuffixStream stream = new SuffixStream();
-        byte expected[] = "FOO".getBytes();
-        String input;
-        input = "FOO";
-        assertEquals("FOO should be a full match",3,stream.suffixLength(input.getBytes(),expected,input.getBytes().length));
+        assertEquals("FOO should be a full match",3,suffixLength("FOO","FOO"));
     }
     @Test
     public void suffixLength_partialMatch(){
-        SuffixStream stream = new SuffixStream();
-        byte expected[] = "FOO".getBytes();
-        String input;
-        input = "FO";
-        assertEquals("FOO should be a full match",2,stream.suffixLength(input.getBytes(),expected,input.getBytes().length));
+        assertEquals("FOO should be a full match",2,suffixLength("FO","FOO"));
     }
     @Test
     public void suffixLength_partialMatch2(){
-        SuffixStream stream = new SuffixStream();
-        byte expected[] = "FOO".getBytes();
-        String input;
-        input = "F";
-        assertEquals("FOO should be a full match",1,stream.suffixLength(input.getBytes(),expected,input.getBytes().length));
+        assertEquals("FOO should be a full match",1,suffixLength("F","FOO"));
     }
 
     @Test
@@ -138,4 +130,172 @@ public class SuffixStreamTest {
         }
     }
 
+    @Test
+    public void exitCode_fullMatch() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SuffixStream stream = new SuffixStream();
+        stream.addSuffix("FOO","FOO","");
+        stream.setExitCodePrefix("EC=");
+        stream.addStream("baos",baos);
+        stream.write("output\nEC=127FOO".getBytes());
+        assertEquals("127",stream.getExitCode());
+        assertEquals("exit code should be removed from the output","output\n",baos.toString());
+    }
+
+    @Test
+    public void exitCode_splitMatch() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SuffixStream stream = new SuffixStream();
+        stream.addSuffix("FOO","FOO","");
+        stream.setExitCodePrefix("EC=");
+        stream.addStream("baos",baos);
+        AtomicBoolean called = new AtomicBoolean(false);
+        stream.addConsumer((s)->{called.set(true);});
+        stream.write("outputE".getBytes());
+        stream.write("C=".getBytes());
+        stream.write("1".getBytes());
+        stream.write("F".getBytes());
+        assertFalse(called.get());
+        assertEquals("partial exit code should be buffered","output",baos.toString());
+        stream.write("OO".getBytes());
+        assertTrue(called.get());
+        assertEquals("1",stream.getExitCode());
+        assertEquals("output",baos.toString());
+    }
+
+    @Test
+    public void exitCode_missing() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SuffixStream stream = new SuffixStream();
+        stream.addSuffix("FOO","FOO","");
+        stream.setExitCodePrefix("EC=");
+        stream.addStream("baos",baos);
+        stream.write("EC=0FOO".getBytes());
+        assertEquals("0",stream.getExitCode());
+        stream.write("EC=$?FOO".getBytes());
+        assertEquals("exit code should be empty without digits","",stream.getExitCode());
+        assertEquals("EC=$?",baos.toString());
+    }
+
+    @Test
+    public void exitCode_notPrompt() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SuffixStream stream = new SuffixStream();
+        stream.addSuffix("FOO","FOO","");
+        stream.setExitCodePrefix("EC=");
+        stream.addStream("baos",baos);
+        stream.write("EC=12 bar".getBytes());
+        assertEquals("EC=12 bar",baos.toString());
+    }
+
+    @Test
+    public void nonce_expected_skipsDelay() throws IOException {
+        ScheduledThreadPoolExecutor sfe = new ScheduledThreadPoolExecutor(1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SuffixStream stream = new SuffixStream("",sfe);
+        stream.setExecutorDelay(60_000);
+        stream.addSuffix("FOO","FOO","");
+        stream.setExitCodePrefix("EC=");
+        stream.setNoncePrefix("N=");
+        stream.addStream("baos",baos);
+        AtomicBoolean called = new AtomicBoolean(false);
+        stream.addConsumer((s)->{called.set(true);});
+        stream.expectNonce("42");
+        stream.write("output\nEC=2N=42FOO".getBytes());
+        assertTrue("expected nonce should not wait for the delay",called.get());
+        assertEquals("2",stream.getExitCode());
+        assertEquals("42",stream.getLastNonce());
+        assertEquals("nonce should be removed from the output","output\n",baos.toString());
+        sfe.shutdownNow();
+    }
+
+    @Test
+    public void nonce_stale_usesDelay() throws IOException, InterruptedException {
+        ScheduledThreadPoolExecutor sfe = new ScheduledThreadPoolExecutor(1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SuffixStream stream = new SuffixStream("",sfe);
+        stream.setExecutorDelay(50);
+        stream.addSuffix("FOO","FOO","");
+        stream.setExitCodePrefix("EC=");
+        stream.setNoncePrefix("N=");
+        stream.addStream("baos",baos);
+        AtomicBoolean called = new AtomicBoolean(false);
+        stream.addConsumer((s)->{called.set(true);});
+        stream.expectNonce("42");
+        stream.write("outputEC=0N=41FOO".getBytes());
+        assertFalse("a different nonce should wait for the delay",called.get());
+        TimeUnit.SECONDS.sleep(1);
+        assertTrue(called.get());
+        assertEquals("0",stream.getExitCode());
+        assertEquals("41",stream.getLastNonce());
+        assertEquals("output",baos.toString());
+        sfe.shutdownNow();
+    }
+
+    @Test
+    public void nonce_splitMatch() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SuffixStream stream = new SuffixStream();
+        stream.addSuffix("FOO","FOO","");
+        stream.setExitCodePrefix("EC=");
+        stream.setNoncePrefix("N=");
+        stream.addStream("baos",baos);
+        AtomicBoolean called = new AtomicBoolean(false);
+        stream.addConsumer((s)->{called.set(true);});
+        stream.expectNonce("7");
+        stream.write("outputEC=1".getBytes());
+        stream.write("N".getBytes());
+        stream.write("=7".getBytes());
+        stream.write("F".getBytes());
+        assertFalse(called.get());
+        assertEquals("partial nonce should be buffered","output",baos.toString());
+        stream.write("OO".getBytes());
+        assertTrue(called.get());
+        assertEquals("1",stream.getExitCode());
+        assertEquals("7",stream.getLastNonce());
+        assertEquals("output",baos.toString());
+    }
+
+    @Test
+    public void nonce_missing() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SuffixStream stream = new SuffixStream();
+        stream.addSuffix("FOO","FOO","");
+        stream.setExitCodePrefix("EC=");
+        stream.setNoncePrefix("N=");
+        stream.addStream("baos",baos);
+        stream.write("EC=0N=FOO".getBytes());
+        assertEquals("0",stream.getExitCode());
+        assertEquals("prefix without digits is an empty nonce","",stream.getLastNonce());
+        stream.write("EC=3FOO".getBytes());
+        assertEquals("3",stream.getExitCode());
+        assertEquals("PS1 without the nonce prefix",null,stream.getLastNonce());
+        assertEquals("",baos.toString());
+    }
+
+    @Test
+    public void largeWrite_exitCodeInTail() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SuffixStream stream = new SuffixStream();
+        stream.addSuffix("FOO","FOO","");
+        stream.setExitCodePrefix("EC=");
+        stream.addStream("baos",baos);
+        AtomicBoolean called = new AtomicBoolean(false);
+        stream.addConsumer((s)->{called.set(true);});
+        StringBuilder large = new StringBuilder();
+        while(large.length() < 64*1024){
+            large.append("0123456789");
+        }
+        stream.write((large+"EC=12").getBytes());
+        assertFalse(called.get());
+        assertEquals("partial exit code should be buffered",large.toString(),baos.toString());
+        stream.write("F".getBytes());
+        stream.write(("OO").getBytes());
+        assertTrue(called.get());
+        assertEquals("12",stream.getExitCode());
+        stream.write((large+"EC=0FOO").getBytes());
+        assertEquals("0",stream.getExitCode());
+        assertEquals(large.toString()+large,baos.toString());
+    }
+
 }